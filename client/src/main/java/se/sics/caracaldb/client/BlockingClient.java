@@ -21,8 +21,12 @@
 package se.sics.caracaldb.client;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -31,9 +35,13 @@ import org.slf4j.LoggerFactory;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.global.Schema;
+import se.sics.caracaldb.operations.BatchPutRequest;
+import se.sics.caracaldb.operations.BatchPutResponse;
 import se.sics.caracaldb.operations.CaracalResponse;
 import se.sics.caracaldb.operations.GetRequest;
 import se.sics.caracaldb.operations.GetResponse;
+import se.sics.caracaldb.operations.MultiGetRequest;
+import se.sics.caracaldb.operations.MultiGetResponse;
 import se.sics.caracaldb.operations.MultiOpRequest;
 import se.sics.caracaldb.operations.MultiOpResponse;
 import se.sics.caracaldb.operations.OpUtil;
@@ -41,7 +49,10 @@ import se.sics.caracaldb.operations.PutRequest;
 import se.sics.caracaldb.operations.RangeQuery;
 import se.sics.caracaldb.operations.RangeResponse;
 import se.sics.caracaldb.operations.ResponseCode;
+import se.sics.caracaldb.operations.SessionToken;
+import se.sics.caracaldb.operations.Staleness;
 import se.sics.caracaldb.store.ActionFactory;
+import se.sics.caracaldb.store.Aggregator;
 import se.sics.caracaldb.store.Limit;
 import se.sics.caracaldb.store.Limit.LimitTracker;
 import se.sics.caracaldb.store.TFFactory;
@@ -92,7 +103,58 @@ public class BlockingClient {
         }
     }
 
+    /**
+     * Writes all values with one consensus instance per responsible node,
+     * instead of one per key. There are no guarantees across nodes, though.
+     * <p>
+     * @param schema
+     * @param values without nulls (to delete use {@link #put})
+     * @return the (schema prefixed) keys that were written
+     */
+    public BatchPutResponse batchPut(String schema, Map<Key, byte[]> values) {
+        UUID id = TimestampIdFactory.get().newId();
+        ImmutableSortedMap.Builder<Key, byte[]> puts = ImmutableSortedMap.naturalOrder();
+        for (Entry<Key, byte[]> e : values.entrySet()) {
+            Key k = worker.resolveSchema(schema, e.getKey());
+            if (k == null) {
+                LOG.info("Could not resolve schema name for {}:{}", schema, e.getKey());
+                return new BatchPutResponse(id, ImmutableSortedSet.<Key>of(), ResponseCode.NOT_READY);
+            }
+            puts.put(k, e.getValue());
+        }
+        BatchPutRequest req = new BatchPutRequest(id, puts.build());
+        LOG.debug("BatchPut of {} keys", req.puts.size());
+        worker.triggerOnSelf(req);
+        try {
+            CaracalResponse resp = responseQueue.poll(TIMEOUT, TIMEUNIT);
+            if (resp == null) {
+                return new BatchPutResponse(id, ImmutableSortedSet.<Key>of(), ResponseCode.CLIENT_TIMEOUT);
+            }
+            if (resp instanceof BatchPutResponse) {
+                return (BatchPutResponse) resp;
+            }
+            return new BatchPutResponse(id, ImmutableSortedSet.<Key>of(), ResponseCode.UNSUPPORTED_OP);
+        } catch (InterruptedException ex) {
+            LOG.error("Couldn't get a response.", ex);
+            return new BatchPutResponse(id, ImmutableSortedSet.<Key>of(), ResponseCode.CLIENT_TIMEOUT);
+        }
+    }
+
     public GetResponse get(String schema, Key key) {
+        return get(schema, key, null);
+    }
+
+    /**
+     * Reads from any replica of the key within the staleness bound.
+     * <p>
+     * The client's own earlier writes are always visible, see session().
+     *
+     * @param schema
+     * @param key
+     * @param staleness e.g. Staleness.millis(500), null to read linearisably
+     * @return
+     */
+    public GetResponse get(String schema, Key key, Staleness staleness) {
         Key k = worker.resolveSchema(schema, key);
         if (k == null) {
             LOG.info("Could not resolve schema name for {}:{}", schema, key);
@@ -100,7 +162,7 @@ public class BlockingClient {
         }
         LOG.debug("Getting for {}", k);
         UUID id = TimestampIdFactory.get().newId();
-        GetRequest req = new GetRequest(id, k);
+        GetRequest req = new GetRequest(id, k, staleness);
         worker.triggerOnSelf(req);
         try {
             CaracalResponse resp = responseQueue.poll(TIMEOUT, TIMEUNIT);
@@ -117,11 +179,73 @@ public class BlockingClient {
         }
     }
 
+    /**
+     * Reads all keys with one request per responsible node, instead of one per
+     * key.
+     *
+     * @param schema
+     * @param keys
+     * @return the values by (schema prefixed) key, with null for keys that have
+     * no value
+     */
+    public MultiGetResponse multiGet(String schema, Collection<Key> keys) {
+        UUID id = TimestampIdFactory.get().newId();
+        ImmutableSortedSet.Builder<Key> ks = ImmutableSortedSet.naturalOrder();
+        for (Key key : keys) {
+            Key k = worker.resolveSchema(schema, key);
+            if (k == null) {
+                LOG.info("Could not resolve schema name for {}:{}", schema, key);
+                return new MultiGetResponse(id, null, ResponseCode.NOT_READY);
+            }
+            ks.add(k);
+        }
+        MultiGetRequest req = new MultiGetRequest(id, ks.build());
+        LOG.debug("MultiGet for {} keys", req.keys.size());
+        worker.triggerOnSelf(req);
+        try {
+            CaracalResponse resp = responseQueue.poll(TIMEOUT, TIMEUNIT);
+            if (resp == null) {
+                return new MultiGetResponse(id, null, ResponseCode.CLIENT_TIMEOUT);
+            }
+            if (resp instanceof MultiGetResponse) {
+                return (MultiGetResponse) resp;
+            }
+            return new MultiGetResponse(id, null, ResponseCode.UNSUPPORTED_OP);
+        } catch (InterruptedException ex) {
+            LOG.error("Couldn't get a response.", ex);
+            return new MultiGetResponse(id, null, ResponseCode.CLIENT_TIMEOUT);
+        }
+    }
+
     public RangeResponse rangeRequest(String schema, KeyRange range) {
         return rangeRequest(schema, range, Limit.noLimit());
     }
 
     public RangeResponse rangeRequest(String schema, KeyRange range, LimitTracker limit) {
+        return rangeRequest(schema, range, limit, RangeQuery.Type.SEQUENTIAL);
+    }
+
+    /**
+     * @param schema
+     * @param range
+     * @param limit
+     * @param type PARALLEL queries all partitions of the range at once
+     * @return
+     */
+    public RangeResponse rangeRequest(String schema, KeyRange range, LimitTracker limit, RangeQuery.Type type) {
+        return rangeRequest(schema, range, limit, type, null);
+    }
+
+    /**
+     * @param schema
+     * @param range
+     * @param limit
+     * @param type
+     * @param staleness any replica may answer within it, null to read
+     * linearisably
+     * @return
+     */
+    public RangeResponse rangeRequest(String schema, KeyRange range, LimitTracker limit, RangeQuery.Type type, Staleness staleness) {
         KeyRange r = worker.resolveSchema(schema, range);
         if (r == null) {
             LOG.info("Could not resolve schema name for {}:{}", schema, range);
@@ -129,7 +253,89 @@ public class BlockingClient {
         }
         LOG.debug("RangeRequest for {}", r);
         UUID id = TimestampIdFactory.get().newId();
-        RangeQuery.Request req = new RangeQuery.Request(id, r, limit, TFFactory.noTF(), ActionFactory.noop(), RangeQuery.Type.SEQUENTIAL);
+        RangeQuery.Request req = new RangeQuery.Request(id, r, limit, TFFactory.noTF(), ActionFactory.noop(), type);
+        if (staleness != null) {
+            req = req.withStaleness(staleness);
+        }
+        worker.triggerOnSelf(req);
+        try {
+            CaracalResponse resp = responseQueue.poll(TIMEOUT, TIMEUNIT);
+            if (resp == null) {
+                return new RangeResponse(id, r, ResponseCode.CLIENT_TIMEOUT, null, null);
+            }
+            if (resp instanceof RangeResponse) {
+                return (RangeResponse) resp;
+            }
+            return new RangeResponse(id, r, ResponseCode.UNSUPPORTED_OP, null, null);
+        } catch (InterruptedException ex) {
+            LOG.error("Couldn't get a response.", ex);
+            return new RangeResponse(id, r, ResponseCode.CLIENT_TIMEOUT, null, null);
+        }
+    }
+
+    /**
+     * Streams the range in pages of pageSize items.
+     * <p>
+     * The next page is only requested once the previous one has been consumed,
+     * so neither the client nor the servers hold more than a page at a time.
+     * The servers keep the position of the query between pages.
+     * <p>
+     * @param schema
+     * @param range
+     * @param pageSize
+     * @return
+     */
+    public RangeIterator rangeIterator(String schema, KeyRange range, int pageSize) {
+        KeyRange r = worker.resolveSchema(schema, range);
+        if (r == null) {
+            LOG.info("Could not resolve schema name for {}:{}", schema, range);
+            return new RangeIterator(this, ResponseCode.NOT_READY);
+        }
+        return new RangeIterator(this, r, pageSize, TimestampIdFactory.get().newId());
+    }
+
+    RangeResponse rangePage(KeyRange r, int pageSize, UUID cursorId) {
+        LOG.debug("RangeRequest page for {} (cursor {})", r, cursorId);
+        UUID id = TimestampIdFactory.get().newId();
+        RangeQuery.Request req = new RangeQuery.Request(id, r, Limit.toItems(pageSize), TFFactory.noTF(), ActionFactory.noop(), RangeQuery.Type.SEQUENTIAL, cursorId);
+        worker.triggerOnSelf(req);
+        try {
+            CaracalResponse resp = responseQueue.poll(TIMEOUT, TIMEUNIT);
+            if (resp == null) {
+                return new RangeResponse(id, r, ResponseCode.CLIENT_TIMEOUT, null, null);
+            }
+            if (resp instanceof RangeResponse) {
+                return (RangeResponse) resp;
+            }
+            if (resp.code != ResponseCode.SUCCESS) {
+                return new RangeResponse(id, r, resp.code, null, null);
+            }
+            return new RangeResponse(id, r, ResponseCode.UNSUPPORTED_OP, null, null);
+        } catch (InterruptedException ex) {
+            LOG.error("Couldn't get a response.", ex);
+            return new RangeResponse(id, r, ResponseCode.CLIENT_TIMEOUT, null, null);
+        }
+    }
+
+    /**
+     * Aggregates the values of the range on the servers.
+     * <p>
+     * All partitions are asked at once and only their aggregates are sent back.
+     * <p>
+     * @param schema
+     * @param range
+     * @param aggregator e.g. from AggFactory
+     * @return a response whose aggregate holds the result
+     */
+    public RangeResponse aggregate(String schema, KeyRange range, Aggregator aggregator) {
+        KeyRange r = worker.resolveSchema(schema, range);
+        if (r == null) {
+            LOG.info("Could not resolve schema name for {}:{}", schema, range);
+            return new RangeResponse(null, r, ResponseCode.NOT_READY, null, null);
+        }
+        LOG.debug("Aggregate {} for {}", aggregator, r);
+        UUID id = TimestampIdFactory.get().newId();
+        RangeQuery.Request req = OpUtil.aggregate(id, r, aggregator, RangeQuery.Type.PARALLEL);
         worker.triggerOnSelf(req);
         try {
             CaracalResponse resp = responseQueue.poll(TIMEOUT, TIMEUNIT);
@@ -219,6 +425,22 @@ public class BlockingClient {
         }
     }
 
+    /**
+     * The log positions this client has seen.
+     * <p>
+     * Pass it to resume() on another client to keep reading this client's
+     * writes there.
+     *
+     * @return
+     */
+    public SessionToken session() {
+        return worker.session();
+    }
+
+    public void resume(SessionToken token) {
+        worker.resume(token);
+    }
+
     public ListenableFuture<Schema.Response> createSchema(String name, ImmutableMap<String, String> metaData) {
         CreateSchema cs = new CreateSchema(name, metaData);
         worker.triggerOnSelf(cs);
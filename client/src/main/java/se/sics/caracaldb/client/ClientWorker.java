@@ -20,10 +20,13 @@
  */
 package se.sics.caracaldb.client;
 
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -43,15 +46,20 @@ import se.sics.caracaldb.global.Sample;
 import se.sics.caracaldb.global.SampleRequest;
 import se.sics.caracaldb.global.Schema;
 import se.sics.caracaldb.global.SchemaData;
+import se.sics.caracaldb.operations.BatchPutRequest;
+import se.sics.caracaldb.operations.BatchPutResponse;
 import se.sics.caracaldb.operations.CaracalMsg;
 import se.sics.caracaldb.operations.CaracalOp;
 import se.sics.caracaldb.operations.CaracalResponse;
 import se.sics.caracaldb.operations.GetRequest;
+import se.sics.caracaldb.operations.MultiGetRequest;
+import se.sics.caracaldb.operations.MultiGetResponse;
 import se.sics.caracaldb.operations.MultiOpRequest;
 import se.sics.caracaldb.operations.PutRequest;
 import se.sics.caracaldb.operations.RangeQuery;
 import se.sics.caracaldb.operations.RangeResponse;
 import se.sics.caracaldb.operations.ResponseCode;
+import se.sics.caracaldb.operations.SessionToken;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
 import se.sics.kompics.Negative;
@@ -80,10 +88,13 @@ public class ClientWorker extends ComponentDefinition {
     
     private UUID currentRequestId = new UUID(-1, -1);
     private RangeQuery.SeqCollector col;
+    private MultiGetResponse.Collector mgCol;
+    private BatchPutResponse.Collector bpCol;
     private final Map<String, SettableFuture<Schema.Response>> ongoingSchemaRequests
             = new HashMap<String, SettableFuture<Schema.Response>>();
     private volatile boolean connectionEstablished = false;
     private volatile SchemaData schemas;
+    private volatile SessionToken session = SessionToken.EMPTY;
     private final ReadOnlyLUT lut;
     private final ReadWriteLock lutLock;
 
@@ -104,7 +115,9 @@ public class ClientWorker extends ComponentDefinition {
         subscribe(schemaDropHandler, client);
         subscribe(multiOpHandler, client);
         subscribe(putHandler, client);
+        subscribe(batchPutHandler, client);
         subscribe(getHandler, client);
+        subscribe(multiGetHandler, client);
         subscribe(rqHandler, client);
         subscribe(responseHandler, net);
         subscribe(schemaResponseHandler, net);
@@ -202,18 +215,60 @@ public class ClientWorker extends ComponentDefinition {
             LOG.debug("MSG: {}", fmsg);
         }
     };
+    Handler<BatchPutRequest> batchPutHandler = new Handler<BatchPutRequest>() {
+        @Override
+        public void handle(BatchPutRequest event) {
+            LOG.debug("Handling BatchPut of {} keys", event.puts.size());
+            currentRequestId = event.id;
+            bpCol = new BatchPutResponse.Collector(event);
+            for (Entry<Address, SortedSet<Key>> e : groupByDest(event.puts.keySet()).entrySet()) {
+                ImmutableSortedMap.Builder<Key, byte[]> slice = ImmutableSortedMap.naturalOrder();
+                for (Key k : e.getValue()) {
+                    slice.put(k, event.puts.get(k));
+                }
+                BatchPutRequest req = new BatchPutRequest(event.id, slice.build());
+                Address target = e.getKey();
+                CaracalMsg msg = new CaracalMsg(self, target, req);
+                ForwardMessage fmsg = new ForwardMessage(self, target, req.puts.firstKey(), msg);
+                LOG.debug("MSG: {}", fmsg);
+                trigger(fmsg, net);
+            }
+        }
+    };
     Handler<GetRequest> getHandler = new Handler<GetRequest>() {
         @Override
         public void handle(GetRequest event) {
             LOG.debug("Handling Get {}", event.key);
             currentRequestId = event.id;
             Address target = findDest(event.key);
-            CaracalMsg msg = new CaracalMsg(self, target, event);
+            GetRequest req = event;
+            if ((event.staleness != null) && (target.getId() != null)) {
+                // a get only needs the position of its group
+                SessionToken only = event.staleness.session.merge(session).only(new Key(target.getId()));
+                req = new GetRequest(event.id, event.key, event.staleness.within(only));
+            }
+            CaracalMsg msg = new CaracalMsg(self, target, req);
             ForwardMessage fmsg = new ForwardMessage(self, target, event.key, msg);
             LOG.debug("MSG: {}", fmsg);
             trigger(fmsg, net);
         }
     };
+    Handler<MultiGetRequest> multiGetHandler = new Handler<MultiGetRequest>() {
+        @Override
+        public void handle(MultiGetRequest event) {
+            LOG.debug("Handling MultiGet of {} keys", event.keys.size());
+            currentRequestId = event.id;
+            mgCol = new MultiGetResponse.Collector(event);
+            for (Entry<Address, SortedSet<Key>> e : groupByDest(event.keys).entrySet()) {
+                MultiGetRequest req = new MultiGetRequest(event.id, ImmutableSortedSet.copyOf(e.getValue()));
+                Address target = e.getKey();
+                CaracalMsg msg = new CaracalMsg(self, target, req);
+                ForwardMessage fmsg = new ForwardMessage(self, target, req.keys.first(), msg);
+                LOG.debug("MSG: {}", fmsg);
+                trigger(fmsg, net);
+            }
+        }
+    };
     Handler<RangeQuery.Request> rqHandler = new Handler<RangeQuery.Request>() {
 
         @Override
@@ -221,7 +276,11 @@ public class ClientWorker extends ComponentDefinition {
             LOG.debug("Handling RQ {}", event);
             currentRequestId = event.id;
             Address target = findDest(event.initRange.begin);
-            CaracalMsg msg = new CaracalMsg(self, target, event);
+            RangeQuery.Request req = event;
+            if (event.staleness != null) {
+                req = event.withStaleness(event.staleness.within(event.staleness.session.merge(session)));
+            }
+            CaracalMsg msg = new CaracalMsg(self, target, req);
             ForwardMessage fmsg = new ForwardMessage(self, target, event.initRange.begin, msg);
             LOG.debug("MSG: {}", fmsg);
             col = new RangeQuery.SeqCollector(event);
@@ -236,6 +295,9 @@ public class ClientWorker extends ComponentDefinition {
             LOG.debug("Handling Message {}", event);
             if (event.op instanceof CaracalResponse) {
                 CaracalResponse resp = (CaracalResponse) event.op;
+                if ((resp.getPosition() >= 0) && (event.getSource().getId() != null)) {
+                    session = session.advance(new Key(event.getSource().getId()), resp.getPosition());
+                }
 //                lutLock.writeLock().lock();
 //                try {
 //                    if (lut.collect(resp)) { // Might be a piece of a LUTUpdate
@@ -269,6 +331,32 @@ public class ClientWorker extends ComponentDefinition {
                     }
                     return;
                 }
+                if (resp instanceof BatchPutResponse) {
+                    if (bpCol == null) {
+                        LOG.debug("Ignoring {} as the request has already been answered.", resp);
+                        return;
+                    }
+                    bpCol.processResponse((BatchPutResponse) resp);
+                    if (bpCol.isDone()) {
+                        BatchPutResponse bpr = bpCol.getResponse();
+                        bpCol = null;
+                        enqueue(bpr);
+                    }
+                    return;
+                }
+                if (resp instanceof MultiGetResponse) {
+                    if (mgCol == null) {
+                        LOG.debug("Ignoring {} as the request has already been answered.", resp);
+                        return;
+                    }
+                    mgCol.processResponse((MultiGetResponse) resp);
+                    if (mgCol.isDone()) {
+                        MultiGetResponse mgr = mgCol.getResponse();
+                        mgCol = null;
+                        enqueue(mgr);
+                    }
+                    return;
+                }
                 enqueue(resp);
 
                 return;
@@ -301,6 +389,22 @@ public class ClientWorker extends ComponentDefinition {
         trigger(op, client.getPair());
     }
 
+    /**
+     * @return the log positions this client has seen so far
+     */
+    public SessionToken session() {
+        return session;
+    }
+
+    /**
+     * Continues the session of another client, so its writes are read here.
+     *
+     * @param token
+     */
+    public void resume(SessionToken token) {
+        session = session.merge(token);
+    }
+
     public boolean test() {
         return connectionEstablished;
     }
@@ -424,6 +528,24 @@ public class ClientWorker extends ComponentDefinition {
         }
     }
 
+    private Map<Address, SortedSet<Key>> groupByDest(SortedSet<Key> keys) {
+        lutLock.readLock().lock();
+        try {
+            Map<Address, SortedSet<Key>> groups = lut.groupByDest(keys);
+            if (groups != null) {
+                return groups;
+            }
+        } catch (LookupTable.NoResponsibleForKeyException ex) {
+            // fall through
+        } catch (LookupTable.NoSuchSchemaException ex) { // this can only happen if LUT and SchemaData are out of sync
+            // fall through
+        } finally {
+            lutLock.readLock().unlock();
+        }
+        // let the servers split it up
+        return Collections.singletonMap(randomNode(), keys);
+    }
+
     private Address findDest(Key k) {
         lutLock.readLock().lock();
         try {
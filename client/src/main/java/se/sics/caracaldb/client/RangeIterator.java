@@ -0,0 +1,138 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.client;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.operations.RangeResponse;
+import se.sics.caracaldb.operations.ResponseCode;
+
+/**
+ * Pull based iteration over a paged range query.
+ * <p>
+ * A page is only requested from the cluster when the previous one has been
+ * consumed, which gives the caller backpressure for free. The page after a full
+ * one starts right after its last key, so the servers can continue from the
+ * cursor they kept for the query.
+ * <p>
+ * A page that fails ends the iteration. Check {@link #getCode()} afterwards to
+ * tell a failure from the end of the range.
+ * <p>
+ * @author lkroll
+ */
+public class RangeIterator implements Iterator<Entry<Key, byte[]>>, Closeable {
+
+    private final BlockingClient client;
+    private final int pageSize;
+    private final UUID cursorId;
+    private KeyRange rest;
+    private Iterator<Entry<Key, byte[]>> page = Collections.<Entry<Key, byte[]>>emptyIterator();
+    private boolean exhausted;
+    private ResponseCode code = ResponseCode.SUCCESS;
+    private int pages = 0;
+
+    RangeIterator(BlockingClient client, KeyRange range, int pageSize, UUID cursorId) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive, not " + pageSize);
+        }
+        this.client = client;
+        this.rest = range;
+        this.pageSize = pageSize;
+        this.cursorId = cursorId;
+        this.exhausted = false;
+    }
+
+    RangeIterator(BlockingClient client, ResponseCode failure) {
+        this.client = client;
+        this.rest = null;
+        this.pageSize = 0;
+        this.cursorId = null;
+        this.exhausted = true;
+        this.code = failure;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext() && !exhausted) {
+            fetch();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public Entry<Key, byte[]> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Stops the iteration. The servers close their cursors for it once they
+     * have been idle for a while.
+     */
+    @Override
+    public void close() {
+        exhausted = true;
+        page = Collections.<Entry<Key, byte[]>>emptyIterator();
+    }
+
+    /**
+     * @return SUCCESS unless a page failed
+     */
+    public ResponseCode getCode() {
+        return code;
+    }
+
+    /**
+     * @return number of pages requested so far
+     */
+    public int pages() {
+        return pages;
+    }
+
+    private void fetch() {
+        pages++;
+        RangeResponse resp = client.rangePage(rest, pageSize, cursorId);
+        if (resp.code != ResponseCode.SUCCESS) {
+            code = resp.code;
+            exhausted = true;
+            return;
+        }
+        if (resp.results.size() < pageSize) {
+            exhausted = true; // only a full page stops before the end of the range
+        } else {
+            rest = KeyRange.open(resp.results.lastKey()).endFrom(rest);
+        }
+        page = resp.results.entrySet().iterator();
+    }
+}
@@ -27,6 +27,7 @@ import se.sics.caracaldb.flow.CollectorDescriptionSerializer;
 import se.sics.caracaldb.flow.FlowMessageSerializer;
 import se.sics.caracaldb.global.LookupSerializer;
 import se.sics.caracaldb.operations.ConditionSerializer;
+import se.sics.caracaldb.operations.FilterSerializer;
 import se.sics.caracaldb.operations.OperationSerializer;
 import se.sics.caracaldb.paxos.PaxosSerializer;
 import se.sics.caracaldb.replication.log.ValueSerializer;
@@ -49,6 +50,7 @@ public class CoreSerializer<S extends Serializer> {
     public static final CoreSerializer<SimpleFDSerializer> SFD = new CoreSerializer<SimpleFDSerializer>(107, new SimpleFDSerializer());
     public static final CoreSerializer<DataTransferSerializer> DTS = new CoreSerializer<DataTransferSerializer>(108, new DataTransferSerializer());
     public static final CoreSerializer<CollectorDescriptionSerializer> CDS = new CoreSerializer<CollectorDescriptionSerializer>(109, new CollectorDescriptionSerializer());
+    public static final CoreSerializer<FilterSerializer> FILTER = new CoreSerializer<FilterSerializer>(110, new FilterSerializer());
     
     public final int id;
     public final S instance;
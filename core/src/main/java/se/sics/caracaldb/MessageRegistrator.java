@@ -28,6 +28,7 @@ import se.sics.caracaldb.global.Schema;
 import se.sics.caracaldb.operations.CaracalMsg;
 import se.sics.caracaldb.operations.CaracalOp;
 import se.sics.caracaldb.store.MultiOp;
+import se.sics.caracaldb.store.ScanFilter;
 import se.sics.caracaldb.system.StartVNode;
 import se.sics.caracaldb.system.StopVNode;
 import se.sics.kompics.network.netty.serialization.Serializers;
@@ -61,6 +62,9 @@ public abstract class MessageRegistrator {
         Serializers.register(CoreSerializer.COND.instance, "condS");
         Serializers.register(MultiOp.Condition.class, "condS");
         //
+        Serializers.register(CoreSerializer.FILTER.instance, "filterS");
+        Serializers.register(ScanFilter.class, "filterS");
+        //
         Serializers.register(CoreSerializer.DTS.instance, "transferS");
         Serializers.register(TransferMessage.class, "transferS");
         //
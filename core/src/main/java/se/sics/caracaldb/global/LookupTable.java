@@ -33,14 +33,17 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import org.javatuples.Pair;
@@ -548,6 +551,45 @@ public class LookupTable {
         if (repGroup == null) {
             throw new NoResponsibleForKeyException(k);
         }
+        return pickDest(repGroup, self);
+    }
+
+    /**
+     * Like {@link #findDest(Key, Address, Random)} for many keys, but picks the
+     * same replica for all keys of a virtual node.
+     *
+     * @param keys
+     * @param self
+     * @param rand
+     * @return the keys grouped by the node they should be sent to
+     * @throws se.sics.caracaldb.global.LookupTable.NoResponsibleForKeyException
+     * @throws se.sics.caracaldb.global.LookupTable.NoSuchSchemaException
+     */
+    Map<Address, SortedSet<Key>> groupByDest(Collection<Key> keys, Address self, Random rand) throws NoResponsibleForKeyException, NoSuchSchemaException {
+        Map<List<Address>, Address> dests = new HashMap<List<Address>, Address>();
+        Map<Address, SortedSet<Key>> groups = new HashMap<Address, SortedSet<Key>>();
+        for (Key k : keys) {
+            Address[] repGroup = getResponsibles(k);
+            if (repGroup == null) {
+                throw new NoResponsibleForKeyException(k);
+            }
+            List<Address> vnode = Arrays.asList(repGroup);
+            Address dest = dests.get(vnode);
+            if (dest == null) {
+                dest = pickDest(repGroup, self);
+                dests.put(vnode, dest);
+            }
+            SortedSet<Key> group = groups.get(dest);
+            if (group == null) {
+                group = new TreeSet<Key>();
+                groups.put(dest, group);
+            }
+            group.add(k);
+        }
+        return groups;
+    }
+
+    private Address pickDest(Address[] repGroup, Address self) {
         // Try to deliver locally
         for (Address adr : repGroup) {
             if (adr.sameHostAs(self)) {
@@ -22,10 +22,12 @@ package se.sics.caracaldb.global;
 
 import com.google.common.primitives.Longs;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
+import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -167,6 +169,20 @@ public class ReadOnlyLUT {
         return null;
     }
 
+    /**
+     * @param keys
+     * @return the keys grouped by destination or null if there's no lookup
+     * table yet
+     * @throws se.sics.caracaldb.global.LookupTable.NoResponsibleForKeyException
+     * @throws se.sics.caracaldb.global.LookupTable.NoSuchSchemaException
+     */
+    public Map<Address, SortedSet<Key>> groupByDest(Collection<Key> keys) throws LookupTable.NoResponsibleForKeyException, LookupTable.NoSuchSchemaException {
+        if (lut != null) {
+            return lut.groupByDest(keys, self, rand);
+        }
+        return null;
+    }
+
     private void applyStalledUpdates() {
         while (!stalledUpdates.isEmpty()) {
             LUTUpdate update = stalledUpdates.firstEntry().getValue();
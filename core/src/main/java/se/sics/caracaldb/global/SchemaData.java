@@ -39,6 +39,7 @@ import java.util.TreeMap;
  * db -> {memory, leveldb} (default: leveldb) you can also register others in the server's config<br>
  * vnodes -> {1, ..., n} (default: 1)<br>
  * rfactor -> {1, ..., n} (default: 3) preferably odd<br>
+ * compression -> {none, fast, deflate} (default: none) value compression, with optional base64 encoded compression.dictionary<br>
  * <p>
  * DON'T use the following unless you know what you are doing!<br>
  * id -> {e.g. "0F"} (default: auto-generated) this forces the schema to be assigned the given HEX-id.<br>
@@ -0,0 +1,79 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.Map.Entry;
+import java.util.UUID;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+
+/**
+ * Writes a batch of values without any conditions.
+ *
+ * Unlike a {@link MultiOpRequest} the keys don't have to be collocated. The
+ * batch is split by virtual node like a {@link MultiGetRequest}, and every
+ * node decides and applies its slice as a single log entry.
+ *
+ * @author lkroll
+ */
+public final class BatchPutRequest extends CaracalOp implements MultiKeyOp {
+
+    public final ImmutableSortedMap<Key, byte[]> puts;
+
+    public BatchPutRequest(UUID id, ImmutableSortedMap<Key, byte[]> puts) {
+        super(id);
+        this.puts = puts;
+    }
+
+    @Override
+    public ImmutableSortedSet<Key> keys() {
+        return puts.keySet();
+    }
+
+    @Override
+    public BatchPutRequest inside(KeyRange range) {
+        ImmutableSortedMap.Builder<Key, byte[]> b = ImmutableSortedMap.naturalOrder();
+        for (Entry<Key, byte[]> e : puts.entrySet()) {
+            if (range.contains(e.getKey())) {
+                b.put(e);
+            }
+        }
+        return new BatchPutRequest(id, b.build());
+    }
+
+    @Override
+    public BatchPutRequest outside(KeyRange range) {
+        ImmutableSortedMap.Builder<Key, byte[]> b = ImmutableSortedMap.naturalOrder();
+        for (Entry<Key, byte[]> e : puts.entrySet()) {
+            if (!range.contains(e.getKey())) {
+                b.put(e);
+            }
+        }
+        return new BatchPutRequest(id, b.build());
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPutRequest(" + id + ", " + puts.size() + " keys)";
+    }
+}
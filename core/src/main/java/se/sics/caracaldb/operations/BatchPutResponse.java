@@ -0,0 +1,100 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import se.sics.caracaldb.Key;
+
+/**
+ * Confirms the keys of (a slice of) a {@link BatchPutRequest}.
+ *
+ * @author lkroll
+ */
+public final class BatchPutResponse extends CaracalResponse {
+
+    public final ImmutableSortedSet<Key> keys;
+
+    public BatchPutResponse(UUID id, ImmutableSortedSet<Key> keys) {
+        this(id, keys, ResponseCode.SUCCESS);
+    }
+
+    public BatchPutResponse(UUID id, ImmutableSortedSet<Key> keys, ResponseCode code) {
+        super(id, code);
+        this.keys = keys;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPutResponse(" + id + ", " + keys.size() + " keys, " + code.name() + ")";
+    }
+
+    /**
+     * Merges the confirmations of the slices of a request, which may arrive
+     * in any order and more than once.
+     * <p>
+     * If a slice fails the merged response carries its code and only the keys
+     * that were confirmed so far.
+     */
+    public static class Collector {
+
+        private final UUID id;
+        private final SortedSet<Key> missing;
+        private final TreeSet<Key> written = new TreeSet<Key>();
+        private ResponseCode code = ResponseCode.SUCCESS;
+
+        public Collector(BatchPutRequest req) {
+            this.id = req.id;
+            this.missing = new TreeSet<Key>(req.puts.keySet());
+        }
+
+        public void processResponse(BatchPutResponse resp) {
+            if (resp.code != ResponseCode.SUCCESS) {
+                code = resp.code;
+                return;
+            }
+            for (Key k : resp.keys) {
+                if (missing.remove(k)) {
+                    written.add(k);
+                }
+            }
+        }
+
+        public boolean isDone() {
+            return missing.isEmpty() || (code != ResponseCode.SUCCESS);
+        }
+
+        public SortedSet<Key> missing() {
+            return Collections.unmodifiableSortedSet(missing);
+        }
+
+        public BatchPutResponse getResponse() {
+            ResponseCode c = code;
+            if ((c == ResponseCode.SUCCESS) && !missing.isEmpty()) {
+                c = ResponseCode.SUCCESS_INTERRUPTED;
+            }
+            return new BatchPutResponse(id, ImmutableSortedSet.copyOf(written), c);
+        }
+    }
+}
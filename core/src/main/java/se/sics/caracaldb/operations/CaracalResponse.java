@@ -29,12 +29,25 @@ import java.util.UUID;
 public class CaracalResponse extends CaracalOp {
 
     public final ResponseCode code;
+    private long position = -1;
 
     public CaracalResponse(UUID id, ResponseCode code) {
         super(id);
         this.code = code;
     }
 
+    /**
+     * @return the log position the answering replica had applied when it
+     * executed the op, or -1 if unknown
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
     @Override
     public String toString() {
         return "EmptyResponse(" + id + ", " + code.name() + ")";
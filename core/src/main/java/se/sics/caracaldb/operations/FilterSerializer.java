@@ -0,0 +1,232 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.larskroll.common.BitBuffer;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.CoreSerializer;
+import se.sics.caracaldb.store.ScanFilter;
+import se.sics.caracaldb.store.ScanFilter.And;
+import se.sics.caracaldb.store.ScanFilter.Compare;
+import se.sics.caracaldb.store.ScanFilter.Exists;
+import se.sics.caracaldb.store.ScanFilter.Expr;
+import se.sics.caracaldb.store.ScanFilter.Field;
+import se.sics.caracaldb.store.ScanFilter.Json;
+import se.sics.caracaldb.store.ScanFilter.KeyPrefix;
+import se.sics.caracaldb.store.ScanFilter.KeyRegex;
+import se.sics.caracaldb.store.ScanFilter.LengthPrefixed;
+import se.sics.caracaldb.store.ScanFilter.Not;
+import se.sics.caracaldb.store.ScanFilter.NumCompare;
+import se.sics.caracaldb.store.ScanFilter.Op;
+import se.sics.caracaldb.store.ScanFilter.Or;
+import se.sics.caracaldb.store.ScanFilter.Slice;
+import se.sics.caracaldb.store.ScanFilter.Whole;
+import se.sics.kompics.network.netty.serialization.Serializer;
+
+/**
+ * Writes {@link ScanFilter}s as a prefix encoded expression tree with one
+ * opcode byte per node, instead of going through Java serialisation.
+ *
+ * @author lkroll
+ */
+public class FilterSerializer implements Serializer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilterSerializer.class);
+
+    private static final byte AND = 0x01;
+    private static final byte OR = 0x02;
+    private static final byte NOT = 0x03;
+    private static final byte KEY_PREFIX = 0x10;
+    private static final byte KEY_REGEX = 0x11;
+    private static final byte CMP = 0x20;
+    private static final byte NUM_CMP = 0x21;
+    private static final byte EXISTS = 0x22;
+    //
+    private static final byte WHOLE = 0;
+    private static final byte SLICE = 1;
+    private static final byte LENGTH_PREFIXED = 2;
+    private static final byte JSON = 3;
+
+    @Override
+    public int identifier() {
+        return CoreSerializer.FILTER.id;
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuf buf) {
+        if (o instanceof ScanFilter) {
+            ScanFilter sf = (ScanFilter) o;
+            BitBuffer flags = BitBuffer.create(sf.where != null, sf.select != null);
+            buf.writeBytes(flags.finalise());
+            if (sf.where != null) {
+                toBinaryExpr(sf.where, buf);
+            }
+            if (sf.select != null) {
+                toBinaryField(sf.select, buf);
+            }
+            return;
+        }
+        LOG.warn("Couldn't serialize {}: {}", o, o.getClass());
+    }
+
+    @Override
+    public Object fromBinary(ByteBuf buf, Optional<Object> hint) {
+        byte[] flagsB = new byte[1];
+        buf.readBytes(flagsB);
+        boolean[] flags = BitBuffer.extract(2, flagsB);
+        Expr where = flags[0] ? fromBinaryExpr(buf) : null;
+        Field select = flags[1] ? fromBinaryField(buf) : null;
+        return new ScanFilter(where, select);
+    }
+
+    private void toBinaryExpr(Expr e, ByteBuf buf) {
+        if (e instanceof And) {
+            buf.writeByte(AND);
+            toBinaryExprs(((And) e).children, buf);
+        } else if (e instanceof Or) {
+            buf.writeByte(OR);
+            toBinaryExprs(((Or) e).children, buf);
+        } else if (e instanceof Not) {
+            buf.writeByte(NOT);
+            toBinaryExpr(((Not) e).child, buf);
+        } else if (e instanceof KeyPrefix) {
+            buf.writeByte(KEY_PREFIX);
+            writeBytes(((KeyPrefix) e).prefix, buf);
+        } else if (e instanceof KeyRegex) {
+            buf.writeByte(KEY_REGEX);
+            writeBytes(((KeyRegex) e).regex.getBytes(Charsets.UTF_8), buf);
+        } else if (e instanceof Compare) {
+            Compare c = (Compare) e;
+            buf.writeByte(CMP);
+            toBinaryField(c.field, buf);
+            buf.writeByte(c.op.ordinal());
+            writeBytes(c.operand, buf);
+        } else if (e instanceof NumCompare) {
+            NumCompare c = (NumCompare) e;
+            buf.writeByte(NUM_CMP);
+            toBinaryField(c.field, buf);
+            buf.writeByte(c.op.ordinal());
+            buf.writeDouble(c.operand);
+        } else if (e instanceof Exists) {
+            buf.writeByte(EXISTS);
+            toBinaryField(((Exists) e).field, buf);
+        } else {
+            throw new IllegalArgumentException("Unknown filter expression " + e);
+        }
+    }
+
+    private void toBinaryExprs(Expr[] es, ByteBuf buf) {
+        buf.writeByte(es.length);
+        for (Expr e : es) {
+            toBinaryExpr(e, buf);
+        }
+    }
+
+    private Expr fromBinaryExpr(ByteBuf buf) {
+        byte code = buf.readByte();
+        switch (code) {
+            case AND:
+                return new And(fromBinaryExprs(buf));
+            case OR:
+                return new Or(fromBinaryExprs(buf));
+            case NOT:
+                return new Not(fromBinaryExpr(buf));
+            case KEY_PREFIX:
+                return new KeyPrefix(readBytes(buf));
+            case KEY_REGEX:
+                return new KeyRegex(new String(readBytes(buf), Charsets.UTF_8));
+            case CMP: {
+                Field f = fromBinaryField(buf);
+                Op op = Op.values()[buf.readUnsignedByte()];
+                return new Compare(f, op, readBytes(buf));
+            }
+            case NUM_CMP: {
+                Field f = fromBinaryField(buf);
+                Op op = Op.values()[buf.readUnsignedByte()];
+                return new NumCompare(f, op, buf.readDouble());
+            }
+            case EXISTS:
+                return new Exists(fromBinaryField(buf));
+            default:
+                throw new IllegalArgumentException("Unknown filter opcode " + code);
+        }
+    }
+
+    private Expr[] fromBinaryExprs(ByteBuf buf) {
+        Expr[] es = new Expr[buf.readUnsignedByte()];
+        for (int i = 0; i < es.length; i++) {
+            es[i] = fromBinaryExpr(buf);
+        }
+        return es;
+    }
+
+    private void toBinaryField(Field f, ByteBuf buf) {
+        if (f instanceof Whole) {
+            buf.writeByte(WHOLE);
+        } else if (f instanceof Slice) {
+            Slice s = (Slice) f;
+            buf.writeByte(SLICE);
+            buf.writeInt(s.offset);
+            buf.writeInt(s.length);
+        } else if (f instanceof LengthPrefixed) {
+            buf.writeByte(LENGTH_PREFIXED);
+            buf.writeInt(((LengthPrefixed) f).index);
+        } else if (f instanceof Json) {
+            buf.writeByte(JSON);
+            writeBytes(((Json) f).name.getBytes(Charsets.UTF_8), buf);
+        } else {
+            throw new IllegalArgumentException("Unknown filter field " + f);
+        }
+    }
+
+    private Field fromBinaryField(ByteBuf buf) {
+        byte code = buf.readByte();
+        switch (code) {
+            case WHOLE:
+                return Whole.INSTANCE;
+            case SLICE: {
+                int offset = buf.readInt();
+                return new Slice(offset, buf.readInt());
+            }
+            case LENGTH_PREFIXED:
+                return new LengthPrefixed(buf.readInt());
+            case JSON:
+                return new Json(new String(readBytes(buf), Charsets.UTF_8));
+            default:
+                throw new IllegalArgumentException("Unknown filter field " + code);
+        }
+    }
+
+    private static void writeBytes(byte[] data, ByteBuf buf) {
+        buf.writeInt(data.length);
+        buf.writeBytes(data);
+    }
+
+    private static byte[] readBytes(ByteBuf buf) {
+        byte[] data = new byte[buf.readInt()];
+        buf.readBytes(data);
+        return data;
+    }
+}
@@ -30,14 +30,26 @@ import se.sics.caracaldb.Key;
 public final class GetRequest extends CaracalOp {
 
     public final Key key;
+    /**
+     * If set any replica may answer within these bounds (null otherwise).
+     */
+    public final Staleness staleness;
 
     public GetRequest(UUID id, Key key) {
+        this(id, key, null);
+    }
+
+    public GetRequest(UUID id, Key key, Staleness staleness) {
         super(id);
         this.key = key;
+        this.staleness = staleness;
     }
 
     @Override
     public String toString() {
+        if (staleness != null) {
+            return "GetRequest(" + id + ", " + key + ", " + staleness + ")";
+        }
         return "GetRequest(" + id + ", " + key + ")";
     }
 
@@ -0,0 +1,78 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.UUID;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+
+/**
+ * Reads a batch of keys at once.
+ *
+ * The client splits the keys by the virtual node responsible for them and
+ * sends one request per node (all with the same id). A node answers the keys
+ * in its range with a single storage request and forwards the rest, so the
+ * partial {@link MultiGetResponse}s together cover all keys.
+ *
+ * @author lkroll
+ */
+public final class MultiGetRequest extends CaracalOp implements MultiKeyOp {
+
+    public final ImmutableSortedSet<Key> keys;
+
+    public MultiGetRequest(UUID id, ImmutableSortedSet<Key> keys) {
+        super(id);
+        this.keys = keys;
+    }
+
+    @Override
+    public ImmutableSortedSet<Key> keys() {
+        return keys;
+    }
+
+    @Override
+    public MultiGetRequest inside(KeyRange range) {
+        ImmutableSortedSet.Builder<Key> b = ImmutableSortedSet.naturalOrder();
+        for (Key k : keys) {
+            if (range.contains(k)) {
+                b.add(k);
+            }
+        }
+        return new MultiGetRequest(id, b.build());
+    }
+
+    @Override
+    public MultiGetRequest outside(KeyRange range) {
+        ImmutableSortedSet.Builder<Key> b = ImmutableSortedSet.naturalOrder();
+        for (Key k : keys) {
+            if (!range.contains(k)) {
+                b.add(k);
+            }
+        }
+        return new MultiGetRequest(id, b.build());
+    }
+
+    @Override
+    public String toString() {
+        return "MultiGetRequest(" + id + ", " + keys.size() + " keys)";
+    }
+}
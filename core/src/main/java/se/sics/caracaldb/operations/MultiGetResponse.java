@@ -0,0 +1,102 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import se.sics.caracaldb.Key;
+
+/**
+ * The values for (a part of) the keys of a {@link MultiGetRequest}. Keys that
+ * have no value are mapped to null.
+ *
+ * @author lkroll
+ */
+public final class MultiGetResponse extends CaracalResponse {
+
+    public final SortedMap<Key, byte[]> data;
+
+    public MultiGetResponse(UUID id, SortedMap<Key, byte[]> data) {
+        this(id, data, ResponseCode.SUCCESS);
+    }
+
+    public MultiGetResponse(UUID id, SortedMap<Key, byte[]> data, ResponseCode code) {
+        super(id, code);
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiGetResponse(" + id + ", " + ((data != null) ? data.size() : 0) + " keys, " + code.name() + ")";
+    }
+
+    /**
+     * Merges the partial responses for a request, which may arrive in any
+     * order and more than once.
+     */
+    public static class Collector {
+
+        private final UUID id;
+        private final SortedSet<Key> missing;
+        private final TreeMap<Key, byte[]> results = new TreeMap<Key, byte[]>();
+        private ResponseCode code = ResponseCode.SUCCESS;
+
+        public Collector(MultiGetRequest req) {
+            this.id = req.id;
+            this.missing = new TreeSet<Key>(req.keys);
+        }
+
+        public void processResponse(MultiGetResponse resp) {
+            if (resp.code != ResponseCode.SUCCESS) {
+                code = resp.code;
+                return;
+            }
+            for (Entry<Key, byte[]> e : resp.data.entrySet()) {
+                if (missing.remove(e.getKey())) {
+                    results.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        public boolean isDone() {
+            return missing.isEmpty() || (code != ResponseCode.SUCCESS);
+        }
+
+        public SortedSet<Key> missing() {
+            return Collections.unmodifiableSortedSet(missing);
+        }
+
+        public MultiGetResponse getResponse() {
+            if (code != ResponseCode.SUCCESS) {
+                return new MultiGetResponse(id, results, code);
+            }
+            if (!missing.isEmpty()) {
+                return new MultiGetResponse(id, results, ResponseCode.SUCCESS_INTERRUPTED);
+            }
+            return new MultiGetResponse(id, results);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.util.UUID;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.store.ActionFactory;
+import se.sics.caracaldb.store.Aggregator;
 import se.sics.caracaldb.store.Limit;
 import se.sics.caracaldb.store.MultiOp.Condition;
 import se.sics.caracaldb.store.MultiOp.EqualCondition;
@@ -79,4 +80,19 @@ public abstract class OpUtil {
         KeyRange range = KeyRange.key(key);
         return new RangeQuery.Request(id, range, Limit.toItems(1), new TFFactory.Append(valueAddition), ActionFactory.writeBack(), RangeQuery.Type.SEQUENTIAL);
     }
+
+    /**
+     * Aggregates the values in range on the replicas.
+     * 
+     * The RangeResponse contains only the merged aggregate, no values.
+     * 
+     * @param id
+     * @param range
+     * @param aggregator see AggFactory for the built-in ones
+     * @param type PARALLEL to ask all partitions at once
+     * @return 
+     */
+    public static RangeQuery.Request aggregate(UUID id, KeyRange range, Aggregator aggregator, RangeQuery.Type type) {
+        return new RangeQuery.Request(id, range, range, Limit.noLimit(), TFFactory.noTF(), ActionFactory.noop(), type, null, aggregator, null);
+    }
 }
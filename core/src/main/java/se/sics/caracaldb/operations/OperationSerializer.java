@@ -23,6 +23,8 @@ package se.sics.caracaldb.operations;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.larskroll.common.BitBuffer;
 import io.netty.buffer.ByteBuf;
 import java.util.Map.Entry;
@@ -36,6 +38,7 @@ import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.MessageSerializationUtil;
 import se.sics.caracaldb.MessageSerializationUtil.MessageFields;
+import se.sics.caracaldb.store.Aggregator;
 import se.sics.caracaldb.store.Limit;
 import se.sics.caracaldb.store.MultiOp.Condition;
 import se.sics.caracaldb.store.RangeAction;
@@ -64,6 +67,8 @@ public class OperationSerializer implements Serializer {
     public final Boolean[] RANGE = new Boolean[]{true, false, false};
     public final Boolean[] EMPTY = new Boolean[]{true, true, false};
     public final Boolean[] MULTI = new Boolean[]{false, false, true};
+    public final Boolean[] MGET = new Boolean[]{true, false, true};
+    public final Boolean[] BATCH = new Boolean[]{false, true, true};
     //public final Boolean[] RANGE2 = new Boolean[] {true, true}; // Never serialised
 
     @Override
@@ -119,11 +124,20 @@ public class OperationSerializer implements Serializer {
 
     private void toBinaryOp(CaracalOp caracalOp, ByteBuf buf, BitBuffer flags) {
         UUIDSerializer.INSTANCE.toBinary(caracalOp.id, buf);
+        if (caracalOp instanceof CaracalResponse) {
+            buf.writeLong(((CaracalResponse) caracalOp).getPosition());
+        }
         if (caracalOp instanceof GetRequest) {
             flags.write(REQ); // 1
             flags.write(GET); // 2 3 4
             GetRequest op = (GetRequest) caracalOp;
             CustomSerialisers.serialiseKey(op.key, buf);
+            if (op.staleness != null) {
+                flags.write(true); // 5
+                serialiseStaleness(op.staleness, buf);
+            } else {
+                flags.write(false); // 5
+            }
             return;
         }
         if (caracalOp instanceof PutRequest) {
@@ -145,10 +159,51 @@ public class OperationSerializer implements Serializer {
             RangeQuery.Request op = (RangeQuery.Request) caracalOp;
             CustomSerialisers.serialiseKeyRange(op.initRange, buf);
             CustomSerialisers.serialiseKeyRange(op.subRange, buf);
-            //TODO serialize type once there is more than one
             Serializers.toBinary(op.limitTracker, buf);
             Serializers.toBinary(op.transFilter, buf);
             Serializers.toBinary(op.action, buf);
+            if (op.cursorId != null) {
+                flags.write(true); // 5
+                UUIDSerializer.INSTANCE.toBinary(op.cursorId, buf);
+            } else {
+                flags.write(false); // 5
+            }
+            flags.write(op.execType == RangeQuery.Type.PARALLEL); // 6
+            if (op.aggregator != null) {
+                flags.write(true); // 7
+                Serializers.toBinary(op.aggregator, buf);
+            } else {
+                flags.write(false); // 7
+            }
+            // out of flags
+            if (op.staleness != null) {
+                buf.writeBoolean(true);
+                serialiseStaleness(op.staleness, buf);
+            } else {
+                buf.writeBoolean(false);
+            }
+            return;
+        }
+        if (caracalOp instanceof MultiGetRequest) {
+            flags.write(REQ); // 1
+            flags.write(MGET); // 2 3 4
+            MultiGetRequest op = (MultiGetRequest) caracalOp;
+            buf.writeInt(op.keys.size());
+            for (Key k : op.keys) {
+                CustomSerialisers.serialiseKey(k, buf);
+            }
+            return;
+        }
+        if (caracalOp instanceof BatchPutRequest) {
+            flags.write(REQ); // 1
+            flags.write(BATCH); // 2 3 4
+            BatchPutRequest op = (BatchPutRequest) caracalOp;
+            buf.writeInt(op.puts.size());
+            for (Entry<Key, byte[]> e : op.puts.entrySet()) {
+                CustomSerialisers.serialiseKey(e.getKey(), buf);
+                buf.writeInt(e.getValue().length);
+                buf.writeBytes(e.getValue());
+            }
             return;
         }
         if (caracalOp instanceof MultiOpRequest) {
@@ -221,6 +276,46 @@ public class OperationSerializer implements Serializer {
                 }
             }
             flags.write(op.readLimit); // 6
+            if (op.aggregate != null) {
+                flags.write(true); // 7
+                Serializers.toBinary(op.aggregate, buf);
+            } else {
+                flags.write(false); // 7
+            }
+            return;
+        }
+        if (caracalOp instanceof MultiGetResponse) {
+            flags.write(RESP); // 1
+            MultiGetResponse op = (MultiGetResponse) caracalOp;
+            buf.writeByte(op.code.id);
+            flags.write(MGET); // 2 3 4
+            if (op.data == null) {
+                flags.write(false); // 5
+            } else {
+                flags.write(true); // 5
+                buf.writeInt(op.data.size());
+                for (Entry<Key, byte[]> e : op.data.entrySet()) {
+                    CustomSerialisers.serialiseKey(e.getKey(), buf);
+                    byte[] v = e.getValue();
+                    if (v != null) {
+                        buf.writeInt(v.length);
+                        buf.writeBytes(v);
+                    } else {
+                        buf.writeInt(-1);
+                    }
+                }
+            }
+            return;
+        }
+        if (caracalOp instanceof BatchPutResponse) {
+            flags.write(RESP); // 1
+            BatchPutResponse op = (BatchPutResponse) caracalOp;
+            buf.writeByte(op.code.id);
+            flags.write(BATCH); // 2 3 4
+            buf.writeInt(op.keys.size());
+            for (Key k : op.keys) {
+                CustomSerialisers.serialiseKey(k, buf);
+            }
             return;
         }
         if (caracalOp instanceof CaracalResponse) { // Empty Response
@@ -252,7 +347,12 @@ public class OperationSerializer implements Serializer {
             return fromBinaryReq(buf, flags, id);
         }
         if (direction == RESP) {
-            return fromBinaryResp(buf, flags, id);
+            long position = buf.readLong();
+            CaracalResponse resp = fromBinaryResp(buf, flags, id);
+            if (resp != null) {
+                resp.setPosition(position);
+            }
+            return resp;
         }
         return null; // shouldn't get here
     }
@@ -260,7 +360,11 @@ public class OperationSerializer implements Serializer {
     private CaracalOp fromBinaryReq(ByteBuf buf, boolean[] flags, UUID id) {
         if (matches(flags, GET)) {
             Key key = CustomSerialisers.deserialiseKey(buf);
-            return new GetRequest(id, key);
+            Staleness staleness = null;
+            if (flags[5]) {
+                staleness = deserialiseStaleness(buf);
+            }
+            return new GetRequest(id, key, staleness);
         }
         if (matches(flags, PUT)) {
             Key key = CustomSerialisers.deserialiseKey(buf);
@@ -275,11 +379,42 @@ public class OperationSerializer implements Serializer {
         if (matches(flags, RANGE)) {
             KeyRange initRange = CustomSerialisers.deserialiseKeyRange(buf);
             KeyRange subRange = CustomSerialisers.deserialiseKeyRange(buf);
-            //TODO deserialize type once there is more than one
             Limit.LimitTracker tracker = (Limit.LimitTracker) Serializers.fromBinary(buf, Optional.absent());
             TransformationFilter filter = (TransformationFilter) Serializers.fromBinary(buf, Optional.absent());
             RangeAction action = (RangeAction) Serializers.fromBinary(buf, Optional.absent());
-            return new RangeQuery.Request(id, subRange, initRange, tracker, filter, action, RangeQuery.Type.SEQUENTIAL);
+            UUID cursorId = null;
+            if (flags[5]) {
+                cursorId = (UUID) UUIDSerializer.INSTANCE.fromBinary(buf, Optional.absent());
+            }
+            RangeQuery.Type type = flags[6] ? RangeQuery.Type.PARALLEL : RangeQuery.Type.SEQUENTIAL;
+            Aggregator aggregator = null;
+            if (flags[7]) {
+                aggregator = (Aggregator) Serializers.fromBinary(buf, Optional.absent());
+            }
+            Staleness staleness = null;
+            if (buf.readBoolean()) {
+                staleness = deserialiseStaleness(buf);
+            }
+            return new RangeQuery.Request(id, subRange, initRange, tracker, filter, action, type, cursorId, aggregator, staleness);
+        }
+        if (matches(flags, MGET)) {
+            int size = buf.readInt();
+            ImmutableSortedSet.Builder<Key> keys = ImmutableSortedSet.naturalOrder();
+            for (int i = 0; i < size; i++) {
+                keys.add(CustomSerialisers.deserialiseKey(buf));
+            }
+            return new MultiGetRequest(id, keys.build());
+        }
+        if (matches(flags, BATCH)) {
+            int size = buf.readInt();
+            ImmutableSortedMap.Builder<Key, byte[]> puts = ImmutableSortedMap.naturalOrder();
+            for (int i = 0; i < size; i++) {
+                Key k = CustomSerialisers.deserialiseKey(buf);
+                byte[] v = new byte[buf.readInt()];
+                buf.readBytes(v);
+                puts.put(k, v);
+            }
+            return new BatchPutRequest(id, puts.build());
         }
         if (matches(flags, MULTI)) {
             int numC = buf.readInt();
@@ -320,7 +455,7 @@ public class OperationSerializer implements Serializer {
         return null;
     }
 
-    private CaracalOp fromBinaryResp(ByteBuf buf, boolean[] flags, UUID id) {
+    private CaracalResponse fromBinaryResp(ByteBuf buf, boolean[] flags, UUID id) {
         ResponseCode code = ResponseCode.byId(buf.readByte());
         if (matches(flags, GET)) {
             Key key = CustomSerialisers.deserialiseKey(buf);
@@ -357,7 +492,38 @@ public class OperationSerializer implements Serializer {
                 }
             }
             boolean readLimit = flags[6];
-            return new RangeQuery.Response(id, code, subRange, initRange, result, readLimit);
+            Aggregator aggregate = null;
+            if (flags[7]) {
+                aggregate = (Aggregator) Serializers.fromBinary(buf, Optional.absent());
+            }
+            return new RangeQuery.Response(id, code, subRange, initRange, result, readLimit, aggregate);
+        }
+        if (matches(flags, MGET)) {
+            SortedMap<Key, byte[]> result = null;
+            if (flags[5]) {
+                int size = buf.readInt();
+                result = new TreeMap<Key, byte[]>();
+                for (int i = 0; i < size; i++) {
+                    Key k = CustomSerialisers.deserialiseKey(buf);
+                    int length = buf.readInt();
+                    if (length >= 0) {
+                        byte[] data = new byte[length];
+                        buf.readBytes(data);
+                        result.put(k, data);
+                    } else {
+                        result.put(k, null);
+                    }
+                }
+            }
+            return new MultiGetResponse(id, result, code);
+        }
+        if (matches(flags, BATCH)) {
+            int size = buf.readInt();
+            ImmutableSortedSet.Builder<Key> keys = ImmutableSortedSet.naturalOrder();
+            for (int i = 0; i < size; i++) {
+                keys.add(CustomSerialisers.deserialiseKey(buf));
+            }
+            return new BatchPutResponse(id, keys.build(), code);
         }
         if (matches(flags, EMPTY)) {
             return new CaracalResponse(id, code);
@@ -369,6 +535,28 @@ public class OperationSerializer implements Serializer {
         return null;
     }
 
+    private void serialiseStaleness(Staleness staleness, ByteBuf buf) {
+        buf.writeLong(staleness.maxLag);
+        buf.writeLong(staleness.maxAge);
+        buf.writeInt(staleness.session.positions.size());
+        for (Entry<Key, Long> e : staleness.session.positions.entrySet()) {
+            CustomSerialisers.serialiseKey(e.getKey(), buf);
+            buf.writeLong(e.getValue());
+        }
+    }
+
+    private Staleness deserialiseStaleness(ByteBuf buf) {
+        long maxLag = buf.readLong();
+        long maxAge = buf.readLong();
+        int size = buf.readInt();
+        ImmutableSortedMap.Builder<Key, Long> positions = ImmutableSortedMap.naturalOrder();
+        for (int i = 0; i < size; i++) {
+            Key group = CustomSerialisers.deserialiseKey(buf);
+            positions.put(group, buf.readLong());
+        }
+        return Staleness.bounded(maxLag, maxAge).within(new SessionToken(positions.build()));
+    }
+
     private boolean matches(boolean[] flags, Boolean[] type) {
         return (flags[2] == type[0]) && (flags[3] == type[1]) && (flags[4] == type[2]);
     }
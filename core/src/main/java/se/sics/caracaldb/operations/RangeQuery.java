@@ -20,6 +20,8 @@
  */
 package se.sics.caracaldb.operations;
 
+import com.larskroll.common.ByteArrayRef;
+import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -27,6 +29,8 @@ import java.util.UUID;
 import org.javatuples.Pair;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.store.ActionFactory;
+import se.sics.caracaldb.store.Aggregator;
 import se.sics.caracaldb.store.Limit;
 import se.sics.caracaldb.store.RangeAction;
 import se.sics.caracaldb.store.RangeResp;
@@ -45,6 +49,20 @@ public class RangeQuery {
         public final Limit.LimitTracker limitTracker;
         public final TransformationFilter transFilter;
         public final RangeAction action;
+        /**
+         * Set on the pages of a paged query, all pages share the server side
+         * cursors (null otherwise).
+         */
+        public final UUID cursorId;
+        /**
+         * If set the values are aggregated on the replicas and only the
+         * aggregate is returned (null otherwise).
+         */
+        public final Aggregator aggregator;
+        /**
+         * If set any replica may answer within these bounds (null otherwise).
+         */
+        public final Staleness staleness;
 
         public Request(Request req, KeyRange newRange) {
             super(req.id);
@@ -53,20 +71,32 @@ public class RangeQuery {
             this.limitTracker = req.limitTracker;
             this.transFilter = req.transFilter;
             this.action = req.action;
-            this.execType = Type.SEQUENTIAL;
+            this.execType = req.execType;
+            this.cursorId = req.cursorId;
+            this.aggregator = req.aggregator;
+            this.staleness = req.staleness;
         }
 
         public Request(UUID id, KeyRange range, Limit.LimitTracker limitTracker, TransformationFilter transFilter, RangeAction action, Type execType) {
-            super(id);
-            this.initRange = range;
-            this.subRange = range;
-            this.limitTracker = limitTracker;
-            this.transFilter = transFilter;
-            this.action = action;
-            this.execType = execType;
+            this(id, range, limitTracker, transFilter, action, execType, null);
+        }
+
+        /**
+         * A page of a paged query.
+         * <p>
+         * @param id of this page
+         * @param range the rest of the query's range
+         * @param limitTracker the page size
+         * @param transFilter
+         * @param action
+         * @param execType
+         * @param cursorId the same for all pages of the query
+         */
+        public Request(UUID id, KeyRange range, Limit.LimitTracker limitTracker, TransformationFilter transFilter, RangeAction action, Type execType, UUID cursorId) {
+            this(id, range, range, limitTracker, transFilter, action, execType, cursorId, null, null);
         }
 
-        Request(UUID id, KeyRange subRange, KeyRange initRange, Limit.LimitTracker limitTracker, TransformationFilter transFilter, RangeAction action, Type execType) {
+        Request(UUID id, KeyRange subRange, KeyRange initRange, Limit.LimitTracker limitTracker, TransformationFilter transFilter, RangeAction action, Type execType, UUID cursorId, Aggregator aggregator, Staleness staleness) {
             super(id);
             this.initRange = initRange;
             this.subRange = subRange;
@@ -74,6 +104,9 @@ public class RangeQuery {
             this.transFilter = transFilter;
             this.action = action;
             this.execType = execType;
+            this.cursorId = cursorId;
+            this.aggregator = aggregator;
+            this.staleness = staleness;
         }
 
         @Override
@@ -83,13 +116,37 @@ public class RangeQuery {
 
 
         public Request subRange(KeyRange newSubRange) {
-            return new Request(id, newSubRange, initRange, limitTracker, transFilter, action, execType);
+            return new Request(id, newSubRange, initRange, limitTracker, transFilter, action, execType, cursorId, aggregator, staleness);
+        }
+
+        /**
+         * @param staleness
+         * @return the same query, answered by any replica within staleness
+         */
+        public Request withStaleness(Staleness staleness) {
+            return new Request(id, subRange, initRange, limitTracker, transFilter, action, execType, cursorId, aggregator, staleness);
+        }
+
+        /**
+         * @return true if the query only reads
+         */
+        public boolean isScan() {
+            return action instanceof ActionFactory.Noop; // anything else writes back
         }
     }
 
     public enum Type {
 
-        SEQUENTIAL;
+        /**
+         * Ask one partition after the other, stopping early once the limit is
+         * reached.
+         */
+        SEQUENTIAL,
+        /**
+         * Ask all partitions at once. Each applies the full limit, the
+         * collector then cuts the merged result down to it.
+         */
+        PARALLEL;
     }
 
     public static class Response extends CaracalResponse {
@@ -98,6 +155,10 @@ public class RangeQuery {
         public final KeyRange initRange;
         public final SortedMap<Key, byte[]> data;
         public final boolean readLimit;
+        /**
+         * The partial aggregate of subRange for aggregations (null otherwise).
+         */
+        public final Aggregator aggregate;
 
         public Response(Request req, RangeResp event) {
             super(event.getId(), ResponseCode.SUCCESS);
@@ -105,6 +166,7 @@ public class RangeQuery {
             this.initRange = req.initRange;
             this.data = event.result;
             this.readLimit = event.readLimit;
+            this.aggregate = event.aggregate;
         }
 
         public Response(UUID id, KeyRange subRange, KeyRange initRange, SortedMap<Key, byte[]> data, boolean readLimit) {
@@ -113,6 +175,7 @@ public class RangeQuery {
             this.initRange = initRange;
             this.data = data;
             this.readLimit = readLimit;
+            this.aggregate = null;
         }
 
         public Response(ResponseCode code, Request req) {
@@ -121,14 +184,16 @@ public class RangeQuery {
             this.initRange = req.initRange;
             this.data = null;
             this.readLimit = false;
+            this.aggregate = null;
         }
         
-        Response(UUID id, ResponseCode code, KeyRange subRange, KeyRange initRange, SortedMap<Key, byte[]> data, boolean readLimit) {
+        Response(UUID id, ResponseCode code, KeyRange subRange, KeyRange initRange, SortedMap<Key, byte[]> data, boolean readLimit, Aggregator aggregate) {
             super(id, code);
             this.subRange = subRange;
             this.initRange = initRange;
             this.data = data;
             this.readLimit = readLimit;
+            this.aggregate = aggregate;
         }
 
         @Override
@@ -166,6 +231,9 @@ public class RangeQuery {
         private boolean done;
         private final TreeMap<Key, KeyRange> pendingSubRanges;
         private KeyRange coveredRange;
+        private KeyRange limitedRange = null; // PARALLEL: results after it are incomplete
+        private final TreeMap<Key, Aggregator> partials = new TreeMap<Key, Aggregator>(); // by subRange.begin
+        private Aggregator aggregate = null;
 
         public SeqCollector(Request req) {
             this.req = req;
@@ -184,7 +252,7 @@ public class RangeQuery {
 
         public RangeResponse getResponse() {
             Pair<KeyRange, TreeMap<Key, byte[]>> res = getResult();
-            return new RangeResponse(req.id, req.initRange, ResponseCode.SUCCESS, res.getValue0(), res.getValue1());
+            return new RangeResponse(req.id, req.initRange, ResponseCode.SUCCESS, res.getValue0(), res.getValue1(), aggregate);
         }
 
         /**
@@ -198,10 +266,17 @@ public class RangeQuery {
                 return;
             }
             KeyRange respRange = resp.subRange;
+            if (req.execType == Type.PARALLEL) {
+                processParallel(resp);
+                return;
+            }
             KeyRange primaryRange = removePrimaryRange(respRange.begin);
             addRestRange(primaryRange, respRange);
             checkReadLimit(resp.readLimit, respRange.end);
             results.putAll(resp.data);
+            if (resp.aggregate != null) {
+                mergeAggregate(resp.aggregate);
+            }
             if (pendingSubRanges.isEmpty()) {
                 done = true;
                 if (coveredRange == null) {
@@ -210,6 +285,95 @@ public class RangeQuery {
             }
         }
 
+        /*
+         * Partitions answer in any order, so responses are matched exactly
+         * against the pending ranges and the limit is applied in key order
+         * once all are in.
+         */
+        private void processParallel(Response resp) {
+            KeyRange respRange = resp.subRange;
+            Entry<Key, KeyRange> entry = pendingSubRanges.floorEntry(respRange.begin);
+            if ((entry == null) || !entry.getValue().contains(respRange)) {
+                return; // duplicate or no longer needed because of the limit
+            }
+            pendingSubRanges.remove(entry.getKey());
+            addRestRange(entry.getValue(), respRange);
+            results.putAll(resp.data);
+            if (resp.aggregate != null) {
+                partials.put(respRange.begin, resp.aggregate);
+            }
+            if (resp.readLimit) {
+                KeyRange limited;
+                if (resp.aggregate != null) {
+                    limited = KeyRange.startFrom(req.subRange).endFrom(respRange); // no keys to cut at
+                } else if (resp.data.isEmpty()) {
+                    limited = KeyRange.startFrom(req.subRange).open(respRange.begin);
+                } else {
+                    limited = KeyRange.startFrom(req.subRange).closed(resp.data.lastKey());
+                }
+                if ((limitedRange == null) || (limited.end.compareTo(limitedRange.end) < 0)) {
+                    limitedRange = limited;
+                }
+                // don't wait for anything that comes after
+                SortedMap<Key, KeyRange> rest = pendingSubRanges.tailMap(respRange.end);
+                for (Key key : rest.keySet().toArray(new Key[rest.size()])) {
+                    pendingSubRanges.remove(key);
+                }
+            }
+            if (pendingSubRanges.isEmpty()) {
+                done = true;
+                applyLimit();
+            }
+        }
+
+        private void applyLimit() {
+            for (Entry<Key, Aggregator> e : partials.entrySet()) {
+                if ((limitedRange == null) || limitedRange.contains(e.getKey())) {
+                    mergeAggregate(e.getValue());
+                }
+            }
+            if (req.aggregator != null) {
+                coveredRange = (limitedRange != null) ? limitedRange : req.subRange;
+                return;
+            }
+            Limit.LimitTracker limit = (req.limitTracker != null) ? req.limitTracker.doClone() : Limit.noLimit();
+            Key last = null;
+            boolean cut = false;
+            boolean removed = false;
+            Iterator<Entry<Key, byte[]>> it = results.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<Key, byte[]> e = it.next();
+                if (!cut && (limitedRange != null) && !limitedRange.contains(e.getKey())) {
+                    cut = true;
+                }
+                if (!cut) {
+                    byte[] value = (e.getValue() != null) ? e.getValue() : new byte[0];
+                    cut = !limit.read(new ByteArrayRef(0, value.length, value));
+                }
+                if (cut) {
+                    it.remove();
+                    removed = true;
+                    continue;
+                }
+                last = e.getKey();
+                cut = !limit.canRead();
+            }
+            if ((limitedRange == null) && !removed) {
+                coveredRange = req.subRange;
+            } else if (last != null) {
+                coveredRange = KeyRange.startFrom(req.subRange).closed(last);
+            } else {
+                coveredRange = KeyRange.EMPTY;
+            }
+        }
+
+        private void mergeAggregate(Aggregator partial) {
+            if (aggregate == null) {
+                aggregate = partial.empty();
+            }
+            aggregate.merge(partial);
+        }
+
         private KeyRange removePrimaryRange(Key key) {
             Entry<Key, KeyRange> entry = pendingSubRanges.floorEntry(key);
             if (entry == null) {
@@ -25,6 +25,7 @@ import java.util.TreeMap;
 import java.util.UUID;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.store.Aggregator;
 
 /**
  * Just a container for responses collected by a RangeQuery.SeqCollector
@@ -36,13 +37,22 @@ public class RangeResponse extends CaracalResponse {
     public final TreeMap<Key, byte[]> results;
     public final KeyRange initRange;
     public final KeyRange coveredRange;
+    /**
+     * The merged aggregate if the query was an aggregation.
+     */
+    public final Aggregator aggregate;
     private final transient int numRes;
 
     public RangeResponse(UUID id, KeyRange initRange, ResponseCode code, KeyRange coveredRange, TreeMap<Key, byte[]> results) {
+        this(id, initRange, code, coveredRange, results, null);
+    }
+
+    public RangeResponse(UUID id, KeyRange initRange, ResponseCode code, KeyRange coveredRange, TreeMap<Key, byte[]> results, Aggregator aggregate) {
         super(id, code);
         this.initRange = initRange;
         this.coveredRange = coveredRange;
         this.results = results;
+        this.aggregate = aggregate;
         if (this.results != null) {
             numRes = results.size();
         } else {
@@ -57,7 +67,8 @@ public class RangeResponse extends CaracalResponse {
                 .add("code", this.code)
                 .add("initRange", this.initRange)
                 .add("coveredRange", this.coveredRange)
-                .add("#results", numRes).toString();
+                .add("#results", numRes)
+                .add("aggregate", this.aggregate).toString();
     }
 
 }
@@ -36,7 +36,8 @@ public enum ResponseCode {
     SUCCESS_INTERRUPTED(7),
     UNSUPPORTED_OP(8),
     NOT_READY(9),
-    NOT_COLLOCATED(10);
+    NOT_COLLOCATED(10),
+    VALUE_TOO_LARGE(11);
     
     public final byte id; // Could use ordinal() but I feel explicit assignment is safer, though slower
 
@@ -0,0 +1,120 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableSortedMap;
+import java.util.Map;
+import se.sics.caracaldb.Key;
+
+/**
+ * The log positions a client has seen, by replication group.
+ * <p>
+ * Groups are identified by the id of their vnodes. Sent along with a
+ * Staleness, a replica only serves the read once it has applied the
+ * client's position for its group, so the client keeps reading its own
+ * writes whichever replica answers.
+ * <p>
+ * @author lkroll
+ */
+public final class SessionToken {
+
+    public static final SessionToken EMPTY = new SessionToken(ImmutableSortedMap.<Key, Long>of());
+
+    public final ImmutableSortedMap<Key, Long> positions;
+
+    SessionToken(ImmutableSortedMap<Key, Long> positions) {
+        this.positions = positions;
+    }
+
+    /**
+     * @param group
+     * @return the last position seen in group, or -1 if none
+     */
+    public long position(Key group) {
+        Long pos = positions.get(group);
+        return (pos == null) ? -1 : pos;
+    }
+
+    /**
+     * @param group
+     * @param position
+     * @return a token that has seen at least position in group
+     */
+    public SessionToken advance(Key group, long position) {
+        if (position <= position(group)) {
+            return this;
+        }
+        ImmutableSortedMap.Builder<Key, Long> b = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<Key, Long> e : positions.entrySet()) {
+            if (!e.getKey().equals(group)) {
+                b.put(e.getKey(), e.getValue());
+            }
+        }
+        b.put(group, position);
+        return new SessionToken(b.build());
+    }
+
+    /**
+     * @param group
+     * @return a token with only the position of group, for single group reads
+     */
+    public SessionToken only(Key group) {
+        long pos = position(group);
+        if (pos < 0) {
+            return EMPTY;
+        }
+        return new SessionToken(ImmutableSortedMap.of(group, pos));
+    }
+
+    /**
+     * @param other
+     * @return a token that has seen everything either of both has seen
+     */
+    public SessionToken merge(SessionToken other) {
+        SessionToken t = this;
+        for (Map.Entry<Key, Long> e : other.positions.entrySet()) {
+            t = t.advance(e.getKey(), e.getValue());
+        }
+        return t;
+    }
+
+    public boolean isEmpty() {
+        return positions.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof SessionToken) {
+            return positions.equals(((SessionToken) o).positions);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return positions.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionToken(" + positions + ")";
+    }
+}
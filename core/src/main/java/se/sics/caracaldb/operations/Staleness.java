@@ -0,0 +1,99 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+/**
+ * How stale a read may be in exchange for being served by any replica,
+ * without going through the replicated log.
+ * <p>
+ * A replica serves such a read once it has applied everything up to at
+ * most maxLag positions behind the highest instance it knows of. It only
+ * does so if it saw a quorum follow a leader recently: within the last
+ * maxAge ms if that is set, and within a bound derived from the network and
+ * lease timeouts if maxLag is. Otherwise the read goes through the log.
+ * Either bound may be UNBOUNDED. Reads without a Staleness are
+ * linearisable.
+ * <p>
+ * @author lkroll
+ */
+public final class Staleness {
+
+    public static final long UNBOUNDED = -1;
+
+    public final long maxLag;
+    public final long maxAge;
+    public final SessionToken session;
+
+    private Staleness(long maxLag, long maxAge, SessionToken session) {
+        this.maxLag = maxLag;
+        this.maxAge = maxAge;
+        this.session = session;
+    }
+
+    /**
+     * @param maxLag in log positions
+     * @return
+     */
+    public static Staleness positions(long maxLag) {
+        return new Staleness(maxLag, UNBOUNDED, SessionToken.EMPTY);
+    }
+
+    /**
+     * @param maxAge in ms
+     * @return
+     */
+    public static Staleness millis(long maxAge) {
+        return new Staleness(UNBOUNDED, maxAge, SessionToken.EMPTY);
+    }
+
+    public static Staleness bounded(long maxLag, long maxAge) {
+        return new Staleness(maxLag, maxAge, SessionToken.EMPTY);
+    }
+
+    /**
+     * @param session
+     * @return the same bounds, additionally reading the session's writes
+     */
+    public Staleness within(SessionToken session) {
+        return new Staleness(maxLag, maxAge, session);
+    }
+
+    /**
+     * @param op
+     * @return the staleness op tolerates, or null if it must be ordered by
+     * the log
+     */
+    public static Staleness of(CaracalOp op) {
+        if (op instanceof GetRequest) {
+            return ((GetRequest) op).staleness;
+        }
+        if (op instanceof RangeQuery.Request) {
+            RangeQuery.Request req = (RangeQuery.Request) op;
+            return req.isScan() ? req.staleness : null;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Staleness(lag: " + maxLag + ", age: " + maxAge + "ms, " + session + ")";
+    }
+}
@@ -0,0 +1,79 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.paxos;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many proposals the Paxos leaders on this host pack into each
+ * instance.
+ * <p>
+ * Shared by all vnodes, so it is safe to read from other threads.
+ * <p>
+ * @author lkroll
+ */
+public class BatchStats {
+
+    private final AtomicLong instances = new AtomicLong(0);
+    private final AtomicLong proposals = new AtomicLong(0);
+    private final AtomicLong largest = new AtomicLong(0);
+
+    void record(int size) {
+        instances.incrementAndGet();
+        proposals.addAndGet(size);
+        long cur = largest.get();
+        while ((size > cur) && !largest.compareAndSet(cur, size)) {
+            cur = largest.get();
+        }
+    }
+
+    /**
+     * @return the number of instances launched for client proposals
+     */
+    public long instances() {
+        return instances.get();
+    }
+
+    /**
+     * @return the number of proposals carried by those instances
+     */
+    public long proposals() {
+        return proposals.get();
+    }
+
+    public long largest() {
+        return largest.get();
+    }
+
+    public double average() {
+        long i = instances.get();
+        if (i == 0) {
+            return 0.0;
+        }
+        return ((double) proposals.get()) / ((double) i);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchStats(instances: " + instances() + ", proposals: " + proposals()
+                + ", largest: " + largest() + ")";
+    }
+}
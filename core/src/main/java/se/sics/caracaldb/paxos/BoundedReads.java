@@ -0,0 +1,87 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.paxos;
+
+import java.util.concurrent.TimeUnit;
+import se.sics.caracaldb.operations.Staleness;
+import se.sics.caracaldb.replication.log.LocalRead;
+import se.sics.caracaldb.truetime.LocalClock;
+
+/**
+ * Decides whether a replica may serve a read that tolerates staleness.
+ * <p>
+ * Only evidence that a quorum followed a leader counts as contact: a
+ * decision, or a quorum of acks for a lease or heartbeat round. A replica
+ * that lost touch with the quorum can't tell how far the log moved on, so
+ * it refuses once it had no contact for longer than maxAge, or than the
+ * contact bound for reads that only limit the lag. Refused reads go through
+ * the log instead.
+ * <p>
+ * Elapsed time is measured on the local monotonic clock, so no clock
+ * synchronisation is needed.
+ * <p>
+ * @author lkroll
+ */
+class BoundedReads {
+
+    private final long contactBound; // ns
+    private long lastContact = 0; // ns, only meaningful as a difference
+    private boolean contacted = false;
+
+    /**
+     * @param contactBound in ms, how long maxLag reads are served without
+     * contact
+     */
+    BoundedReads(long contactBound) {
+        this.contactBound = TimeUnit.MILLISECONDS.toNanos(contactBound);
+    }
+
+    /**
+     * Records that a quorum followed a leader just now.
+     */
+    void contact() {
+        lastContact = LocalClock.get().nanoTime();
+        contacted = true;
+    }
+
+    /**
+     * @param req a read with a staleness
+     * @param highestSeenId the highest instance this replica knows of
+     * @return the answer to req
+     */
+    LocalRead.Response answer(LocalRead.Request req, long highestSeenId) {
+        Staleness s = req.staleness;
+        long bound = contactBound;
+        if (s.maxAge != Staleness.UNBOUNDED) {
+            long maxAge = TimeUnit.MILLISECONDS.toNanos(s.maxAge);
+            bound = (s.maxLag == Staleness.UNBOUNDED) ? maxAge : Math.min(bound, maxAge);
+        }
+        if (!contacted || ((LocalClock.get().nanoTime() - lastContact) > bound)) {
+            return new LocalRead.Response(req.id, false, -1);
+        }
+        long position = highestSeenId; // everything proposed by the last contact
+        if (s.maxLag != Staleness.UNBOUNDED) {
+            position = highestSeenId - s.maxLag;
+        }
+        // the session's own writes, even if they are newer than anything seen here
+        return new LocalRead.Response(req.id, true, Math.max(position, req.after));
+    }
+}
@@ -26,8 +26,11 @@ import com.google.common.collect.Sets;
 import com.google.common.collect.SortedSetMultimap;
 import com.google.common.collect.TreeMultimap;
 import com.google.common.primitives.Ints;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -35,6 +38,7 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.caracaldb.Address;
@@ -48,13 +52,19 @@ import se.sics.caracaldb.leader.Omega;
 import se.sics.caracaldb.leader.OmegaInit;
 import se.sics.caracaldb.leader.ReconfigureGroup;
 import se.sics.caracaldb.leader.Trust;
+import se.sics.caracaldb.replication.log.Backpressure;
 import se.sics.caracaldb.replication.log.Decide;
+import se.sics.caracaldb.replication.log.LocalRead;
 import se.sics.caracaldb.replication.log.Noop;
+import se.sics.caracaldb.replication.log.ProposalBatch;
 import se.sics.caracaldb.replication.log.Propose;
 import se.sics.caracaldb.replication.log.Prune;
+import se.sics.caracaldb.replication.log.ReadMode;
 import se.sics.caracaldb.replication.log.Reconfigure;
 import se.sics.caracaldb.replication.log.ReplicatedLog;
 import se.sics.caracaldb.replication.log.Value;
+import se.sics.caracaldb.truetime.TrueTime;
+import se.sics.caracaldb.truetime.TrueTimeInterval;
 import se.sics.kompics.Component;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
@@ -65,6 +75,12 @@ import se.sics.kompics.Stopped;
 import se.sics.kompics.network.Network;
 import se.sics.kompics.network.Transport;
 import se.sics.kompics.network.netty.serialization.Serializers;
+import se.sics.kompics.timer.CancelPeriodicTimeout;
+import se.sics.kompics.timer.CancelTimeout;
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timeout;
+import se.sics.kompics.timer.Timer;
 
 /**
  *
@@ -86,13 +102,14 @@ public class Paxos extends ComponentDefinition {
         PASSIVE;
     }
     private static final Logger LOG = LoggerFactory.getLogger(Paxos.class);
+    private static final BatchStats batchStats = new BatchStats();
     // Ports & Components
     Negative<ReplicatedLog> rLog = provides(ReplicatedLog.class);
     Positive<LeaderDetector> eld = requires(LeaderDetector.class);
     Negative<LeaderDetector> eldPass = provides(LeaderDetector.class);
     Positive<Network> net = requires(Network.class);
     Positive<EventualFailureDetector> fd = requires(EventualFailureDetector.class);
-    //Positive<Timer> timer = requires(Timer.class); //TODO check if necessary, connections
+    Positive<Timer> timer = requires(Timer.class);
     Component omega;
     private final Address self;
     // Instance
@@ -101,27 +118,61 @@ public class Paxos extends ComponentDefinition {
     private boolean leader = true;
     private View view;
     private SortedSet<Value> proposals = new TreeSet<Value>();
+    private final int maxPending;
+    private final long networkBound;
+    private boolean backpressure = false;
     private TreeMap<Long, Value> decidedLog = new TreeMap<Long, Value>();
     // ACCEPTOR
     // maintains maxbal(i) and maxvote(i) for each instance i
     private SortedMap<Long, Instance> votes = new TreeMap<Long, Instance>();
     private int bal;
+    private Address leaseGrantee = null;
+    private long leaseGrantedUntil = -1; // TrueTime, don't promise anyone else before
     // LEADER
     private TreeMultimap<Long, Instance> val2a = TreeMultimap.create();
     private Map<Address, Promise> prepareSet = new HashMap<Address, Promise>();
     private boolean prepared = false;
     private long lastProposedId = -1;
     private int b; // like bal just for leader
+    private int preparing = -1; // ballot of the last prepare sent
+    private final int maxBatchSize;
+    private final int window;
+    // proposals waiting for room in the window
+    private final LinkedList<Value> queued = new LinkedList<Value>();
+    private final long leaseDuration;
+    private long leaseRound = 0;
+    private TrueTimeInterval leaseRoundStart = null;
+    private final Set<Address> leaseGrants = new HashSet<Address>();
+    private long leaseExpiry = -1; // TrueTime, the lease is only held while now().latest is below
+    private UUID leaseTimerId = null;
+    private long heartbeatRound = 0;
+    private final Set<Address> heartbeatAcks = new HashSet<Address>();
+    private UUID heartbeatTimerId = null;
+    // read index requests covered by the heartbeat round in flight, with their read points
+    private Map<UUID, Long> confirming = new HashMap<UUID, Long>();
+    // read index requests that arrived while a round was in flight
+    private Map<UUID, Long> nextRound = new HashMap<UUID, Long>();
     //private Queue<Decide> proposeQ = new LinkedList<Decide>();
     // LEARNER
     private SortedSetMultimap<Instance, Accepted> acceptedSet = TreeMultimap.create();
     private SortedSetMultimap<Long, Instance> acceptedInstances = TreeMultimap.create();
     private long highestDecidedId = -1;
+    private long highestSeenId = -1; // highest instance known to be proposed
+    private final BoundedReads boundedReads;
+    private final RoundWitness leaseWitness = new RoundWitness();
+    private final RoundWitness heartbeatWitness = new RoundWitness();
 
     public Paxos(PaxosInit init) {
         self = init.self;
         view = init.view;
         quorum = init.quorum;
+        maxBatchSize = Math.max(1, init.maxBatchSize);
+        window = Math.max(1, init.window);
+        maxPending = Math.max(1, init.maxPending);
+        networkBound = init.networkBound;
+        leaseDuration = init.leaseDuration;
+        // how long a replica that heard nothing may still trust its position
+        boundedReads = new BoundedReads(Math.max(4 * networkBound, leaseDuration));
         bal = 0;
         b = 0;
 
@@ -158,6 +209,13 @@ public class Paxos extends ComponentDefinition {
         subscribe(rejectedHandler, net);
         subscribe(forwardHandler, net);
         subscribe(pruneHandler, rLog);
+        subscribe(localReadHandler, rLog);
+        subscribe(leaseHandler, net);
+        subscribe(leaseGrantedHandler, net);
+        subscribe(heartbeatHandler, net);
+        subscribe(heartbeatAckHandler, net);
+        subscribe(leaseTimeoutHandler, timer);
+        subscribe(heartbeatTimeoutHandler, timer);
     }
     Handler<Install> installHandler = new Handler<Install>() {
         @Override
@@ -169,8 +227,10 @@ public class Paxos extends ComponentDefinition {
             quorum = rconf.quorum;
             bal = event.ballot;
             highestDecidedId = event.highestDecided;
+            highestSeenId = highestDecidedId;
 
             goActive();
+            scheduleLeaseRenewal();
             trigger(toELDReconf(rconf), eld);
             trigger(new Decide(highestDecidedId, rconf), rLog);
             unsubscribe(this, net);
@@ -180,11 +240,18 @@ public class Paxos extends ComponentDefinition {
         @Override
         public void handle(Start event) {
             trigger(new ReconfigureGroup(view, quorum), eld);
+            scheduleLeaseRenewal();
         }
     };
     Handler<Stopped> stoppedHandler = new Handler<Stopped>() {
         @Override
         public void handle(Stopped event) {
+            if (leaseTimerId != null) {
+                trigger(new CancelPeriodicTimeout(leaseTimerId), timer);
+            }
+            if (heartbeatTimerId != null) {
+                trigger(new CancelTimeout(heartbeatTimerId), timer);
+            }
 
             disconnect(omega.getPositive(LeaderDetector.class), eld.getPair());
             disconnect(omega.getNegative(EventualFailureDetector.class), fd);
@@ -212,9 +279,34 @@ public class Paxos extends ComponentDefinition {
         public void handle(Forward event) {
             LOG.debug("{}: Got Forward {}", self, event.p);
             proposals.add(event.p);
+            checkBackpressure();
             propose(event.p);
         }
     };
+    Handler<LocalRead.Request> localReadHandler = new Handler<LocalRead.Request>() {
+        @Override
+        public void handle(LocalRead.Request event) {
+            if (event.staleness != null) {
+                trigger(boundedReads.answer(event, highestSeenId), rLog);
+                return;
+            }
+            // lastProposedId covers every instance that could have been decided so far
+            if ((event.mode == ReadMode.LEASE) && holdsLease()) {
+                trigger(new LocalRead.Response(event.id, true, lastProposedId), rLog);
+                return;
+            }
+            if ((event.mode == ReadMode.READ_INDEX) && leader && prepared) {
+                if (confirming.isEmpty()) {
+                    confirming.put(event.id, lastProposedId);
+                    heartbeat();
+                } else {
+                    nextRound.put(event.id, lastProposedId);
+                }
+                return;
+            }
+            trigger(new LocalRead.Response(event.id, false, -1), rLog);
+        }
+    };
     Handler<Trust> trustHandler = new Handler<Trust>() {
         @Override
         public void handle(Trust event) {
@@ -242,6 +334,13 @@ public class Paxos extends ComponentDefinition {
                 LOG.debug("{}: Ignoring Prepare({}) from {}. View is {}", new Object[]{self, event.ballot, event.getSource(), view});
                 return; // ignore prepares from outsiders
             }
+            if ((leaseGrantee != null) && !leaseGrantee.equals(event.getSource())
+                    && (TrueTime.now().earliest < leaseGrantedUntil)) {
+                // the source will retry on its next lease timeout
+                LOG.debug("{}: Ignoring Prepare({}) from {} while {} holds a lease",
+                        new Object[]{self, event.ballot, event.getSource(), leaseGrantee});
+                return;
+            }
             LOG.debug("{}: Got Prepare({}) from {}",
                     new Object[]{self, event.ballot, event.getSource()});
             if (event.ballot > bal) {
@@ -264,6 +363,33 @@ public class Paxos extends ComponentDefinition {
             }
         }
     };
+    Handler<Lease> leaseHandler = new Handler<Lease>() {
+        @Override
+        public void handle(Lease event) {
+            if (bal <= event.ballot) {
+                bal = event.ballot;
+                leaseGrantee = event.getSource();
+                leaseGrantedUntil = TrueTime.now().latest + leaseDuration;
+                // everyone learns whether a quorum follows the leader
+                for (Address adr : view.members) {
+                    trigger(new LeaseGranted(self, adr, bal, event.round), net);
+                }
+            } // otherwise the source isn't leader anymore
+        }
+    };
+    Handler<Heartbeat> heartbeatHandler = new Handler<Heartbeat>() {
+        @Override
+        public void handle(Heartbeat event) {
+            if (bal <= event.ballot) {
+                bal = event.ballot;
+                for (Address adr : view.members) {
+                    trigger(new HeartbeatAck(self, adr, bal, event.round), net);
+                }
+            } else { // tell the old leader, so it gives up its reads
+                trigger(new NoPromise(self, event.getSource(), bal), net);
+            }
+        }
+    };
     // LEADER
     Handler<Promise> promiseHandler = new Handler<Promise>() {
         @Override
@@ -314,6 +440,9 @@ public class Paxos extends ComponentDefinition {
                     Instance i = iS.last(); // instance with highest ballot
                     phase2a(i.id, b, i.value);
                     recentlyProposed.add(i.value);
+                    if (i.value instanceof ProposalBatch) {
+                        recentlyProposed.addAll(((ProposalBatch) i.value).values);
+                    }
                 } else {
                     // fill gaps with noops
                     phase2a(lastInstance, b, Noop.val);
@@ -350,10 +479,10 @@ public class Paxos extends ComponentDefinition {
             // for the record: I hate concurrent modification exceptions -.-
             for (Value p : proposals) {
                 if (!recentlyProposed.contains(p)) {
-                    lastProposedId++;
-                    phase2a(lastProposedId, b, p);
+                    queued.add(p);
                 } // simply avoid proposing the same thing twice in a row
             }
+            flush();
 //            while (!proposals.isEmpty()) {
 //                Value p = proposals.first();
 //                lastProposedId++;
@@ -378,10 +507,86 @@ public class Paxos extends ComponentDefinition {
             collision(event.ballot, true);
         }
     };
+    Handler<LeaseGranted> leaseGrantedHandler = new Handler<LeaseGranted>() {
+        @Override
+        public void handle(LeaseGranted event) {
+            if (leaseWitness.ack(event.getSource(), event.ballot, event.round, quorum)) {
+                boundedReads.contact();
+            }
+            if (!prepared || (event.ballot != b) || (event.round != leaseRound)) {
+                return; // outdated
+            }
+            leaseGrants.add(event.getSource());
+            if (leaseGrants.size() >= quorum) {
+                // no grant of this round ends before this on any acceptor
+                leaseExpiry = leaseRoundStart.earliest + leaseDuration;
+            }
+        }
+    };
+    Handler<HeartbeatAck> heartbeatAckHandler = new Handler<HeartbeatAck>() {
+        @Override
+        public void handle(HeartbeatAck event) {
+            if (heartbeatWitness.ack(event.getSource(), event.ballot, event.round, quorum)) {
+                boundedReads.contact();
+            }
+            if (!prepared || (event.ballot != b) || (event.round != heartbeatRound)) {
+                return; // outdated
+            }
+            heartbeatAcks.add(event.getSource());
+            if (heartbeatAcks.size() < quorum) {
+                return;
+            }
+            // still leader at some point after all of them arrived
+            for (Entry<UUID, Long> e : confirming.entrySet()) {
+                trigger(new LocalRead.Response(e.getKey(), true, e.getValue()), rLog);
+            }
+            confirming = nextRound;
+            nextRound = new HashMap<UUID, Long>();
+            if (!confirming.isEmpty()) {
+                heartbeat();
+            }
+        }
+    };
+    Handler<LeaseTimeout> leaseTimeoutHandler = new Handler<LeaseTimeout>() {
+        @Override
+        public void handle(LeaseTimeout event) {
+            if (!leader) {
+                return;
+            }
+            if (!prepared) {
+                // promises might be held back by the lease of an old leader
+                collision(bal, false);
+                return;
+            }
+            leaseRound++;
+            leaseRoundStart = TrueTime.now();
+            leaseGrants.clear();
+            for (Address adr : view.members) {
+                trigger(new Lease(self, adr, b, leaseRound), net);
+            }
+        }
+    };
+    Handler<HeartbeatTimeout> heartbeatTimeoutHandler = new Handler<HeartbeatTimeout>() {
+        @Override
+        public void handle(HeartbeatTimeout event) {
+            if ((event.round != heartbeatRound) || confirming.isEmpty()) {
+                return; // the round made it (or was given up on already)
+            }
+            // a quorum might follow someone else by now
+            LOG.debug("{}: Heartbeat round {} timed out", self, event.round);
+            refuseReads(confirming);
+            confirming = nextRound;
+            nextRound = new HashMap<UUID, Long>();
+            if (!confirming.isEmpty()) {
+                heartbeat();
+            }
+        }
+    };
     // LEARNER
     Handler<Accepted> acceptedHandler = new Handler<Accepted>() {
         @Override
         public void handle(Accepted event) {
+            highestSeenId = Math.max(highestSeenId, event.i.id);
             if ((highestDecidedId < event.i.id) && (view.id <= event.view.id)) {
                 LOG.debug("{}: Got Accepted({}, {}, {}) from {}", new Object[]{self, event.i.id, event.i.ballot, event.i.value, event.getSource()});
 
@@ -413,12 +618,18 @@ public class Paxos extends ComponentDefinition {
 
     private void prepare(int ballot) {
         LOG.debug("{}: Preparing ballot {}", self, ballot);
+        preparing = ballot;
         for (Address adr : view.members) {
             trigger(new Prepare(self, adr, ballot), net);
         }
     }
 
     private void clearLeaderState() {
+        queued.clear(); // still in proposals, so they'll be proposed again after the next prepare
+        leaseGrants.clear();
+        leaseExpiry = -1;
+        refuseReads(confirming);
+        refuseReads(nextRound);
         val2a.clear();
         prepareSet.clear();
         prepared = false;
@@ -435,6 +646,7 @@ public class Paxos extends ComponentDefinition {
     private void accept(Instance i) {
         LOG.debug("{}: Voting for Instance({}, {}, {})", new Object[]{self, i.id, i.ballot, i.value});
         votes.put(i.id, i);
+        highestSeenId = Math.max(highestSeenId, i.id);
         for (Address adr : view.members) {
             trigger(new Accepted(self, adr, bal, i, view), net);
         }
@@ -450,12 +662,110 @@ public class Paxos extends ComponentDefinition {
         if (leader) {
             if (prepared) {
                 // steady state
-                lastProposedId++;
-                phase2a(lastProposedId, b, p);
-            } else {
+                queued.add(p);
+                flush();
+            } else if (preparing == b) {
+                // p is in proposals and will be proposed once the promises are in
                 LOG.debug("{}: Is leader, but not prepared. Set: {}", self, prepareSet);
-                collision(bal, false); // FIXME this is very risky...at high op rates steady state might never be reached
+            } else {
+                LOG.debug("{}: Is leader, but not preparing. Set: {}", self, prepareSet);
+                collision(bal, false);
+            }
+        }
+    }
+
+    /**
+     * Launches queued proposals while there is room in the window.
+     * <p>
+     * Proposals only queue up while the window is full, so batches grow with
+     * the load. Reconfigurations are never batched, since the instances after
+     * them run in the new view.
+     */
+    private void flush() {
+        while (((lastProposedId - highestDecidedId) < window) && (nextQueued() != null)) {
+            Value v = queued.removeFirst();
+            if (!(v instanceof Reconfigure)) {
+                List<Value> batch = new ArrayList<Value>();
+                batch.add(v);
+                while ((batch.size() < maxBatchSize) && (nextQueued() != null)
+                        && !(queued.peekFirst() instanceof Reconfigure)) {
+                    batch.add(queued.removeFirst());
+                }
+                if (batch.size() > 1) {
+                    v = new ProposalBatch(batch);
+                }
+                batchStats.record(batch.size());
             }
+            lastProposedId++;
+            phase2a(lastProposedId, b, v);
+        }
+    }
+
+    /**
+     * Drops values from the head of the queue that got decided in an instance
+     * of an earlier leader meanwhile.
+     * <p>
+     * Only the head is checked, so every queued value is looked at once when
+     * it's launched instead of on every flush.
+     *
+     * @return the first queued value that is still pending or null
+     */
+    private Value nextQueued() {
+        while (!queued.isEmpty() && !proposals.contains(queued.peekFirst())) {
+            queued.removeFirst();
+        }
+        return queued.peekFirst();
+    }
+
+    private void heartbeat() {
+        heartbeatRound++;
+        heartbeatAcks.clear();
+        for (Address adr : view.members) {
+            trigger(new Heartbeat(self, adr, b, heartbeatRound), net);
+        }
+        if (heartbeatTimerId != null) {
+            trigger(new CancelTimeout(heartbeatTimerId), timer);
+        }
+        // acks take a round trip
+        ScheduleTimeout st = new ScheduleTimeout(2 * networkBound);
+        HeartbeatTimeout timeout = new HeartbeatTimeout(st, heartbeatRound);
+        st.setTimeoutEvent(timeout);
+        trigger(st, timer);
+        heartbeatTimerId = timeout.getTimeoutId();
+    }
+
+    private void refuseReads(Map<UUID, Long> reads) {
+        for (UUID id : reads.keySet()) {
+            trigger(new LocalRead.Response(id, false, -1), rLog); // they'll go through the log instead
+        }
+        reads.clear();
+    }
+
+    private boolean holdsLease() {
+        return leader && prepared && (leaseExpiry > 0) && (TrueTime.now().latest < leaseExpiry);
+    }
+
+    private void scheduleLeaseRenewal() {
+        if (leaseDuration <= 0) {
+            return;
+        }
+        long period = Math.max(1, leaseDuration / 4);
+        SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(period, period);
+        LeaseTimeout timeout = new LeaseTimeout(spt);
+        spt.setTimeoutEvent(timeout);
+        trigger(spt, timer);
+        leaseTimerId = timeout.getTimeoutId();
+    }
+
+    private void checkBackpressure() {
+        if (!backpressure && (proposals.size() >= maxPending)) {
+            backpressure = true;
+            LOG.info("{}: Engaging backpressure with {} pending proposals", self, proposals.size());
+            trigger(new Backpressure(true, proposals.size()), rLog);
+        } else if (backpressure && (proposals.size() <= (maxPending / 2))) {
+            backpressure = false;
+            LOG.info("{}: Releasing backpressure with {} pending proposals", self, proposals.size());
+            trigger(new Backpressure(false, proposals.size()), rLog);
         }
     }
 
@@ -494,6 +804,7 @@ public class Paxos extends ComponentDefinition {
         Value value = i.value;
 
         highestDecidedId = i.id;
+        boundedReads.contact(); // a quorum followed the leader of i
         acceptedInstances.removeAll(i.id);
         acceptedSet.removeAll(i);
         votes.remove(i.id);
@@ -502,7 +813,16 @@ public class Paxos extends ComponentDefinition {
 //            // do nothing^^
 //            return;
 //        }
-        if (!proposals.remove(value) && !(value instanceof Noop)) {
+        if (value instanceof ProposalBatch) {
+            // only the proposer is sure to have seen all of the batch's values,
+            // everyone else may have missed a Forward or decided it already
+            boolean proposer = leader && (i.ballot == b);
+            for (Value v : ((ProposalBatch) value).values) {
+                if (!proposals.remove(v) && proposer) {
+                    LOG.warn("{}: Decided value was not in proposals: {}", self, v);
+                }
+            }
+        } else if (!proposals.remove(value) && !(value instanceof Noop)) {
             LOG.warn("{}: Decided value was not in proposals: {}", self, value);
         }
         if (value instanceof Reconfigure) {
@@ -519,6 +839,13 @@ public class Paxos extends ComponentDefinition {
             trigger(toELDReconf(rconf), eld);
             view = rconf.view;
             quorum = rconf.quorum;
+            // grants and acks came from the old view, wait for the next round
+            leaseRound++; // late grants of the current one must not count either
+            leaseGrants.clear();
+            leaseExpiry = -1;
+            if (leader && prepared && !confirming.isEmpty()) {
+                heartbeat();
+            }
             if (view.members.size() < quorum) {
                 LOG.warn("{}: Reconfiguring with less nodes in group than "
                         + "required for quorum (Group: {} - Quorum: {})",
@@ -528,6 +855,17 @@ public class Paxos extends ComponentDefinition {
         }
         trigger(new Decide(i.id, value), rLog);
         LOG.debug("{}: Decided {}", self, value);
+        checkBackpressure();
+        if (leader && prepared) {
+            flush(); // room for another instance
+        }
+    }
+
+    /**
+     * @return the batching metrics of all Paxos instances in this JVM
+     */
+    public static BatchStats batchStats() {
+        return batchStats;
     }
 
     private View consistentQuorum(Instance i) {
@@ -696,6 +1034,63 @@ public class Paxos extends ComponentDefinition {
         }
     }
 
+    public static class Lease extends PaxosMsg {
+
+        public final long round;
+
+        public Lease(Address src, Address dst, int ballot, long round) {
+            super(src, dst, ballot);
+            this.round = round;
+        }
+    }
+
+    public static class LeaseGranted extends PaxosMsg {
+
+        public final long round;
+
+        public LeaseGranted(Address src, Address dst, int ballot, long round) {
+            super(src, dst, ballot);
+            this.round = round;
+        }
+    }
+
+    public static class Heartbeat extends PaxosMsg {
+
+        public final long round;
+
+        public Heartbeat(Address src, Address dst, int ballot, long round) {
+            super(src, dst, ballot);
+            this.round = round;
+        }
+    }
+
+    public static class HeartbeatAck extends PaxosMsg {
+
+        public final long round;
+
+        public HeartbeatAck(Address src, Address dst, int ballot, long round) {
+            super(src, dst, ballot);
+            this.round = round;
+        }
+    }
+
+    public static class LeaseTimeout extends Timeout {
+
+        LeaseTimeout(SchedulePeriodicTimeout spt) {
+            super(spt);
+        }
+    }
+
+    public static class HeartbeatTimeout extends Timeout {
+
+        public final long round;
+
+        HeartbeatTimeout(ScheduleTimeout st, long round) {
+            super(st);
+            this.round = round;
+        }
+    }
+
     public static class Install extends PaxosMsg {
 
         public final Reconfigure event;
@@ -30,16 +30,47 @@ import se.sics.kompics.Init;
  */
 public class PaxosInit extends Init<Paxos> {
     
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int DEFAULT_MAX_PENDING = 4096;
+    
     public final View view;
     public final int quorum;
     public final long networkBound;
     public final Address self;
+    /**
+     * Max proposals the leader packs into one instance (1 disables batching).
+     */
+    public final int maxBatchSize;
+    /**
+     * Max undecided instances the leader runs concurrently.
+     */
+    public final int window;
+    /**
+     * Undecided proposals at which backpressure is engaged. It's released
+     * again when half of them are decided.
+     */
+    public final int maxPending;
+    /**
+     * How long (in ms) a quorum's grant lets the leader serve reads locally
+     * (0 disables leases). Must be well above the TrueTime error bound.
+     */
+    public final long leaseDuration;
     
     public PaxosInit(View v, int quorum, long networkBound, Address self) {
+        this(v, quorum, networkBound, self, DEFAULT_MAX_BATCH, DEFAULT_WINDOW, DEFAULT_MAX_PENDING, 0);
+    }
+    
+    public PaxosInit(View v, int quorum, long networkBound, Address self,
+            int maxBatchSize, int window, int maxPending, long leaseDuration) {
         this.view = v;
         this.quorum = quorum;
         this.networkBound = networkBound;
         this.self = self;
+        this.maxBatchSize = maxBatchSize;
+        this.window = window;
+        this.maxPending = maxPending;
+        this.leaseDuration = leaseDuration;
     }
     
 }
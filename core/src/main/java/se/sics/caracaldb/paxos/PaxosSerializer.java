@@ -35,8 +35,12 @@ import se.sics.caracaldb.View;
 import se.sics.caracaldb.paxos.Paxos.Accept;
 import se.sics.caracaldb.paxos.Paxos.Accepted;
 import se.sics.caracaldb.paxos.Paxos.Forward;
+import se.sics.caracaldb.paxos.Paxos.Heartbeat;
+import se.sics.caracaldb.paxos.Paxos.HeartbeatAck;
 import se.sics.caracaldb.paxos.Paxos.Install;
 import se.sics.caracaldb.paxos.Paxos.Instance;
+import se.sics.caracaldb.paxos.Paxos.Lease;
+import se.sics.caracaldb.paxos.Paxos.LeaseGranted;
 import se.sics.caracaldb.paxos.Paxos.NoPromise;
 import se.sics.caracaldb.paxos.Paxos.PaxosMsg;
 import se.sics.caracaldb.paxos.Paxos.Prepare;
@@ -63,6 +67,10 @@ public class PaxosSerializer implements Serializer {
     static final byte ACCEPTED = 5;
     static final byte REJECTED = 6;
     static final byte INSTALL = 7;
+    static final byte LEASE = 8;
+    static final byte LEASE_GRANTED = 9;
+    static final byte HEARTBEAT = 11;
+    static final byte HEARTBEAT_ACK = 12;
     // Non PaxosMsg
     static final byte FORWARD = 10;
 
@@ -139,6 +147,26 @@ public class PaxosSerializer implements Serializer {
             }
             return;
         }
+        if (o instanceof Lease) {
+            buf.writeByte(LEASE);
+            buf.writeLong(((Lease) o).round);
+            return;
+        }
+        if (o instanceof LeaseGranted) {
+            buf.writeByte(LEASE_GRANTED);
+            buf.writeLong(((LeaseGranted) o).round);
+            return;
+        }
+        if (o instanceof Heartbeat) {
+            buf.writeByte(HEARTBEAT);
+            buf.writeLong(((Heartbeat) o).round);
+            return;
+        }
+        if (o instanceof HeartbeatAck) {
+            buf.writeByte(HEARTBEAT_ACK);
+            buf.writeLong(((HeartbeatAck) o).round);
+            return;
+        }
         LOG.error("Could not find serializer for {}:{}!", o, o.getClass());
     }
 
@@ -218,6 +246,14 @@ public class PaxosSerializer implements Serializer {
                     mBuilder.put(k, val);
                 }
                 return new Install(fields.src, fields.dst, ballot, rec, highestDecided, mBuilder.build());
+            case LEASE:
+                return new Lease(fields.src, fields.dst, ballot, buf.readLong());
+            case LEASE_GRANTED:
+                return new LeaseGranted(fields.src, fields.dst, ballot, buf.readLong());
+            case HEARTBEAT:
+                return new Heartbeat(fields.src, fields.dst, ballot, buf.readLong());
+            case HEARTBEAT_ACK:
+                return new HeartbeatAck(fields.src, fields.dst, ballot, buf.readLong());
             default:
                 LOG.error("Unknown PaxosMsg type: {}", type);
                 return null;
@@ -0,0 +1,60 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.paxos;
+
+import java.util.HashSet;
+import java.util.Set;
+import se.sics.caracaldb.Address;
+
+/**
+ * Counts the acks of the latest (ballot, round) of one kind of round.
+ * <p>
+ * Acceptors send their acks to every member, so all of them can tell when a
+ * quorum followed the leader of that ballot.
+ * <p>
+ * @author lkroll
+ */
+class RoundWitness {
+
+    private int ballot = -1;
+    private long round = -1;
+    private final Set<Address> acks = new HashSet<Address>();
+
+    /**
+     * @param src
+     * @param ballot
+     * @param round
+     * @param quorum
+     * @return true if a quorum acked (ballot, round) so far
+     */
+    boolean ack(Address src, int ballot, long round, int quorum) {
+        if ((ballot < this.ballot) || ((ballot == this.ballot) && (round < this.round))) {
+            return false; // outdated
+        }
+        if ((ballot != this.ballot) || (round != this.round)) {
+            this.ballot = ballot;
+            this.round = round;
+            acks.clear();
+        }
+        acks.add(src);
+        return acks.size() >= quorum;
+    }
+}
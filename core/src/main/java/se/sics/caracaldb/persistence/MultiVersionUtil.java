@@ -25,7 +25,6 @@ import com.google.common.primitives.Ints;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import org.javatuples.Pair;
 import com.larskroll.common.ByteArrayRef;
 
 /**
@@ -52,7 +51,9 @@ public abstract class MultiVersionUtil {
             length += e.getValue().length; // data
             dataLength += e.getValue().length;
             if (e.getValue().length > MAX_DATA_SIZE) {
-                return null; // this is pretty bad...should have been caught at the client already
+                // returning null would make the caller delete the key
+                throw new IllegalArgumentException("Value of " + e.getValue().length
+                        + " bytes exceeds the limit of " + MAX_DATA_SIZE + " bytes.");
             }
         }
         if (dataLength == 0) {
@@ -78,38 +79,171 @@ public abstract class MultiVersionUtil {
 
     public static SortedMap<Integer, ByteArrayRef> unpack(byte[] data) {
         TreeMap<Integer, ByteArrayRef> values = new TreeMap<Integer, ByteArrayRef>(Ordering.natural().reverse());
-        if (data == null) {
+        if (data == null || data.length == 0) {
             return values;
         }
-        Pair<Integer, Integer> header = unpackHeader(data, 0);
-        int version = header.getValue0();
-        int length = header.getValue1();
-        int ptr = 4;
-        while (!isEnd(length)) {
-            values.put(version, new ByteArrayRef(ptr, length, data));
-            ptr += length;
-            header = unpackHeader(data, ptr);
-            version = header.getValue0();
-            length = header.getValue1();
-            ptr += 4;
+        for (int ptr = 0; ptr >= 0; ptr = nextHeader(data, ptr)) {
+            values.put(headerVersion(data, ptr), new ByteArrayRef(ptr + 4, valueLength(data, ptr), data));
         }
-        values.put(version, new ByteArrayRef(ptr, data.length - ptr, data));
         return values;
     }
 
-    private static void packHeader(int version, int length, byte[] blob, int offset) {
-        byte[] versionB = Ints.toByteArray(version);
-        byte[] lengthB = Ints.toByteArray(length);
-        blob[offset] = versionB[2];
-        blob[offset + 1] = versionB[3];
-        blob[offset + 2] = lengthB[2];
-        blob[offset + 3] = lengthB[3];
+    /**
+     * Gives the newest version in data without unpacking it.
+     *
+     * @param data a blob produced by {@link #pack(java.util.SortedMap)} or null
+     * @return the newest value or null if data is null
+     */
+    public static ByteArrayRef newest(byte[] data) {
+        return newest(data, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gives the newest version in data that is not newer than maxVersion
+     * without unpacking it.
+     *
+     * @param data a blob produced by {@link #pack(java.util.SortedMap)} or null
+     * @param maxVersion
+     * @return the value or null if there is no such version
+     */
+    public static ByteArrayRef newest(byte[] data, int maxVersion) {
+        int header = newestHeader(data, maxVersion);
+        if (header < 0) {
+            return null;
+        }
+        return new ByteArrayRef(header + 4, valueLength(data, header), data);
+    }
+
+    /**
+     * Finds the header of the newest version not newer than maxVersion.
+     * <p>
+     * Doesn't rely on the order of the versions in the blob.
+     *
+     * @param data
+     * @param maxVersion
+     * @return the offset of the header or -1 if there is none
+     */
+    static int newestHeader(byte[] data, int maxVersion) {
+        if (data == null || data.length == 0) {
+            return -1;
+        }
+        int best = -1;
+        int bestVersion = -1;
+        int ptr = 0;
+        while (ptr >= 0) {
+            int version = readShort(data, ptr);
+            if ((version <= maxVersion) && (version > bestVersion)) {
+                best = ptr;
+                bestVersion = version;
+            }
+            ptr = nextHeader(data, ptr);
+        }
+        return best;
+    }
+
+    /**
+     * @param data
+     * @param header offset of a header
+     * @return the offset of the following header or -1 if header was the last
+     */
+    static int nextHeader(byte[] data, int header) {
+        int length = readShort(data, header + 2);
+        if (isEnd(length)) {
+            return -1;
+        }
+        return header + 4 + length;
+    }
+
+    static int headerVersion(byte[] data, int header) {
+        return readShort(data, header);
+    }
+
+    static int valueLength(byte[] data, int header) {
+        int length = readShort(data, header + 2);
+        if (isEnd(length)) {
+            return data.length - header - 4;
+        }
+        return length;
+    }
+
+    /**
+     * Produces the blob for data with value added (or replaced) at version.
+     * <p>
+     * This is equivalent to unpacking, adding the value and packing again,
+     * but only allocates the resulting array. Versions are kept newest first,
+     * just as {@link #pack(java.util.SortedMap)} writes them for the maps
+     * returned by {@link #unpack(byte[])}.
+     *
+     * @param data the current blob or null
+     * @param version
+     * @param value use an empty array for a deletion
+     * @return the new blob or null if there is no data left (key should be
+     * deleted)
+     * @throws IllegalArgumentException if value is too large
+     */
+    public static byte[] withVersion(byte[] data, int version, byte[] value) {
+        if (value.length > MAX_DATA_SIZE) { // same as pack
+            throw new IllegalArgumentException("Value of " + value.length
+                    + " bytes exceeds the limit of " + MAX_DATA_SIZE + " bytes.");
+        }
+        version = version & LOWER2BYTES; // only 2 bytes are stored
+        int length = 4 + value.length;
+        int dataLength = value.length;
+        if (data != null && data.length > 0) {
+            for (int ptr = 0; ptr >= 0; ptr = nextHeader(data, ptr)) {
+                if (headerVersion(data, ptr) != version) {
+                    length += 4 + valueLength(data, ptr);
+                    dataLength += valueLength(data, ptr);
+                }
+            }
+        }
+        if (dataLength == 0) {
+            return null; // if all the data is empty, just delete the key
+        }
+        byte[] blob = new byte[length];
+        int target = 0;
+        int lastHeader = 0;
+        boolean written = false;
+        if (data != null && data.length > 0) {
+            for (int ptr = 0; ptr >= 0; ptr = nextHeader(data, ptr)) {
+                int v = headerVersion(data, ptr);
+                if (v == version) {
+                    continue;
+                }
+                if (!written && (v < version)) {
+                    lastHeader = target;
+                    target = writeEntry(version, value, 0, value.length, blob, target);
+                    written = true;
+                }
+                lastHeader = target;
+                target = writeEntry(v, data, ptr + 4, valueLength(data, ptr), blob, target);
+            }
+        }
+        if (!written) {
+            lastHeader = target;
+            writeEntry(version, value, 0, value.length, blob, target);
+        }
+        // the last header gets the end flag instead of a length
+        blob[lastHeader + 2] = MANY_ONES[2];
+        blob[lastHeader + 3] = MANY_ONES[3];
+        return blob;
     }
 
-    private static Pair<Integer, Integer> unpackHeader(byte[] blob, int offset) {
-        int version = Ints.fromBytes((byte) 0, (byte) 0, blob[offset], blob[offset + 1]);
-        int length = Ints.fromBytes((byte) 0, (byte) 0, blob[offset + 2], blob[offset + 3]);
-        return Pair.with(version, length);
+    private static int writeEntry(int version, byte[] src, int offset, int length, byte[] blob, int ptr) {
+        packHeader(version, length, blob, ptr);
+        System.arraycopy(src, offset, blob, ptr + 4, length);
+        return ptr + 4 + length;
+    }
+
+    private static int readShort(byte[] blob, int offset) {
+        return ((blob[offset] & 0xFF) << 8) | (blob[offset + 1] & 0xFF);
+    }
+
+    private static void packHeader(int version, int length, byte[] blob, int offset) {
+        blob[offset] = (byte) (version >>> 8);
+        blob[offset + 1] = (byte) version;
+        blob[offset + 2] = (byte) (length >>> 8);
+        blob[offset + 3] = (byte) length;
     }
 
     private static boolean isEnd(int length) {
@@ -0,0 +1,242 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import com.larskroll.common.ByteArrayRef;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The classic storage layout on top of a {@link RawStore}: all versions of a
+ * key packed into one value (see {@link MultiVersionUtil}).
+ * <p>
+ * Counterpart of {@link VersionedLayout} for engines that don't implement the
+ * packed format themselves.
+ *
+ * @author lkroll
+ */
+public class PackedLayout implements Persistence {
+
+    private static final byte[] EMPTY = new byte[0];
+    private final RawStore raw;
+
+    public PackedLayout(RawStore raw) {
+        this.raw = raw;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        store(raw, key, MultiVersionUtil.withVersion(raw.get(key), version, value));
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        store(raw, key, (value.length == 0) ? null : value.dereference());
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        byte[] oldData = raw.get(key);
+        if (oldData == null) {
+            return; // nothing to do
+        }
+        store(raw, key, MultiVersionUtil.withVersion(oldData, version, EMPTY));
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        byte[] newData = trimVersions(raw.get(key), version);
+        store(raw, key, newData);
+        return (newData == null) ? 0 : newData.length;
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        return MultiVersionUtil.newest(raw.get(key));
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return MultiVersionUtil.unpack(raw.get(key));
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return raw.get(key);
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new PackedBatch(raw.createBatch());
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        PackedBatch pb = (PackedBatch) b;
+        // If this cast doesn't work, someone is doing something seriously wrong
+        raw.writeBatch(pb.batch);
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return new PackedIterator(raw.cursor(null));
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return new PackedIterator(raw.cursor(startKey));
+    }
+
+    private static void store(RawStore raw, byte[] key, byte[] data) {
+        if (data == null) {
+            raw.delete(key);
+        } else {
+            raw.put(key, data);
+        }
+    }
+
+    private static void store(RawStore.RawBatch batch, byte[] key, byte[] data) {
+        if (data == null) {
+            batch.delete(key);
+        } else {
+            batch.put(key, data);
+        }
+    }
+
+    /**
+     * @param data
+     * @param version
+     * @return data without versions older than version (but at least the
+     * newest one), or null if nothing but deletions are left
+     */
+    private static byte[] trimVersions(byte[] data, int version) {
+        SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(data);
+        if (versions.isEmpty()) {
+            return null;
+        }
+        // copy, so the newest version can be added outside of the head range
+        SortedMap<Integer, ByteArrayRef> newVersions = new TreeMap<Integer, ByteArrayRef>(versions.headMap(version));
+        if (newVersions.isEmpty()) { // always retain the newest value
+            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        }
+        return MultiVersionUtil.pack(newVersions);
+    }
+
+    /**
+     * Note that, as with the other packed implementations, reads see the
+     * store, not the earlier operations of the same batch.
+     */
+    private class PackedBatch implements Batch {
+
+        private RawStore.RawBatch batch;
+
+        private PackedBatch(RawStore.RawBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value, int version) {
+            batch.put(key, MultiVersionUtil.withVersion(raw.get(key), version, value));
+        }
+
+        @Override
+        public void delete(byte[] key, int version) {
+            byte[] oldData = raw.get(key);
+            if (oldData == null) {
+                return; // nothing to do
+            }
+            store(batch, key, MultiVersionUtil.withVersion(oldData, version, EMPTY));
+        }
+
+        @Override
+        public void replace(byte[] key, ByteArrayRef value) {
+            store(batch, key, (value.length == 0) ? null : value.dereference());
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, int version) {
+            byte[] newData = trimVersions(raw.get(key), version);
+            store(batch, key, newData);
+            return (newData == null) ? 0 : newData.length;
+        }
+
+        @Override
+        public void close() {
+            if (batch != null) {
+                batch.close();
+                batch = null;
+            }
+        }
+    }
+
+    private static class PackedIterator implements StoreIterator {
+
+        private RawStore.Cursor cursor;
+        private final VersionView view = new VersionView(); // reused for every key
+
+        private PackedIterator(RawStore.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.valid();
+        }
+
+        @Override
+        public void next() {
+            cursor.next();
+        }
+
+        @Override
+        public byte[] peekKey() {
+            return cursor.key();
+        }
+
+        @Override
+        public ByteArrayRef peekValue() {
+            return view.reset(peekRaw()).seekNewest() ? view.value() : null;
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            return view.reset(peekRaw()).seekNewest(maxVersionId) ? view.value() : null;
+        }
+
+        @Override
+        public SortedMap<Integer, ByteArrayRef> peekAllValues() {
+            return MultiVersionUtil.unpack(peekRaw());
+        }
+
+        @Override
+        public byte[] peekRaw() {
+            return cursor.value();
+        }
+
+        @Override
+        public void close() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+}
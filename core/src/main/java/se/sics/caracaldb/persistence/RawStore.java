@@ -0,0 +1,89 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import java.io.Closeable;
+
+/**
+ * Plain ordered key-value access to a storage engine.
+ * <p>
+ * Keys are compared as unsigned bytes (lexicographically). No versioning is
+ * done at this level, this is what the storage layouts are built on.
+ *
+ * @author lkroll
+ */
+public interface RawStore {
+
+    /**
+     * @param key
+     * @return the value at key or null if key doesn't exist
+     */
+    public byte[] get(byte[] key);
+
+    public void put(byte[] key, byte[] value);
+
+    public void delete(byte[] key);
+
+    /**
+     * Returns a cursor positioned at the first key greater or equal to
+     * startKey.
+     * <p>
+     * @param startKey or null to start at the beginning of the store
+     * @return
+     */
+    public Cursor cursor(byte[] startKey);
+
+    public RawBatch createBatch();
+
+    /**
+     * Atomically applies a batch created by {@link #createBatch()}.
+     *
+     * @param b
+     */
+    public void writeBatch(RawBatch b);
+
+    public static interface Cursor extends Closeable {
+
+        /**
+         * @return true if the cursor points to an entry
+         */
+        public boolean valid();
+
+        public void next();
+
+        public byte[] key();
+
+        public byte[] value();
+
+        @Override
+        public void close();
+    }
+
+    public static interface RawBatch extends Closeable {
+
+        public void put(byte[] key, byte[] value);
+
+        public void delete(byte[] key);
+
+        @Override
+        public void close();
+    }
+}
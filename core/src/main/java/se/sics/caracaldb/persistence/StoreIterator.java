@@ -42,7 +42,18 @@ public interface StoreIterator extends Closeable {
      */
     public void next();
     public byte[] peekKey();
+    /**
+     * @return the newest version of the current item
+     */
     public ByteArrayRef peekValue();
+    /**
+     * Doesn't unpack the other versions (unlike {@link #peekAllValues()}).
+     *
+     * @param maxVersionId
+     * @return the newest version of the current item that is not newer than
+     * maxVersionId or null if there is none
+     */
+    public ByteArrayRef peekValue(int maxVersionId);
     public SortedMap<Integer, ByteArrayRef> peekAllValues();
     public byte[] peekRaw();
 }
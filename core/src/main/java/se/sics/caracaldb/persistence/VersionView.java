@@ -0,0 +1,156 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import com.larskroll.common.ByteArrayRef;
+
+/**
+ * Cursor over the versions in a packed multi-version blob.
+ * <p>
+ * Reads the headers in place instead of building a map like
+ * {@link MultiVersionUtil#unpack(byte[])} does. A view can be reused for many
+ * blobs via {@link #reset(byte[])}, so a scan needs only a single instance.
+ * The {@link StoreIterator}s of the stores keep one each for
+ * {@link StoreIterator#peekValue(int)}.
+ * None of the methods allocate, except {@link #value()}.
+ * <p>
+ * Usage:
+ * <pre>
+ * VersionView view = new VersionView();
+ * for (view.reset(blob); view.next();) {
+ *     view.version(); view.offset(); view.length();
+ * }
+ * if (view.reset(blob).seekNewest(maxVersion)) {
+ *     ByteArrayRef value = view.value();
+ * }
+ * </pre>
+ *
+ * @author lkroll
+ */
+public final class VersionView {
+
+    private byte[] data;
+    private int header = -1;
+    private int nextHeader = -1;
+
+    public VersionView() {
+    }
+
+    public VersionView(byte[] data) {
+        reset(data);
+    }
+
+    /**
+     * Points the view at a new blob, before its first version.
+     *
+     * @param data a packed blob or null (which is treated as no versions)
+     * @return this view
+     */
+    public VersionView reset(byte[] data) {
+        this.data = data;
+        this.header = -1;
+        this.nextHeader = (data == null || data.length == 0) ? -1 : 0;
+        return this;
+    }
+
+    /**
+     * Moves to the next version in storage order (newest first for blobs
+     * written by {@link MultiVersionUtil}).
+     *
+     * @return false if there are no more versions
+     */
+    public boolean next() {
+        if (nextHeader < 0) {
+            header = -1;
+            return false;
+        }
+        header = nextHeader;
+        nextHeader = MultiVersionUtil.nextHeader(data, header);
+        return true;
+    }
+
+    /**
+     * Moves to the newest version.
+     *
+     * @return false if there are no versions
+     */
+    public boolean seekNewest() {
+        return seekNewest(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves to the newest version that is not newer than maxVersion.
+     * <p>
+     * A following {@link #next()} continues after this version.
+     *
+     * @param maxVersion
+     * @return false if there is no such version
+     */
+    public boolean seekNewest(int maxVersion) {
+        header = MultiVersionUtil.newestHeader(data, maxVersion);
+        if (header < 0) {
+            nextHeader = -1;
+            return false;
+        }
+        nextHeader = MultiVersionUtil.nextHeader(data, header);
+        return true;
+    }
+
+    /**
+     * @return true if the view is positioned at a version
+     */
+    public boolean valid() {
+        return header >= 0;
+    }
+
+    public int version() {
+        return MultiVersionUtil.headerVersion(data, header);
+    }
+
+    /**
+     * @return offset of the current value in {@link #data()}
+     */
+    public int offset() {
+        return header + 4;
+    }
+
+    public int length() {
+        return MultiVersionUtil.valueLength(data, header);
+    }
+
+    /**
+     * @return true if the current version is a deletion marker
+     */
+    public boolean isTombstone() {
+        return length() == 0;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return a reference to the current value (in place, not a copy)
+     */
+    public ByteArrayRef value() {
+        return new ByteArrayRef(offset(), length(), data);
+    }
+}
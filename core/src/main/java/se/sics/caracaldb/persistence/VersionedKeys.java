@@ -0,0 +1,215 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Physical key encoding for the versioned (blind-write) layout.
+ * <p>
+ * Every version of a key is stored as its own record under
+ * {@code escape(key) 0x00 0x01 ~version}, where {@code escape} replaces every
+ * {@code 0x00} in the key with {@code 0x00 0xFF}. This keeps all records of a
+ * key contiguous, orders keys exactly like the raw keys would be ordered and,
+ * because the version is stored inverted, puts the newest version first.
+ * <p>
+ * Sequences starting with {@code 0x00 0x00} can never be produced by the
+ * encoding and are used for layout metadata.
+ *
+ * @author lkroll
+ */
+public abstract class VersionedKeys {
+
+    private static final byte ESC = 0x00;
+    private static final byte ESC_ZERO = (byte) 0xFF;
+    private static final byte ESC_END = 0x01;
+    public static final int SUFFIX_SIZE = 2 + 4; // terminator + version
+    public static final byte[] META_KEY = concat(new byte[]{ESC, ESC}, "layout".getBytes(Charset.forName("UTF-8")));
+
+    /**
+     * @param key
+     * @param version
+     * @return the physical key for version of key
+     */
+    public static byte[] encode(byte[] key, int version) {
+        byte[] prefix = prefix(key);
+        byte[] physical = Arrays.copyOf(prefix, prefix.length + 4);
+        writeVersion(version, physical, prefix.length);
+        return physical;
+    }
+
+    /**
+     * The common prefix of all versions of key.
+     * <p>
+     * This is also the smallest physical key for key, i.e. seeking to it
+     * positions an iterator at the newest version of key (or at the next key
+     * if key doesn't exist).
+     *
+     * @param key
+     * @return
+     */
+    public static byte[] prefix(byte[] key) {
+        int zeroes = 0;
+        for (byte b : key) {
+            if (b == ESC) {
+                zeroes++;
+            }
+        }
+        byte[] prefix = new byte[key.length + zeroes + 2];
+        int ptr = 0;
+        for (byte b : key) {
+            prefix[ptr++] = b;
+            if (b == ESC) {
+                prefix[ptr++] = ESC_ZERO;
+            }
+        }
+        prefix[ptr++] = ESC;
+        prefix[ptr] = ESC_END;
+        return prefix;
+    }
+
+    /**
+     * @param physical
+     * @return true if physical was produced by {@link #encode(byte[], int)}
+     */
+    public static boolean isVersioned(byte[] physical) {
+        return terminator(physical) >= 0;
+    }
+
+    /**
+     * @param physical
+     * @param prefix as returned by {@link #prefix(byte[])}
+     * @return true if physical is a version of the key that produced prefix
+     */
+    public static boolean hasPrefix(byte[] physical, byte[] prefix) {
+        if (physical.length != prefix.length + 4) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (physical[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param physical
+     * @return the user key physical was encoded from
+     * @throws IllegalArgumentException if physical is not a versioned key
+     */
+    public static byte[] decodeKey(byte[] physical) {
+        int end = terminator(physical);
+        if (end < 0) {
+            throw new IllegalArgumentException("Not a versioned key!");
+        }
+        int zeroes = 0;
+        for (int i = 0; i < end; i++) {
+            if (physical[i] == ESC) {
+                zeroes++;
+                i++;
+            }
+        }
+        byte[] key = new byte[end - zeroes];
+        int ptr = 0;
+        for (int i = 0; i < end; i++) {
+            key[ptr++] = physical[i];
+            if (physical[i] == ESC) {
+                i++;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @param physical
+     * @return the version encoded in physical
+     */
+    public static int decodeVersion(byte[] physical) {
+        int ptr = physical.length - 4;
+        return ~Ints.fromBytes(physical[ptr], physical[ptr + 1], physical[ptr + 2], physical[ptr + 3]);
+    }
+
+    /**
+     * Compares the user keys of two physical keys.
+     * <p>
+     * Since the encoding is order preserving comparing the prefixes is
+     * sufficient.
+     *
+     * @param physical1
+     * @param physical2
+     * @return
+     */
+    public static int compareKeys(byte[] physical1, byte[] physical2) {
+        int l1 = physical1.length - 4;
+        int l2 = physical2.length - 4;
+        int min = Math.min(l1, l2);
+        for (int i = 0; i < min; i++) {
+            int c = UnsignedBytes.compare(physical1[i], physical2[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return l1 - l2;
+    }
+
+    private static void writeVersion(int version, byte[] target, int offset) {
+        int inv = ~version;
+        target[offset] = (byte) (inv >>> 24);
+        target[offset + 1] = (byte) (inv >>> 16);
+        target[offset + 2] = (byte) (inv >>> 8);
+        target[offset + 3] = (byte) inv;
+    }
+
+    /**
+     * @return position of the terminator or -1 if physical is not valid
+     */
+    private static int terminator(byte[] physical) {
+        int end = physical.length - SUFFIX_SIZE;
+        if (end < 0) {
+            return -1;
+        }
+        int i = 0;
+        while (i < end) {
+            if (physical[i] == ESC) {
+                if (physical[i + 1] != ESC_ZERO) {
+                    return -1;
+                }
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        if (i != end || physical[end] != ESC || physical[end + 1] != ESC_END) {
+            return -1;
+        }
+        return end;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] res = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
+}
@@ -0,0 +1,474 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import com.google.common.collect.Ordering;
+import com.larskroll.common.ByteArrayRef;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.Key;
+
+/**
+ * Blind-write storage layout on top of a {@link RawStore}.
+ * <p>
+ * Instead of packing all versions of a key into a single blob (see
+ * {@link MultiVersionUtil}) every version is its own record (see
+ * {@link VersionedKeys}). Puts are thus simple writes without a preceding
+ * read and a get is a single seek to the newest version.
+ * <p>
+ * Semantics are the same as for the packed layout: A deletion writes an empty
+ * version and a key where all versions are empty doesn't exist. Versions are
+ * expected to be non-negative.
+ * <p>
+ * Deletes first check that the key has a live version, like the packed
+ * layout does. The iterators skip keys with nothing but tombstones, so
+ * VersionGC would never reach (and drop) a tombstone written for a key that
+ * doesn't exist. As in the packed batches, that check sees the store, not
+ * the earlier operations of the same batch.
+ *
+ * @author lkroll
+ */
+public class VersionedLayout implements Persistence {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VersionedLayout.class);
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte META_MIGRATING = 0;
+    private static final byte META_DONE = 1;
+    public static final int MIGRATION_BATCH_SIZE = 1000;
+
+    private final RawStore raw;
+
+    /**
+     * Assumes that raw is empty or already in the versioned layout. Use
+     * {@link #open(se.sics.caracaldb.persistence.RawStore)} if it might not
+     * be.
+     *
+     * @param raw
+     */
+    public VersionedLayout(RawStore raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Opens raw in the versioned layout, migrating any data in the packed
+     * layout first.
+     *
+     * @param raw
+     * @return
+     */
+    public static VersionedLayout open(RawStore raw) {
+        migrate(raw, MIGRATION_BATCH_SIZE);
+        return new VersionedLayout(raw);
+    }
+
+    /**
+     * @param raw
+     * @return true if raw has been initialised with (or migrated to) the
+     * versioned layout
+     */
+    public static boolean isVersioned(RawStore raw) {
+        byte[] meta = raw.get(VersionedKeys.META_KEY);
+        return (meta != null) && (meta.length == 1) && (meta[0] == META_DONE);
+    }
+
+    /**
+     * Rewrites every packed multi-version blob in raw into versioned records.
+     * <p>
+     * Progress is checkpointed with every batch so an interrupted migration
+     * resumes where it left off the next time the store is opened. Keys that
+     * have already been converted are recognised by being valid versioned
+     * keys ordered before the checkpoint.
+     *
+     * @param raw
+     * @param batchSize number of keys to convert per batch
+     */
+    public static void migrate(RawStore raw, int batchSize) {
+        byte[] meta = raw.get(VersionedKeys.META_KEY);
+        byte[] last = null;
+        if (meta != null) {
+            if (meta[0] == META_DONE) {
+                return; // nothing to do
+            }
+            last = Arrays.copyOfRange(meta, 1, meta.length);
+            LOG.info("Resuming migration to versioned layout after key {}", new Key(last));
+        }
+        long count = 0;
+        RawStore.Cursor c = raw.cursor(last);
+        RawStore.RawBatch b = raw.createBatch();
+        try {
+            int inBatch = 0;
+            for (; c.valid(); c.next()) {
+                byte[] key = c.key();
+                if (Arrays.equals(key, VersionedKeys.META_KEY)) {
+                    continue;
+                }
+                if (last != null) {
+                    if (Key.compare(key, last) <= 0) {
+                        continue;
+                    }
+                    if (VersionedKeys.isVersioned(key)
+                            && Key.compare(VersionedKeys.decodeKey(key), last) <= 0) {
+                        continue; // converted earlier
+                    }
+                }
+                SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(c.value());
+                for (Entry<Integer, ByteArrayRef> e : versions.entrySet()) {
+                    b.put(VersionedKeys.encode(key, e.getKey()), e.getValue().dereference());
+                }
+                b.delete(key);
+                last = key;
+                inBatch++;
+                count++;
+                if (inBatch >= batchSize) {
+                    b.put(VersionedKeys.META_KEY, checkpoint(last));
+                    raw.writeBatch(b);
+                    b.close();
+                    b = raw.createBatch();
+                    inBatch = 0;
+                }
+            }
+            b.put(VersionedKeys.META_KEY, new byte[]{META_DONE});
+            raw.writeBatch(b);
+        } finally {
+            b.close();
+            c.close();
+        }
+        if (count > 0) {
+            LOG.info("Migrated {} keys to versioned layout", count);
+        }
+    }
+
+    private static byte[] checkpoint(byte[] lastKey) {
+        byte[] data = new byte[lastKey.length + 1];
+        data[0] = META_MIGRATING;
+        System.arraycopy(lastKey, 0, data, 1, lastKey.length);
+        return data;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        raw.put(VersionedKeys.encode(key, version), value);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        RawStore.RawBatch b = raw.createBatch();
+        try {
+            replace(key, value, b);
+            raw.writeBatch(b);
+        } finally {
+            b.close();
+        }
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        if (get(key) == null) {
+            return; // nothing to do
+        }
+        raw.put(VersionedKeys.encode(key, version), EMPTY);
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        RawStore.RawBatch b = raw.createBatch();
+        try {
+            int size = deleteVersions(key, version, b);
+            raw.writeBatch(b);
+            return size;
+        } finally {
+            b.close();
+        }
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        byte[] prefix = VersionedKeys.prefix(key);
+        RawStore.Cursor c = raw.cursor(prefix);
+        try {
+            if (!c.valid() || !VersionedKeys.hasPrefix(c.key(), prefix)) {
+                return null;
+            }
+            byte[] newest = c.value();
+            if (newest.length > 0) {
+                return new ByteArrayRef(0, newest.length, newest);
+            }
+            // newest is a tombstone, the key only exists if some version isn't
+            for (c.next(); c.valid() && VersionedKeys.hasPrefix(c.key(), prefix); c.next()) {
+                if (c.value().length > 0) {
+                    return new ByteArrayRef(0, 0, newest);
+                }
+            }
+            return null;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        SortedMap<Integer, ByteArrayRef> versions = new TreeMap<Integer, ByteArrayRef>(Ordering.natural().reverse());
+        byte[] prefix = VersionedKeys.prefix(key);
+        RawStore.Cursor c = raw.cursor(prefix);
+        try {
+            boolean exists = false;
+            for (; c.valid() && VersionedKeys.hasPrefix(c.key(), prefix); c.next()) {
+                byte[] value = c.value();
+                exists |= value.length > 0;
+                versions.put(VersionedKeys.decodeVersion(c.key()), new ByteArrayRef(0, value.length, value));
+            }
+            if (!exists) {
+                versions.clear();
+            }
+            return versions;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gives the size equivalent packed blob.
+     * <p>
+     * This is only meant for size calculations and doesn't reflect the actual
+     * storage format.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return MultiVersionUtil.pack(getAllVersions(key));
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new VersionedBatch(raw.createBatch());
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        VersionedBatch vb = (VersionedBatch) b;
+        // If this cast doesn't work, someone is doing something seriously wrong
+        raw.writeBatch(vb.batch);
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return new VersionedIterator(raw.cursor(null));
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return new VersionedIterator(raw.cursor(VersionedKeys.prefix(startKey)));
+    }
+
+    private void replace(byte[] key, ByteArrayRef value, RawStore.RawBatch b) {
+        byte[] prefix = VersionedKeys.prefix(key);
+        RawStore.Cursor c = raw.cursor(prefix);
+        try {
+            for (; c.valid() && VersionedKeys.hasPrefix(c.key(), prefix); c.next()) {
+                b.delete(c.key());
+            }
+        } finally {
+            c.close();
+        }
+        if (value.length == 0) {
+            return;
+        }
+        for (Entry<Integer, ByteArrayRef> e : MultiVersionUtil.unpack(value.dereference()).entrySet()) {
+            b.put(VersionedKeys.encode(key, e.getKey()), e.getValue().dereference());
+        }
+    }
+
+    private int deleteVersions(byte[] key, int version, RawStore.RawBatch b) {
+        byte[] prefix = VersionedKeys.prefix(key);
+        ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        ArrayList<byte[]> values = new ArrayList<byte[]>();
+        RawStore.Cursor c = raw.cursor(prefix);
+        try {
+            for (; c.valid() && VersionedKeys.hasPrefix(c.key(), prefix); c.next()) {
+                keys.add(c.key());
+                values.add(c.value());
+            }
+        } finally {
+            c.close();
+        }
+        if (keys.isEmpty()) {
+            return 0; // nothing to do
+        }
+        // versions are ordered newest first, so everything older than version is a suffix
+        int retain = 0;
+        while (retain < keys.size() && VersionedKeys.decodeVersion(keys.get(retain)) > version) {
+            retain++;
+        }
+        if (retain == 0) { // always retain the newest value
+            retain = 1;
+        }
+        int size = 0;
+        int dataSize = 0;
+        for (int i = 0; i < retain; i++) {
+            size += 4 + values.get(i).length;
+            dataSize += values.get(i).length;
+        }
+        if (dataSize == 0) { // only tombstones left, drop the key completely
+            retain = 0;
+            size = 0;
+        }
+        for (int i = retain; i < keys.size(); i++) {
+            b.delete(keys.get(i));
+        }
+        return size;
+    }
+
+    private class VersionedBatch implements Batch {
+
+        private RawStore.RawBatch batch;
+
+        private VersionedBatch(RawStore.RawBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value, int version) {
+            batch.put(VersionedKeys.encode(key, version), value);
+        }
+
+        @Override
+        public void replace(byte[] key, ByteArrayRef value) {
+            VersionedLayout.this.replace(key, value, batch);
+        }
+
+        @Override
+        public void delete(byte[] key, int version) {
+            if (get(key) == null) {
+                return; // nothing to do
+            }
+            batch.put(VersionedKeys.encode(key, version), EMPTY);
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, int version) {
+            return VersionedLayout.this.deleteVersions(key, version, batch);
+        }
+
+        @Override
+        public void close() {
+            if (batch != null) {
+                batch.close();
+                batch = null;
+            }
+        }
+    }
+
+    /**
+     * Presents all versions of a key as a single item, just like the packed
+     * layout does.
+     */
+    private static class VersionedIterator implements StoreIterator {
+
+        private RawStore.Cursor cursor;
+        private byte[] currentKey;
+        private SortedMap<Integer, ByteArrayRef> currentVersions;
+
+        VersionedIterator(RawStore.Cursor cursor) {
+            this.cursor = cursor;
+            advance();
+        }
+
+        private void advance() {
+            currentKey = null;
+            currentVersions = null;
+            while (cursor.valid()) {
+                byte[] first = cursor.key();
+                if (!VersionedKeys.isVersioned(first)) {
+                    cursor.next(); // metadata
+                    continue;
+                }
+                SortedMap<Integer, ByteArrayRef> versions = new TreeMap<Integer, ByteArrayRef>(Ordering.natural().reverse());
+                boolean exists = false;
+                do {
+                    byte[] value = cursor.value();
+                    exists |= value.length > 0;
+                    versions.put(VersionedKeys.decodeVersion(cursor.key()), new ByteArrayRef(0, value.length, value));
+                    cursor.next();
+                } while (cursor.valid() && VersionedKeys.compareKeys(first, cursor.key()) == 0);
+                if (exists) {
+                    currentKey = VersionedKeys.decodeKey(first);
+                    currentVersions = versions;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return currentKey != null;
+        }
+
+        @Override
+        public void next() {
+            advance();
+        }
+
+        @Override
+        public byte[] peekKey() {
+            return currentKey;
+        }
+
+        @Override
+        public ByteArrayRef peekValue() {
+            return currentVersions.get(currentVersions.firstKey());
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            for (Entry<Integer, ByteArrayRef> e : currentVersions.entrySet()) {
+                if (e.getKey() <= maxVersionId) {
+                    return e.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public SortedMap<Integer, ByteArrayRef> peekAllValues() {
+            return currentVersions;
+        }
+
+        @Override
+        public byte[] peekRaw() {
+            return MultiVersionUtil.pack(currentVersions);
+        }
+
+        @Override
+        public void close() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.log;
+
+import se.sics.kompics.KompicsEvent;
+
+/**
+ * Tells the client of the log whether it's proposing faster than values are
+ * being decided.
+ * <p>
+ * Only sent when the state changes. While engaged new client operations
+ * should be rejected or delayed, not proposed.
+ * <p>
+ * @author lkroll
+ */
+public class Backpressure implements KompicsEvent {
+
+    public final boolean engaged;
+    /**
+     * Proposals known to the log, but not decided, when the state changed.
+     */
+    public final int pending;
+
+    public Backpressure(boolean engaged, int pending) {
+        this.engaged = engaged;
+        this.pending = pending;
+    }
+
+    @Override
+    public String toString() {
+        return "Backpressure(" + (engaged ? "engaged" : "released") + ", " + pending + " pending)";
+    }
+}
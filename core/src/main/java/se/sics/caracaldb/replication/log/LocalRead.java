@@ -0,0 +1,85 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.log;
+
+import java.util.UUID;
+import se.sics.caracaldb.operations.Staleness;
+import se.sics.kompics.KompicsEvent;
+
+/**
+ * Asks the log whether a read can be served from local state instead of
+ * being proposed.
+ * <p>
+ * If granted, the read is linearisable once every decision up to and
+ * including position has been applied locally. Reads with a staleness bound
+ * are instead within that bound at position.
+ * <p>
+ * @author lkroll
+ */
+public abstract class LocalRead {
+
+    public static class Request implements KompicsEvent {
+
+        public final UUID id;
+        /**
+         * Either LEASE or READ_INDEX.
+         */
+        public final ReadMode mode;
+        /**
+         * If set the read may be served by any replica (null otherwise).
+         */
+        public final Staleness staleness;
+        /**
+         * The position the client's session has seen in this group (-1 if
+         * none).
+         */
+        public final long after;
+
+        public Request(UUID id, ReadMode mode) {
+            this(id, mode, null, -1);
+        }
+
+        public Request(UUID id, ReadMode mode, Staleness staleness, long after) {
+            this.id = id;
+            this.mode = mode;
+            this.staleness = staleness;
+            this.after = after;
+        }
+    }
+
+    public static class Response implements KompicsEvent {
+
+        public final UUID id;
+        public final boolean granted;
+        public final long position;
+
+        public Response(UUID id, boolean granted, long position) {
+            this.id = id;
+            this.granted = granted;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return "LocalRead.Response(" + id + ", " + (granted ? ("at " + position) : "refused") + ")";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.log;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Several proposals decided together in a single Paxos instance.
+ * <p>
+ * The leader packs forwarded values into a batch while earlier instances are
+ * still undecided. Learners apply the contained values in list order, all at
+ * the log position of the batch.
+ * <p>
+ * @author lkroll
+ */
+public class ProposalBatch extends Value {
+
+    public final ImmutableList<Value> values;
+
+    public ProposalBatch(Collection<Value> values) {
+        this(UUID.randomUUID(), ImmutableList.copyOf(values));
+    }
+
+    /**
+     * Serialization use only
+     */
+    ProposalBatch(UUID id, ImmutableList<Value> values) {
+        super(id);
+        this.values = values;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ProposalBatch) {
+            ProposalBatch that = (ProposalBatch) o;
+            return this.compareTo(that) == 0;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public int compareTo(Value o) {
+        return super.baseCompareTo(o);
+    }
+
+    @Override
+    public String toString() {
+        return "ProposalBatch(" + id + ", " + values.size() + " values)";
+    }
+}
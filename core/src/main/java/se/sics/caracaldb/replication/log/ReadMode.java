@@ -0,0 +1,94 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.log;
+
+import se.sics.caracaldb.operations.CaracalOp;
+import se.sics.caracaldb.operations.GetRequest;
+import se.sics.caracaldb.operations.MultiGetRequest;
+import se.sics.caracaldb.operations.RangeQuery;
+
+/**
+ * How reads are ordered with respect to the replicated log.
+ *
+ * Chosen per schema with the "reads" meta data field.
+ *
+ * @author lkroll
+ */
+public enum ReadMode {
+
+    /**
+     * Propose every read and execute it when it's decided (the default).
+     */
+    LOG("log"),
+    /**
+     * Let a leader that holds a lease read locally right away. Needs
+     * caracal.paxos.leaseDuration to be set, otherwise reads go through the
+     * log.
+     */
+    LEASE("lease"),
+    /**
+     * Let the leader read locally after a single heartbeat round to a quorum
+     * confirmed it's still leader. All reads that arrive during a round
+     * share the next one. Doesn't rely on clocks. Reads of a round that
+     * isn't acknowledged within a round trip go through the log.
+     */
+    READ_INDEX("readindex");
+
+    public static final String META_KEY = "reads";
+
+    public final String name;
+
+    private ReadMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name the value of the schema meta data field (may be null)
+     * @return the matching mode, or LOG if name is null
+     * @throws IllegalArgumentException if there is no such mode
+     */
+    public static ReadMode fromName(String name) {
+        if (name == null) {
+            return LOG;
+        }
+        for (ReadMode m : values()) {
+            if (m.name.equalsIgnoreCase(name)) {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("Unknown read mode: " + name);
+    }
+
+    /**
+     * @param op
+     * @return true if op is a read that this mode asks the log to serve
+     * locally
+     */
+    public boolean readsLocally(CaracalOp op) {
+        if (this == LOG) {
+            return false;
+        }
+        if (op instanceof RangeQuery.Request) {
+            return ((RangeQuery.Request) op).isScan();
+        }
+        return (op instanceof GetRequest) || (op instanceof MultiGetRequest);
+    }
+}
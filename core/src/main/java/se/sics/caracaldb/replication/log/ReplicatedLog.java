@@ -38,11 +38,21 @@ import se.sics.kompics.PortType;
  * <br />
  * 5) If a client requests pruning the log to position i, all log entries
  *      j <= i are dropped.
+ * <br />
+ * 6) Backpressure is engaged while more proposals are pending than the
+ *      log is willing to queue, and released once they have drained.
+ * <br />
+ * 7) If a LocalRead is granted with position i, no value that was decided
+ *      before the request was made is decided for an instance j > i.
+ *      LocalReads with a staleness only promise its bounds instead.
  * <p>
  * @author Lars Kroll <lkroll@sics.se>
  */
 public class ReplicatedLog extends PortType {{
     request(Propose.class);
     request(Prune.class);
+    request(LocalRead.Request.class);
     indication(Decide.class);
+    indication(Backpressure.class);
+    indication(LocalRead.Response.class);
 }}
@@ -21,6 +21,7 @@
 package se.sics.caracaldb.replication.log;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import io.netty.buffer.ByteBuf;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -30,6 +31,7 @@ import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.View;
 import se.sics.caracaldb.utils.CustomSerialisers;
 import se.sics.kompics.network.netty.serialization.Serializer;
+import se.sics.kompics.network.netty.serialization.Serializers;
 import se.sics.kompics.network.netty.serialization.SpecialSerializers;
 
 /**
@@ -42,6 +44,7 @@ public class ValueSerializer implements Serializer {
 
     static final byte NOOP = 0;
     static final byte RECONFIGURE = 1;
+    static final byte BATCH = 2;
 
     @Override
     public int identifier() {
@@ -69,6 +72,15 @@ public class ValueSerializer implements Serializer {
             CustomSerialisers.serialiseKeyRange(r.responsibility, buf);
             return;
         }
+        if (val instanceof ProposalBatch) {
+            buf.writeByte(BATCH);
+            ProposalBatch batch = (ProposalBatch) val;
+            buf.writeInt(batch.values.size());
+            for (Value v : batch.values) {
+                Serializers.toBinary(v, buf);
+            }
+            return;
+        }
         LOG.error("Can't serialize {}:{}!", o, o.getClass());
     }
 
@@ -85,6 +97,13 @@ public class ValueSerializer implements Serializer {
                 int versionId = buf.readInt();
                 KeyRange r = CustomSerialisers.deserialiseKeyRange(buf);
                 return new Reconfigure(id, v, quorum, versionId, r);
+            case BATCH:
+                int size = buf.readInt();
+                ImmutableList.Builder<Value> values = ImmutableList.builder();
+                for (int i = 0; i < size; i++) {
+                    values.add((Value) Serializers.fromBinary(buf, Optional.absent()));
+                }
+                return new ProposalBatch(id, values.build());
             default:
                 LOG.error("Can't deserialize for type {}!", type);
                 return null;
@@ -0,0 +1,326 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.larskroll.common.ByteArrayRef;
+import java.io.Serializable;
+
+/**
+ * The built-in {@link Aggregator}s.
+ *
+ * Numeric aggregates read a big-endian signed integer field of 1, 2, 4 or 8
+ * bytes at a fixed offset of each value. Values that are too short for the
+ * field are skipped, as are tombstones (empty values) by all aggregates.
+ *
+ * @author lkroll
+ */
+public class AggFactory {
+
+    public static Aggregator count() {
+        return new Count();
+    }
+
+    public static Aggregator sum(int offset, int width) {
+        return new Sum(new Field(offset, width));
+    }
+
+    public static Aggregator min(int offset, int width) {
+        return new Min(new Field(offset, width));
+    }
+
+    public static Aggregator max(int offset, int width) {
+        return new Max(new Field(offset, width));
+    }
+
+    /**
+     * Approximate number of distinct values with a HyperLogLog sketch.
+     *
+     * @param precision between 4 and 16, the sketch has 2^precision bytes and a
+     * standard error of about 1.04/sqrt(2^precision)
+     * @return
+     */
+    public static Aggregator distinct(int precision) {
+        return new Distinct(precision);
+    }
+
+    public static class Field implements Serializable {
+
+        public final int offset;
+        public final int width;
+
+        public Field(int offset, int width) {
+            if ((width != 1) && (width != 2) && (width != 4) && (width != 8)) {
+                throw new IllegalArgumentException("Field width must be 1, 2, 4 or 8 bytes, not " + width);
+            }
+            if (offset < 0) {
+                throw new IllegalArgumentException("Negative field offset " + offset);
+            }
+            this.offset = offset;
+            this.width = width;
+        }
+
+        /**
+         * @param value
+         * @return true if value is long enough to contain the field
+         */
+        public boolean fits(ByteArrayRef value) {
+            return (value != null) && (value.length >= offset + width);
+        }
+
+        public long read(ByteArrayRef value) {
+            byte[] data = value.dereference();
+            long l = data[offset]; // sign extended
+            for (int i = 1; i < width; i++) {
+                l = (l << 8) | (data[offset + i] & 0xFF);
+            }
+            return l;
+        }
+    }
+
+    private static abstract class Base implements Aggregator {
+
+        protected long count = 0;
+
+        protected <T extends Aggregator> T check(Aggregator other, Class<T> kind) {
+            if (!kind.isInstance(other)) {
+                throw new IllegalArgumentException("Can't merge " + other + " into " + this);
+            }
+            T that = kind.cast(other);
+            count += that.count();
+            return that;
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + result() + " of " + count + ")";
+        }
+    }
+
+    public static class Count extends Base {
+
+        @Override
+        public Aggregator empty() {
+            return new Count();
+        }
+
+        @Override
+        public void add(byte[] key, ByteArrayRef value) {
+            if ((value != null) && (value.length > 0)) {
+                count++;
+            }
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            check(other, Count.class);
+        }
+
+        @Override
+        public long result() {
+            return count;
+        }
+    }
+
+    public static class Sum extends Base {
+
+        private final Field field;
+        private long sum = 0;
+
+        public Sum(Field field) {
+            this.field = field;
+        }
+
+        @Override
+        public Aggregator empty() {
+            return new Sum(field);
+        }
+
+        @Override
+        public void add(byte[] key, ByteArrayRef value) {
+            if (field.fits(value)) {
+                sum += field.read(value);
+                count++;
+            }
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            sum += check(other, Sum.class).sum;
+        }
+
+        @Override
+        public long result() {
+            return sum;
+        }
+    }
+
+    public static class Min extends Base {
+
+        private final Field field;
+        private long min = Long.MAX_VALUE;
+
+        public Min(Field field) {
+            this.field = field;
+        }
+
+        @Override
+        public Aggregator empty() {
+            return new Min(field);
+        }
+
+        @Override
+        public void add(byte[] key, ByteArrayRef value) {
+            if (field.fits(value)) {
+                min = Math.min(min, field.read(value));
+                count++;
+            }
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            min = Math.min(min, check(other, Min.class).min);
+        }
+
+        @Override
+        public long result() {
+            return min;
+        }
+    }
+
+    public static class Max extends Base {
+
+        private final Field field;
+        private long max = Long.MIN_VALUE;
+
+        public Max(Field field) {
+            this.field = field;
+        }
+
+        @Override
+        public Aggregator empty() {
+            return new Max(field);
+        }
+
+        @Override
+        public void add(byte[] key, ByteArrayRef value) {
+            if (field.fits(value)) {
+                max = Math.max(max, field.read(value));
+                count++;
+            }
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            max = Math.max(max, check(other, Max.class).max);
+        }
+
+        @Override
+        public long result() {
+            return max;
+        }
+    }
+
+    public static class Distinct extends Base {
+
+        private static final HashFunction HASH = Hashing.murmur3_128();
+        private final int precision;
+        private final byte[] registers;
+
+        public Distinct(int precision) {
+            if ((precision < 4) || (precision > 16)) {
+                throw new IllegalArgumentException("Precision must be between 4 and 16, not " + precision);
+            }
+            this.precision = precision;
+            this.registers = new byte[1 << precision];
+        }
+
+        @Override
+        public Aggregator empty() {
+            return new Distinct(precision);
+        }
+
+        @Override
+        public void add(byte[] key, ByteArrayRef value) {
+            if ((value == null) || (value.length == 0)) {
+                return;
+            }
+            long h = HASH.hashBytes(value.dereference()).asLong();
+            int idx = (int) (h >>> (64 - precision));
+            int rank = Math.min(Long.numberOfLeadingZeros(h << precision), 64 - precision) + 1;
+            if (rank > registers[idx]) {
+                registers[idx] = (byte) rank;
+            }
+            count++;
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            Distinct that = check(other, Distinct.class);
+            if (that.precision != precision) {
+                throw new IllegalArgumentException("Can't merge sketches of precision " + that.precision + " into " + precision);
+            }
+            for (int i = 0; i < registers.length; i++) {
+                if (that.registers[i] > registers[i]) {
+                    registers[i] = that.registers[i];
+                }
+            }
+        }
+
+        @Override
+        public long result() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte r : registers) {
+                sum += 1.0 / (1L << r);
+                if (r == 0) {
+                    zeros++;
+                }
+            }
+            double alpha;
+            switch (m) {
+                case 16:
+                    alpha = 0.673;
+                    break;
+                case 32:
+                    alpha = 0.697;
+                    break;
+                case 64:
+                    alpha = 0.709;
+                    break;
+                default:
+                    alpha = 0.7213 / (1 + 1.079 / m);
+            }
+            double estimate = alpha * m * m / sum;
+            if ((estimate <= 2.5 * m) && (zeros > 0)) {
+                estimate = m * Math.log((double) m / zeros); // linear counting for small sets
+            }
+            return Math.round(estimate);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.larskroll.common.ByteArrayRef;
+import java.io.Serializable;
+
+/**
+ * Folds the values of a range query into a single number on the replica, so
+ * only the aggregate is sent back.
+ *
+ * Aggregators are stateful. Every execution starts from {@link #empty()} and
+ * the partial results of the partitions are combined with {@link #merge}.
+ *
+ * @author lkroll
+ */
+public interface Aggregator extends Serializable {
+
+    /**
+     * @return a new aggregator of the same kind without any values
+     */
+    public Aggregator empty();
+
+    /**
+     * @param key
+     * @param value after the transformation filter
+     */
+    public void add(byte[] key, ByteArrayRef value);
+
+    /**
+     * Adds the partial result of another aggregator of the same kind.
+     *
+     * @param other
+     * @throws IllegalArgumentException if other is of a different kind
+     */
+    public void merge(Aggregator other);
+
+    /**
+     * @return the number of values that were aggregated
+     */
+    public long count();
+
+    /**
+     * @return the aggregate (undefined if {@link #count()} is 0 for min and
+     * max)
+     */
+    public long result();
+}
@@ -0,0 +1,83 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.larskroll.common.ByteArrayRef;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.Persistence;
+
+/**
+ * Applies many {@link Put}s as a single {@link Batch}.
+ *
+ * Unlike {@link BatchWrite} it keeps the size statistics up to date.
+ *
+ * @author lkroll
+ */
+public class BatchPut extends StorageRequest {
+
+    public final SortedMap<Key, byte[]> puts;
+    public final int versionId;
+
+    public BatchPut(SortedMap<Key, byte[]> puts, int versionId) {
+        this.puts = puts;
+        this.versionId = versionId;
+    }
+
+    @Override
+    public StorageResponse execute(Persistence store) throws IOException {
+        long sizeDiff = 0;
+        long numDiff = 0;
+        Batch batch = store.createBatch();
+        try {
+            for (Entry<Key, byte[]> e : puts.entrySet()) {
+                byte[] key = e.getKey().getArray();
+                byte[] value = e.getValue();
+                ByteArrayRef oldValue = store.get(key);
+                batch.put(key, value, versionId);
+                if (oldValue == null) {
+                    sizeDiff += value.length + e.getKey().getKeySize();
+                    numDiff++;
+                } else {
+                    sizeDiff += value.length - oldValue.length;
+                }
+            }
+            store.writeBatch(batch);
+        } finally {
+            batch.close();
+        }
+        return new BatchPutResp(this, new Diff(sizeDiff, numDiff));
+    }
+
+    @Override
+    public Collection<Key> affectedKeys() {
+        return puts.keySet();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPut(" + puts.size() + " keys)";
+    }
+}
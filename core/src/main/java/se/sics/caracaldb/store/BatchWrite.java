@@ -20,6 +20,7 @@
  */
 package se.sics.caracaldb.store;
 
+import java.util.Collection;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import se.sics.caracaldb.Key;
@@ -41,6 +42,11 @@ public class BatchWrite extends StorageRequest {
         this.snapshotId = snapshotId;
     }
 
+    @Override
+    public Collection<Key> affectedKeys() {
+        return data.keySet();
+    }
+
     @Override
     public StorageResponse execute(Persistence store) {
         Batch wb = null;
@@ -0,0 +1,72 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+/**
+ * How hard the store tries to make a write persistent before acknowledging
+ * it.
+ *
+ * Chosen per schema with the "durability" meta data field.
+ *
+ * @author lkroll
+ */
+public enum Durability {
+
+    /**
+     * Acknowledge as soon as the write is applied and leave syncing to the
+     * database (the default).
+     */
+    NONE("none"),
+    /**
+     * Acknowledge after the next group commit, which syncs the database once
+     * for all writes that arrived within the group commit window.
+     */
+    GROUP("group"),
+    /**
+     * Sync the database after every single write before acknowledging it.
+     */
+    SYNC("sync");
+
+    public static final String META_KEY = "durability";
+
+    public final String name;
+
+    private Durability(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name the value of the schema meta data field (may be null)
+     * @return the matching mode, or NONE if name is null
+     * @throws IllegalArgumentException if there is no such mode
+     */
+    public static Durability fromName(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        for (Durability d : values()) {
+            if (d.name.equalsIgnoreCase(name)) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("Unknown durability mode: " + name);
+    }
+}
@@ -20,6 +20,8 @@
  */
 package se.sics.caracaldb.store;
 
+import java.util.Collection;
+import java.util.Collections;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.persistence.Persistence;
 import com.larskroll.common.ByteArrayRef;
@@ -46,6 +48,11 @@ public class GetReq extends StorageRequest {
 
     }
 
+    @Override
+    public Collection<Key> affectedKeys() {
+        return Collections.singleton(key);
+    }
+
     @Override
     public String toString() {
         return "GetReq(" + key.toString() + ")";
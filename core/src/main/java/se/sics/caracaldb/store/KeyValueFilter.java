@@ -0,0 +1,51 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.larskroll.common.ByteArrayRef;
+import org.javatuples.Pair;
+
+/**
+ * A {@link TransformationFilter} that also looks at the key.
+ *
+ * {@link RangeReq} asks {@link #acceptsKey(byte[])} before it reads the value,
+ * so rows that can be rejected by their key alone never have their value
+ * touched.
+ *
+ * @author lkroll
+ */
+public interface KeyValueFilter extends TransformationFilter {
+
+    /**
+     * @param key
+     * @return false if the row doesn't match whatever its value is
+     */
+    public boolean acceptsKey(byte[] key);
+
+    /**
+     * Like {@link TransformationFilter#execute(ByteArrayRef)} but with the key.
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public Pair<Boolean, ByteArrayRef> execute(byte[] key, ByteArrayRef value);
+}
@@ -0,0 +1,115 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.larskroll.common.ByteArrayRef;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.Persistence;
+import se.sics.caracaldb.persistence.StoreIterator;
+
+/**
+ * Reads the newest values of a set of keys.
+ *
+ * The keys are read in order with a single iterator, which simply steps over
+ * the records in between as long as the keys are dense. Only if more than
+ * {@link #MAX_SKIP} records lie between two keys, the iterator is reopened at
+ * the next key, which costs about as much as a single get.
+ *
+ * @author lkroll
+ */
+public class MultiGetReq extends StorageRequest {
+
+    public static final int MAX_SKIP = 16;
+    public final SortedSet<Key> keys;
+    private int seeks = 0;
+
+    public MultiGetReq(SortedSet<Key> keys) {
+        this.keys = keys;
+    }
+
+    @Override
+    public StorageResponse execute(Persistence store) throws IOException {
+        TreeMap<Key, byte[]> results = new TreeMap<Key, byte[]>();
+        StoreIterator it = null;
+        try {
+            for (Key k : keys) {
+                byte[] key = k.getArray();
+                int cmp = -1;
+                if (it != null) {
+                    for (int skipped = 0; it.hasNext(); it.next(), skipped++) {
+                        cmp = Key.compare(it.peekKey(), key);
+                        if ((cmp >= 0) || (skipped >= MAX_SKIP)) {
+                            break;
+                        }
+                    }
+                    if (!it.hasNext()) {
+                        results.put(k, null); // and so are all the following keys
+                        continue;
+                    }
+                }
+                if (cmp < 0) { // first key or too sparse
+                    if (it != null) {
+                        it.close();
+                    }
+                    it = store.iterator(key);
+                    seeks++;
+                    if (!it.hasNext()) {
+                        results.put(k, null);
+                        continue;
+                    }
+                    cmp = Key.compare(it.peekKey(), key);
+                }
+                if (cmp == 0) {
+                    ByteArrayRef val = it.peekValue();
+                    results.put(k, (val != null) ? val.dereference() : null);
+                } else {
+                    results.put(k, null);
+                }
+            }
+        } finally {
+            if (it != null) {
+                it.close();
+            }
+        }
+        return new MultiGetResp(this, results);
+    }
+
+    /**
+     * @return how often an iterator had to be opened
+     */
+    int seeks() {
+        return seeks;
+    }
+
+    @Override
+    public Collection<Key> affectedKeys() {
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiGetReq(" + keys.size() + " keys)";
+    }
+}
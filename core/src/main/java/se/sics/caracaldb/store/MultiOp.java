@@ -26,6 +26,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Map.Entry;
 //import java.util.function.Predicate;
 import se.sics.caracaldb.Key;
@@ -53,6 +56,16 @@ public class MultiOp {
             this.versionId = versionId;
         }
 
+        @Override
+        public Collection<Key> affectedKeys() {
+            Set<Key> keys = new HashSet<Key>(successPuts.keySet());
+            keys.addAll(failurePuts.keySet());
+            for (Condition c : conditions) {
+                keys.add(c.on());
+            }
+            return keys;
+        }
+
         @Override
         public StorageResponse execute(Persistence store) throws IOException {
             boolean success = true;
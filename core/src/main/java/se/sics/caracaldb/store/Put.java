@@ -20,6 +20,8 @@
  */
 package se.sics.caracaldb.store;
 
+import java.util.Collection;
+import java.util.Collections;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.persistence.Persistence;
 import com.larskroll.common.ByteArrayRef;
@@ -42,14 +44,16 @@ public class Put extends StorageRequest {
 
     @Override
     public StorageResponse execute(Persistence store) {
+        // only for the diff that maintains the range's size and key count,
+        // the write itself doesn't depend on it
         ByteArrayRef oldValue = store.get(key.getArray());
 
         Diff diff = null;
         if (value == null) { // this is actually the delete branch
-            store.delete(key.getArray(), versionId);
             if (oldValue == null) {
-                diff = new Diff(0, 0);
+                diff = new Diff(0, 0); // nothing to delete
             } else {
+                store.delete(key.getArray(), versionId);
                 diff = new Diff(-(oldValue.length + key.getKeySize()), -1);
             }
         } else {
@@ -63,6 +67,11 @@ public class Put extends StorageRequest {
         return new PutResp(this, diff);
     }
 
+    @Override
+    public Collection<Key> affectedKeys() {
+        return Collections.singleton(key);
+    }
+
     @Override
     public String toString() {
         return "PutReq(" + key + ", " + value + ")";
@@ -21,6 +21,7 @@
 
 package se.sics.caracaldb.store;
 
+import se.sics.caracaldb.Key;
 
 /**
  *
@@ -28,8 +29,11 @@ package se.sics.caracaldb.store;
  */
 public class PutResp extends StorageResponse {
 
+    public final Key key;
+
     public PutResp(Put req, Diff diff) {
         super(req, diff);
+        this.key = req.key;
     }
     
 }
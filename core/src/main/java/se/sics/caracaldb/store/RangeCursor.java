@@ -0,0 +1,168 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.persistence.Persistence;
+import se.sics.caracaldb.persistence.StoreIterator;
+
+/**
+ * Server side state of a paged range query.
+ *
+ * Keeps the {@link StoreIterator} of the last page open, so that the next page
+ * of the same query (starting after the last key that was returned) continues
+ * where the previous one stopped instead of seeking again. Pages that don't
+ * start at that key, or come in after the cursor was closed, simply get a new
+ * iterator.
+ *
+ * Every page must see all writes decided before it, so cursors may only be
+ * used with databases whose iterators follow writes (see
+ * Database#supportsLiveIterators()). The ExecutionEngine doesn't attach them
+ * otherwise.
+ *
+ * Pages are executed by the store while the cursor is owned by the
+ * ExecutionEngine, hence the synchronisation.
+ *
+ * @author lkroll
+ */
+public class RangeCursor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangeCursor.class);
+
+    public final UUID id;
+    private StoreIterator it = null;
+    private byte[] resumeKey = null;
+    private boolean inUse = false;
+    private boolean closed = false;
+    private long lastUsed;
+    private int pages = 0;
+    private int seeks = 0;
+
+    public RangeCursor(UUID id, long now) {
+        this.id = id;
+        this.lastUsed = now;
+    }
+
+    /**
+     * Hands out the iterator for a page starting at begin.
+     *
+     * @param store
+     * @param begin
+     * @return the open iterator if begin is the resume key, a new one
+     * otherwise, or null if the cursor can't be used right now
+     */
+    synchronized StoreIterator open(Persistence store, byte[] begin) {
+        if (closed || inUse) {
+            return null; // e.g. a retransmitted page, let it use its own iterator
+        }
+        inUse = true;
+        pages++;
+        if ((it == null) || !Arrays.equals(begin, resumeKey)) {
+            closeIterator();
+            it = store.iterator(begin);
+            seeks++;
+        }
+        resumeKey = null;
+        return it;
+    }
+
+    /**
+     * Keeps the iterator for a page starting at lastKey.
+     *
+     * @param lastKey the last key that was returned
+     */
+    synchronized void park(byte[] lastKey) {
+        inUse = false;
+        if (closed) {
+            closeIterator(); // closed while the page was executing
+            return;
+        }
+        resumeKey = lastKey;
+    }
+
+    /**
+     * Releases the iterator after the last page (or a failed one).
+     */
+    synchronized void finish() {
+        inUse = false;
+        closed = true;
+        closeIterator();
+    }
+
+    public synchronized void touch(long now) {
+        lastUsed = now;
+    }
+
+    public synchronized boolean isIdle(long now, long timeout) {
+        return !inUse && ((now - lastUsed) >= timeout);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the cursor. If a page is currently executing its iterator is
+     * closed once it's done.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (!inUse) {
+            closeIterator();
+        }
+    }
+
+    /**
+     * @return number of pages that used this cursor
+     */
+    public synchronized int pages() {
+        return pages;
+    }
+
+    /**
+     * @return number of iterators that had to be created for those pages
+     */
+    public synchronized int seeks() {
+        return seeks;
+    }
+
+    private void closeIterator() {
+        if (it != null) {
+            try {
+                it.close();
+            } catch (IOException ex) {
+                LOG.warn("Could not close iterator of cursor {}: {}", id, ex);
+            }
+            it = null;
+        }
+        resumeKey = null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RangeCursor(" + id + ", pages: " + pages + ", seeks: " + seeks
+                + (closed ? ", closed)" : ")");
+    }
+}
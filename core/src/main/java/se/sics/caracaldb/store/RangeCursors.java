@@ -0,0 +1,118 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * The open {@link RangeCursor}s of a vnode by query id.
+ *
+ * Cursors that haven't been used for the idle timeout are closed by
+ * {@link #expire(long)}, and when more than max cursors are open the least
+ * recently used one is closed. Not thread-safe, it's only used from the
+ * ExecutionEngine.
+ *
+ * @author lkroll
+ */
+public class RangeCursors {
+
+    private final long idleTimeout;
+    private final int max;
+    private final LinkedHashMap<UUID, RangeCursor> cursors = new LinkedHashMap<UUID, RangeCursor>(16, 0.75f, true);
+
+    public RangeCursors(long idleTimeout, int max) {
+        this.idleTimeout = idleTimeout;
+        this.max = Math.max(1, max);
+    }
+
+    /**
+     * @param id
+     * @param now
+     * @return the open cursor for id or a new one
+     */
+    public RangeCursor get(UUID id, long now) {
+        RangeCursor c = cursors.get(id);
+        if ((c == null) || c.isClosed()) {
+            c = new RangeCursor(id, now);
+            cursors.put(id, c);
+            if (cursors.size() > max) {
+                Iterator<RangeCursor> it = cursors.values().iterator();
+                it.next().close(); // least recently used
+                it.remove();
+            }
+        }
+        c.touch(now);
+        return c;
+    }
+
+    /**
+     * Forgets c, if it's still the cursor for its id.
+     *
+     * @param c
+     */
+    public void release(RangeCursor c) {
+        if (cursors.get(c.id) == c) {
+            cursors.remove(c.id);
+        }
+        c.close();
+    }
+
+    /**
+     * Closes all cursors that have been idle for at least the timeout.
+     *
+     * @param now
+     * @return the number of cursors that were closed
+     */
+    public int expire(long now) {
+        int n = 0;
+        Iterator<RangeCursor> it = cursors.values().iterator();
+        while (it.hasNext()) {
+            RangeCursor c = it.next();
+            if (c.isClosed() || c.isIdle(now, idleTimeout)) {
+                c.close();
+                it.remove();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public void closeAll() {
+        for (RangeCursor c : cursors.values()) {
+            c.close();
+        }
+        cursors.clear();
+    }
+
+    public boolean isEmpty() {
+        return cursors.isEmpty();
+    }
+
+    public int size() {
+        return cursors.size();
+    }
+
+    public long idleTimeout() {
+        return idleTimeout;
+    }
+}
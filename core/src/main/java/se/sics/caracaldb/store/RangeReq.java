@@ -23,8 +23,6 @@ package se.sics.caracaldb.store;
 import com.google.common.io.Closer;
 import com.google.common.primitives.Ints;
 import java.io.IOException;
-import java.util.Map.Entry;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import org.javatuples.Pair;
 import se.sics.caracaldb.Key;
@@ -47,6 +45,8 @@ public class RangeReq extends StorageRequest {
     private final RangeAction action;
     private int maxVersionId = Ints.MAX_POWER_OF_TWO;
     private int actionVersionId;
+    private RangeCursor cursor = null;
+    private Aggregator aggregator = null;
 
     public RangeReq(KeyRange range, LimitTracker limit, TransformationFilter transFilter, RangeAction action, int actionVersionId) {
         this.range = range;
@@ -76,33 +76,75 @@ public class RangeReq extends StorageRequest {
         return this.maxVersionId;
     }
 
+    /**
+     * Execute this as a page of a paged query, continuing from the iterator
+     * of the previous page if possible. Only for scans.
+     *
+     * @param cursor
+     */
+    public void setCursor(RangeCursor cursor) {
+        this.cursor = cursor;
+    }
+
+    public RangeCursor getCursor() {
+        return this.cursor;
+    }
+
+    /**
+     * Fold the values into an aggregate instead of returning them.
+     *
+     * @param aggregator
+     */
+    public void setAggregator(Aggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    @Override
+    public boolean isScan() {
+        return action instanceof ActionFactory.Noop; // anything else writes back
+    }
+
     @Override
     public StorageResponse execute(Persistence store) throws IOException {
         TreeMap<Key, byte[]> results = new TreeMap<Key, byte[]>();
+        Aggregator aggregate = (aggregator != null) ? aggregator.empty() : null;
 
         long lengthDiff = 0;
         long keyNumDiff = 0;
         Diff diff = null;
+        byte[] lastKey = null;
+        boolean full = false;
 
         Closer closer = Closer.create();
+        StoreIterator it = null;
+        boolean parkable = false;
+        KeyValueFilter kvFilter = (transFilter instanceof KeyValueFilter) ? (KeyValueFilter) transFilter : null;
         try {
             action.prepare(store);
             byte[] begin = range.begin.getArray();
-            for (StoreIterator it = closer.register(store.iterator(begin)); it.hasNext(); it.next()) {
+            if (cursor != null) {
+                it = cursor.open(store, begin);
+                parkable = (it != null);
+            }
+            if (it == null) {
+                it = closer.register(store.iterator(begin));
+            }
+            for (; it.hasNext(); it.next()) {
                 byte[] key = it.peekKey();
-                SortedMap<Integer, ByteArrayRef> oldVals = it.peekAllValues();
-                ByteArrayRef oldVal = null;
-                for (Entry<Integer, ByteArrayRef> e : oldVals.entrySet()) {
-                    if (e.getKey() <= maxVersionId) {
-                        oldVal = e.getValue();
-                        break;
-                    }
-                }
                 if (range.contains(key)) {
-                    Pair<Boolean, ByteArrayRef> res = transFilter.execute(oldVal);
+                    if ((kvFilter != null) && !kvFilter.acceptsKey(key)) {
+                        continue; // don't even read the value
+                    }
+                    ByteArrayRef oldVal = it.peekValue(maxVersionId); // in place, via the iterator's VersionView
+                    Pair<Boolean, ByteArrayRef> res = (kvFilter != null) ? kvFilter.execute(key, oldVal) : transFilter.execute(oldVal);
                     if (res.getValue0()) {
                         if (limit.read(res.getValue1())) {
-                            results.put(new Key(key), res.getValue1().dereference());
+                            if (aggregate != null) {
+                                aggregate.add(key, res.getValue1());
+                            } else {
+                                results.put(new Key(key), res.getValue1().dereference());
+                                lastKey = key;
+                            }
                             long newSize = action.process(key, res.getValue1(), actionVersionId);
                             if (oldVal != null) {
                                 if (newSize == 0) {
@@ -113,9 +155,11 @@ public class RangeReq extends StorageRequest {
                                 }
                             }
                             if (!limit.canRead()) {
+                                full = true;
                                 break;
                             }
                         } else {
+                            full = true;
                             break;
                         }
                     }
@@ -128,12 +172,23 @@ public class RangeReq extends StorageRequest {
             }
             action.commit();
             diff = new Diff(lengthDiff, keyNumDiff);
+            if (parkable) {
+                parkable = false;
+                if (full && (lastKey != null)) {
+                    cursor.park(lastKey); // the next page starts after lastKey
+                } else {
+                    cursor.finish();
+                }
+            }
         } catch (Throwable e) {
             action.abort();
             closer.rethrow(e);
         } finally {
+            if (parkable) {
+                cursor.finish();
+            }
             closer.close();
         }
-        return new RangeResp(this, results, !limit.canRead(), diff);
+        return new RangeResp(this, results, !limit.canRead(), diff, aggregate);
     }
 }
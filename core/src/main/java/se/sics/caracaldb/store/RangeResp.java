@@ -32,11 +32,17 @@ public class RangeResp extends StorageResponse {
     public final RangeReq req;
     public final SortedMap<Key, byte[]> result;
     public final boolean readLimit;
+    public final Aggregator aggregate;
     
     public RangeResp(RangeReq req, SortedMap<Key, byte[]> result, boolean readAll, Diff diff) {
+        this(req, result, readAll, diff, null);
+    }
+
+    public RangeResp(RangeReq req, SortedMap<Key, byte[]> result, boolean readAll, Diff diff, Aggregator aggregate) {
         super(req, diff);
         this.req = req;
         this.result = result;
         this.readLimit = readAll;
+        this.aggregate = aggregate;
     }
 }
@@ -0,0 +1,86 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+/**
+ * Size and key count of a vnode range, maintained from the {@link Diff}s of
+ * the requests executed on it.
+ *
+ * The counters are unknown until the first absolute (reset) diff, e.g. from a
+ * {@link SizeScan}, and relative diffs before that are ignored. Afterwards
+ * they can be read in O(1) instead of scanning the range again.
+ *
+ * @author lkroll
+ */
+public class RangeStats {
+
+    private boolean known = false;
+    private long size = 0;
+    private long keys = 0;
+
+    public void apply(Diff diff) {
+        if (diff.reset) {
+            known = true;
+            size = diff.size;
+            keys = diff.keys;
+        } else if (known) {
+            size += diff.size;
+            keys += diff.keys;
+        }
+    }
+
+    /**
+     * Forget the counters, e.g. when the range is written without producing
+     * diffs.
+     */
+    public void invalidate() {
+        known = false;
+        size = 0;
+        keys = 0;
+    }
+
+    public boolean isKnown() {
+        return known;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long keys() {
+        return keys;
+    }
+
+    /**
+     * @return an absolute diff with the current counters
+     */
+    public Diff toDiff() {
+        return new Diff(size, keys, true);
+    }
+
+    @Override
+    public String toString() {
+        if (!known) {
+            return "RangeStats(unknown)";
+        }
+        return "RangeStats(" + size + "B, " + keys + " keys)";
+    }
+}
@@ -0,0 +1,887 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.BaseEncoding;
+import com.larskroll.common.ByteArrayRef;
+import java.io.Serializable;
+import java.util.regex.Pattern;
+import org.javatuples.Pair;
+
+/**
+ * Declarative filter and projection for range queries.
+ *
+ * A filter consists of an optional {@link Expr} that rows have to match and an
+ * optional {@link Field} that is returned instead of the whole value, e.g.
+ * <pre>
+ * ScanFilter.where(and(keyPrefix(p), compare(json("type"), Op.EQ, "click".getBytes())))
+ *         .select(json("user"));
+ * </pre>
+ *
+ * It's compiled once per request into a predicate that works on the raw
+ * bytes. Key conditions are evaluated before the value is read, and values
+ * are only copied if they are needed for a value condition. Missing values and
+ * tombstones never match.
+ *
+ * Filters are sent in a compact form by the FilterSerializer.
+ *
+ * @author lkroll
+ */
+public class ScanFilter implements KeyValueFilter {
+
+    public final Expr where; // null matches every value
+    public final Field select; // null returns the whole value
+    private transient volatile Predicate compiled = null;
+
+    public ScanFilter(Expr where, Field select) {
+        this.where = where;
+        this.select = select;
+    }
+
+    public static ScanFilter where(Expr where) {
+        return new ScanFilter(where, null);
+    }
+
+    public ScanFilter select(Field field) {
+        return new ScanFilter(where, field);
+    }
+
+    /*
+     * Expressions
+     */
+    public static Expr keyPrefix(byte[] prefix) {
+        return new KeyPrefix(prefix);
+    }
+
+    /**
+     * @param regex matched against the whole key, with every byte read as one
+     * ISO-8859-1 character
+     * @return
+     */
+    public static Expr keyRegex(String regex) {
+        return new KeyRegex(regex);
+    }
+
+    /**
+     * Compares the field bytewise (unsigned, lexicographically) with operand.
+     *
+     * @param field
+     * @param op
+     * @param operand
+     * @return
+     */
+    public static Expr compare(Field field, Op op, byte[] operand) {
+        return new Compare(field, op, operand);
+    }
+
+    /**
+     * @param field
+     * @param from inclusive
+     * @param to exclusive
+     * @return
+     */
+    public static Expr between(Field field, byte[] from, byte[] to) {
+        return and(compare(field, Op.GE, from), compare(field, Op.LT, to));
+    }
+
+    /**
+     * Compares the field as a number with operand. JSON fields are parsed from
+     * their text, all others must be big-endian integers of 1, 2, 4 or 8
+     * bytes.
+     *
+     * @param field
+     * @param op
+     * @param operand
+     * @return
+     */
+    public static Expr compare(Field field, Op op, double operand) {
+        return new NumCompare(field, op, operand);
+    }
+
+    public static Expr exists(Field field) {
+        return new Exists(field);
+    }
+
+    public static Expr and(Expr... children) {
+        return new And(children);
+    }
+
+    public static Expr or(Expr... children) {
+        return new Or(children);
+    }
+
+    public static Expr not(Expr child) {
+        return new Not(child);
+    }
+
+    /*
+     * Fields
+     */
+    public static Field whole() {
+        return Whole.INSTANCE;
+    }
+
+    /**
+     * @param offset
+     * @param length or -1 for the rest of the value
+     * @return
+     */
+    public static Field slice(int offset, int length) {
+        return new Slice(offset, length);
+    }
+
+    /**
+     * @param index of the field in a value made of fields that are each
+     * preceded by their length as a 4 byte big-endian int
+     * @return
+     */
+    public static Field lengthPrefixed(int index) {
+        return new LengthPrefixed(index);
+    }
+
+    /**
+     * @param name of a top-level member of a JSON object value. Strings are
+     * returned without quotes (and escapes aren't resolved), other values as
+     * they are written.
+     * @return
+     */
+    public static Field json(String name) {
+        return new Json(name);
+    }
+
+    /*
+     * Execution
+     */
+    @Override
+    public boolean acceptsKey(byte[] key) {
+        Predicate p = predicate();
+        return (p == null) || (p.onKey(key) != Boolean.FALSE);
+    }
+
+    @Override
+    public Pair<Boolean, ByteArrayRef> execute(byte[] key, ByteArrayRef value) {
+        if ((value == null) || (value.length == 0)) {
+            return Pair.with(false, value);
+        }
+        Predicate p = predicate();
+        if ((select == null) && ((p == null) || !p.needsValue())) {
+            return Pair.with((p == null) || p.test(key, null), value); // no need to look at the value
+        }
+        byte[] data = value.dereference();
+        if ((p != null) && !p.test(key, data)) {
+            return Pair.with(false, value);
+        }
+        if (select == null) {
+            return Pair.with(true, value);
+        }
+        int[] span = new int[2];
+        if (!select.locate(data, span)) {
+            return Pair.with(false, value);
+        }
+        return Pair.with(true, new ByteArrayRef(span[0], span[1], data));
+    }
+
+    /**
+     * Key conditions don't match without the key, use
+     * {@link #execute(byte[], ByteArrayRef)} instead.
+     */
+    @Override
+    public Pair<Boolean, ByteArrayRef> execute(ByteArrayRef value) {
+        return execute(null, value);
+    }
+
+    private Predicate predicate() {
+        if ((compiled == null) && (where != null)) {
+            compiled = where.compile();
+        }
+        return compiled;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanFilter(where " + where + ((select != null) ? ", select " + select : "") + ")";
+    }
+
+    /**
+     * The compiled form of an {@link Expr}.
+     */
+    static interface Predicate {
+
+        /**
+         * @param key
+         * @return the result if it only depends on the key, null otherwise
+         */
+        public Boolean onKey(byte[] key);
+
+        public boolean test(byte[] key, byte[] value);
+
+        public boolean needsValue();
+    }
+
+    public static enum Op {
+
+        EQ, NE, LT, LE, GT, GE, PREFIX;
+
+        boolean holds(int cmp) {
+            switch (this) {
+                case EQ:
+                    return cmp == 0;
+                case NE:
+                    return cmp != 0;
+                case LT:
+                    return cmp < 0;
+                case LE:
+                    return cmp <= 0;
+                case GT:
+                    return cmp > 0;
+                case GE:
+                    return cmp >= 0;
+                default:
+                    throw new IllegalStateException(this + " is not an ordering");
+            }
+        }
+    }
+
+    public static abstract class Expr implements Serializable {
+
+        abstract Predicate compile();
+    }
+
+    public static abstract class Field implements Serializable {
+
+        /**
+         * Finds the field in value without copying.
+         *
+         * @param value
+         * @param span set to offset and length of the field
+         * @return false if value doesn't have the field
+         */
+        public abstract boolean locate(byte[] value, int[] span);
+
+        public boolean isText() {
+            return false;
+        }
+    }
+
+    public static class And extends Expr {
+
+        public final Expr[] children;
+
+        public And(Expr[] children) {
+            this.children = children;
+        }
+
+        @Override
+        Predicate compile() {
+            final Predicate[] ps = compileAll(children);
+            return new Predicate() {
+
+                @Override
+                public Boolean onKey(byte[] key) {
+                    Boolean res = Boolean.TRUE;
+                    for (Predicate p : ps) {
+                        Boolean r = p.onKey(key);
+                        if (r == Boolean.FALSE) {
+                            return r;
+                        }
+                        if (r == null) {
+                            res = null;
+                        }
+                    }
+                    return res;
+                }
+
+                @Override
+                public boolean test(byte[] key, byte[] value) {
+                    for (Predicate p : ps) {
+                        if (!p.test(key, value)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean needsValue() {
+                    return anyNeedsValue(ps);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "(" + Joiner.on(" and ").join(children) + ")";
+        }
+    }
+
+    public static class Or extends Expr {
+
+        public final Expr[] children;
+
+        public Or(Expr[] children) {
+            this.children = children;
+        }
+
+        @Override
+        Predicate compile() {
+            final Predicate[] ps = compileAll(children);
+            return new Predicate() {
+
+                @Override
+                public Boolean onKey(byte[] key) {
+                    Boolean res = Boolean.FALSE;
+                    for (Predicate p : ps) {
+                        Boolean r = p.onKey(key);
+                        if (r == Boolean.TRUE) {
+                            return r;
+                        }
+                        if (r == null) {
+                            res = null;
+                        }
+                    }
+                    return res;
+                }
+
+                @Override
+                public boolean test(byte[] key, byte[] value) {
+                    for (Predicate p : ps) {
+                        if (p.test(key, value)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                public boolean needsValue() {
+                    return anyNeedsValue(ps);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "(" + Joiner.on(" or ").join(children) + ")";
+        }
+    }
+
+    public static class Not extends Expr {
+
+        public final Expr child;
+
+        public Not(Expr child) {
+            this.child = child;
+        }
+
+        @Override
+        Predicate compile() {
+            final Predicate p = child.compile();
+            return new Predicate() {
+
+                @Override
+                public Boolean onKey(byte[] key) {
+                    Boolean r = p.onKey(key);
+                    return (r == null) ? null : !r;
+                }
+
+                @Override
+                public boolean test(byte[] key, byte[] value) {
+                    return !p.test(key, value);
+                }
+
+                @Override
+                public boolean needsValue() {
+                    return p.needsValue();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "not " + child;
+        }
+    }
+
+    private static abstract class KeyPredicate implements Predicate {
+
+        @Override
+        public Boolean onKey(byte[] key) {
+            return (key != null) && matches(key);
+        }
+
+        @Override
+        public boolean test(byte[] key, byte[] value) {
+            return (key != null) && matches(key);
+        }
+
+        @Override
+        public boolean needsValue() {
+            return false;
+        }
+
+        abstract boolean matches(byte[] key);
+    }
+
+    private static abstract class ValuePredicate implements Predicate {
+
+        @Override
+        public Boolean onKey(byte[] key) {
+            return null;
+        }
+
+        @Override
+        public boolean needsValue() {
+            return true;
+        }
+    }
+
+    public static class KeyPrefix extends Expr {
+
+        public final byte[] prefix;
+
+        public KeyPrefix(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        Predicate compile() {
+            return new KeyPredicate() {
+
+                @Override
+                boolean matches(byte[] key) {
+                    return startsWith(key, 0, key.length, prefix);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "key starts with " + hex(prefix);
+        }
+    }
+
+    public static class KeyRegex extends Expr {
+
+        public final String regex;
+
+        public KeyRegex(String regex) {
+            this.regex = regex;
+            Pattern.compile(regex); // fail early
+        }
+
+        @Override
+        Predicate compile() {
+            final Pattern pattern = Pattern.compile(regex);
+            return new KeyPredicate() {
+
+                @Override
+                boolean matches(byte[] key) {
+                    return pattern.matcher(new String(key, Charsets.ISO_8859_1)).matches();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "key matches /" + regex + "/";
+        }
+    }
+
+    public static class Compare extends Expr {
+
+        public final Field field;
+        public final Op op;
+        public final byte[] operand;
+
+        public Compare(Field field, Op op, byte[] operand) {
+            this.field = field;
+            this.op = op;
+            this.operand = operand;
+        }
+
+        @Override
+        Predicate compile() {
+            return new ValuePredicate() {
+
+                @Override
+                public boolean test(byte[] key, byte[] value) {
+                    int[] span = new int[2];
+                    if (!field.locate(value, span)) {
+                        return false;
+                    }
+                    if (op == Op.PREFIX) {
+                        return startsWith(value, span[0], span[1], operand);
+                    }
+                    return op.holds(compareBytes(value, span[0], span[1], operand));
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + op + " " + hex(operand);
+        }
+    }
+
+    public static class NumCompare extends Expr {
+
+        public final Field field;
+        public final Op op;
+        public final double operand;
+
+        public NumCompare(Field field, Op op, double operand) {
+            if (op == Op.PREFIX) {
+                throw new IllegalArgumentException("Numbers have no prefixes");
+            }
+            this.field = field;
+            this.op = op;
+            this.operand = operand;
+        }
+
+        @Override
+        Predicate compile() {
+            return new ValuePredicate() {
+
+                @Override
+                public boolean test(byte[] key, byte[] value) {
+                    int[] span = new int[2];
+                    if (!field.locate(value, span)) {
+                        return false;
+                    }
+                    double d;
+                    if (field.isText()) {
+                        try {
+                            d = Double.parseDouble(new String(value, span[0], span[1], Charsets.US_ASCII));
+                        } catch (NumberFormatException ex) {
+                            return false;
+                        }
+                    } else {
+                        int w = span[1];
+                        if ((w != 1) && (w != 2) && (w != 4) && (w != 8)) {
+                            return false;
+                        }
+                        long l = value[span[0]]; // sign extended
+                        for (int i = 1; i < w; i++) {
+                            l = (l << 8) | (value[span[0] + i] & 0xFF);
+                        }
+                        d = l;
+                    }
+                    return op.holds(Double.compare(d, operand));
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + op + " " + operand;
+        }
+    }
+
+    public static class Exists extends Expr {
+
+        public final Field field;
+
+        public Exists(Field field) {
+            this.field = field;
+        }
+
+        @Override
+        Predicate compile() {
+            return new ValuePredicate() {
+
+                @Override
+                public boolean test(byte[] key, byte[] value) {
+                    return field.locate(value, new int[2]);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "exists " + field;
+        }
+    }
+
+    public static class Whole extends Field {
+
+        public static final Whole INSTANCE = new Whole();
+
+        @Override
+        public boolean locate(byte[] value, int[] span) {
+            span[0] = 0;
+            span[1] = value.length;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "value";
+        }
+    }
+
+    public static class Slice extends Field {
+
+        public final int offset;
+        public final int length;
+
+        public Slice(int offset, int length) {
+            if ((offset < 0) || (length < -1)) {
+                throw new IllegalArgumentException("Invalid slice " + offset + "+" + length);
+            }
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean locate(byte[] value, int[] span) {
+            int l = (length < 0) ? value.length - offset : length;
+            if ((l < 0) || (offset + l > value.length)) {
+                return false;
+            }
+            span[0] = offset;
+            span[1] = l;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "value[" + offset + "+" + length + "]";
+        }
+    }
+
+    public static class LengthPrefixed extends Field {
+
+        public final int index;
+
+        public LengthPrefixed(int index) {
+            if (index < 0) {
+                throw new IllegalArgumentException("Negative field index " + index);
+            }
+            this.index = index;
+        }
+
+        @Override
+        public boolean locate(byte[] value, int[] span) {
+            int pos = 0;
+            for (int i = 0; pos + 4 <= value.length; i++) {
+                int l = ((value[pos] & 0xFF) << 24) | ((value[pos + 1] & 0xFF) << 16)
+                        | ((value[pos + 2] & 0xFF) << 8) | (value[pos + 3] & 0xFF);
+                pos += 4;
+                if ((l < 0) || (pos + l > value.length)) {
+                    return false;
+                }
+                if (i == index) {
+                    span[0] = pos;
+                    span[1] = l;
+                    return true;
+                }
+                pos += l;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "field " + index;
+        }
+    }
+
+    public static class Json extends Field {
+
+        public final String name;
+        private final byte[] nameBytes;
+
+        public Json(String name) {
+            this.name = name;
+            this.nameBytes = name.getBytes(Charsets.UTF_8);
+        }
+
+        @Override
+        public boolean isText() {
+            return true;
+        }
+
+        @Override
+        public boolean locate(byte[] v, int[] span) {
+            int p = skipWhitespace(v, 0);
+            if ((p >= v.length) || (v[p] != '{')) {
+                return false;
+            }
+            p++;
+            while (true) {
+                p = skipWhitespace(v, p);
+                if ((p >= v.length) || (v[p] == '}')) {
+                    return false;
+                }
+                if (v[p] == ',') {
+                    p++;
+                    continue;
+                }
+                if (v[p] != '"') {
+                    return false;
+                }
+                int keyEnd = skipString(v, p);
+                if (keyEnd < 0) {
+                    return false;
+                }
+                int keyStart = p + 1;
+                p = skipWhitespace(v, keyEnd);
+                if ((p >= v.length) || (v[p] != ':')) {
+                    return false;
+                }
+                p = skipWhitespace(v, p + 1);
+                if (p >= v.length) {
+                    return false;
+                }
+                int valueEnd = skipValue(v, p);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                if ((keyEnd - 1 - keyStart == nameBytes.length) && startsWith(v, keyStart, nameBytes.length, nameBytes)) {
+                    if (v[p] == '"') { // without the quotes
+                        span[0] = p + 1;
+                        span[1] = valueEnd - p - 2;
+                    } else {
+                        span[0] = p;
+                        span[1] = valueEnd - p;
+                    }
+                    return true;
+                }
+                p = valueEnd;
+            }
+        }
+
+        private static int skipWhitespace(byte[] v, int p) {
+            while ((p < v.length) && ((v[p] == ' ') || (v[p] == '\t') || (v[p] == '\n') || (v[p] == '\r'))) {
+                p++;
+            }
+            return p;
+        }
+
+        /**
+         * @return the position after the closing quote or -1
+         */
+        private static int skipString(byte[] v, int p) {
+            for (int i = p + 1; i < v.length; i++) {
+                if (v[i] == '\\') {
+                    i++;
+                } else if (v[i] == '"') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the position after the value or -1
+         */
+        private static int skipValue(byte[] v, int p) {
+            if (v[p] == '"') {
+                return skipString(v, p);
+            }
+            if ((v[p] == '{') || (v[p] == '[')) {
+                int depth = 0;
+                int i = p;
+                while (i < v.length) {
+                    byte c = v[i];
+                    if (c == '"') {
+                        i = skipString(v, i);
+                        if (i < 0) {
+                            return -1;
+                        }
+                        continue;
+                    }
+                    if ((c == '{') || (c == '[')) {
+                        depth++;
+                    } else if ((c == '}') || (c == ']')) {
+                        depth--;
+                        if (depth == 0) {
+                            return i + 1;
+                        }
+                    }
+                    i++;
+                }
+                return -1;
+            }
+            int i = p;
+            while ((i < v.length) && (v[i] != ',') && (v[i] != '}') && (v[i] != ']')
+                    && (v[i] != ' ') && (v[i] != '\t') && (v[i] != '\n') && (v[i] != '\r')) {
+                i++;
+            }
+            return (i > p) ? i : -1;
+        }
+
+        @Override
+        public String toString() {
+            return "json." + name;
+        }
+    }
+
+    /*
+     * Helpers
+     */
+    private static Predicate[] compileAll(Expr[] es) {
+        Predicate[] ps = new Predicate[es.length];
+        for (int i = 0; i < es.length; i++) {
+            ps[i] = es[i].compile();
+        }
+        return ps;
+    }
+
+    private static boolean anyNeedsValue(Predicate[] ps) {
+        for (Predicate p : ps) {
+            if (p.needsValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compareBytes(byte[] data, int offset, int length, byte[] other) {
+        int n = Math.min(length, other.length);
+        for (int i = 0; i < n; i++) {
+            int a = data[offset + i] & 0xFF;
+            int b = other[i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - other.length;
+    }
+
+    private static String hex(byte[] data) {
+        return BaseEncoding.base16().encode(data);
+    }
+}
@@ -40,6 +40,11 @@ public class SizeScan extends StorageRequest {
         this.range = range;
     }
 
+    @Override
+    public boolean isScan() {
+        return true;
+    }
+
     @Override
     public StorageResponse execute(Persistence store) throws IOException {
         long size = 0;
@@ -21,7 +21,9 @@
 package se.sics.caracaldb.store;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.UUID;
+import se.sics.caracaldb.Key;
 import se.sics.caracaldb.persistence.Persistence;
 import se.sics.kompics.Request;
 
@@ -32,13 +34,15 @@ import se.sics.kompics.Request;
 public abstract class StorageRequest extends Request {
 
     private UUID id;
+    private Durability durability = Durability.NONE;
 
     /**
      * Custom interface for local storage queries.
      *
      * Implement the execute function, to do whatever operation you need to be
      * done on the persistent storage medium. You are guaranteed exclusive
-     * access for the duration of the operation.
+     * access to the keys reported by {@link #affectedKeys()} for the duration
+     * of the operation (or to the whole store if that returns null).
      *
      * ATTENTION: Do NOT pass the reference to the store to some other parent
      * object and access it later directly!!! For performance reasons the
@@ -50,6 +54,32 @@ public abstract class StorageRequest extends Request {
      */
     public abstract StorageResponse execute(Persistence store) throws IOException;
 
+    /**
+     * The keys this request reads or writes.
+     *
+     * A store that executes requests in parallel will never run two requests
+     * with overlapping key sets at the same time and preserves their arrival
+     * order. Return null (the default) if the request may touch arbitrary keys;
+     * it will then be executed with exclusive access to the whole store.
+     *
+     * @return the affected keys or null if unknown
+     */
+    public Collection<Key> affectedKeys() {
+        return null;
+    }
+
+    /**
+     * Reveals if this request is a read-only scan over a range of keys.
+     *
+     * Scans are executed on a separate pool so that they don't hold up point
+     * operations. They still see every write that arrived before them.
+     *
+     * @return true if the request only reads, but may read many keys
+     */
+    public boolean isScan() {
+        return false;
+    }
+
     /**
      * Set optional id to match up requests
      *
@@ -67,4 +97,22 @@ public abstract class StorageRequest extends Request {
     public UUID getId() {
         return id;
     }
+
+    /**
+     * Set the durability required before the response is delivered
+     *
+     * @param durability
+     */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Get the durability required before the response is delivered
+     *
+     * @return durability
+     */
+    public Durability getDurability() {
+        return durability;
+    }
 }
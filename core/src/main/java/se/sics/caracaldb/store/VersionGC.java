@@ -0,0 +1,234 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.google.common.io.Closer;
+import java.io.IOException;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.Persistence;
+import se.sics.caracaldb.persistence.StoreIterator;
+
+/**
+ * Incremental replacement for {@link CleanupReq}.
+ *
+ * Tracks the progress of reclaiming versions older than versionId in a single
+ * vnode range. The range is cleaned in small slices (at most maxKeys keys or
+ * maxBytes bytes read), each one resuming where the last one stopped, so the
+ * store is never blocked for a whole range scan. The owner issues the slices
+ * and waits {@link #update(Progress)} milliseconds between them to stay within
+ * the I/O budget.
+ * <p>
+ * Unlike {@link CleanupReq} no absolute size is reported at the end, since
+ * writes behind the resume key are not counted. Follow up with a
+ * {@link SizeScan} instead.
+ *
+ * @author lkroll
+ */
+public class VersionGC {
+
+    public final KeyRange range;
+    public final int versionId;
+    private final int maxKeys;
+    private final long bytesPerSecond;
+    private Key next;
+    private boolean done = false;
+    private Slice outstanding = null;
+    private long size = 0;
+    private long keys = 0;
+    private long bytesRead = 0;
+    private int slices = 0;
+
+    /**
+     * @param range the vnode range to clean up
+     * @param versionId the oldest version to keep
+     * @param maxKeys max number of keys per slice
+     * @param bytesPerSecond I/O budget (0 or less means unlimited)
+     */
+    public VersionGC(KeyRange range, int versionId, int maxKeys, long bytesPerSecond) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys must be positive");
+        }
+        this.range = range;
+        this.versionId = versionId;
+        this.maxKeys = maxKeys;
+        this.bytesPerSecond = bytesPerSecond;
+        this.next = range.begin;
+    }
+
+    /**
+     * Creates the request for the next slice.
+     *
+     * @return the next slice or null if the range is done
+     */
+    public Slice nextSlice() {
+        if (done) {
+            return null;
+        }
+        long maxBytes = bytesPerSecond > 0 ? bytesPerSecond : Long.MAX_VALUE;
+        outstanding = new Slice(range, versionId, next, maxKeys, maxBytes);
+        return outstanding;
+    }
+
+    /**
+     * Reveals if the response belongs to the last slice issued by this
+     * instance.
+     *
+     * Used to drop progress of a collection that was superseded by a newer
+     * one.
+     *
+     * @param p
+     * @return true if p is the response to the outstanding slice
+     */
+    public boolean owns(Progress p) {
+        return (outstanding != null) && (p.slice == outstanding);
+    }
+
+    /**
+     * Records the progress of a slice.
+     *
+     * @param p
+     * @return the delay in ms before the next slice may be issued
+     */
+    public long update(Progress p) {
+        outstanding = null;
+        slices++;
+        size += p.size;
+        keys += p.keys;
+        bytesRead += p.bytesRead;
+        next = p.next;
+        if (next == null) {
+            done = true;
+            return 0;
+        }
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        return (p.bytesRead * 1000) / bytesPerSecond;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public int slices() {
+        return slices;
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public String toString() {
+        return "VersionGC(" + range + ", v" + versionId + ", next=" + next
+                + ", slices=" + slices + ", read=" + bytesRead + "B)";
+    }
+
+    public static class Slice extends StorageRequest {
+
+        public final KeyRange range;
+        public final int versionId;
+        public final Key start;
+        public final int maxKeys;
+        public final long maxBytes;
+
+        public Slice(KeyRange range, int versionId, Key start, int maxKeys, long maxBytes) {
+            this.range = range;
+            this.versionId = versionId;
+            this.start = start;
+            this.maxKeys = maxKeys;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public StorageResponse execute(Persistence store) throws IOException {
+            long size = 0;
+            long keys = 0;
+            long bytesRead = 0;
+            int visited = 0;
+            Key next = null;
+
+            Closer closer = Closer.create();
+            Batch b;
+            try {
+                b = closer.register(store.createBatch());
+                for (StoreIterator it = closer.register(store.iterator(start.getArray())); it.hasNext(); it.next()) {
+                    byte[] rawKey = it.peekKey();
+                    Key key = new Key(rawKey);
+                    if (!range.contains(key)) {
+                        //special case (a,b) and key is a
+                        if (key.equals(range.begin)) {
+                            continue;
+                        }
+                        break; // reached end of range
+                    }
+                    if ((visited >= maxKeys) || (bytesRead >= maxBytes)) {
+                        next = key;
+                        break;
+                    }
+                    visited++;
+                    byte[] raw = it.peekRaw();
+                    bytesRead += rawKey.length + (raw == null ? 0 : raw.length);
+                    int l = b.deleteVersions(rawKey, versionId);
+                    if (l > 0) {
+                        keys++;
+                        size += rawKey.length;
+                        size += l;
+                    }
+                }
+                store.writeBatch(b);
+            } catch (Throwable e) {
+                closer.rethrow(e);
+            } finally {
+                closer.close();
+            }
+            return new Progress(this, next, size, keys, bytesRead);
+        }
+
+        @Override
+        public String toString() {
+            return "VersionGC.Slice(" + range + ", v" + versionId + ", from " + start + ")";
+        }
+    }
+
+    public static class Progress extends StorageResponse {
+
+        public final Slice slice;
+        /**
+         * The key to resume from, or null if the end of the range was reached.
+         */
+        public final Key next;
+        public final long size;
+        public final long keys;
+        public final long bytesRead;
+
+        public Progress(Slice slice, Key next, long size, long keys, long bytesRead) {
+            super(slice, null);
+            this.slice = slice;
+            this.next = next;
+            this.size = size;
+            this.keys = keys;
+            this.bytesRead = bytesRead;
+        }
+    }
+}
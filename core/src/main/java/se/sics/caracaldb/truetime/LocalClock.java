@@ -0,0 +1,64 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.truetime;
+
+/**
+ * The local clock TrueTime and elapsed time measurements read.
+ * <p>
+ * Simulations install their virtual clock here, so leases and staleness
+ * bounds run on simulated time instead of the host's.
+ * <p>
+ * @author lkroll
+ */
+public abstract class LocalClock {
+
+    public static final LocalClock SYSTEM = new LocalClock() {
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+    private static volatile LocalClock clock = SYSTEM;
+
+    /**
+     * @return wall clock time in ms (not necessarily monotonic)
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * @return monotonic time in ns, only meaningful as a difference
+     */
+    public abstract long nanoTime();
+
+    public static LocalClock get() {
+        return clock;
+    }
+
+    public static void set(LocalClock clock) {
+        LocalClock.clock = clock;
+    }
+}
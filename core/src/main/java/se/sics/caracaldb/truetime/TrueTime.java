@@ -30,11 +30,12 @@ import se.sics.kompics.ComponentDefinition;
  */
 public class TrueTime extends ComponentDefinition {
     public static final double MAX_CLOCK_DRIFT = 200.0/1000.0/1000.0; //200µs/s expressed in ms/ms
-    private static AtomicLong maxError = new AtomicLong(5000); // 5s is quite a lot...
-    private static AtomicLong lastSync = new AtomicLong(System.currentTimeMillis());
+    public static final long DEFAULT_MAX_ERROR = 5000; // 5s is quite a lot...
+    private static AtomicLong maxError = new AtomicLong(DEFAULT_MAX_ERROR);
+    private static AtomicLong lastSync = new AtomicLong(LocalClock.get().currentTimeMillis());
     
     public static TrueTimeInterval now() {
-        long localNow = System.currentTimeMillis();
+        long localNow = LocalClock.get().currentTimeMillis();
         long sinceLastSync = Math.abs(localNow - lastSync.get()); // Could theoretically be negative as local clocks are not necessarily monotonic
         long drift = (long) Math.ceil(MAX_CLOCK_DRIFT*sinceLastSync);
         long error = maxError.get();
@@ -43,5 +44,15 @@ public class TrueTime extends ComponentDefinition {
         return new TrueTimeInterval(earliest, latest);
     }
     
+    /**
+     * Records that the local clock was just synchronised to within error ms.
+     * <p>
+     * @param error
+     */
+    public static void synced(long error) {
+        maxError.set(error);
+        lastSync.set(LocalClock.get().currentTimeMillis());
+    }
+    
     //TODO implement some distributed clock synchronization algorithm (like Reachback Firefly Algorithm (RFA))
 }
@@ -0,0 +1,86 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.TreeMap;
+import java.util.UUID;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class MultiGetCollectorTest {
+
+    @Test
+    public void mergeTest() {
+        UUID id = UUID.randomUUID();
+        ImmutableSortedSet.Builder<Key> keys = ImmutableSortedSet.naturalOrder();
+        for (int i = 0; i < 10; i++) {
+            keys.add(new Key(i));
+        }
+        MultiGetRequest req = new MultiGetRequest(id, keys.build());
+        KeyRange left = KeyRange.closed(new Key(0)).open(new Key(4));
+        MultiGetRequest leftReq = req.inside(left);
+        MultiGetRequest rightReq = req.outside(left);
+        assertEquals(4, leftReq.keys.size());
+        assertEquals(6, rightReq.keys.size());
+
+        MultiGetResponse.Collector col = new MultiGetResponse.Collector(req);
+        col.processResponse(answer(rightReq));
+        assertFalse(col.isDone());
+        col.processResponse(answer(rightReq)); // duplicate
+        assertEquals(4, col.missing().size());
+        col.processResponse(answer(leftReq));
+        assertTrue(col.isDone());
+        MultiGetResponse resp = col.getResponse();
+        assertEquals(ResponseCode.SUCCESS, resp.code);
+        assertEquals(req.keys, resp.data.keySet());
+        assertArrayEquals(new Key(2).getArray(), resp.data.get(new Key(2)));
+        assertNull(resp.data.get(new Key(3)));
+
+        col = new MultiGetResponse.Collector(req);
+        col.processResponse(answer(leftReq));
+        col.processResponse(new MultiGetResponse(id, null, ResponseCode.READ_TIMEOUT));
+        assertTrue(col.isDone());
+        assertEquals(ResponseCode.READ_TIMEOUT, col.getResponse().code);
+    }
+
+    private static MultiGetResponse answer(MultiGetRequest req) {
+        TreeMap<Key, byte[]> data = new TreeMap<Key, byte[]>();
+        int i = 0;
+        for (Key k : req.keys) {
+            data.put(k, (i++ % 2 == 0) ? k.getArray() : null);
+        }
+        return new MultiGetResponse(req.id, data);
+    }
+}
@@ -0,0 +1,130 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.larskroll.common.ByteArrayRef;
+import java.util.TreeMap;
+import java.util.UUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.store.ActionFactory;
+import se.sics.caracaldb.store.AggFactory;
+import se.sics.caracaldb.store.Aggregator;
+import se.sics.caracaldb.store.Limit;
+import se.sics.caracaldb.store.TFFactory;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class RangeCollectorTest {
+
+    private static final KeyRange RANGE = KeyRange.closed(new Key(0)).open(new Key(30));
+    private static final KeyRange P1 = KeyRange.closed(new Key(0)).open(new Key(10));
+    private static final KeyRange P2 = KeyRange.closed(new Key(10)).open(new Key(20));
+    private static final KeyRange P3 = KeyRange.closed(new Key(20)).open(new Key(30));
+
+    @Test
+    public void unorderedTest() {
+        RangeQuery.Request req = request(Limit.noLimit());
+        RangeQuery.SeqCollector col = new RangeQuery.SeqCollector(req);
+        col.processResponse(response(req, P3, 20, 5, false));
+        col.processResponse(response(req, P1, 0, 5, false));
+        assertFalse(col.isDone());
+        col.processResponse(response(req, P1, 0, 5, false)); // duplicate
+        assertFalse(col.isDone());
+        col.processResponse(response(req, P2, 10, 5, false));
+        assertTrue(col.isDone());
+        RangeResponse resp = col.getResponse();
+        assertEquals(RANGE, resp.coveredRange);
+        assertEquals(15, resp.results.size());
+        assertEquals(new Key(0), resp.results.firstKey());
+        assertEquals(new Key(24), resp.results.lastKey());
+    }
+
+    @Test
+    public void limitTest() {
+        // every partition applies the full limit, the merge keeps the first 5
+        RangeQuery.Request req = request(Limit.toItems(5));
+        RangeQuery.SeqCollector col = new RangeQuery.SeqCollector(req);
+        col.processResponse(response(req, P3, 20, 5, true));
+        col.processResponse(response(req, P2, 10, 5, true));
+        assertFalse(col.isDone());
+        col.processResponse(response(req, P1, 0, 2, false));
+        assertTrue(col.isDone());
+        RangeResponse resp = col.getResponse();
+        assertEquals(5, resp.results.size());
+        assertEquals(new Key(12), resp.results.lastKey());
+        assertEquals(KeyRange.closed(new Key(0)).closed(new Key(12)), resp.coveredRange);
+
+        // a limited partition makes the ones after it obsolete
+        col = new RangeQuery.SeqCollector(req);
+        col.processResponse(response(req, P3, 20, 5, true));
+        col.processResponse(response(req, P1, 0, 5, true));
+        assertTrue(col.isDone());
+        resp = col.getResponse();
+        assertEquals(5, resp.results.size());
+        assertEquals(new Key(4), resp.results.lastKey());
+        col.processResponse(response(req, P2, 10, 5, true)); // late
+        assertEquals(5, col.getResponse().results.size());
+    }
+
+    @Test
+    public void aggregateTest() {
+        RangeQuery.Request req = OpUtil.aggregate(UUID.randomUUID(), RANGE, AggFactory.count(), RangeQuery.Type.PARALLEL);
+        RangeQuery.SeqCollector col = new RangeQuery.SeqCollector(req);
+        col.processResponse(aggregate(req, P2, 7));
+        col.processResponse(aggregate(req, P3, 9));
+        col.processResponse(aggregate(req, P1, 4));
+        assertTrue(col.isDone());
+        RangeResponse resp = col.getResponse();
+        assertTrue(resp.results.isEmpty());
+        assertEquals(RANGE, resp.coveredRange);
+        assertEquals(20, resp.aggregate.result());
+    }
+
+    private static RangeQuery.Response aggregate(RangeQuery.Request req, KeyRange part, int n) {
+        Aggregator count = req.aggregator.empty();
+        for (int i = 0; i < n; i++) {
+            count.add(null, new ByteArrayRef(0, 1, new byte[]{1}));
+        }
+        return new RangeQuery.Response(req.id, ResponseCode.SUCCESS, part, RANGE, new TreeMap<Key, byte[]>(), false, count);
+    }
+
+    private static RangeQuery.Request request(Limit.LimitTracker limit) {
+        return new RangeQuery.Request(UUID.randomUUID(), RANGE, limit, TFFactory.noTF(), ActionFactory.noop(), RangeQuery.Type.PARALLEL);
+    }
+
+    private static RangeQuery.Response response(RangeQuery.Request req, KeyRange part, int first, int n, boolean readLimit) {
+        TreeMap<Key, byte[]> data = new TreeMap<Key, byte[]>();
+        for (int i = first; i < first + n; i++) {
+            data.put(new Key(i), new byte[]{(byte) i});
+        }
+        return new RangeQuery.Response(req.id, part, RANGE, data, readLimit);
+    }
+}
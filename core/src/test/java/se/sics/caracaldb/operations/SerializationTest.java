@@ -22,15 +22,19 @@ package se.sics.caracaldb.operations;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import com.google.common.base.Optional;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.UUID;
+import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import se.sics.caracaldb.Address;
 import se.sics.caracaldb.CoreSerializer;
 import se.sics.caracaldb.Key;
+import se.sics.caracaldb.store.ScanFilter;
+import static se.sics.caracaldb.store.ScanFilter.*;
 
 /**
  *
@@ -62,4 +66,64 @@ public class SerializationTest {
         
         buf.release();
     }
+
+    @Test
+    public void staleReadTest() throws UnknownHostException {
+        Key k = Key.fromHex("1F 2F 3F 4F");
+        Key group = Key.fromHex("1F");
+        ByteBuf buf = Unpooled.buffer();
+        OperationSerializer opS = CoreSerializer.OP.instance;
+
+        SessionToken token = SessionToken.EMPTY.advance(group, 42).advance(group, 17);
+        assertEquals(42, token.position(group));
+        assertEquals(-1, token.position(k));
+        assertEquals(token, token.merge(SessionToken.EMPTY.advance(group, 5)).only(group));
+
+        GetRequest req = new GetRequest(UUID.randomUUID(), k, Staleness.millis(500).within(token));
+        opS.toBinary(req, buf);
+        GetRequest req2 = (GetRequest) opS.fromBinary(buf, Optional.absent());
+        assertEquals(0, buf.readableBytes());
+        assertEquals(req.id, req2.id);
+        assertEquals(Staleness.UNBOUNDED, req2.staleness.maxLag);
+        assertEquals(500, req2.staleness.maxAge);
+        assertEquals(token, req2.staleness.session);
+        buf.clear();
+
+        opS.toBinary(new GetRequest(UUID.randomUUID(), k), buf);
+        req2 = (GetRequest) opS.fromBinary(buf, Optional.absent());
+        assertEquals(null, req2.staleness);
+        buf.clear();
+
+        GetResponse resp = new GetResponse(req.id, k, null);
+        resp.setPosition(42);
+        opS.toBinary(resp, buf);
+        GetResponse resp2 = (GetResponse) opS.fromBinary(buf, Optional.absent());
+        assertEquals(0, buf.readableBytes());
+        assertEquals(42, resp2.getPosition());
+
+        buf.release();
+    }
+
+    @Test
+    public void filterTest() {
+        ScanFilter sf = ScanFilter.where(and(keyPrefix("user/".getBytes()),
+                or(compare(json("age"), Op.GE, 18.0), not(exists(lengthPrefixed(2)))),
+                keyRegex("user/[0-9]+"),
+                between(slice(1, 4), new byte[]{0}, new byte[]{1, 2}))).select(json("name"));
+
+        ByteBuf buf = Unpooled.buffer();
+        FilterSerializer fS = CoreSerializer.FILTER.instance;
+        fS.toBinary(sf, buf);
+        ScanFilter sf2 = (ScanFilter) fS.fromBinary(buf, Optional.absent());
+        assertEquals(0, buf.readableBytes());
+        assertEquals(sf.toString(), sf2.toString());
+        buf.clear();
+
+        fS.toBinary(new ScanFilter(null, whole()), buf);
+        sf2 = (ScanFilter) fS.fromBinary(buf, Optional.absent());
+        assertEquals(null, sf2.where);
+        assertEquals(whole(), sf2.select);
+
+        buf.release();
+    }
 }
@@ -0,0 +1,151 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.paxos;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Address;
+import se.sics.caracaldb.operations.Staleness;
+import se.sics.caracaldb.replication.log.LocalRead;
+import se.sics.caracaldb.replication.log.ReadMode;
+import se.sics.caracaldb.truetime.LocalClock;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class BoundedReadsTest {
+
+    private static final long CONTACT_BOUND = 400;
+    private ManualClock clock;
+    private BoundedReads reads;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        LocalClock.set(clock);
+        reads = new BoundedReads(CONTACT_BOUND);
+    }
+
+    @After
+    public void tearDown() {
+        LocalClock.set(LocalClock.SYSTEM);
+    }
+
+    @Test
+    public void noContactTest() {
+        assertFalse(answer(Staleness.millis(1000), -1, 10).granted);
+        assertFalse(answer(Staleness.positions(3), -1, 10).granted);
+    }
+
+    @Test
+    public void maxAgeTest() {
+        reads.contact();
+        clock.millis = 1000;
+        LocalRead.Response resp = answer(Staleness.millis(1000), -1, 10);
+        assertTrue(resp.granted);
+        assertEquals(10, resp.position); // everything seen by the last contact
+        // maxAge may well exceed the contact bound
+        assertTrue(answer(Staleness.millis(5000), -1, 10).granted);
+        clock.millis = 1001;
+        assertFalse(answer(Staleness.millis(1000), -1, 10).granted);
+        reads.contact();
+        assertTrue(answer(Staleness.millis(1000), -1, 10).granted);
+    }
+
+    @Test
+    public void maxLagTest() {
+        reads.contact();
+        clock.millis = CONTACT_BOUND;
+        LocalRead.Response resp = answer(Staleness.positions(3), -1, 10);
+        assertTrue(resp.granted);
+        assertEquals(7, resp.position);
+        // a partitioned replica can't tell how far the log moved on
+        clock.millis = CONTACT_BOUND + 1;
+        assertFalse(answer(Staleness.positions(3), -1, 10).granted);
+        // with both bounds set both hold
+        assertFalse(answer(Staleness.bounded(3, 5000), -1, 10).granted);
+        assertTrue(answer(Staleness.millis(5000), -1, 10).granted);
+    }
+
+    @Test
+    public void sessionTest() {
+        reads.contact();
+        // the session wrote further than this replica has seen, so it waits for that
+        LocalRead.Response resp = answer(Staleness.positions(3), 15, 10);
+        assertTrue(resp.granted);
+        assertEquals(15, resp.position);
+        resp = answer(Staleness.millis(1000), 15, 10);
+        assertTrue(resp.granted);
+        assertEquals(15, resp.position);
+        // older session positions don't matter
+        assertEquals(7, answer(Staleness.positions(3), 5, 10).position);
+    }
+
+    @Test
+    public void quorumEvidenceTest() throws UnknownHostException {
+        Address a = address(1);
+        Address b = address(2);
+        RoundWitness witness = new RoundWitness();
+        assertFalse(witness.ack(a, 1, 1, 2));
+        assertFalse(witness.ack(a, 1, 1, 2)); // a minority acking again doesn't do
+        assertTrue(witness.ack(b, 1, 1, 2));
+        assertFalse(witness.ack(a, 1, 2, 2)); // new round
+        assertFalse(witness.ack(b, 1, 1, 2)); // outdated
+        assertFalse(witness.ack(b, 0, 3, 2)); // outdated ballot
+        assertTrue(witness.ack(b, 1, 2, 2));
+        assertFalse(witness.ack(a, 2, 1, 2)); // new ballot
+    }
+
+    private LocalRead.Response answer(Staleness s, long after, long highestSeenId) {
+        return reads.answer(new LocalRead.Request(UUID.randomUUID(), ReadMode.LOG, s, after), highestSeenId);
+    }
+
+    private static Address address(int port) throws UnknownHostException {
+        return new Address(InetAddress.getLocalHost(), port, null);
+    }
+
+    private static class ManualClock extends LocalClock {
+
+        long millis = 0;
+
+        @Override
+        public long currentTimeMillis() {
+            return millis;
+        }
+
+        @Override
+        public long nanoTime() {
+            return TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
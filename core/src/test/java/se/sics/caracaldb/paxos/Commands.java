@@ -20,6 +20,8 @@
  */
 package se.sics.caracaldb.paxos;
 
+import se.sics.caracaldb.operations.Staleness;
+import se.sics.caracaldb.replication.log.ReadMode;
 import se.sics.kompics.Event;
 
 /**
@@ -54,4 +56,29 @@ public abstract class Commands {
     public static class Fail extends ChurnEvent {
         
     }
+    
+    /**
+     * Cuts the leader off the network, but keeps it running.
+     */
+    public static class Isolate extends Event {
+        
+    }
+    
+    /**
+     * Asks every node (isolated ones included) to read locally.
+     */
+    public static class Read extends Event {
+        
+        public final ReadMode mode;
+        public final Staleness staleness;
+        
+        public Read(ReadMode mode) {
+            this(mode, null);
+        }
+        
+        public Read(ReadMode mode, Staleness staleness) {
+            this.mode = mode;
+            this.staleness = staleness;
+        }
+    }
 }
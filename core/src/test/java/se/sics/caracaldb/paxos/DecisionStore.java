@@ -24,10 +24,12 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -41,6 +43,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.junit.Assert;
 import se.sics.caracaldb.Address;
 import se.sics.caracaldb.paxos.PaxosManager.PaxosOp;
+import se.sics.caracaldb.replication.log.LocalRead;
+import se.sics.caracaldb.replication.log.ReadMode;
+import se.sics.caracaldb.truetime.LocalClock;
 
 /**
  *
@@ -56,16 +61,39 @@ public class DecisionStore {
     private Set<Address> failed = new HashSet<Address>();
     private Set<UUID> decided = new TreeSet<UUID>();
     private Set<Address> currentGroup = new HashSet<Address>();
+    private Set<Address> backpressured = new HashSet<Address>();
+    private int engagements = 0;
+    private boolean stateChangesValid = true;
+    private int maxBatch = 1;
+    private final long leaseDuration;
+    // times are simulated
+    private Map<UUID, Long> proposedAt = new HashMap<UUID, Long>();
+    private Map<UUID, Long> decidedAt = new HashMap<UUID, Long>(); // first decision anywhere
+    private Map<Address, Long> isolated = new HashMap<Address, Long>();
+    private long highestPosition = -1; // decided anywhere
+    private Map<UUID, Read> reads = new HashMap<UUID, Read>();
+    private Set<UUID> probes = new HashSet<UUID>();
+    private int numProbes = 0;
+    private Map<Address, Integer> granted = new HashMap<Address, Integer>();
+    private Map<Address, Long> lastGranted = new HashMap<Address, Long>();
+    private int refusedCutOff = 0;
+    private List<String> readViolations = new ArrayList<String>();
 
     public DecisionStore(ImmutableSet<Address> group) {
+        this(group, 0);
+    }
+
+    public DecisionStore(ImmutableSet<Address> group, long leaseDuration) {
         currentGroup.addAll(group);
         stores.put(0, new EpochStore(0, group));
+        this.leaseDuration = leaseDuration;
     }
 
     public void proposed(Address node, PaxosOp op) {
         rwlock.readLock().lock();
         try {
             ops.put(op.id, node);
+            proposedAt.put(op.id, now());
         } finally {
             rwlock.readLock().unlock();
         }
@@ -81,6 +109,101 @@ public class DecisionStore {
             }
             store.decided(node, value);
             decided.add(value);
+            if (!decidedAt.containsKey(value)) {
+                decidedAt.put(value, now());
+            }
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    public void batched(int size) {
+        rwlock.readLock().lock();
+        try {
+            maxBatch = Math.max(maxBatch, size);
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    public void backpressure(Address node, boolean engaged) {
+        rwlock.readLock().lock();
+        try {
+            // only state changes are reported
+            if (engaged) {
+                stateChangesValid &= backpressured.add(node);
+                engagements++;
+            } else {
+                stateChangesValid &= backpressured.remove(node);
+            }
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    public void position(long position) {
+        rwlock.readLock().lock();
+        try {
+            highestPosition = Math.max(highestPosition, position);
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    public void readRequested(Address node, LocalRead.Request req) {
+        rwlock.readLock().lock();
+        try {
+            reads.put(req.id, new Read(req, now(), highestPosition));
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A LEASE read that must be refused, since node just reconfigured.
+     */
+    public void probe(Address node, LocalRead.Request req) {
+        rwlock.readLock().lock();
+        try {
+            readRequested(node, req);
+            probes.add(req.id);
+            numProbes++;
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    public void readAnswered(Address node, LocalRead.Response resp) {
+        rwlock.readLock().lock();
+        try {
+            Read r = reads.remove(resp.id);
+            if (r == null) {
+                readViolations.add(node + " answered unknown read " + resp.id);
+                return;
+            }
+            boolean probe = probes.remove(resp.id);
+            Long isoTime = isolated.get(node);
+            long grace = grace(r.req);
+            boolean cutOff = (isoTime != null) && (grace >= 0) && (r.time > (isoTime + grace));
+            if (!resp.granted) {
+                if (cutOff) {
+                    refusedCutOff++;
+                }
+                return;
+            }
+            Integer n = granted.get(node);
+            granted.put(node, (n == null) ? 1 : (n + 1));
+            lastGranted.put(node, now());
+            if (probe) {
+                readViolations.add("Lease of " + node + " survived a reconfiguration");
+            }
+            if (cutOff) {
+                readViolations.add(node + " read locally " + (r.time - isoTime) + "ms after it was isolated");
+            }
+            if ((r.req.staleness == null) && (resp.position < r.mustCover)) {
+                readViolations.add(node + " granted a read at " + resp.position
+                        + " after " + r.mustCover + " was decided");
+            }
         } finally {
             rwlock.readLock().unlock();
         }
@@ -119,6 +242,19 @@ public class DecisionStore {
         }
     }
 
+    /**
+     * Cut off from the network, but still running.
+     */
+    public void isolated(Address node) {
+        rwlock.readLock().lock();
+        try {
+            isolated.put(node, now());
+            fail(stores.lastKey(), node);
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
     public void validate() {
         rwlock.writeLock().lock();
         try {
@@ -150,6 +286,11 @@ public class DecisionStore {
                  */
                 store.validate(validateOps, readOnlyOps);
             }
+            Assert.assertTrue("Backpressure reported without a state change", stateChangesValid);
+            if (!readViolations.isEmpty()) {
+                Assert.fail("Violated property (7): " + readViolations.get(0)
+                        + " (" + readViolations.size() + " violations)");
+            }
             //Assert.assertTrue("Violated property (2)", validateOps.isEmpty());
             if (!validateOps.isEmpty()) {
                 for (UUID val : validateOps) {
@@ -170,6 +311,111 @@ public class DecisionStore {
         return decided.size() == ops.size();
     }
 
+    /**
+     * @return how often any node engaged backpressure
+     */
+    public int engagements() {
+        return engagements;
+    }
+
+    /**
+     * @return the nodes that still apply backpressure
+     */
+    public Set<Address> backpressured() {
+        return backpressured;
+    }
+
+    /**
+     * @return the most values decided in a single instance
+     */
+    public int maxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * @param node
+     * @return how many local reads node granted
+     */
+    public int granted(Address node) {
+        Integer n = granted.get(node);
+        return (n == null) ? 0 : n;
+    }
+
+    /**
+     * @return when a node that wasn't isolated last granted a local read (-1
+     * if never)
+     */
+    public long lastGrantedConnected() {
+        long last = -1;
+        for (Entry<Address, Long> e : lastGranted.entrySet()) {
+            if (!isolated.containsKey(e.getKey())) {
+                last = Math.max(last, e.getValue());
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return the isolated nodes with the time they were isolated at
+     */
+    public Map<Address, Long> isolated() {
+        return isolated;
+    }
+
+    /**
+     * @return reads isolated nodes refused once they couldn't know anymore
+     * whether they're still leader
+     */
+    public int refusedCutOff() {
+        return refusedCutOff;
+    }
+
+    /**
+     * @return how many local reads never got an answer
+     */
+    public int unanswered() {
+        return reads.size();
+    }
+
+    /**
+     * @return how many reads were probed right after a reconfiguration
+     */
+    public int probes() {
+        return numProbes;
+    }
+
+    /**
+     * @param time
+     * @return when the first value proposed at or after time was decided (-1
+     * if none was)
+     */
+    public long firstDecisionProposedAfter(long time) {
+        long first = -1;
+        for (Entry<UUID, Long> e : proposedAt.entrySet()) {
+            Long dTime = decidedAt.get(e.getKey());
+            if ((e.getValue() >= time) && (dTime != null)) {
+                first = (first < 0) ? dTime : Math.min(first, dTime);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @return how long an isolated node may still grant req (-1 if it may
+     * forever)
+     */
+    private long grace(LocalRead.Request req) {
+        if (req.staleness != null) {
+            return req.staleness.maxAge; // maxLag reads are bounded by Paxos' own timeouts
+        }
+        // a lease may outlive the isolation, a heartbeat round can't
+        return (req.mode == ReadMode.LEASE) ? leaseDuration : 0;
+    }
+
+    private static long now() {
+        return LocalClock.get().currentTimeMillis();
+    }
+
     public void html(StringBuilder sb) {
         rwlock.writeLock().lock();
         try {
@@ -209,6 +455,19 @@ public class DecisionStore {
         }
     }
 
+    private static class Read {
+
+        public final LocalRead.Request req;
+        public final long time;
+        public final long mustCover; // everything decided before the request
+
+        public Read(LocalRead.Request req, long time, long mustCover) {
+            this.req = req;
+            this.time = time;
+            this.mustCover = mustCover;
+        }
+    }
+
     public static class EpochStore {
 
         private static final UUID zeroId = new UUID(0, 0);
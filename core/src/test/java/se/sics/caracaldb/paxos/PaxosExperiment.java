@@ -35,6 +35,8 @@ public class PaxosExperiment extends PortType {
         indication(Commands.Operation.class);
         indication(Commands.Join.class);
         indication(Commands.Fail.class);
+        indication(Commands.Isolate.class);
+        indication(Commands.Read.class);
 
         positive(TerminateExperiment.class);
         negative(TerminateExperiment.class);
@@ -28,8 +28,12 @@ import se.sics.caracaldb.Address;
 import se.sics.caracaldb.View;
 import se.sics.caracaldb.fd.EventualFailureDetector;
 import se.sics.caracaldb.fd.SimpleEFD;
+import se.sics.caracaldb.replication.log.Backpressure;
 import se.sics.caracaldb.replication.log.Decide;
+import se.sics.caracaldb.replication.log.LocalRead;
+import se.sics.caracaldb.replication.log.ProposalBatch;
 import se.sics.caracaldb.replication.log.Propose;
+import se.sics.caracaldb.replication.log.ReadMode;
 import se.sics.caracaldb.replication.log.Reconfigure;
 import se.sics.caracaldb.replication.log.ReplicatedLog;
 import se.sics.caracaldb.replication.log.Value;
@@ -58,19 +62,22 @@ public class PaxosManager extends ComponentDefinition {
     private Address self;
     private DecisionStore store;
     private View view;
+    private final long leaseDuration;
 
     public PaxosManager(PaxosManagerInit init) {
 
         self = init.self;
         store = init.store;
         view = init.view;
+        leaseDuration = init.leaseDuration;
 
         int quorum = 0;
         if (view != null) {
             quorum = view.members.size() / 2 + 1;
         }
         fdComp = create(SimpleEFD.class, new SimpleEFD.Init(init.networkBound, self));
-        paxos = create(Paxos.class, new PaxosInit(view, quorum, init.networkBound, self));
+        paxos = create(Paxos.class, new PaxosInit(view, quorum, init.networkBound, self,
+                PaxosInit.DEFAULT_MAX_BATCH, init.window, init.maxPending, init.leaseDuration));
 
         connect(paxos.getPositive(ReplicatedLog.class), consensus.getPair());
         connect(fdComp.getPositive(EventualFailureDetector.class), fd.getPair());
@@ -78,12 +85,15 @@ public class PaxosManager extends ComponentDefinition {
         connect(fdComp.getNegative(Network.class), net);
         connect(fdComp.getNegative(Timer.class), timer);
         connect(paxos.getNegative(Network.class), net);
-        //connect(paxos.getNegative(Timer.class), timer);
+        connect(paxos.getNegative(Timer.class), timer);
         connect(paxos.getNegative(EventualFailureDetector.class), fd);
 
         // subscriptions
         subscribe(proposeHandler, pm);
+        subscribe(readHandler, pm);
         subscribe(decideHandler, consensus);
+        subscribe(backpressureHandler, consensus);
+        subscribe(readResponseHandler, consensus);
         subscribe(stopHandler, control);
     }
     Handler<Propose> proposeHandler = new Handler<Propose>() {
@@ -93,10 +103,26 @@ public class PaxosManager extends ComponentDefinition {
             trigger(event, consensus);
         }
     };
+    Handler<LocalRead.Request> readHandler = new Handler<LocalRead.Request>() {
+        @Override
+        public void handle(LocalRead.Request event) {
+            store.readRequested(self, event);
+            trigger(event, consensus);
+        }
+    };
     Handler<Decide> decideHandler = new Handler<Decide>() {
         @Override
         public void handle(Decide event) {
+            store.position(event.position);
             Value v = event.value;
+            if (v instanceof ProposalBatch) {
+                store.batched(((ProposalBatch) v).values.size());
+                for (Value bv : ((ProposalBatch) v).values) {
+                    LOG.debug("{}: Got Decide({}) in epoch {}", new Object[]{self, bv.id, view.id});
+                    store.decided(view.id, self, bv.id);
+                }
+                return;
+            }
             if (v instanceof PaxosOp) {
                 LOG.debug("{}: Got Decide({}) in epoch {}", new Object[]{self, v.id, view.id});
                 store.decided(view.id, self, v.id);
@@ -106,12 +132,31 @@ public class PaxosManager extends ComponentDefinition {
                 Reconfigure rconf = (Reconfigure) v;
                 if (view == null) {
                     store.joined(self);
+                } else if (leaseDuration > 0) {
+                    // grants of the old view must not let anyone read anymore
+                    LocalRead.Request probe = new LocalRead.Request(UUID.randomUUID(), ReadMode.LEASE);
+                    store.probe(self, probe);
+                    trigger(probe, consensus);
                 }
                 view = rconf.view;
                 LOG.debug("{}: Got Reconfigure, going to epoch {}", self, view.id);
             }
         }
     };
+    Handler<Backpressure> backpressureHandler = new Handler<Backpressure>() {
+        @Override
+        public void handle(Backpressure event) {
+            LOG.debug("{}: Got {}", self, event);
+            store.backpressure(self, event.engaged);
+        }
+    };
+    Handler<LocalRead.Response> readResponseHandler = new Handler<LocalRead.Response>() {
+        @Override
+        public void handle(LocalRead.Response event) {
+            LOG.debug("{}: Got {}", self, event);
+            store.readAnswered(self, event);
+        }
+    };
     Handler<Stop> stopHandler = new Handler<Stop>() {
         @Override
         public void handle(Stop event) {
@@ -128,7 +173,7 @@ public class PaxosManager extends ComponentDefinition {
         disconnect(fdComp.getNegative(Network.class), net);
         disconnect(fdComp.getNegative(Timer.class), timer);
         disconnect(paxos.getNegative(Network.class), net);
-        //connect(paxos.getNegative(Timer.class), timer);
+        disconnect(paxos.getNegative(Timer.class), timer);
         disconnect(paxos.getNegative(EventualFailureDetector.class), fd);
 
         destroy(fdComp);
@@ -34,11 +34,22 @@ public class PaxosManagerInit extends Init<PaxosManager> {
     public final DecisionStore store;
     public final View view;
     public final long networkBound;
+    public final int window;
+    public final int maxPending;
+    public final long leaseDuration;
 
     public PaxosManagerInit(View view, long networkBound, Address self, DecisionStore store) {
+        this(view, networkBound, self, store, PaxosInit.DEFAULT_WINDOW, PaxosInit.DEFAULT_MAX_PENDING, 0);
+    }
+
+    public PaxosManagerInit(View view, long networkBound, Address self, DecisionStore store,
+            int window, int maxPending, long leaseDuration) {
         this.self = self;
         this.store = store;
         this.view = view;
         this.networkBound = networkBound;
+        this.window = window;
+        this.maxPending = maxPending;
+        this.leaseDuration = leaseDuration;
     }
 }
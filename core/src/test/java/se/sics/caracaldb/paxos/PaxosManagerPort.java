@@ -20,6 +20,7 @@
  */
 package se.sics.caracaldb.paxos;
 
+import se.sics.caracaldb.replication.log.LocalRead;
 import se.sics.caracaldb.replication.log.Propose;
 import se.sics.kompics.PortType;
 
@@ -29,4 +30,5 @@ import se.sics.kompics.PortType;
  */
 public class PaxosManagerPort extends PortType {{
     indication(Propose.class);
+    indication(LocalRead.Request.class);
 }}
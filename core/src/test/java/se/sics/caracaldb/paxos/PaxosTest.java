@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.logging.Level;
 import org.apache.commons.io.FileUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -32,9 +33,14 @@ import org.junit.runners.JUnit4;
 import static org.junit.Assert.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.Address;
 import se.sics.caracaldb.paxos.Commands.ChurnEvent;
 import se.sics.caracaldb.paxos.Commands.Fail;
+import se.sics.caracaldb.operations.Staleness;
 import se.sics.caracaldb.paxos.Commands.Join;
+import se.sics.caracaldb.replication.log.ReadMode;
+import se.sics.caracaldb.truetime.LocalClock;
+import se.sics.caracaldb.truetime.TrueTime;
 import se.sics.kompics.Kompics;
 import se.sics.kompics.Scheduler;
 import se.sics.kompics.p2p.experiment.dsl.SimulationScenario;
@@ -53,10 +59,20 @@ public class PaxosTest {
     private static final int BOOT_NUM = 3;
     private static final int OP_NUM = 500;
     private static final int CHURN_NUM = 4;
+    private static final int SLOW_NUM = 20;
+    private static final long LEASE_DURATION = 4000;
+    private static final long MAX_AGE = 1000;
+    /**
+     * TrueTime error bound in simulations (ms).
+     */
+    public static final long CLOCK_ERROR = 10;
     
     private static SimulationScenario scenario;
     private static Scheduler scheduler;
     private static DecisionStore store;
+    private static int window;
+    private static int maxPending;
+    private static long leaseDuration;
     
     public static SimulationScenario getScenario() {
         return scenario;
@@ -70,11 +86,32 @@ public class PaxosTest {
         PaxosTest.store = store;
     }
     
+    public static int getWindow() {
+        return window;
+    }
+    
+    public static int getMaxPending() {
+        return maxPending;
+    }
+    
+    public static long getLeaseDuration() {
+        return leaseDuration;
+    }
+    
     @Before
     public void setUp() {
         scenario = null;
         scheduler = null;
         store = null;
+        window = PaxosInit.DEFAULT_WINDOW;
+        maxPending = PaxosInit.DEFAULT_MAX_PENDING;
+        leaseDuration = 0;
+    }
+    
+    @After
+    public void tearDown() {
+        LocalClock.set(LocalClock.SYSTEM);
+        TrueTime.synced(TrueTime.DEFAULT_MAX_ERROR);
     }
     
     @Test
@@ -236,6 +273,291 @@ public class PaxosTest {
         doTest("churn");
     }
     
+    @Test
+    public void backpressure() {
+        window = 1; // so proposals queue up
+        maxPending = 16;
+        scenario = new SimulationScenario() {
+            {
+                StochasticProcess bootProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opStart(BOOT_NUM));
+                    }
+                };
+                
+                StochasticProcess burstProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(1));
+                        raise(OP_NUM - SLOW_NUM, opOp());
+                    }
+                };
+                
+                // gives every node time to drain before the end
+                StochasticProcess slowOpProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(uniform(200, 500));
+                        raise(SLOW_NUM, opOp());
+                    }
+                };
+
+                StochasticProcess verifyProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(500));
+                        raise(Integer.MAX_VALUE, opVerify());
+                    }
+                };
+
+                bootProc.start();
+                burstProc.startAfterTerminationOf(1000, bootProc);
+                slowOpProc.startAfterTerminationOf(1000, burstProc);
+                verifyProc.startAfterTerminationOf(1000, slowOpProc);
+                terminateAfterTerminationOf(OP_NUM * 1000, slowOpProc);
+            }
+        };
+        
+        doTest("backpressure");
+        assertTrue("Backpressure never engaged", store.engagements() > 0);
+        assertTrue("Backpressure not released on " + store.backpressured(), store.backpressured().isEmpty());
+        assertTrue("Full window didn't queue proposals", store.maxBatch() > 1);
+    }
+    
+    @Test
+    public void leaseFailover() {
+        leaseDuration = LEASE_DURATION;
+        scenario = new SimulationScenario() {
+            {
+                StochasticProcess bootProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opStart(BOOT_NUM));
+                    }
+                };
+                
+                StochasticProcess slowOpProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(uniform(200, 500));
+                        raise(OP_NUM, opOp());
+                    }
+                };
+                
+                StochasticProcess readProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(100));
+                        raise(OP_NUM * 2, opRead(ReadMode.LEASE));
+                    }
+                };
+                
+                StochasticProcess isolateProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opIsolate());
+                    }
+                };
+
+                StochasticProcess verifyProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(500));
+                        raise(Integer.MAX_VALUE, opVerify());
+                    }
+                };
+
+                bootProc.start();
+                slowOpProc.startAfterTerminationOf(1000, bootProc);
+                readProc.startAfterTerminationOf(1000, bootProc);
+                isolateProc.startAfterStartOf(OP_NUM*100, slowOpProc);
+                verifyProc.startAfterStartOf(OP_NUM*500, slowOpProc);
+                terminateAfterTerminationOf(OP_NUM * 1000, slowOpProc);
+            }
+        };
+        
+        doTest("leaseFailover");
+        Address oldLeader = store.isolated().keySet().iterator().next();
+        long isolatedAt = store.isolated().get(oldLeader);
+        assertTrue("Leader never read under its lease", store.granted(oldLeader) > 0);
+        assertTrue("Isolated leader never refused a read", store.refusedCutOff() > 0);
+        long decidedAt = store.firstDecisionProposedAfter(isolatedAt);
+        assertTrue("Nothing was decided after the failover", decidedAt >= 0);
+        // the last grant was at most a renewal period before the isolation
+        assertTrue("New leader got prepared " + (decidedAt - isolatedAt)
+                + "ms after the old one was cut off, while it still held a lease",
+                (decidedAt - isolatedAt) >= (LEASE_DURATION / 2));
+        assertTrue("New leader never read under its lease",
+                store.lastGrantedConnected() > isolatedAt);
+    }
+    
+    @Test
+    public void leaseReconfiguration() {
+        leaseDuration = LEASE_DURATION;
+        scenario = new SimulationScenario() {
+            {
+                StochasticProcess bootProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opStart(BOOT_NUM));
+                    }
+                };
+                
+                StochasticProcess slowOpProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(uniform(200, 500));
+                        raise(OP_NUM, opOp());
+                    }
+                };
+                
+                StochasticProcess readProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(100));
+                        raise(OP_NUM * 2, opRead(ReadMode.LEASE));
+                    }
+                };
+                
+                StochasticProcess joinProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(uniform(20000, 30000));
+                        raise(2, opJoin());
+                    }
+                };
+
+                StochasticProcess verifyProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(500));
+                        raise(Integer.MAX_VALUE, opVerify());
+                    }
+                };
+
+                bootProc.start();
+                slowOpProc.startAfterTerminationOf(1000, bootProc);
+                readProc.startAfterTerminationOf(1000, bootProc);
+                joinProc.startAfterStartOf(OP_NUM*50, slowOpProc);
+                verifyProc.startAfterStartOf(OP_NUM*500, slowOpProc);
+                terminateAfterTerminationOf(OP_NUM * 1000, slowOpProc);
+            }
+        };
+        
+        doTest("leaseReconfiguration");
+        // a probe that got granted fails validation
+        assertTrue("No reconfiguration was probed", store.probes() > 0);
+        assertTrue("Leader never read under its lease", store.lastGrantedConnected() >= 0);
+    }
+    
+    @Test
+    public void readIndexFailover() {
+        scenario = new SimulationScenario() {
+            {
+                StochasticProcess bootProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opStart(BOOT_NUM));
+                    }
+                };
+                
+                StochasticProcess slowOpProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(uniform(200, 500));
+                        raise(OP_NUM, opOp());
+                    }
+                };
+                
+                StochasticProcess readProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(100));
+                        raise(OP_NUM * 2, opRead(ReadMode.READ_INDEX));
+                    }
+                };
+                
+                StochasticProcess isolateProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opIsolate());
+                    }
+                };
+
+                StochasticProcess verifyProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(500));
+                        raise(Integer.MAX_VALUE, opVerify());
+                    }
+                };
+
+                bootProc.start();
+                slowOpProc.startAfterTerminationOf(1000, bootProc);
+                readProc.startAfterTerminationOf(1000, bootProc);
+                isolateProc.startAfterStartOf(OP_NUM*100, slowOpProc);
+                verifyProc.startAfterStartOf(OP_NUM*500, slowOpProc);
+                terminateAfterTerminationOf(OP_NUM * 1000, slowOpProc);
+            }
+        };
+        
+        doTest("readIndexFailover");
+        Address oldLeader = store.isolated().keySet().iterator().next();
+        long isolatedAt = store.isolated().get(oldLeader);
+        assertTrue("Leader never read after a heartbeat round", store.granted(oldLeader) > 0);
+        // its heartbeat rounds can't reach a quorum anymore and have to time out
+        assertTrue("Isolated leader never refused a read", store.refusedCutOff() > 0);
+        assertEquals("Reads piled up", 0, store.unanswered());
+        assertTrue("New leader never read after a heartbeat round",
+                store.lastGrantedConnected() > isolatedAt);
+    }
+    
+    @Test
+    public void staleReadFailover() {
+        scenario = new SimulationScenario() {
+            {
+                StochasticProcess bootProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opStart(BOOT_NUM));
+                    }
+                };
+                
+                StochasticProcess slowOpProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(uniform(200, 500));
+                        raise(OP_NUM, opOp());
+                    }
+                };
+                
+                StochasticProcess readProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(100));
+                        raise(OP_NUM * 2, opRead(ReadMode.LOG, Staleness.millis(MAX_AGE)));
+                    }
+                };
+                
+                StochasticProcess isolateProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(0));
+                        raise(1, opIsolate());
+                    }
+                };
+
+                StochasticProcess verifyProc = new StochasticProcess() {
+                    {
+                        eventInterArrivalTime(constant(500));
+                        raise(Integer.MAX_VALUE, opVerify());
+                    }
+                };
+
+                bootProc.start();
+                slowOpProc.startAfterTerminationOf(1000, bootProc);
+                readProc.startAfterTerminationOf(1000, bootProc);
+                isolateProc.startAfterStartOf(OP_NUM*100, slowOpProc);
+                verifyProc.startAfterStartOf(OP_NUM*500, slowOpProc);
+                terminateAfterTerminationOf(OP_NUM * 1000, slowOpProc);
+            }
+        };
+        
+        doTest("staleReadFailover");
+        Address oldLeader = store.isolated().keySet().iterator().next();
+        long isolatedAt = store.isolated().get(oldLeader);
+        assertTrue("Leader never read stale", store.granted(oldLeader) > 0);
+        // it only hears from itself, which doesn't count as contact
+        assertTrue("Isolated leader never refused a read", store.refusedCutOff() > 0);
+        assertTrue("Followers stopped reading stale",
+                store.lastGrantedConnected() > (isolatedAt + MAX_AGE));
+    }
+    
     private void doTest(String prefix) {
         scenario.setSeed(SEED);
         
@@ -321,6 +643,30 @@ public class PaxosTest {
         };
     }
     
+    public static Operation<Commands.Isolate> opIsolate() {
+        return new Operation<Commands.Isolate>() {
+
+            @Override
+            public Commands.Isolate generate() {
+                return new Commands.Isolate();
+            }
+        };
+    }
+    
+    public static Operation<Commands.Read> opRead(final ReadMode mode) {
+        return opRead(mode, null);
+    }
+    
+    public static Operation<Commands.Read> opRead(final ReadMode mode, final Staleness staleness) {
+        return new Operation<Commands.Read>() {
+
+            @Override
+            public Commands.Read generate() {
+                return new Commands.Read(mode, staleness);
+            }
+        };
+    }
+    
     public static Operation<Commands.ChurnEvent> opChurn() {
         return new Operation<Commands.ChurnEvent>() {
             
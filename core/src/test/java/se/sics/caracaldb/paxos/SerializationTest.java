@@ -21,6 +21,7 @@
 package se.sics.caracaldb.paxos;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
@@ -40,13 +41,18 @@ import se.sics.caracaldb.View;
 import se.sics.caracaldb.paxos.Paxos.Accept;
 import se.sics.caracaldb.paxos.Paxos.Accepted;
 import se.sics.caracaldb.paxos.Paxos.Forward;
+import se.sics.caracaldb.paxos.Paxos.Heartbeat;
+import se.sics.caracaldb.paxos.Paxos.HeartbeatAck;
 import se.sics.caracaldb.paxos.Paxos.Install;
 import se.sics.caracaldb.paxos.Paxos.Instance;
+import se.sics.caracaldb.paxos.Paxos.Lease;
+import se.sics.caracaldb.paxos.Paxos.LeaseGranted;
 import se.sics.caracaldb.paxos.Paxos.NoPromise;
 import se.sics.caracaldb.paxos.Paxos.Prepare;
 import se.sics.caracaldb.paxos.Paxos.Promise;
 import se.sics.caracaldb.paxos.Paxos.Rejected;
 import se.sics.caracaldb.replication.log.Noop;
+import se.sics.caracaldb.replication.log.ProposalBatch;
 import se.sics.caracaldb.replication.log.Reconfigure;
 import se.sics.caracaldb.replication.log.Value;
 import se.sics.kompics.network.netty.serialization.Serializers;
@@ -152,6 +158,52 @@ public class SerializationTest {
         Assert.assertEquals(install.log.size(), install2.log.size());
         buf.clear();
 
+        // ACCEPT with a batch
+        ProposalBatch batch = new ProposalBatch(ImmutableList.of((Value) Noop.val, reconf, Noop.val));
+        Accept batchAccept = new Accept(source, dest, 1, new Instance(11, 1, batch));
+        paxosS.toBinary(batchAccept, buf);
+        Accept batchAccept2 = (Accept) paxosS.fromBinary(buf, Optional.absent());
+        Assert.assertEquals(batchAccept.i, batchAccept2.i);
+        ProposalBatch batch2 = (ProposalBatch) batchAccept2.i.value;
+        Assert.assertEquals(batch.values, batch2.values);
+        buf.clear();
+
+        // LEASE
+        Lease lease = new Lease(source, dest, 1, 42);
+        paxosS.toBinary(lease, buf);
+        Lease lease2 = (Lease) paxosS.fromBinary(buf, Optional.absent());
+        Assert.assertEquals(lease.getSource(), lease2.getSource());
+        Assert.assertEquals(lease.ballot, lease2.ballot);
+        Assert.assertEquals(lease.round, lease2.round);
+        buf.clear();
+
+        // LEASE_GRANTED
+        LeaseGranted granted = new LeaseGranted(source, dest, 1, 42);
+        paxosS.toBinary(granted, buf);
+        LeaseGranted granted2 = (LeaseGranted) paxosS.fromBinary(buf, Optional.absent());
+        Assert.assertEquals(granted.getDestination(), granted2.getDestination());
+        Assert.assertEquals(granted.ballot, granted2.ballot);
+        Assert.assertEquals(granted.round, granted2.round);
+        buf.clear();
+
+        // HEARTBEAT
+        Heartbeat heartbeat = new Heartbeat(source, dest, 1, 7);
+        paxosS.toBinary(heartbeat, buf);
+        Heartbeat heartbeat2 = (Heartbeat) paxosS.fromBinary(buf, Optional.absent());
+        Assert.assertEquals(heartbeat.getSource(), heartbeat2.getSource());
+        Assert.assertEquals(heartbeat.ballot, heartbeat2.ballot);
+        Assert.assertEquals(heartbeat.round, heartbeat2.round);
+        buf.clear();
+
+        // HEARTBEAT_ACK
+        HeartbeatAck ack = new HeartbeatAck(source, dest, 1, 7);
+        paxosS.toBinary(ack, buf);
+        HeartbeatAck ack2 = (HeartbeatAck) paxosS.fromBinary(buf, Optional.absent());
+        Assert.assertEquals(ack.getDestination(), ack2.getDestination());
+        Assert.assertEquals(ack.ballot, ack2.ballot);
+        Assert.assertEquals(ack.round, ack2.round);
+        buf.clear();
+
         // FORWARD
         Forward forward = new Forward(source, dest, source, Noop.val);
         paxosS.toBinary(forward, buf);
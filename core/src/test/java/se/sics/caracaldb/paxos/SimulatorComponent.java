@@ -22,6 +22,7 @@ package se.sics.caracaldb.paxos;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Map.Entry;
@@ -35,8 +36,11 @@ import se.sics.caracaldb.Address;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.View;
 import se.sics.caracaldb.paxos.Commands.Fail;
+import se.sics.caracaldb.paxos.Commands.Isolate;
 import se.sics.caracaldb.paxos.Commands.Join;
 import se.sics.caracaldb.paxos.Commands.Operation;
+import se.sics.caracaldb.paxos.Commands.Read;
+import se.sics.caracaldb.replication.log.LocalRead;
 import se.sics.caracaldb.replication.log.Propose;
 import se.sics.caracaldb.replication.log.Reconfigure;
 import se.sics.kompics.Component;
@@ -68,6 +72,7 @@ public class SimulatorComponent extends ComponentDefinition {
     private TreeSet<Integer> portsInUse = new TreeSet<Integer>();
     private TreeMap<Integer, Component> components = new TreeMap<Integer, Component>();
     private TreeMap<Integer, Address> group = new TreeMap<Integer, Address>();
+    private TreeMap<Integer, Component> isolated = new TreeMap<Integer, Component>();
     private InetAddress localIP;
     private DecisionStore store;
     private UUID opId = new UUID(0, 0);
@@ -87,6 +92,8 @@ public class SimulatorComponent extends ComponentDefinition {
         subscribe(opHandler, simulator);
         subscribe(joinHandler, simulator);
         subscribe(failHandler, simulator);
+        subscribe(isolateHandler, simulator);
+        subscribe(readHandler, simulator);
     }
     Handler<Commands.Start> bootHandler = new Handler<Commands.Start>() {
         @Override
@@ -100,7 +107,7 @@ public class SimulatorComponent extends ComponentDefinition {
 
             ImmutableSet<Address> readOnlyGroup = ImmutableSet.copyOf(group.values());
 
-            store = new DecisionStore(readOnlyGroup);
+            store = new DecisionStore(readOnlyGroup, PaxosTest.getLeaseDuration());
             
             View v = new View(ImmutableSortedSet.copyOf(readOnlyGroup), 0);
 
@@ -179,13 +186,37 @@ public class SimulatorComponent extends ComponentDefinition {
         }
     };
 
+    Handler<Commands.Isolate> isolateHandler = new Handler<Commands.Isolate>() {
+        @Override
+        public void handle(Isolate event) {
+            // like fail the leader, but let it keep running on its own
+            int isoP = group.firstKey();
+            Component isoC = components.remove(isoP);
+            Address adr = group.remove(isoP);
+            isolated.put(isoP, isoC);
+            LOG.info("Isolating {}", adr);
+            disconnect(isoC.getNegative(Network.class), net);
+            store.isolated(adr);
+        }
+    };
+    Handler<Commands.Read> readHandler = new Handler<Commands.Read>() {
+        @Override
+        public void handle(Read event) {
+            for (Component c : Iterables.concat(components.values(), isolated.values())) {
+                trigger(new LocalRead.Request(UUID.randomUUID(), event.mode, event.staleness, -1),
+                        c.getNegative(PaxosManagerPort.class));
+            }
+        }
+    };
+
     private void bootNode(Address netSelf, View view) {
 
         Component deadLetterBox = create(VirtualNetworkChannel.DefaultDeadLetterComponent.class, Init.NONE);
         VirtualNetworkChannel vnc = VirtualNetworkChannel.connect(net,
                 deadLetterBox.getNegative(Network.class),
                 new MessageDestinationSelector(new HostAddress(netSelf)));
-        Component manager = create(PaxosManager.class, new PaxosManagerInit(view, 100, netSelf, store));
+        Component manager = create(PaxosManager.class, new PaxosManagerInit(view, 100, netSelf, store,
+                PaxosTest.getWindow(), PaxosTest.getMaxPending(), PaxosTest.getLeaseDuration()));
         components.put(netSelf.getPort(), manager);
 
         connect(manager.getNegative(Network.class), net, new MessageDestinationSelector(new HostAddress(netSelf)));
@@ -29,6 +29,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.kompics.Component;
 import se.sics.kompics.ComponentDefinition;
+import se.sics.caracaldb.truetime.LocalClock;
+import se.sics.caracaldb.truetime.TrueTime;
 import se.sics.kompics.Fault;
 import se.sics.kompics.Init;
 import se.sics.kompics.network.Network;
@@ -58,6 +60,22 @@ public class SimulatorMain extends ComponentDefinition {
                 scenario, new UniformRandomModel(5, 90)));
         Component simulationComponent = create(SimulatorComponent.class, Init.NONE);
 
+        // leases and staleness bounds have to run on simulated time
+        final VirtualSimulator vs = (VirtualSimulator) simulator.getComponent();
+        LocalClock.set(new LocalClock() {
+
+            @Override
+            public long currentTimeMillis() {
+                return vs.java_lang_System_currentTimeMillis();
+            }
+
+            @Override
+            public long nanoTime() {
+                return vs.java_lang_System_nanoTime();
+            }
+        });
+        TrueTime.synced(PaxosTest.CLOCK_ERROR);
+
         // connect
         connect(simulationComponent.getNegative(Network.class),
                 simulator.getPositive(Network.class));
@@ -0,0 +1,94 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import com.google.common.collect.Ordering;
+import com.larskroll.common.ByteArrayRef;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class MultiVersionTest {
+
+    @Test
+    public void viewTest() {
+        SortedMap<Integer, ByteArrayRef> versions = new TreeMap<Integer, ByteArrayRef>(Ordering.natural().reverse());
+        versions.put(1, ByteArrayRef.wrap(new byte[]{1}));
+        versions.put(3, ByteArrayRef.wrap(new byte[]{3, 3, 3}));
+        versions.put(5, ByteArrayRef.wrap(new byte[0]));
+        byte[] blob = MultiVersionUtil.pack(versions);
+
+        VersionView view = new VersionView(blob);
+        int count = 0;
+        int last = Integer.MAX_VALUE;
+        while (view.next()) {
+            assertTrue(view.version() < last);
+            last = view.version();
+            assertEquals(versions.get(last).length, view.length());
+            count++;
+        }
+        assertEquals(3, count);
+
+        assertTrue(view.reset(blob).seekNewest());
+        assertEquals(5, view.version());
+        assertTrue(view.isTombstone());
+        assertTrue(view.seekNewest(4));
+        assertEquals(3, view.version());
+        assertEquals(0, view.value().compareTo(new byte[]{3, 3, 3}));
+        assertFalse(view.seekNewest(0));
+        assertFalse(view.reset(null).seekNewest());
+
+        assertEquals(0, MultiVersionUtil.newest(blob, 2).compareTo(new byte[]{1}));
+        assertNull(MultiVersionUtil.newest(null));
+    }
+
+    @Test
+    public void withVersionTest() {
+        byte[] blob = MultiVersionUtil.withVersion(null, 2, new byte[]{2});
+        blob = MultiVersionUtil.withVersion(blob, 4, new byte[]{4, 4});
+        blob = MultiVersionUtil.withVersion(blob, 1, new byte[]{1});
+        blob = MultiVersionUtil.withVersion(blob, 2, new byte[]{2, 2});
+
+        SortedMap<Integer, ByteArrayRef> expected = new TreeMap<Integer, ByteArrayRef>(Ordering.natural().reverse());
+        expected.put(1, ByteArrayRef.wrap(new byte[]{1}));
+        expected.put(2, ByteArrayRef.wrap(new byte[]{2, 2}));
+        expected.put(4, ByteArrayRef.wrap(new byte[]{4, 4}));
+        assertArrayEquals(MultiVersionUtil.pack(expected), blob);
+
+        SortedMap<Integer, ByteArrayRef> unpacked = MultiVersionUtil.unpack(blob);
+        assertEquals(expected.keySet(), unpacked.keySet());
+        for (Entry<Integer, ByteArrayRef> e : expected.entrySet()) {
+            assertEquals(0, unpacked.get(e.getKey()).compareTo(e.getValue().dereference()));
+        }
+
+        byte[] single = MultiVersionUtil.withVersion(null, 1, new byte[]{1});
+        assertNull(MultiVersionUtil.withVersion(single, 1, new byte[0]));
+    }
+}
@@ -23,6 +23,7 @@ package se.sics.caracaldb.operations;
 import se.sics.caracaldb.Address;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.View;
+import se.sics.caracaldb.replication.log.ReadMode;
 import se.sics.kompics.Init;
 
 /**
@@ -35,11 +36,15 @@ public class Meth extends Init<MethCat> {
     public final KeyRange responsibility;
     public final View view;
     public final long statsPeriod;
+    public final ReadMode readMode;
+    public final int maxValueSize;
 
-    public Meth(Address self, KeyRange responsibility, View view, long statsPeriod) {
+    public Meth(Address self, KeyRange responsibility, View view, long statsPeriod, ReadMode readMode, int maxValueSize) {
         this.self = self;
         this.responsibility = responsibility;
         this.view = view;
         this.statsPeriod = statsPeriod;
+        this.readMode = readMode;
+        this.maxValueSize = maxValueSize;
     }
 }
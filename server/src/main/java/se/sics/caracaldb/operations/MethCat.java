@@ -20,6 +20,8 @@
  */
 package se.sics.caracaldb.operations;
 
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
@@ -41,6 +43,8 @@ import se.sics.caracaldb.global.Reconfiguration;
 import se.sics.caracaldb.replication.linearisable.Replication;
 import se.sics.caracaldb.replication.linearisable.ReplicationSetInfo;
 import se.sics.caracaldb.replication.linearisable.Synced;
+import se.sics.caracaldb.replication.log.Backpressure;
+import se.sics.caracaldb.replication.log.ReadMode;
 import se.sics.caracaldb.store.Diff;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
@@ -75,6 +79,10 @@ public class MethCat extends ComponentDefinition {
     private Address self;
     private Map<UUID, CaracalMsg> openOps = new TreeMap<UUID, CaracalMsg>();
     private View view;
+    private final ReadMode readMode;
+    private final int maxValueSize;
+    private boolean backpressure = false;
+    private final ReadRouter router;
 
     // Stats
     private long storeSize = 0;
@@ -87,8 +95,11 @@ public class MethCat extends ComponentDefinition {
     public MethCat(Meth init) {
         this.responsibility = init.responsibility;
         this.self = init.self;
+        this.router = new ReadRouter(self);
         this.view = init.view;
         this.timerInterval = init.statsPeriod;
+        this.readMode = init.readMode;
+        this.maxValueSize = init.maxValueSize;
 
         LOG.info("{} vnode responsibility:{}", new Object[]{self, responsibility});
 
@@ -97,6 +108,7 @@ public class MethCat extends ComponentDefinition {
         // subscriptions
         subscribe(forwardingHandler, network);
         subscribe(syncedHandler, replication);
+        subscribe(backpressureHandler, replication);
         subscribe(forwardMsgHandler, network);
     }
     Handler<Stop> stopHandler = new Handler<Stop>() {
@@ -133,6 +145,12 @@ public class MethCat extends ComponentDefinition {
                     ForwardToAny fta = new ForwardToAny(req.key, event);
                     trigger(fta, lookup);
                 }
+            } else if (event.op instanceof MultiKeyOp) {
+                CaracalOp local = forwardOutside(event, (MultiKeyOp) event.op);
+                if (!((MultiKeyOp) local).keys().isEmpty()) {
+                    // foward because we are not ready to actually handle requests ourself yet
+                    forwardToViewMember(new CaracalMsg(self, self, event.getOrigin(), event.getProtocol(), local, event.lutversion));
+                }
             } else if (event.op instanceof PutRequest) {
                 PutRequest req = (PutRequest) event.op;
                 if (responsible(req.key)) {
@@ -163,13 +181,13 @@ public class MethCat extends ComponentDefinition {
             if (event.op instanceof RangeQuery.Request) {
                 RangeQuery.Request req = (RangeQuery.Request) event.op;
                 if (responsibility.contains(req.subRange)) {
-                    LOG.debug("{}: Processing request {}", new Object[]{self, event});
                     if (req.subRange.equals(KeyRange.EMPTY)) {
                         LOG.warn("Forwarding of ranges is defective, receiving empty range");
                         return;
                     }
-                    openOps.put(event.op.id, event);
-                    trigger(req, replication);
+                    if (!routeRead(event)) {
+                        process(event, req);
+                    }
                 } else {
                     LOG.debug("{}: Forwarding request {}", new Object[]{self, event});
                     ForwardToRange ftr = new ForwardToRange(req, req.subRange, event.getOrigin());
@@ -178,9 +196,9 @@ public class MethCat extends ComponentDefinition {
             } else if (event.op instanceof GetRequest) {
                 GetRequest req = (GetRequest) event.op;
                 if (responsible(req.key)) {
-                    LOG.debug("{}: Processing request {}", new Object[]{self, event});
-                    openOps.put(event.op.id, event);
-                    trigger(event.op, replication);
+                    if (!routeRead(event)) {
+                        process(event, event.op);
+                    }
                 } else {
                     LOG.debug("{}: Forwarding request {}", new Object[]{self, event});
                     ForwardToAny fta = new ForwardToAny(req.key, event);
@@ -189,20 +207,21 @@ public class MethCat extends ComponentDefinition {
             } else if (event.op instanceof PutRequest) {
                 PutRequest req = (PutRequest) event.op;
                 if (responsible(req.key)) {
-                    LOG.debug("{}: Processing request {}", new Object[]{self, event});
-                    openOps.put(event.op.id, event);
-                    trigger(event.op, replication);
+                    process(event, event.op);
                 } else {
                     LOG.debug("{}: Forwarding request {}", new Object[]{self, event});
                     ForwardToAny fta = new ForwardToAny(req.key, event);
                     trigger(fta, lookup);
                 }
+            } else if (event.op instanceof MultiKeyOp) {
+                CaracalOp local = forwardOutside(event, (MultiKeyOp) event.op);
+                if (!((MultiKeyOp) local).keys().isEmpty()) {
+                    process(event, local);
+                }
             } else if (event.op instanceof MultiOpRequest) {
                 MultiOpRequest req = (MultiOpRequest) event.op;
                 if (req.isInRange(responsibility)) {
-                    LOG.debug("{}: Processing request {}", new Object[]{self, event});
-                    openOps.put(event.op.id, event);
-                    trigger(event.op, replication);
+                    process(event, event.op);
                 } else { // if a node is not responsible for all keys in the MultiOp it must be rejected!
                     LOG.debug("{}: Rejecting request {}", new Object[]{self, event});
                     MultiOpResponse resp = new MultiOpResponse(req.id, ResponseCode.NOT_COLLOCATED, false);
@@ -228,6 +247,7 @@ public class MethCat extends ComponentDefinition {
                 RangeQuery.Request req = (RangeQuery.Request) orig.op;
                 RangeQuery.InternalResponse iResp = (RangeQuery.InternalResponse) event;
                 RangeQuery.Response resp = iResp.finalize(req);
+                resp.setPosition(iResp.getPosition());
                 rsp = resp;
                 if (req.execType.equals(RangeQuery.Type.SEQUENTIAL) && !resp.readLimit) {
                     LOG.debug("{} origRange:{} currRange:{} localResponsability:{}", new Object[]{self, req.initRange, req.subRange, responsibility});
@@ -250,6 +270,15 @@ public class MethCat extends ComponentDefinition {
         }
     };
 
+    Handler<Backpressure> backpressureHandler = new Handler<Backpressure>() {
+
+        @Override
+        public void handle(Backpressure event) {
+            LOG.info("{}: {}", self, event);
+            backpressure = event.engaged;
+        }
+    };
+
     Handler<MaintenanceMsg> maintenanceHandler = new Handler<MaintenanceMsg>() {
         @Override
         public void handle(MaintenanceMsg event) {
@@ -280,6 +309,7 @@ public class MethCat extends ComponentDefinition {
         public void handle(StatsTimeout event) {
             long time = System.currentTimeMillis();
             long ops = resetOpS(time);
+            router.reset();
             NodeStats stats = new NodeStats(self, responsibility, storeSize, storeNumberKeys, ops);
             trigger(stats, maintenance);
         }
@@ -331,7 +361,135 @@ public class MethCat extends ComponentDefinition {
         lastOpTS = System.currentTimeMillis();
     }
 
+    /**
+     * Forwards the keys of op this node isn't responsible for.
+     *
+     * @param event
+     * @param op
+     * @return the part of op to handle locally
+     */
+    private CaracalOp forwardOutside(CaracalMsg event, MultiKeyOp op) {
+        CaracalOp rest = op.outside(responsibility);
+        ImmutableSortedSet<Key> restKeys = ((MultiKeyOp) rest).keys();
+        if (restKeys.isEmpty()) {
+            return event.op;
+        }
+        LOG.debug("{}: Forwarding {} of request {}", new Object[]{self, rest, event});
+        CaracalMsg msg = new CaracalMsg(self, self, event.getOrigin(), event.getProtocol(), rest, event.lutversion);
+        trigger(new ForwardToAny(restKeys.first(), msg), lookup);
+        return op.inside(responsibility);
+    }
+
+    /**
+     * Hands op over to replication and remembers who to answer.
+     * <p>
+     * Under backpressure the op is answered with BUSY instead, so clients
+     * back off rather than growing the log's queue. Reads that are served
+     * locally don't go into the log, so they are still taken. Writes of values
+     * the schema can't store are answered with VALUE_TOO_LARGE.
+     */
+    private void process(CaracalMsg event, CaracalOp op) {
+        if (tooLarge(op, maxValueSize)) {
+            LOG.debug("{}: Rejecting request {} with a value over {} bytes", new Object[]{self, event, maxValueSize});
+            trigger(new CaracalMsg(self, event.getOrigin(), failed(op, ResponseCode.VALUE_TOO_LARGE)), network);
+            return;
+        }
+        if (backpressure && !servedLocally(op, readMode)) {
+            LOG.debug("{}: Rejecting request {} under backpressure", new Object[]{self, event});
+            trigger(new CaracalMsg(self, event.getOrigin(), busy(op)), network);
+            return;
+        }
+        LOG.debug("{}: Processing request {}", new Object[]{self, event});
+        openOps.put(event.op.id, event);
+        trigger(op, replication);
+    }
+
+    /**
+     * @param op
+     * @param readMode of the schema
+     * @return true if op is a read that normally doesn't enter the log
+     */
+    static boolean servedLocally(CaracalOp op, ReadMode readMode) {
+        return (Staleness.of(op) != null) || readMode.readsLocally(op);
+    }
+
+    /**
+     * @param op
+     * @param maxValueSize of the schema
+     * @return true if op writes a value larger than maxValueSize
+     */
+    static boolean tooLarge(CaracalOp op, int maxValueSize) {
+        if (op instanceof PutRequest) {
+            byte[] data = ((PutRequest) op).data;
+            return (data != null) && (data.length > maxValueSize);
+        }
+        if (op instanceof BatchPutRequest) {
+            return anyTooLarge(((BatchPutRequest) op).puts.values(), maxValueSize);
+        }
+        if (op instanceof MultiOpRequest) {
+            MultiOpRequest req = (MultiOpRequest) op;
+            return anyTooLarge(req.successPuts.values(), maxValueSize)
+                    || anyTooLarge(req.failurePuts.values(), maxValueSize);
+        }
+        return false;
+    }
+
+    private static boolean anyTooLarge(Collection<byte[]> values, int maxValueSize) {
+        for (byte[] value : values) {
+            if ((value != null) && (value.length > maxValueSize)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static CaracalResponse busy(CaracalOp op) {
+        return failed(op, ResponseCode.BUSY);
+    }
+
+    static CaracalResponse failed(CaracalOp op, ResponseCode code) {
+        if (op instanceof GetRequest) {
+            return new GetResponse(op.id, ((GetRequest) op).key, null, code);
+        }
+        if (op instanceof PutRequest) {
+            return new PutResponse(op.id, ((PutRequest) op).key, code);
+        }
+        if (op instanceof RangeQuery.Request) {
+            return new RangeQuery.Response(code, (RangeQuery.Request) op);
+        }
+        if (op instanceof MultiGetRequest) {
+            return new MultiGetResponse(op.id, null, code);
+        }
+        if (op instanceof BatchPutRequest) {
+            return new BatchPutResponse(op.id, ImmutableSortedSet.<Key>of(), code);
+        }
+        return new MultiOpResponse(op.id, code, false);
+    }
+
+    /**
+     * Spreads reads that tolerate staleness over the view (see ReadRouter).
+     * <p>
+     * @param event
+     * @return true if the read was sent to another member
+     */
+    private boolean routeRead(CaracalMsg event) {
+        Address target = router.route(event.op, event.getSource(), view, !backpressure);
+        if (target == null) {
+            return false;
+        }
+        LOG.debug("{}: Routing stale read {} to {}", new Object[]{self, event, target});
+        trigger(event.insertDestination(self, target, event.lutversion), network);
+        return true;
+    }
+
     private void forwardToViewMember(CaracalMsg event) {
+        if (ReadRouter.routable(event.op, event.getSource(), view)) {
+            Address target = router.leastLoaded(view, false); // any one of them will do
+            if (target != null) {
+                trigger(event.insertDestination(self, target, event.lutversion), network);
+            }
+            return;
+        }
         for (Address adr : view.members) {
             if (!adr.equals(self)) {
                 trigger(event.insertDestination(self, adr, event.lutversion), network);
@@ -0,0 +1,115 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import java.util.HashMap;
+import java.util.Map;
+import se.sics.caracaldb.Address;
+import se.sics.caracaldb.View;
+
+/**
+ * Spreads reads that tolerate staleness over the view.
+ * <p>
+ * Members don't exchange their load, so a node balances what it sends
+ * itself and picks the member it sent the fewest reads to during the
+ * current stats period. Reads that came from a member are served where they
+ * arrive, so they don't bounce around.
+ * <p>
+ * @author lkroll
+ */
+class ReadRouter {
+
+    private final Address self;
+    // stale reads sent to each member during the current period
+    private final Map<Address, Integer> load = new HashMap<Address, Integer>();
+
+    ReadRouter(Address self) {
+        this.self = self;
+    }
+
+    /**
+     * @param op
+     * @param source the node op came from
+     * @param view
+     * @return true if op may be sent to any member of view
+     */
+    static boolean routable(CaracalOp op, Address source, View view) {
+        return (Staleness.of(op) != null) && !view.members.contains(source);
+    }
+
+    /**
+     * @param op
+     * @param source the node op came from
+     * @param view
+     * @param includeSelf whether this node takes reads itself
+     * @return the member to send op to, or null if it's served here
+     */
+    Address route(CaracalOp op, Address source, View view, boolean includeSelf) {
+        if (!routable(op, source, view)) {
+            return null;
+        }
+        Address target = leastLoaded(view, includeSelf);
+        return self.equals(target) ? null : target;
+    }
+
+    /**
+     * Picks the member with the least reads sent to it and counts another
+     * one for it.
+     * <p>
+     * @param view
+     * @param includeSelf
+     * @return null if there is no one to pick
+     */
+    Address leastLoaded(View view, boolean includeSelf) {
+        Address best = null;
+        int min = Integer.MAX_VALUE;
+        if (includeSelf) { // saves a hop on ties
+            best = self;
+            min = load(self);
+        }
+        for (Address adr : view.members) {
+            if (adr.equals(self)) {
+                continue;
+            }
+            int l = load(adr);
+            if (l < min) {
+                best = adr;
+                min = l;
+            }
+        }
+        if (best != null) {
+            load.put(best, min + 1);
+        }
+        return best;
+    }
+
+    /**
+     * Starts a new period.
+     */
+    void reset() {
+        load.clear();
+    }
+
+    private int load(Address adr) {
+        Integer l = load.get(adr);
+        return (l == null) ? 0 : l;
+    }
+}
@@ -21,6 +21,8 @@
 package se.sics.caracaldb.persistence;
 
 import com.typesafe.config.Config;
+import java.io.IOException;
+import se.sics.caracaldb.KeyRange;
 
 /**
  *
@@ -51,6 +53,56 @@ public abstract class Database implements Persistence {
      */
     public abstract void close();
     
+    /**
+     * Forces all writes that completed before the call to stable storage.
+     * 
+     * Used by the PersistentStore to implement group commit, so that a single
+     * sync covers many writes. Implementations that are not backed by a disk
+     * don't need to do anything.
+     */
+    public void sync() {
+        // nothing to sync by default
+    }
+    
+    /**
+     * Rebuilds the in-memory key filter for range, if the database keeps
+     * one, to drop the false positives left by deletions.
+     * 
+     * @param range usually a vnode's responsibility
+     * @param force rebuild even if the current filter is still accurate
+     * @throws IOException 
+     */
+    public void rebuildFilter(KeyRange range, boolean force) throws IOException {
+        // no filter by default
+    }
+    
+    /**
+     * Reveals if the database may be accessed from multiple threads at once.
+     * 
+     * If true, the PersistentStore may execute requests on disjoint keys in
+     * parallel (and scans concurrently with writes). Requests on the same key
+     * are still never executed concurrently.
+     * 
+     * @return true if the implementation is thread-safe
+     */
+    public boolean supportsConcurrentAccess() {
+        return false; // safe default, override if the implementation is thread-safe
+    }
+    
+    /**
+     * Reveals if iterators stay valid while the database is written to, and
+     * see every write that completes before they step past its key.
+     * 
+     * Only then may paged range queries keep an iterator open between pages
+     * (see RangeCursor), since each page must see all writes decided before
+     * it. Snapshot iterators, or ones that read ahead, don't qualify.
+     * 
+     * @return true if iterators follow writes
+     */
+    public boolean supportsLiveIterators() {
+        return false; // safe default
+    }
+    
     /**
      * Reveals if the database should have once instance per HOST or per VNODE.
      * 
@@ -23,10 +23,20 @@ package se.sics.caracaldb.persistence;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigValue;
 import java.lang.reflect.Constructor;
+import java.util.HashSet;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.persistence.cache.CachedDatabase;
+import se.sics.caracaldb.global.SchemaData;
+import se.sics.caracaldb.persistence.cache.ValueCache;
+import se.sics.caracaldb.persistence.compress.CompressedDatabase;
+import se.sics.caracaldb.persistence.compress.SchemaCodecs;
+import se.sics.caracaldb.persistence.compress.ValueCodec;
+import se.sics.caracaldb.persistence.filter.FilteredDatabase;
+import se.sics.caracaldb.system.Stats;
 
 /**
  *
@@ -35,9 +45,19 @@ import org.slf4j.LoggerFactory;
 public class DatabaseManager {
 
     private static final String PATH = "caracal.database.types";
+    private static final String CACHE_PATH = "caracal.cache";
+    private static final String FILTER_PATH = "caracal.filter";
+    private static final String COMPRESSION_PATH = "caracal.compression";
     private static final Logger LOG = LoggerFactory.getLogger(DatabaseManager.class);
 
     private final Config conf;
+    private final long cacheCapacity;
+    private final Set<String> cachedTypes = new HashSet<String>(); // class names
+    private ValueCache cache = null; // one per host, created when needed
+    private final int filterBitsPerKey;
+    private final Set<String> filteredTypes = new HashSet<String>(); // class names
+    private final Set<String> compressedTypes = new HashSet<String>(); // class names
+    private final SchemaCodecs codecs = new SchemaCodecs();
     //private final Map<TypeKey, Database> instances = new HashMap<TypeKey, Database>();
 
     /**
@@ -76,6 +96,34 @@ public class DatabaseManager {
 
     public DatabaseManager(Config conf) {
         this.conf = conf;
+        this.cacheCapacity = conf.getBytes(CACHE_PATH + ".capacity");
+        if (cacheCapacity > 0) {
+            for (String identifier : conf.getStringList(CACHE_PATH + ".databases")) {
+                if (conf.hasPath(PATH + "." + identifier)) {
+                    cachedTypes.add(conf.getString(PATH + "." + identifier));
+                } else {
+                    LOG.warn("Can't cache unknown database type {}", identifier);
+                }
+            }
+        }
+        this.filterBitsPerKey = conf.getInt(FILTER_PATH + ".bitsPerKey");
+        if (filterBitsPerKey > 0) {
+            for (String identifier : conf.getStringList(FILTER_PATH + ".databases")) {
+                if (conf.hasPath(PATH + "." + identifier)) {
+                    filteredTypes.add(conf.getString(PATH + "." + identifier));
+                } else {
+                    LOG.warn("Can't filter unknown database type {}", identifier);
+                }
+            }
+        }
+        for (String identifier : conf.getStringList(COMPRESSION_PATH + ".databases")) {
+            if (conf.hasPath(PATH + "." + identifier)) {
+                compressedTypes.add(conf.getString(PATH + "." + identifier));
+            } else {
+                LOG.warn("Can't compress unknown database type {}", identifier);
+            }
+        }
+        Stats.register(codecs);
     }
 
     public Class<? extends Database> getType(String identifier) throws ClassNotFoundException {
@@ -89,7 +137,48 @@ public class DatabaseManager {
     }
 
     public Database getInstance(Class<? extends Database> type) throws InstantiationException {
-        return DatabaseManager.getInstance(type, conf);
+        Database db = DatabaseManager.getInstance(type, conf);
+        if (compressedTypes.contains(type.getName())) {
+            db = new CompressedDatabase(db, codecs);
+        }
+        if (filteredTypes.contains(type.getName())) {
+            db = new FilteredDatabase(db, filterBitsPerKey);
+        }
+        if (cachedTypes.contains(type.getName())) { // the cache goes in front, so hits don't pay for the filter
+            return new CachedDatabase(db, getCache());
+        }
+        return db;
+    }
+
+    /**
+     * Selects the value compression for the schema's data in all compressed
+     * databases.
+     *
+     * Must be called before any of the schema's data is written.
+     *
+     * @param schema
+     */
+    public void registerSchema(SchemaData.SingleSchema schema) {
+        ValueCodec codec;
+        try {
+            codec = ValueCodec.fromMeta(schema.name, schema.meta);
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Invalid compression for schema {}. Storing values uncompressed. Error was: \n{}", schema.name, ex);
+            codec = null;
+        }
+        codecs.register(schema.id.array(), codec);
+        if (codec != null) {
+            LOG.info("Compressing values of schema {} with {}", schema.name, codec.type.name);
+        }
+    }
+
+    private synchronized ValueCache getCache() {
+        if (cache == null) {
+            cache = new ValueCache(cacheCapacity);
+            Stats.register(cache);
+            LOG.info("Created value cache with {} bytes capacity", cacheCapacity);
+        }
+        return cache;
     }
 
     private static Database getInstance(Class<? extends Database> type, Config conf) throws InstantiationException {
@@ -0,0 +1,210 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.cache;
+
+import com.larskroll.common.ByteArrayRef;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.StoreIterator;
+
+/**
+ * Serves {@link #get(byte[])} from a {@link ValueCache} and passes everything
+ * else through to the wrapped database.
+ * <p>
+ * Only the newest value of a key is cached. Every write to a key (including
+ * batched ones) invalidates it after the write went through. Correctness
+ * relies on the PersistentStore never executing two requests on the same
+ * key concurrently, which it guarantees for reads and writes alike.
+ *
+ * @author lkroll
+ */
+public class CachedDatabase extends Database {
+
+    private final Database db;
+    private final ValueCache cache;
+    private final int ns;
+
+    public CachedDatabase(Database db, ValueCache cache) {
+        super(null);
+        this.db = db;
+        this.cache = cache;
+        this.ns = cache.newNamespace();
+    }
+
+    /**
+     * @return the wrapped database
+     */
+    public Database unwrap() {
+        return db;
+    }
+
+    @Override
+    public void close() {
+        cache.invalidateAll(ns);
+        db.close();
+    }
+
+    @Override
+    public void sync() {
+        db.sync();
+    }
+
+    @Override
+    public void rebuildFilter(KeyRange range, boolean force) throws IOException {
+        db.rebuildFilter(range, force);
+    }
+
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return db.supportsConcurrentAccess();
+    }
+
+    @Override
+    public boolean supportsLiveIterators() {
+        return db.supportsLiveIterators();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        db.put(key, value, version);
+        cache.invalidate(ns, key);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        db.replace(key, value);
+        cache.invalidate(ns, key);
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        db.delete(key, version);
+        cache.invalidate(ns, key);
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        int size = db.deleteVersions(key, version);
+        cache.invalidate(ns, key);
+        return size;
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        byte[] value = cache.get(ns, key);
+        if (value != null) {
+            return new ByteArrayRef(0, value.length, value);
+        }
+        ByteArrayRef ref = db.get(key);
+        if (ref != null) {
+            value = ref.dereference();
+            cache.put(ns, key, value);
+            return new ByteArrayRef(0, value.length, value);
+        }
+        return null;
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return db.getAllVersions(key);
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return db.getRaw(key);
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new CachedBatch(db.createBatch());
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        CachedBatch cb = (CachedBatch) b;
+        db.writeBatch(cb.batch);
+        for (byte[] key : cb.keys) {
+            cache.invalidate(ns, key);
+        }
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return db.iterator();
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return db.iterator(startKey);
+    }
+
+    @Override
+    public String toString() {
+        return "Cached(" + db + ")";
+    }
+
+    /**
+     * Remembers the written keys for invalidation.
+     */
+    private static class CachedBatch implements Batch {
+
+        private final Batch batch;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+
+        private CachedBatch(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value, int version) {
+            batch.put(key, value, version);
+            keys.add(key);
+        }
+
+        @Override
+        public void replace(byte[] key, ByteArrayRef value) {
+            batch.replace(key, value);
+            keys.add(key);
+        }
+
+        @Override
+        public void delete(byte[] key, int version) {
+            batch.delete(key, version);
+            keys.add(key);
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, int version) {
+            keys.add(key);
+            return batch.deleteVersions(key, version);
+        }
+
+        @Override
+        public void close() {
+            batch.close();
+        }
+    }
+}
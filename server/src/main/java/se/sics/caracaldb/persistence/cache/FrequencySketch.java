@@ -0,0 +1,107 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.cache;
+
+/**
+ * A Count-Min sketch with 4-bit counters estimating how often a key was
+ * accessed recently.
+ *
+ * Each long holds 16 counters. An item maps to one counter in each of four
+ * (hashed) longs and its frequency is the minimum of the four. Once the
+ * number of increments reaches ten times the number of counters in use, all
+ * counters are halved, so that the sketch forgets old popularity.
+ *
+ * Not thread-safe.
+ *
+ * @author lkroll
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = new long[]{
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * @param expectedEntries roughly the number of entries the cache holds
+     */
+    FrequencySketch(int expectedEntries) {
+        int n = Math.max(8, Math.min(1 << 24, expectedEntries));
+        int length = Integer.highestOneBit(n - 1) << 1;
+        this.table = new long[length];
+        this.sampleSize = 10 * n;
+    }
+
+    /**
+     * @param hash the item's hash
+     * @return the estimated number of recent accesses (0-15)
+     */
+    int frequency(int hash) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            long h = indexHash(hash, i);
+            int idx = (int) (h >>> 32) & (table.length - 1);
+            int shift = ((int) h & 15) << 2;
+            int count = (int) ((table[idx] >>> shift) & 15L);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /**
+     * Records an access to the item.
+     *
+     * @param hash the item's hash
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long h = indexHash(hash, i);
+            int idx = (int) (h >>> 32) & (table.length - 1);
+            int shift = ((int) h & 15) << 2;
+            long mask = 15L << shift;
+            if ((table[idx] & mask) != mask) {
+                table[idx] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && (++size >= sampleSize)) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size / 2;
+    }
+
+    private static long indexHash(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return h;
+    }
+}
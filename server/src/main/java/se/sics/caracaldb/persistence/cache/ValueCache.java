@@ -0,0 +1,431 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size-bounded value cache using W-TinyLFU admission and eviction.
+ *
+ * New entries enter a small LRU window (1% of the capacity). Entries falling
+ * out of the window become candidates for the main space, which is a
+ * segmented LRU (probation and protected). A candidate is only admitted if a
+ * {@link FrequencySketch} estimates it to be accessed more often than the
+ * probation victim it would replace. This keeps one-hit wonders (scans,
+ * sync traffic) from flushing the popular keys of a skewed workload.
+ *
+ * Lookups go through a ConcurrentHashMap and never block. The policy is
+ * updated under a lock, which reads only try to take; if it is contended the
+ * access is not recorded, trading a little policy accuracy for throughput.
+ *
+ * One cache is shared by all databases of a host. Each database gets its own
+ * namespace via {@link #newNamespace()}.
+ *
+ * @author lkroll
+ */
+public class ValueCache {
+
+    /**
+     * Rough per-entry bookkeeping cost in bytes, counted against the capacity.
+     */
+    static final int OVERHEAD = 96;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<CacheKey, Node> data = new ConcurrentHashMap<CacheKey, Node>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final Queue window = new Queue();
+    private final Queue probation = new Queue();
+    private final Queue protectd = new Queue();
+    private final long capacity;
+    private final long windowMax;
+    private final long protectedMax;
+    private final long maxEntryWeight;
+    private final AtomicInteger namespaces = new AtomicInteger(0);
+    // statistics
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private volatile long weight = 0;
+
+    /**
+     * @param capacity maximum size in bytes (keys, values and overhead)
+     */
+    public ValueCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.windowMax = Math.max(1, capacity / 100);
+        this.protectedMax = (capacity - windowMax) * 8 / 10;
+        this.maxEntryWeight = Math.max(1, capacity / 16); // don't let single huge values take over
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / 256));
+    }
+
+    /**
+     * @return a namespace id to separate the keys of a database from others
+     */
+    public int newNamespace() {
+        return namespaces.getAndIncrement();
+    }
+
+    /**
+     * @param ns the database's namespace
+     * @param key
+     * @return the cached value or null if there is none
+     */
+    public byte[] get(int ns, byte[] key) {
+        CacheKey ck = new CacheKey(ns, key);
+        Node node = data.get(ck);
+        if (node == null) {
+            misses.incrementAndGet();
+            if (policyLock.tryLock()) {
+                try {
+                    sketch.increment(ck.hash);
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+            return null;
+        }
+        hits.incrementAndGet();
+        byte[] value = node.value;
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(ck.hash);
+                if (node.queue >= 0) { // skip if it was removed in the meantime
+                    onAccess(node);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Caches a value that was just read from the database.
+     *
+     * The caller must make sure that there is no concurrent write to the same
+     * key, otherwise a stale value could be cached after its invalidation.
+     *
+     * @param ns the database's namespace
+     * @param key
+     * @param value
+     */
+    public void put(int ns, byte[] key, byte[] value) {
+        long w = (long) key.length + value.length + OVERHEAD;
+        if (w > maxEntryWeight) {
+            return;
+        }
+        CacheKey ck = new CacheKey(ns, key);
+        policyLock.lock();
+        try {
+            Node node = data.get(ck);
+            if (node != null) {
+                int id = node.queue;
+                Queue q = queueOf(node);
+                q.remove(node);
+                weight += w - node.weight;
+                node.weight = w;
+                node.value = value;
+                q.addLast(node, id);
+            } else {
+                node = new Node(ck, value, w);
+                data.put(ck, node);
+                weight += w;
+                window.addLast(node, WINDOW);
+            }
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the key, if it's cached.
+     *
+     * @param ns the database's namespace
+     * @param key
+     */
+    public void invalidate(int ns, byte[] key) {
+        CacheKey ck = new CacheKey(ns, key);
+        if (!data.containsKey(ck)) {
+            return;
+        }
+        policyLock.lock();
+        try {
+            Node node = data.remove(ck);
+            if (node != null) {
+                queueOf(node).remove(node);
+                node.queue = -1;
+                weight -= node.weight;
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Drops all entries of a namespace (e.g. when its database is closed).
+     *
+     * @param ns
+     */
+    public void invalidateAll(int ns) {
+        policyLock.lock();
+        try {
+            List<Node> dead = new ArrayList<Node>();
+            for (Node node : data.values()) {
+                if (node.key.ns == ns) {
+                    dead.add(node);
+                }
+            }
+            for (Node node : dead) {
+                data.remove(node.key);
+                queueOf(node).remove(node);
+                node.queue = -1;
+                weight -= node.weight;
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the current size in bytes including overhead
+     */
+    public long weight() {
+        return weight;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    /*
+     * Policy (call with the lock held)
+     */
+    private void onAccess(Node node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToEnd(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                protectd.addLast(node, PROTECTED);
+                while (protectd.weight > protectedMax) {
+                    Node demoted = protectd.first();
+                    protectd.remove(demoted);
+                    probation.addLast(demoted, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                protectd.moveToEnd(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void evict() {
+        // move the window's overflow to probation, they are the candidates
+        Node candidate = null;
+        while (window.weight > windowMax && window.first() != null) {
+            Node n = window.first();
+            window.remove(n);
+            probation.addLast(n, PROBATION);
+            if (candidate == null) {
+                candidate = n;
+            }
+        }
+        while (weight > capacity) {
+            Node victim = probation.first();
+            if (victim == null) {
+                victim = (protectd.first() != null) ? protectd.first() : window.first();
+            }
+            if (victim == null) {
+                return; // nothing left
+            }
+            if (candidate != null && candidate != victim && candidate.queue == PROBATION) {
+                // TinyLFU admission: the more popular of the two stays
+                Node next = candidate.next;
+                if (sketch.frequency(candidate.key.hash) > sketch.frequency(victim.key.hash)) {
+                    remove(victim);
+                } else {
+                    remove(candidate);
+                    candidate = next;
+                }
+            } else {
+                if (victim == candidate) {
+                    candidate = candidate.next;
+                }
+                remove(victim);
+            }
+        }
+    }
+
+    private void remove(Node node) {
+        data.remove(node.key);
+        queueOf(node).remove(node);
+        node.queue = -1;
+        weight -= node.weight;
+        evictions.incrementAndGet();
+    }
+
+    private Queue queueOf(Node node) {
+        switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            case PROTECTED:
+                return protectd;
+            default:
+                throw new IllegalStateException("Node is not queued: " + node.queue);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ValueCache(" + weight + "/" + capacity + "B, " + data.size() + " entries, hits: "
+                + hits.get() + ", misses: " + misses.get() + ", evictions: " + evictions.get() + ")";
+    }
+
+    static final class CacheKey {
+
+        final int ns;
+        final byte[] key;
+        final int hash;
+
+        CacheKey(int ns, byte[] key) {
+            this.ns = ns;
+            this.key = key;
+            int h = 31 * Arrays.hashCode(key) + ns;
+            this.hash = h ^ (h >>> 16);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return (this.ns == that.ns) && Arrays.equals(this.key, that.key);
+        }
+    }
+
+    private static final class Node {
+
+        final CacheKey key;
+        volatile byte[] value;
+        long weight;
+        int queue = -1;
+        Node prev;
+        Node next;
+
+        Node(CacheKey key, byte[] value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Intrusive LRU list (first is least recently used).
+     */
+    private static final class Queue {
+
+        private Node head;
+        private Node tail;
+        long weight = 0;
+
+        Node first() {
+            return head;
+        }
+
+        void addLast(Node node, int id) {
+            node.queue = id;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToEnd(Node node) {
+            if (node == tail) {
+                return;
+            }
+            int id = node.queue;
+            remove(node);
+            addLast(node, id);
+        }
+    }
+}
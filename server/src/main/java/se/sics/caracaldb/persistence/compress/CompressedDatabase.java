@@ -0,0 +1,261 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.compress;
+
+import com.larskroll.common.ByteArrayRef;
+import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.StoreIterator;
+
+/**
+ * Compresses values with the {@link ValueCodec} of their schema before they
+ * reach the wrapped database and decompresses them on the way out.
+ * <p>
+ * Only the value methods are translated. The raw multi-version blobs
+ * ({@link #getRaw(byte[])}, {@link StoreIterator#peekRaw()} and
+ * {@link #replace(byte[], ByteArrayRef)}) are passed through as they are, so
+ * data transfers and size calculations see the compressed data.
+ *
+ * @author lkroll
+ */
+public class CompressedDatabase extends Database {
+
+    private final Database db;
+    private final SchemaCodecs codecs;
+
+    public CompressedDatabase(Database db, SchemaCodecs codecs) {
+        super(null);
+        this.db = db;
+        this.codecs = codecs;
+    }
+
+    /**
+     * @return the wrapped database
+     */
+    public Database unwrap() {
+        return db;
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+
+    @Override
+    public void sync() {
+        db.sync();
+    }
+
+    @Override
+    public void rebuildFilter(KeyRange range, boolean force) throws IOException {
+        db.rebuildFilter(range, force);
+    }
+
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return db.supportsConcurrentAccess();
+    }
+
+    @Override
+    public boolean supportsLiveIterators() {
+        return db.supportsLiveIterators();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        db.put(key, encode(key, value), version);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        db.replace(key, value);
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        db.delete(key, version);
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        return db.deleteVersions(key, version);
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        ByteArrayRef value = db.get(key);
+        ValueCodec codec = codecs.codecFor(key);
+        if (codec == null) {
+            return value;
+        }
+        return codec.decode(value);
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return decodeAll(codecs.codecFor(key), db.getAllVersions(key));
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return db.getRaw(key);
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new CompressedBatch(db.createBatch());
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        db.writeBatch(((CompressedBatch) b).batch);
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return new CompressedIterator(db.iterator());
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return new CompressedIterator(db.iterator(startKey));
+    }
+
+    @Override
+    public String toString() {
+        return "Compressed(" + db + ")";
+    }
+
+    private byte[] encode(byte[] key, byte[] value) {
+        ValueCodec codec = codecs.codecFor(key);
+        if (codec == null) {
+            return value;
+        }
+        return codec.encode(value);
+    }
+
+    private static SortedMap<Integer, ByteArrayRef> decodeAll(ValueCodec codec, SortedMap<Integer, ByteArrayRef> versions) {
+        if ((codec == null) || versions.isEmpty()) {
+            return versions;
+        }
+        SortedMap<Integer, ByteArrayRef> decoded = new TreeMap<Integer, ByteArrayRef>(versions.comparator());
+        for (Entry<Integer, ByteArrayRef> e : versions.entrySet()) {
+            decoded.put(e.getKey(), codec.decode(e.getValue()));
+        }
+        return decoded;
+    }
+
+    private class CompressedBatch implements Batch {
+
+        private final Batch batch;
+
+        private CompressedBatch(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value, int version) {
+            batch.put(key, encode(key, value), version);
+        }
+
+        @Override
+        public void replace(byte[] key, ByteArrayRef value) {
+            batch.replace(key, value);
+        }
+
+        @Override
+        public void delete(byte[] key, int version) {
+            batch.delete(key, version);
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, int version) {
+            return batch.deleteVersions(key, version);
+        }
+
+        @Override
+        public void close() {
+            batch.close();
+        }
+    }
+
+    private class CompressedIterator implements StoreIterator {
+
+        private final StoreIterator it;
+
+        private CompressedIterator(StoreIterator it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public void next() {
+            it.next();
+        }
+
+        @Override
+        public byte[] peekKey() {
+            return it.peekKey();
+        }
+
+        @Override
+        public ByteArrayRef peekValue() {
+            return decode(it.peekValue());
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            return decode(it.peekValue(maxVersionId));
+        }
+
+        @Override
+        public SortedMap<Integer, ByteArrayRef> peekAllValues() {
+            return decodeAll(codecs.codecFor(it.peekKey()), it.peekAllValues());
+        }
+
+        @Override
+        public byte[] peekRaw() {
+            return it.peekRaw();
+        }
+
+        @Override
+        public void close() throws IOException {
+            it.close();
+        }
+
+        private ByteArrayRef decode(ByteArrayRef value) {
+            ValueCodec codec = codecs.codecFor(it.peekKey());
+            if (codec == null) {
+                return value;
+            }
+            return codec.decode(value);
+        }
+    }
+}
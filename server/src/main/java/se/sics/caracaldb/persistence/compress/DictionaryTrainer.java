@@ -0,0 +1,170 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.compress;
+
+import com.google.common.io.BaseEncoding;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds a preset dictionary for {@link ValueCodec} from sample values.
+ * <p>
+ * Small values compress badly on their own, since the compressor has no
+ * history to refer back to. A dictionary made of the substrings that are
+ * common across values (field names, enum values, etc. in JSON documents)
+ * provides that history.
+ * <p>
+ * Works like a simplified version of zstd's COVER algorithm: every fixed
+ * size segment of the samples is scored by how many samples contain its
+ * k-grams, and the best segments are picked greedily, not counting k-grams
+ * that are already covered. The best segments go to the end of the
+ * dictionary, where deflate can reference them most cheaply.
+ *
+ * @author lkroll
+ */
+public class DictionaryTrainer {
+
+    public static final int DEFAULT_SIZE = 4096;
+    public static final int MAX_SIZE = 32 * 1024; // deflate's window
+    private static final int K = 8;
+    private static final int SEGMENT = 32;
+
+    /**
+     * @param samples typical values of the schema
+     * @param size maximum dictionary size in bytes
+     * @return the dictionary (empty if the samples have nothing in common)
+     */
+    public static byte[] train(List<byte[]> samples, int size) {
+        if ((size <= 0) || (size > MAX_SIZE)) {
+            throw new IllegalArgumentException("Dictionary size must be in (0, " + MAX_SIZE + "]");
+        }
+        // in how many samples does each k-gram occur
+        final Map<Long, Integer> freq = new HashMap<Long, Integer>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<Long>();
+            for (int i = 0; i + K <= sample.length; i++) {
+                Long gram = gram(sample, i);
+                if (seen.add(gram)) {
+                    Integer f = freq.get(gram);
+                    freq.put(gram, f == null ? 1 : f + 1);
+                }
+            }
+        }
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+        for (byte[] sample : samples) {
+            for (int i = 0; i < sample.length; i += K) {
+                int end = Math.min(i + SEGMENT, sample.length);
+                if (end - i < K) {
+                    break;
+                }
+                Segment s = new Segment(sample, i, end);
+                s.score = s.score(freq);
+                if (s.score > 0) {
+                    queue.add(s);
+                }
+            }
+        }
+        List<Segment> picked = new ArrayList<Segment>();
+        int total = 0;
+        while (!queue.isEmpty() && (total < size)) {
+            Segment s = queue.poll();
+            long score = s.score(freq);
+            if (score <= 0) {
+                continue;
+            }
+            Segment next = queue.peek();
+            if ((next != null) && (score < next.score)) {
+                s.score = score; // got worse since it was queued
+                queue.add(s);
+                continue;
+            }
+            picked.add(s);
+            total += s.end - s.begin;
+            for (int i = s.begin; i + K <= s.end; i++) {
+                freq.remove(gram(s.data, i)); // covered now
+            }
+        }
+        byte[] dict = new byte[Math.min(total, size)];
+        int pos = dict.length;
+        for (Segment s : picked) { // best first, so fill from the back
+            int len = Math.min(s.end - s.begin, pos);
+            pos -= len;
+            System.arraycopy(s.data, s.end - len, dict, pos, len);
+            if (pos == 0) {
+                break;
+            }
+        }
+        return dict;
+    }
+
+    /**
+     * @param samples
+     * @param size
+     * @return the dictionary as expected in the schema's metadata at
+     * {@link ValueCodec#DICTIONARY_META_KEY}
+     */
+    public static String trainEncoded(List<byte[]> samples, int size) {
+        return BaseEncoding.base64().encode(train(samples, size));
+    }
+
+    private static Long gram(byte[] data, int offset) {
+        long g = 0;
+        for (int i = 0; i < K; i++) {
+            g = (g << 8) | (data[offset + i] & 0xFF);
+        }
+        return g;
+    }
+
+    private static class Segment implements Comparable<Segment> {
+
+        final byte[] data;
+        final int begin;
+        final int end;
+        long score;
+
+        Segment(byte[] data, int begin, int end) {
+            this.data = data;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        long score(Map<Long, Integer> freq) {
+            long sum = 0;
+            for (int i = begin; i + K <= end; i++) {
+                Integer f = freq.get(gram(data, i));
+                if ((f != null) && (f > 1)) { // unique k-grams don't help
+                    sum += f;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public int compareTo(Segment that) {
+            return Long.compare(that.score, this.score); // highest first
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.compress;
+
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import se.sics.caracaldb.Key;
+
+/**
+ * The {@link ValueCodec}s of all schemas on a host, looked up by the schema
+ * id prefix of a key.
+ * <p>
+ * Shared by all {@link CompressedDatabase}s of a DatabaseManager, since
+ * host-level databases hold the data of multiple schemas.
+ *
+ * @author lkroll
+ */
+public class SchemaCodecs {
+
+    private final ConcurrentSkipListMap<Key, ValueCodec> codecs = new ConcurrentSkipListMap<Key, ValueCodec>();
+
+    /**
+     * @param schemaId
+     * @param codec or null to store the schema's values as they are
+     */
+    public void register(byte[] schemaId, ValueCodec codec) {
+        Key k = new Key(schemaId);
+        if (codec == null) {
+            codecs.remove(k);
+        } else {
+            codecs.put(k, codec);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the codec for the schema key belongs to or null if it doesn't
+     * compress
+     */
+    public ValueCodec codecFor(byte[] key) {
+        if (codecs.isEmpty()) {
+            return null;
+        }
+        Entry<Key, ValueCodec> e = codecs.floorEntry(new Key(key));
+        if (e == null) {
+            return null;
+        }
+        byte[] prefix = e.getKey().getArray();
+        if (prefix.length > key.length) {
+            return null;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (prefix[i] != key[i]) {
+                return null;
+            }
+        }
+        return e.getValue();
+    }
+
+    public Collection<ValueCodec> codecs() {
+        return codecs.values();
+    }
+}
@@ -0,0 +1,310 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.compress;
+
+import com.google.common.io.BaseEncoding;
+import com.larskroll.common.ByteArrayRef;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import se.sics.caracaldb.persistence.MultiVersionUtil;
+
+/**
+ * Compresses the values of a single schema.
+ * <p>
+ * Selected via the schema's metadata:<br>
+ * compression -> {none, fast, deflate} (default: none)<br>
+ * compression.dictionary -> base64 encoded preset dictionary for deflate
+ * (see {@link DictionaryTrainer}) (default: none)<br>
+ * <p>
+ * Encoded values start with a type byte. Deflated values continue with
+ * their uncompressed length (4 bytes) and the compressed data. Values that
+ * don't get smaller are stored as they are behind the type byte, so they
+ * grow by a single byte. Schemas with compression therefore only accept
+ * values up to {@link #MAX_VALUE_SIZE}, one byte less than
+ * {@link MultiVersionUtil#MAX_DATA_SIZE}; MethCat rejects larger writes with
+ * VALUE_TOO_LARGE (see {@link #maxValueSize(Map)}). Empty values
+ * (tombstones) are never encoded, so they stay recognisable to the layouts.
+ * <p>
+ * The dictionary is part of the schema, so every replica decodes the values
+ * it receives in a data transfer without them being recompressed.
+ *
+ * @author lkroll
+ */
+public class ValueCodec {
+
+    public static final String META_KEY = "compression";
+    public static final String DICTIONARY_META_KEY = "compression.dictionary";
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+    static final int STORED_HEADER = 1; // type
+    static final int HEADER = 5; // type + uncompressed length
+    public static final int MAX_VALUE_SIZE = MultiVersionUtil.MAX_DATA_SIZE - STORED_HEADER;
+
+    public static enum Type {
+
+        NONE("none", Deflater.NO_COMPRESSION),
+        FAST("fast", Deflater.BEST_SPEED),
+        DEFLATE("deflate", Deflater.DEFAULT_COMPRESSION);
+
+        public final String name;
+        public final int level;
+
+        private Type(String name, int level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        public static Type fromName(String name) {
+            if (name == null) {
+                return NONE;
+            }
+            for (Type t : values()) {
+                if (t.name.equalsIgnoreCase(name)) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    public final String schema;
+    public final Type type;
+    private final byte[] dictionary;
+    private final long dictionaryId;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters;
+    // stats
+    private final AtomicLong rawBytes = new AtomicLong(0);
+    private final AtomicLong storedBytes = new AtomicLong(0);
+    private final AtomicLong encoded = new AtomicLong(0);
+    private final AtomicLong encodeNanos = new AtomicLong(0);
+    private final AtomicLong decoded = new AtomicLong(0);
+    private final AtomicLong decodeNanos = new AtomicLong(0);
+
+    public ValueCodec(String schema, Type type, byte[] dictionary) {
+        if (type == Type.NONE) {
+            throw new IllegalArgumentException("No codec needed for " + type);
+        }
+        this.schema = schema;
+        this.type = type;
+        this.dictionary = (dictionary != null && dictionary.length > 0) ? dictionary : null;
+        if (this.dictionary != null) {
+            Adler32 adler = new Adler32();
+            adler.update(this.dictionary);
+            this.dictionaryId = adler.getValue();
+        } else {
+            this.dictionaryId = -1;
+        }
+        final int level = type.level;
+        this.deflaters = new ThreadLocal<Deflater>() {
+
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level);
+            }
+        };
+        this.inflaters = new ThreadLocal<Inflater>() {
+
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater();
+            }
+        };
+    }
+
+    /**
+     * @param schema name of the schema (for logging and stats)
+     * @param meta the schema's metadata
+     * @return the codec selected in meta or null if values are stored as they
+     * are
+     * @throws IllegalArgumentException if meta contains invalid values
+     */
+    public static ValueCodec fromMeta(String schema, Map<String, String> meta) {
+        Type type = Type.fromName(meta.get(META_KEY));
+        if (type == Type.NONE) {
+            return null;
+        }
+        byte[] dict = null;
+        String dictStr = meta.get(DICTIONARY_META_KEY);
+        if (dictStr != null) {
+            dict = BaseEncoding.base64().decode(dictStr);
+        }
+        return new ValueCodec(schema, type, dict);
+    }
+
+    /**
+     * @param meta a schema's metadata
+     * @return the largest value the schema accepts
+     */
+    public static int maxValueSize(Map<String, String> meta) {
+        try {
+            if (Type.fromName(meta.get(META_KEY)) != Type.NONE) {
+                return MAX_VALUE_SIZE;
+            }
+        } catch (IllegalArgumentException ex) {
+            // stored uncompressed, see DatabaseManager
+        }
+        return MultiVersionUtil.MAX_DATA_SIZE;
+    }
+
+    /**
+     * @param value
+     * @return the encoded value
+     * @throws IllegalArgumentException if the value doesn't compress and is
+     * larger than {@link #MAX_VALUE_SIZE}
+     */
+    public byte[] encode(byte[] value) {
+        if (value.length == 0) {
+            return value;
+        }
+        long start = System.nanoTime();
+        // must save at least a byte over storing it to be worth it, and fit
+        int limit = Math.min(value.length - HEADER + STORED_HEADER - 1,
+                MultiVersionUtil.MAX_DATA_SIZE - HEADER);
+        byte[] data = new byte[HEADER + Math.max(limit, 0)];
+        data[1] = (byte) (value.length >>> 24);
+        data[2] = (byte) (value.length >>> 16);
+        data[3] = (byte) (value.length >>> 8);
+        data[4] = (byte) value.length;
+        int n = 0;
+        if (limit > 0) {
+            Deflater d = deflaters.get();
+            d.reset();
+            if (dictionary != null) {
+                d.setDictionary(dictionary);
+            }
+            d.setInput(value);
+            d.finish();
+            n = d.deflate(data, HEADER, limit);
+            if (!d.finished()) {
+                n = 0;
+            }
+        }
+        byte[] result;
+        if (n > 0) {
+            data[0] = DEFLATED;
+            result = new byte[HEADER + n];
+            System.arraycopy(data, 0, result, 0, result.length);
+        } else {
+            if (value.length > MAX_VALUE_SIZE) { // MethCat should have rejected it
+                throw new IllegalArgumentException("Value of " + value.length + " bytes in schema " + schema
+                        + " doesn't compress and exceeds the limit of " + MAX_VALUE_SIZE + " bytes.");
+            }
+            result = new byte[STORED_HEADER + value.length];
+            result[0] = STORED;
+            System.arraycopy(value, 0, result, STORED_HEADER, value.length);
+        }
+        encoded.incrementAndGet();
+        rawBytes.addAndGet(value.length);
+        storedBytes.addAndGet(result.length);
+        encodeNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+    public ByteArrayRef decode(ByteArrayRef ref) {
+        if ((ref == null) || (ref.length == 0)) {
+            return ref;
+        }
+        long start = System.nanoTime();
+        byte[] data = ref.dereference();
+        byte[] value;
+        switch (data[0]) {
+            case STORED:
+                value = new byte[data.length - STORED_HEADER];
+                System.arraycopy(data, STORED_HEADER, value, 0, value.length);
+                break;
+            case DEFLATED:
+                if (data.length <= HEADER) {
+                    throw new IllegalStateException("Value in schema " + schema + " is not encoded");
+                }
+                int length = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16)
+                        | ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+                value = new byte[length];
+                inflate(data, value);
+                break;
+            default:
+                throw new IllegalStateException("Unknown value encoding " + data[0] + " in schema " + schema);
+        }
+        decoded.incrementAndGet();
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        return new ByteArrayRef(0, value.length, value);
+    }
+
+    private void inflate(byte[] data, byte[] value) {
+        Inflater inf = inflaters.get();
+        inf.reset();
+        inf.setInput(data, HEADER, data.length - HEADER);
+        try {
+            int n = inf.inflate(value);
+            if (inf.needsDictionary()) {
+                if ((dictionary == null) || (inf.getAdler() != dictionaryId)) {
+                    throw new IllegalStateException("Value in schema " + schema + " was compressed with a different dictionary");
+                }
+                inf.setDictionary(dictionary);
+                n += inf.inflate(value, n, value.length - n);
+            }
+            if (n != value.length) {
+                throw new IllegalStateException("Corrupt value in schema " + schema
+                        + ": expected " + value.length + " bytes but got " + n);
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Corrupt value in schema " + schema, ex);
+        }
+    }
+
+    /**
+     * @return stored bytes / raw bytes of all values encoded so far (1.0 if
+     * nothing was encoded)
+     */
+    public double ratio() {
+        long raw = rawBytes.get();
+        if (raw == 0) {
+            return 1.0;
+        }
+        return ((double) storedBytes.get()) / ((double) raw);
+    }
+
+    public double averageEncodeMicros() {
+        return average(encodeNanos.get(), encoded.get());
+    }
+
+    public double averageDecodeMicros() {
+        return average(decodeNanos.get(), decoded.get());
+    }
+
+    private static double average(long nanos, long count) {
+        if (count == 0) {
+            return 0.0;
+        }
+        return ((double) nanos) / ((double) count) / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s%s, ratio %.3f, encode %.1fus, decode %.1fus",
+                schema, type.name, dictionary != null ? " (dict)" : "",
+                ratio(), averageEncodeMicros(), averageDecodeMicros());
+    }
+}
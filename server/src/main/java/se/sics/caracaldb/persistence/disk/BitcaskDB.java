@@ -0,0 +1,144 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk;
+
+import com.larskroll.common.ByteArrayRef;
+import com.typesafe.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.util.SortedMap;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.HostLevelDB;
+import se.sics.caracaldb.persistence.PackedLayout;
+import se.sics.caracaldb.persistence.StoreIterator;
+import se.sics.caracaldb.persistence.disk.bitcask.BitcaskStore;
+
+/**
+ * Disk store for schemas that only do point lookups, based on a
+ * {@link BitcaskStore}.
+ * <p>
+ * Gets and puts are a single disk access each. Range queries and iterators
+ * work but have to sort all keys first, so don't use this for schemas that
+ * scan.
+ * <p>
+ * Always uses the packed layout, since the versioned layout relies on
+ * ordered scans.
+ *
+ * @author lkroll
+ */
+public class BitcaskDB extends HostLevelDB {
+
+    private BitcaskStore db;
+    private final String dbPath;
+    private final PackedLayout layout;
+
+    public BitcaskDB(Config config) throws IOException {
+        super(config);
+        this.dbPath = config.getString("bitcask.path");
+
+        BitcaskStore.Options options = new BitcaskStore.Options();
+        options.segmentSize = config.getBytes("bitcask.segmentSize");
+        options.mergeThreshold = config.getDouble("bitcask.mergeThreshold");
+        options.mergeInterval = config.getMilliseconds("bitcask.mergeInterval");
+        options.syncWrites = config.getBoolean("bitcask.syncWrites");
+
+        db = BitcaskStore.open(new File(dbPath), options);
+        layout = new PackedLayout(db);
+    }
+
+    @Override
+    public String toString() {
+        return "BitcaskDB(" + db + ")";
+    }
+
+    @Override
+    public void close() {
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+    }
+
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return true;
+    }
+
+    @Override
+    public void sync() {
+        db.sync();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        layout.put(key, value, version);
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        layout.delete(key, version);
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        return layout.get(key);
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return layout.getAllVersions(key);
+    }
+
+    @Override
+    public Batch createBatch() {
+        return layout.createBatch();
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        layout.writeBatch(b);
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return layout.iterator();
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return layout.iterator(startKey);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        layout.replace(key, value);
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        return layout.deleteVersions(key, version);
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return layout.getRaw(key);
+    }
+}
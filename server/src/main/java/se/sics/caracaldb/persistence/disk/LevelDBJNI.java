@@ -24,16 +24,22 @@ import com.typesafe.config.Config;
 import java.io.File;
 import java.io.IOException;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import org.fusesource.leveldbjni.JniDBFactory;
 import org.iq80.leveldb.CompressionType;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
 import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
 import se.sics.caracaldb.persistence.Batch;
 import se.sics.caracaldb.persistence.HostLevelDB;
 import se.sics.caracaldb.persistence.MultiVersionUtil;
+import se.sics.caracaldb.persistence.RawStore;
 import se.sics.caracaldb.persistence.StoreIterator;
+import se.sics.caracaldb.persistence.VersionedKeys;
+import se.sics.caracaldb.persistence.VersionedLayout;
+import se.sics.caracaldb.persistence.VersionView;
 import com.larskroll.common.ByteArrayRef;
 
 /**
@@ -41,9 +47,12 @@ import com.larskroll.common.ByteArrayRef;
  */
 public class LevelDBJNI extends HostLevelDB {
 
+    private static final byte[] EMPTY = new byte[0];
     private DB db;
     private final String dbPath;
     private final long cacheSize;
+    private final String layoutName;
+    private VersionedLayout layout; // null for the packed layout
 
     /**
      * @param config
@@ -53,6 +62,7 @@ public class LevelDBJNI extends HostLevelDB {
         super(config);
         this.dbPath = config.getString("leveldb.path");
         this.cacheSize = config.getBytes("leveldb.cache");
+        this.layoutName = config.getString("leveldb.layout");
         File dbDir = new File(dbPath);
         if (!dbDir.exists()) {
             if (!dbDir.mkdirs()) {
@@ -66,11 +76,23 @@ public class LevelDBJNI extends HostLevelDB {
         options.compressionType(CompressionType.NONE);	// No compression
 
         db = JniDBFactory.factory.open(dbDir, options);
+
+        if (layoutName.equals("versioned")) {
+            layout = VersionedLayout.open(new LevelDBRaw());
+        } else if (layoutName.equals("packed")) {
+            if (db.get(VersionedKeys.META_KEY) != null) {
+                close();
+                throw new IOException("DB at " + dbPath + " uses the versioned layout. Can't open it as packed!");
+            }
+        } else {
+            close();
+            throw new IOException("Unknown layout: " + layoutName);
+        }
     }
 
     @Override
     public String toString() {
-        return "LevelDBJNI(\"" + dbPath + "\", " + cacheSize + ")";
+        return "LevelDBJNI(\"" + dbPath + "\", " + cacheSize + ", " + layoutName + ")";
     }
 
     @Override
@@ -81,21 +103,41 @@ public class LevelDBJNI extends HostLevelDB {
         }
     }
 
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return true;
+    }
+
+    @Override
+    public void sync() {
+        WriteBatch empty = db.createWriteBatch();
+        try {
+            db.write(empty, new WriteOptions().sync(true)); // forces the log including all earlier writes
+        } finally {
+            empty.close();
+        }
+    }
+
     @Override
     public void put(byte[] key, byte[] value, int version) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        versions.put(version, new ByteArrayRef(0, value.length, value));
-        db.put(key, MultiVersionUtil.pack(versions));
+        if (layout != null) {
+            layout.put(key, value, version);
+            return;
+        }
+        db.put(key, MultiVersionUtil.withVersion(db.get(key), version, value));
     }
 
     @Override
     public void delete(byte[] key, int version) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        if (versions.isEmpty()) {
+        if (layout != null) {
+            layout.delete(key, version);
+            return;
+        }
+        byte[] oldData = db.get(key);
+        if (oldData == null) {
             return; // nothing to do
         }
-        versions.put(version, new ByteArrayRef(0, 0, null));
-        byte[] data = MultiVersionUtil.pack(versions);
+        byte[] data = MultiVersionUtil.withVersion(oldData, version, EMPTY);
         if (data == null) {
             db.delete(key);
         } else {
@@ -105,20 +147,26 @@ public class LevelDBJNI extends HostLevelDB {
 
     @Override
     public ByteArrayRef get(byte[] key) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        if (versions.isEmpty()) {
-            return null;
+        if (layout != null) {
+            return layout.get(key);
         }
-        return versions.get(versions.firstKey());
+        return MultiVersionUtil.newest(db.get(key));
     }
 
     @Override
     public Batch createBatch() {
+        if (layout != null) {
+            return layout.createBatch();
+        }
         return new LevelDBBatch(db.createWriteBatch(), this);
     }
 
     @Override
     public void writeBatch(Batch b) {
+        if (layout != null) {
+            layout.writeBatch(b);
+            return;
+        }
         LevelDBBatch batch = (LevelDBBatch) b;
         // If this cast doesn't work, someone is doing something seriously wrong
         db.write(batch.getLevelDBBatch());
@@ -126,41 +174,52 @@ public class LevelDBJNI extends HostLevelDB {
 
     @Override
     public StoreIterator iterator() {
+        if (layout != null) {
+            return layout.iterator();
+        }
         return new LevelDBIterator(db.iterator());
     }
 
     @Override
     public StoreIterator iterator(byte[] startKey) {
+        if (layout != null) {
+            return layout.iterator(startKey);
+        }
         return new LevelDBIterator(db.iterator(), startKey);
     }
 
     @Override
     public void replace(byte[] key, ByteArrayRef value) {
+        if (layout != null) {
+            layout.replace(key, value);
+            return;
+        }
         db.put(key, value.getBackingArray());
     }
 
     @Override
     public int deleteVersions(byte[] key, int version) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        if (versions.isEmpty()) {
-            return 0; // nothing to do
+        if (layout != null) {
+            return layout.deleteVersions(key, version);
         }
-        SortedMap<Integer, ByteArrayRef> newVersions = versions.headMap(version);
-        if (newVersions.isEmpty()) { // always retain the newest value
-            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        byte[] oldData = db.get(key);
+        if (oldData == null) {
+            return 0; // nothing to do
         }
-        byte[] newData = MultiVersionUtil.pack(newVersions);
+        byte[] newData = trimVersions(oldData, version);
         if (newData == null) {
             db.delete(key);
             return 0;
         }
         db.put(key, newData);
         return newData.length;
-
     }
 
     @Override
     public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        if (layout != null) {
+            return layout.getAllVersions(key);
+        }
         byte[] data = db.get(key);
         SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(data);
         return versions;
@@ -168,9 +227,137 @@ public class LevelDBJNI extends HostLevelDB {
 
     @Override
     public byte[] getRaw(byte[] key) {
+        if (layout != null) {
+            return layout.getRaw(key);
+        }
         return db.get(key);
     }
 
+    /**
+     * @param data
+     * @param version
+     * @return data without versions older than version (but at least the
+     * newest one), or null if nothing but deletions are left
+     */
+    private static byte[] trimVersions(byte[] data, int version) {
+        SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(data);
+        if (versions.isEmpty()) {
+            return null;
+        }
+        // copy, so the newest version can be added outside of the head range
+        SortedMap<Integer, ByteArrayRef> newVersions = new TreeMap<Integer, ByteArrayRef>(versions.headMap(version));
+        if (newVersions.isEmpty()) { // always retain the newest value
+            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        }
+        return MultiVersionUtil.pack(newVersions);
+    }
+
+    /**
+     * Direct access to LevelDB for the versioned layout.
+     */
+    private class LevelDBRaw implements RawStore {
+
+        @Override
+        public byte[] get(byte[] key) {
+            return db.get(key);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            db.put(key, value);
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            db.delete(key);
+        }
+
+        @Override
+        public RawStore.Cursor cursor(byte[] startKey) {
+            DBIterator it = db.iterator();
+            if (startKey == null) {
+                it.seekToFirst();
+            } else {
+                it.seek(startKey);
+            }
+            return new LevelDBCursor(it);
+        }
+
+        @Override
+        public RawStore.RawBatch createBatch() {
+            return new LevelDBRawBatch(db.createWriteBatch());
+        }
+
+        @Override
+        public void writeBatch(RawStore.RawBatch b) {
+            db.write(((LevelDBRawBatch) b).batch);
+        }
+    }
+
+    private static class LevelDBRawBatch implements RawStore.RawBatch {
+
+        private WriteBatch batch;
+
+        private LevelDBRawBatch(WriteBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            batch.put(key, value);
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            batch.delete(key);
+        }
+
+        @Override
+        public void close() {
+            if (batch != null) {
+                batch.close();
+                batch = null;
+            }
+        }
+    }
+
+    private static class LevelDBCursor implements RawStore.Cursor {
+
+        private DBIterator it;
+
+        private LevelDBCursor(DBIterator it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean valid() {
+            return it.hasNext();
+        }
+
+        @Override
+        public void next() {
+            it.next();
+        }
+
+        @Override
+        public byte[] key() {
+            return it.peekNext().getKey();
+        }
+
+        @Override
+        public byte[] value() {
+            return it.peekNext().getValue();
+        }
+
+        @Override
+        public void close() {
+            if (it != null) {
+                it.close();
+                it = null;
+            }
+        }
+    }
+
     private static class LevelDBBatch implements Batch {
 
         private WriteBatch batch;
@@ -183,19 +370,16 @@ public class LevelDBJNI extends HostLevelDB {
 
         @Override
         public void put(byte[] key, byte[] value, int version) {
-            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
-            versions.put(version, new ByteArrayRef(0, value.length, value));
-            batch.put(key, MultiVersionUtil.pack(versions));
+            batch.put(key, MultiVersionUtil.withVersion(db.getRaw(key), version, value));
         }
 
         @Override
         public void delete(byte[] key, int version) {
-            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
-            if (versions.isEmpty()) {
+            byte[] oldData = db.getRaw(key);
+            if (oldData == null) {
                 return; // nothing to do
             }
-            versions.put(version, new ByteArrayRef(0, 0, null));
-            byte[] data = MultiVersionUtil.pack(versions);
+            byte[] data = MultiVersionUtil.withVersion(oldData, version, EMPTY);
             if (data == null) {
                 batch.delete(key);
             } else {
@@ -222,15 +406,11 @@ public class LevelDBJNI extends HostLevelDB {
 
         @Override
         public int deleteVersions(byte[] key, int version) {
-            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
-            if (versions.isEmpty()) {
+            byte[] oldData = db.getRaw(key);
+            if (oldData == null) {
                 return 0; // nothing to do
             }
-            SortedMap<Integer, ByteArrayRef> newVersions = versions.headMap(version);
-            if (newVersions.isEmpty()) { // always retain the newest value
-                newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
-            }
-            byte[] newData = MultiVersionUtil.pack(newVersions);
+            byte[] newData = trimVersions(oldData, version);
             if (newData == null) {
                 batch.delete(key);
                 return 0;
@@ -243,6 +423,7 @@ public class LevelDBJNI extends HostLevelDB {
     private static class LevelDBIterator implements StoreIterator {
 
         private DBIterator it;
+        private final VersionView view = new VersionView(); // reused for every key
 
         private LevelDBIterator(DBIterator it) {
             this.it = it;
@@ -271,11 +452,12 @@ public class LevelDBJNI extends HostLevelDB {
 
         @Override
         public ByteArrayRef peekValue() {
-            SortedMap<Integer, ByteArrayRef> versions = peekAllValues();
-            if (versions.isEmpty()) {
-                return null;
-            }
-            return versions.get(versions.firstKey());
+            return view.reset(peekRaw()).seekNewest() ? view.value() : null;
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            return view.reset(peekRaw()).seekNewest(maxVersionId) ? view.value() : null;
         }
 
         @Override
@@ -0,0 +1,163 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk;
+
+import com.larskroll.common.ByteArrayRef;
+import com.typesafe.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.util.SortedMap;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.HostLevelDB;
+import se.sics.caracaldb.persistence.PackedLayout;
+import se.sics.caracaldb.persistence.Persistence;
+import se.sics.caracaldb.persistence.StoreIterator;
+import se.sics.caracaldb.persistence.VersionedKeys;
+import se.sics.caracaldb.persistence.VersionedLayout;
+import se.sics.caracaldb.persistence.disk.lsm.LsmStore;
+
+/**
+ * Pure Java disk store based on an {@link LsmStore}.
+ * <p>
+ * Drop-in alternative to {@link LevelDBJNI} with the same layouts, but
+ * without native code and with control over compaction (see the "lsm"
+ * section of the config).
+ *
+ * @author lkroll
+ */
+public class LsmDB extends HostLevelDB {
+
+    private LsmStore db;
+    private final String dbPath;
+    private final String layoutName;
+    private Persistence layout;
+
+    public LsmDB(Config config) throws IOException {
+        super(config);
+        this.dbPath = config.getString("lsm.path");
+        this.layoutName = config.getString("lsm.layout");
+
+        LsmStore.Options options = new LsmStore.Options();
+        options.memtableSize = config.getBytes("lsm.memtableSize");
+        options.tableSize = config.getBytes("lsm.tableSize");
+        options.blockSize = config.getBytes("lsm.blockSize").intValue();
+        options.bloomBitsPerKey = config.getInt("lsm.bloomBitsPerKey");
+        options.l0CompactionTrigger = config.getInt("lsm.l0CompactionTrigger");
+        options.l0StopWrites = config.getInt("lsm.l0StopWrites");
+        options.levelBase = config.getBytes("lsm.levelBase");
+        options.levelMultiplier = config.getInt("lsm.levelMultiplier");
+        options.compactionRate = config.getBytes("lsm.compactionRate");
+        options.syncWrites = config.getBoolean("lsm.syncWrites");
+
+        db = LsmStore.open(new File(dbPath), options);
+
+        if (layoutName.equals("versioned")) {
+            layout = VersionedLayout.open(db);
+        } else if (layoutName.equals("packed")) {
+            if (db.get(VersionedKeys.META_KEY) != null) {
+                close();
+                throw new IOException("DB at " + dbPath + " uses the versioned layout. Can't open it as packed!");
+            }
+            layout = new PackedLayout(db);
+        } else {
+            close();
+            throw new IOException("Unknown layout: " + layoutName);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LsmDB(" + db + ", " + layoutName + ")";
+    }
+
+    @Override
+    public void close() {
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+    }
+
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return true;
+    }
+
+    @Override
+    public void sync() {
+        db.sync();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        layout.put(key, value, version);
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        layout.delete(key, version);
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        return layout.get(key);
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return layout.getAllVersions(key);
+    }
+
+    @Override
+    public Batch createBatch() {
+        return layout.createBatch();
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        layout.writeBatch(b);
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return layout.iterator();
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return layout.iterator(startKey);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        layout.replace(key, value);
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        return layout.deleteVersions(key, version);
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return layout.getRaw(key);
+    }
+}
@@ -0,0 +1,720 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.bitcask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.RawStore;
+
+/**
+ * A log-structured hash store (Bitcask).
+ * <p>
+ * All writes are appended to the active {@link Segment}. An in-memory hash
+ * index maps every live key to the segment and offset of its newest value, so
+ * a get is exactly one read. Full segments are sealed and memory mapped.
+ * <p>
+ * A background merge rewrites the live records of all sealed segments into
+ * fresh ones once enough of them is garbage, and drops the old files. Merge
+ * outputs are numbered right after the newest input, so that replaying the
+ * segments in order on open yields the same index even if the store crashed
+ * during a merge.
+ * <p>
+ * Keys are not kept in order. Cursors sort a snapshot of the index, which is
+ * slow and meant for rare full scans (like data transfers) only.
+ *
+ * @author lkroll
+ */
+public class BitcaskStore implements RawStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BitcaskStore.class);
+    private static final long SUBS = 1000; // segment numbers per base number
+    private static final String SUFFIX = ".data";
+    private static final String TMP_SUFFIX = ".merging";
+
+    public static class Options {
+
+        /**
+         * Size (bytes) at which the active segment is sealed.
+         */
+        public long segmentSize = 64 * 1024 * 1024;
+        /**
+         * Fraction of garbage in the sealed segments that triggers a merge.
+         */
+        public double mergeThreshold = 0.5;
+        /**
+         * How often to check whether a merge is needed, in ms. 0 disables
+         * automatic merges.
+         */
+        public long mergeInterval = 60 * 1000;
+        /**
+         * Whether to sync the active segment on every write.
+         */
+        public boolean syncWrites = false;
+    }
+
+    private final File dir;
+    private final Options opts;
+    private final ConcurrentHashMap<ByteBuffer, Location> index = new ConcurrentHashMap<ByteBuffer, Location>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final Object writeLock = new Object();
+    private final Object mergeLock = new Object();
+    private final ScheduledExecutorService merger;
+    private Segment active;
+    private volatile boolean closed = false;
+
+    private BitcaskStore(File dir, Options opts) {
+        this.dir = dir;
+        this.opts = opts;
+        this.merger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BitcaskStore-merge(" + BitcaskStore.this.dir.getName() + ")");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Opens (or creates) the store in dir and rebuilds the index from the
+     * segments.
+     *
+     * @param dir
+     * @param opts
+     * @return
+     * @throws IOException
+     */
+    public static BitcaskStore open(File dir, Options opts) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create DB directory " + dir);
+        }
+        final BitcaskStore store = new BitcaskStore(dir, opts);
+        store.recover();
+        if (opts.mergeInterval > 0) {
+            store.merger.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    store.maybeMerge();
+                }
+            }, opts.mergeInterval, opts.mergeInterval, TimeUnit.MILLISECONDS);
+        }
+        return store;
+    }
+
+    private void recover() throws IOException {
+        List<Long> numbers = new ArrayList<Long>();
+        for (String name : dir.list()) {
+            if (name.endsWith(TMP_SUFFIX)) {
+                new File(dir, name).delete(); // unfinished merge
+            } else if (name.endsWith(SUFFIX)) {
+                numbers.add(segmentNumber(name));
+            }
+        }
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            long number = numbers.get(i);
+            Segment s = new Segment(segmentFile(number), number);
+            segments.put(number, s);
+            boolean last = (i == numbers.size() - 1);
+            long validSize = scan(s);
+            if (validSize < s.size()) {
+                if (last) {
+                    LOG.warn("Truncating torn write at the end of {} ({} of {}B are valid)",
+                            new Object[]{s.file, validSize, s.size()});
+                    s.truncate(validSize);
+                } else {
+                    LOG.error("Corrupt data in {} after {}B, ignoring the rest of the segment", s.file, validSize);
+                }
+            }
+            if (last && s.size() < opts.segmentSize && (number % SUBS) == 0) {
+                active = s; // keep appending to it
+            } else {
+                s.seal();
+            }
+        }
+        synchronized (writeLock) {
+            if (active == null) {
+                long base = segments.isEmpty() ? 1 : (segments.lastKey() / SUBS) + 1;
+                newActive(base);
+            }
+        }
+        LOG.info("Opened {} with {} keys in {} segments", new Object[]{dir, index.size(), segments.size()});
+    }
+
+    /**
+     * Replays a segment into the index.
+     *
+     * @return the size of the valid prefix of the segment
+     */
+    private long scan(Segment s) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.file), 64 * 1024));
+        long pos = 0;
+        long validSize = 0;
+        List<byte[]> pendingKeys = new ArrayList<byte[]>();
+        List<Location> pendingLocs = new ArrayList<Location>(); // null for deletions
+        try {
+            while (true) {
+                int crc;
+                byte flags;
+                byte[] key;
+                int valueLength;
+                byte[] value;
+                try {
+                    crc = in.readInt();
+                    flags = in.readByte();
+                    int keyLength = in.readInt();
+                    valueLength = in.readInt();
+                    if (keyLength < 0 || pos + Segment.recordSize(keyLength, valueLength) > s.size()) {
+                        break;
+                    }
+                    key = new byte[keyLength];
+                    in.readFully(key);
+                    value = new byte[Math.max(0, valueLength)];
+                    in.readFully(value);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (crc != checksum(flags, key, valueLength, value)) {
+                    break;
+                }
+                int size = Segment.recordSize(key.length, valueLength);
+                if ((flags & Segment.FLAG_TOMBSTONE) != 0) {
+                    pendingLocs.add(null);
+                } else {
+                    pendingLocs.add(new Location(s.number, pos + Segment.HEADER_SIZE + key.length, valueLength));
+                }
+                pendingKeys.add(key);
+                pos += size;
+                if ((flags & Segment.FLAG_CONTINUED) == 0) { // batch complete
+                    for (int i = 0; i < pendingKeys.size(); i++) {
+                        byte[] k = pendingKeys.get(i);
+                        Location loc = pendingLocs.get(i);
+                        if (loc == null) {
+                            s.deadBytes.addAndGet(Segment.recordSize(k.length, -1));
+                            markDead(k, index.remove(ByteBuffer.wrap(k)));
+                        } else {
+                            markDead(k, index.put(ByteBuffer.wrap(k), loc));
+                        }
+                    }
+                    pendingKeys.clear();
+                    pendingLocs.clear();
+                    validSize = pos;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return validSize;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        while (true) {
+            Location loc = index.get(k);
+            if (loc == null) {
+                return null;
+            }
+            Segment s = segments.get(loc.segment);
+            if (s == null) {
+                continue; // merged away in the meantime
+            }
+            try {
+                return s.read(loc.offset, loc.length);
+            } catch (IOException ex) {
+                if (segments.get(loc.segment) != s) {
+                    continue; // closed by a merge while reading
+                }
+                throw new BitcaskException("Could not read from " + s.file, ex);
+            }
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        BitcaskBatch b = new BitcaskBatch();
+        b.put(key, value);
+        writeBatch(b);
+    }
+
+    @Override
+    public void delete(byte[] key) {
+        BitcaskBatch b = new BitcaskBatch();
+        b.delete(key);
+        writeBatch(b);
+    }
+
+    @Override
+    public RawStore.Cursor cursor(byte[] startKey) {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (ByteBuffer k : index.keySet()) {
+            byte[] key = k.array();
+            if (startKey == null || Key.COMP.compare(key, startKey) >= 0) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys, Key.COMP);
+        return new SnapshotCursor(keys);
+    }
+
+    @Override
+    public RawStore.RawBatch createBatch() {
+        return new BitcaskBatch();
+    }
+
+    @Override
+    public void writeBatch(RawStore.RawBatch rb) {
+        BitcaskBatch b = (BitcaskBatch) rb;
+        int n = b.keys.size();
+        if (n == 0) {
+            return;
+        }
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] value = b.values.get(i);
+            total += Segment.recordSize(b.keys.get(i).length, (value == null) ? -1 : value.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        int[] valueOffsets = new int[n];
+        for (int i = 0; i < n; i++) {
+            byte[] key = b.keys.get(i);
+            byte[] value = b.values.get(i);
+            byte flags = (value == null) ? Segment.FLAG_TOMBSTONE : 0;
+            if (i < n - 1) {
+                flags |= Segment.FLAG_CONTINUED;
+            }
+            valueOffsets[i] = encode(buf, flags, key, value);
+        }
+        buf.flip();
+        synchronized (writeLock) {
+            if (closed) {
+                throw new BitcaskException("Store " + dir + " is closed");
+            }
+            try {
+                if (active.size() > 0 && active.size() + total > opts.segmentSize) {
+                    active.seal();
+                    newActive((active.number / SUBS) + 1);
+                }
+                long offset = active.append(buf, opts.syncWrites);
+                for (int i = 0; i < n; i++) {
+                    byte[] key = b.keys.get(i);
+                    byte[] value = b.values.get(i);
+                    if (value == null) {
+                        active.deadBytes.addAndGet(Segment.recordSize(key.length, -1));
+                        markDead(key, index.remove(ByteBuffer.wrap(key)));
+                    } else {
+                        Location loc = new Location(active.number, offset + valueOffsets[i], value.length);
+                        markDead(key, index.put(ByteBuffer.wrap(key), loc));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new BitcaskException("Could not write to " + active.file, ex);
+            }
+        }
+    }
+
+    /**
+     * Merges the sealed segments if the garbage in them exceeds the
+     * threshold.
+     */
+    public void maybeMerge() {
+        long size = 0;
+        long dead = 0;
+        for (Segment s : sealedSegments()) {
+            size += s.size();
+            dead += s.deadBytes.get();
+        }
+        if (size > 0 && dead >= size * opts.mergeThreshold) {
+            merge();
+        }
+    }
+
+    /**
+     * Rewrites the live records of all sealed segments and deletes them.
+     */
+    public void merge() {
+        synchronized (mergeLock) {
+            if (closed) {
+                return;
+            }
+            List<Segment> inputs = sealedSegments();
+            if (inputs.isEmpty()) {
+                return;
+            }
+            try {
+                merge(inputs);
+            } catch (IOException ex) {
+                LOG.error("Merge in " + dir + " failed", ex);
+            }
+        }
+    }
+
+    private void merge(List<Segment> inputs) throws IOException {
+        long nextNumber = inputs.get(inputs.size() - 1).number + 1;
+        List<Long> outputNumbers = new ArrayList<Long>();
+        List<byte[]> movedKeys = new ArrayList<byte[]>();
+        List<Location> oldLocs = new ArrayList<Location>();
+        List<Location> newLocs = new ArrayList<Location>();
+        MergeOutput out = null;
+        try {
+            for (Segment s : inputs) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.file), 64 * 1024));
+                try {
+                    long pos = 0;
+                    while (pos < s.size()) {
+                        in.readInt(); // crc, checked on recovery
+                        byte flags = in.readByte();
+                        byte[] key = new byte[in.readInt()];
+                        int valueLength = in.readInt();
+                        in.readFully(key);
+                        long valueOffset = pos + Segment.HEADER_SIZE + key.length;
+                        pos += Segment.recordSize(key.length, valueLength);
+                        Location loc = index.get(ByteBuffer.wrap(key));
+                        if ((flags & Segment.FLAG_TOMBSTONE) != 0 || loc == null
+                                || loc.segment != s.number || loc.offset != valueOffset) {
+                            in.skipBytes(Math.max(0, valueLength)); // garbage
+                            continue;
+                        }
+                        byte[] value = new byte[valueLength];
+                        in.readFully(value);
+                        if (out == null || out.size >= opts.segmentSize) {
+                            if (out != null) {
+                                out.finish();
+                            }
+                            if (nextNumber % SUBS == 0) {
+                                throw new IOException("Too many merge outputs for segment base " + (nextNumber / SUBS - 1));
+                            }
+                            out = new MergeOutput(nextNumber++);
+                            outputNumbers.add(out.number);
+                        }
+                        long newOffset = out.append(key, value);
+                        movedKeys.add(key);
+                        oldLocs.add(loc);
+                        newLocs.add(new Location(out.number, newOffset, valueLength));
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (out != null) {
+                out.finish();
+                out = null;
+            }
+        } catch (IOException ex) {
+            if (out != null) {
+                out.abandon();
+            }
+            for (long number : outputNumbers) {
+                tmpFile(number).delete();
+                segmentFile(number).delete();
+            }
+            throw ex;
+        }
+        // install the outputs before pointing the index to them
+        for (long number : outputNumbers) {
+            Files.move(tmpFile(number).toPath(), segmentFile(number).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Segment s = new Segment(segmentFile(number), number);
+            s.seal();
+            segments.put(number, s);
+        }
+        for (int i = 0; i < movedKeys.size(); i++) {
+            byte[] key = movedKeys.get(i);
+            Location newLoc = newLocs.get(i);
+            if (!index.replace(ByteBuffer.wrap(key), oldLocs.get(i), newLoc)) {
+                // overwritten while we were copying
+                segments.get(newLoc.segment).deadBytes.addAndGet(Segment.recordSize(key.length, newLoc.length));
+            }
+        }
+        for (Segment s : inputs) {
+            segments.remove(s.number);
+            s.delete();
+        }
+        LOG.info("Merged {} segments of {} into {} ({} live keys moved)",
+                new Object[]{inputs.size(), dir, outputNumbers.size(), movedKeys.size()});
+    }
+
+    /**
+     * Forces all preceding writes to disk. Sealed segments are forced when
+     * they are sealed, so only the active one needs syncing.
+     */
+    public void sync() {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new BitcaskException("Store " + dir + " is closed");
+            }
+            try {
+                active.sync();
+            } catch (IOException ex) {
+                throw new BitcaskException("Could not sync " + active.file, ex);
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (mergeLock) {
+            closed = true;
+            merger.shutdownNow();
+        }
+        synchronized (writeLock) {
+            for (Segment s : segments.values()) {
+                try {
+                    s.sync();
+                    s.close();
+                } catch (IOException ex) {
+                    LOG.error("Could not close " + s.file, ex);
+                }
+            }
+            segments.clear();
+            index.clear();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public String toString() {
+        return "BitcaskStore(" + dir + ", " + index.size() + " keys, " + segments.size() + " segments)";
+    }
+
+    private List<Segment> sealedSegments() {
+        synchronized (writeLock) {
+            List<Segment> sealed = new ArrayList<Segment>();
+            for (Segment s : segments.values()) {
+                if (s != active) {
+                    sealed.add(s);
+                }
+            }
+            return sealed;
+        }
+    }
+
+    /**
+     * Call with the write lock held.
+     */
+    private void newActive(long base) throws IOException {
+        long number = base * SUBS;
+        active = new Segment(segmentFile(number), number);
+        segments.put(number, active);
+    }
+
+    private void markDead(byte[] key, Location old) {
+        if (old != null) {
+            Segment s = segments.get(old.segment);
+            if (s != null) {
+                s.deadBytes.addAndGet(Segment.recordSize(key.length, old.length));
+            }
+        }
+    }
+
+    /**
+     * @return the position of the value in buf
+     */
+    private static int encode(ByteBuffer buf, byte flags, byte[] key, byte[] value) {
+        int valueLength = (value == null) ? -1 : value.length;
+        buf.putInt(checksum(flags, key, valueLength, value));
+        buf.put(flags);
+        buf.putInt(key.length);
+        buf.putInt(valueLength);
+        buf.put(key);
+        if (value != null) {
+            buf.put(value);
+        }
+        return buf.position() - Math.max(0, valueLength);
+    }
+
+    private static int checksum(byte flags, byte[] key, int valueLength, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(flags);
+        crc.update(ByteBuffer.allocate(8).putInt(key.length).putInt(valueLength).array());
+        crc.update(key);
+        if (value != null) {
+            crc.update(value);
+        }
+        return (int) crc.getValue();
+    }
+
+    private File segmentFile(long number) {
+        return new File(dir, String.format("%06d-%03d", number / SUBS, number % SUBS) + SUFFIX);
+    }
+
+    private File tmpFile(long number) {
+        return new File(dir, String.format("%06d-%03d", number / SUBS, number % SUBS) + TMP_SUFFIX);
+    }
+
+    private static long segmentNumber(String name) throws IOException {
+        try {
+            String[] parts = name.substring(0, name.length() - SUFFIX.length()).split("-");
+            return Long.parseLong(parts[0]) * SUBS + Long.parseLong(parts[1]);
+        } catch (RuntimeException ex) {
+            throw new IOException("Unexpected segment file " + name, ex);
+        }
+    }
+
+    private static final class Location {
+
+        final long segment;
+        final long offset; // of the value
+        final int length;
+
+        Location(long segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes a merge output to a temporary file.
+     */
+    private final class MergeOutput {
+
+        final long number;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        long size = 0;
+
+        MergeOutput(long number) throws IOException {
+            this.number = number;
+            this.fileOut = new FileOutputStream(tmpFile(number));
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        }
+
+        /**
+         * @return the offset of the value
+         */
+        long append(byte[] key, byte[] value) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(Segment.recordSize(key.length, value.length));
+            int valueOffset = encode(buf, (byte) 0, key, value);
+            out.write(buf.array());
+            long offset = size + valueOffset;
+            size += buf.capacity();
+            return offset;
+        }
+
+        void finish() throws IOException {
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+        }
+
+        void abandon() {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // deleted anyway
+            }
+            tmpFile(number).delete();
+        }
+    }
+
+    static final class BitcaskBatch implements RawStore.RawBatch {
+
+        private final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        private final ArrayList<byte[]> values = new ArrayList<byte[]>(); // null for deletions
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            keys.add(Arrays.copyOf(key, key.length)); // the index holds on to it
+            values.add(value);
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            keys.add(key);
+            values.add(null);
+        }
+
+        @Override
+        public void close() {
+            keys.clear();
+            values.clear();
+        }
+    }
+
+    private class SnapshotCursor implements RawStore.Cursor {
+
+        private final List<byte[]> keys;
+        private int pos = -1;
+        private byte[] value;
+
+        SnapshotCursor(List<byte[]> keys) {
+            this.keys = keys;
+            next();
+        }
+
+        @Override
+        public boolean valid() {
+            return pos < keys.size();
+        }
+
+        @Override
+        public void next() {
+            value = null;
+            while (value == null && ++pos < keys.size()) {
+                value = get(keys.get(pos)); // skips keys deleted since the snapshot
+            }
+        }
+
+        @Override
+        public byte[] key() {
+            return keys.get(pos);
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+
+        @Override
+        public void close() {
+            value = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.bitcask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One append-only data file of a {@link BitcaskStore}.
+ * <p>
+ * Record format:
+ * <pre>
+ * [crc32][flags][key length][value length][key][value]
+ * </pre>
+ * The crc covers everything after it. Flags mark deletions and batch
+ * continuations (all records of a batch but the last), so an incomplete batch
+ * at the end of a file can be discarded on recovery.
+ * <p>
+ * The active segment is read with positional reads, sealed segments through a
+ * read-only memory mapping.
+ *
+ * @author lkroll
+ */
+final class Segment {
+
+    static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+    static final byte FLAG_TOMBSTONE = 1;
+    static final byte FLAG_CONTINUED = 2;
+    final long number;
+    final File file;
+    final AtomicLong deadBytes = new AtomicLong(0);
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private volatile ByteBuffer mapped = null; // once sealed
+    private volatile long size;
+
+    Segment(File file, long number) throws IOException {
+        this.file = file;
+        this.number = number;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Appends fully encoded records. Only called by the single writer.
+     *
+     * @param records
+     * @param sync
+     * @return the offset the records were written at
+     * @throws IOException
+     */
+    long append(ByteBuffer records, boolean sync) throws IOException {
+        long offset = size;
+        long pos = offset;
+        while (records.hasRemaining()) {
+            pos += channel.write(records, pos);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        size = pos;
+        return offset;
+    }
+
+    /**
+     * Reads length bytes at offset with a single read.
+     */
+    byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer m = mapped;
+        if (m != null) {
+            ByteBuffer buf = m.duplicate();
+            buf.position((int) offset);
+            buf.get(data);
+            return data;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+            pos += read;
+        }
+        return data;
+    }
+
+    /**
+     * Stops appending and maps the file for reading.
+     */
+    void seal() throws IOException {
+        channel.force(false);
+        if (size > 0 && size <= Integer.MAX_VALUE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    void truncate(long newSize) throws IOException {
+        channel.truncate(newSize);
+        size = newSize;
+    }
+
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Closes and removes the file. The mapping stays valid for readers that
+     * still use it.
+     */
+    void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+    /**
+     * @return the fraction of the segment occupied by overwritten or deleted
+     * records
+     */
+    double garbageRatio() {
+        return (size == 0) ? 0.0 : deadBytes.get() / (double) size;
+    }
+
+    static int recordSize(int keyLength, int valueLength) {
+        return HEADER_SIZE + keyLength + Math.max(0, valueLength);
+    }
+
+    @Override
+    public String toString() {
+        return "Segment(" + file.getName() + ", " + size + "B, " + deadBytes.get() + "B dead)";
+    }
+}
@@ -0,0 +1,114 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.lsm;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size bloom filter over byte[] keys.
+ * <p>
+ * Uses double hashing on a single 64bit murmur3 hash per key, so keys can be
+ * hashed while they are written and the filter built once their number is
+ * known.
+ *
+ * @author lkroll
+ */
+public final class BloomFilter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private final long[] bits;
+    private final int numHashes;
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    public static long hash(byte[] key) {
+        return HASH.hashBytes(key).asLong();
+    }
+
+    /**
+     * @param hashes as returned by {@link #hash(byte[])}
+     * @param count number of valid entries in hashes
+     * @param bitsPerKey
+     * @return
+     */
+    public static BloomFilter build(long[] hashes, int count, int bitsPerKey) {
+        int numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69))); // ln(2)
+        long numBits = Math.max(64, (long) count * bitsPerKey);
+        BloomFilter bf = new BloomFilter(new long[(int) ((numBits + 63) / 64)], numHashes);
+        for (int i = 0; i < count; i++) {
+            bf.add(hashes[i]);
+        }
+        return bf;
+    }
+
+    public void add(long hash) {
+        long numBits = bits.length * 64L;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(byte[] key) {
+        return mightContain(hash(key));
+    }
+
+    public boolean mightContain(long hash) {
+        long numBits = bits.length * 64L;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int serializedSize() {
+        return 4 + 4 + bits.length * 8;
+    }
+
+    public void serialize(ByteBuffer buf) {
+        buf.putInt(numHashes);
+        buf.putInt(bits.length);
+        for (long l : bits) {
+            buf.putLong(l);
+        }
+    }
+
+    public static BloomFilter deserialize(ByteBuffer buf) {
+        int numHashes = buf.getInt();
+        long[] bits = new long[buf.getInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = buf.getLong();
+        }
+        return new BloomFilter(bits, numHashes);
+    }
+}
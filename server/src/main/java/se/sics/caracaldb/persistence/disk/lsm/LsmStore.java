@@ -0,0 +1,1007 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.lsm;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.RawStore;
+
+/**
+ * A log-structured merge tree storage engine.
+ * <p>
+ * Writes go to a write-ahead log and a concurrent in-memory table. Full
+ * memtables are flushed to level 0 tables in the background, and tables are
+ * merged down the levels by leveled compaction: level 0 tables may overlap,
+ * tables within every other level don't, and each level is allowed to hold
+ * {@link Options#levelMultiplier} times as many bytes as the one before.
+ * <p>
+ * Reads never block. They work on an immutable snapshot of the current
+ * memtables and tables and consult each table's bloom filter before touching
+ * its data. Batches are atomic with respect to crashes, but concurrent
+ * readers may see part of a batch while it is applied.
+ * <p>
+ * Table set changes are recorded in a MANIFEST file that is replaced
+ * atomically. On open, logs that are not yet covered by a table are replayed
+ * and flushed.
+ *
+ * @author lkroll
+ */
+public class LsmStore implements RawStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LsmStore.class);
+    /**
+     * Deletion marker. Compared by identity, empty values are valid.
+     */
+    static final byte[] TOMBSTONE = new byte[0];
+    static final int NUM_LEVELS = 7;
+    private static final long ENTRY_OVERHEAD = 32; // rough memtable bookkeeping per entry
+    private static final String MANIFEST = "MANIFEST";
+    private static final long MANIFEST_MAGIC = 0x4361726163616C4DL; // "CaracalM"
+    private static final Comparator<SSTable> BY_SMALLEST = new Comparator<SSTable>() {
+
+        @Override
+        public int compare(SSTable t1, SSTable t2) {
+            return Key.COMP.compare(t1.smallest, t2.smallest);
+        }
+    };
+
+    public static class Options {
+
+        /**
+         * Memtable size (bytes) that triggers a flush.
+         */
+        public long memtableSize = 4 * 1024 * 1024;
+        /**
+         * Target size (bytes) of compaction output tables.
+         */
+        public long tableSize = 2 * 1024 * 1024;
+        public int blockSize = 4 * 1024;
+        public int bloomBitsPerKey = 10;
+        /**
+         * Number of level 0 tables that triggers a compaction.
+         */
+        public int l0CompactionTrigger = 4;
+        /**
+         * Number of level 0 tables at which writes wait for compactions.
+         */
+        public int l0StopWrites = 12;
+        /**
+         * Maximum bytes in level 1.
+         */
+        public long levelBase = 10 * 1024 * 1024;
+        public int levelMultiplier = 10;
+        /**
+         * Bytes per second compactions may write, 0 for no limit.
+         */
+        public long compactionRate = 0;
+        /**
+         * Whether to sync the log on every write.
+         */
+        public boolean syncWrites = false;
+    }
+
+    private final File dir;
+    private final Options opts;
+    private final Object lock = new Object(); // guards writes and state changes
+    private volatile State state;
+    private volatile boolean closed = false;
+    private WriteAheadLog log;
+    private long nextFileNumber = 1;
+    private final ExecutorService background;
+    private boolean workScheduled = false;
+    private Exception backgroundError = null;
+    private final byte[][] compactPointer = new byte[NUM_LEVELS][]; // only used by the background thread
+    private final RateLimiter compactionLimiter;
+
+    private LsmStore(File dir, Options opts) {
+        this.dir = dir;
+        this.opts = opts;
+        this.compactionLimiter = (opts.compactionRate > 0) ? RateLimiter.create(opts.compactionRate) : null;
+        this.background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LsmStore-compaction(" + LsmStore.this.dir.getName() + ")");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Opens (or creates) the store in dir, recovering from the logs if
+     * necessary.
+     *
+     * @param dir
+     * @param opts
+     * @return
+     * @throws IOException
+     */
+    public static LsmStore open(File dir, Options opts) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create DB directory " + dir);
+        }
+        LsmStore store = new LsmStore(dir, opts);
+        try {
+            store.recover();
+        } catch (IOException ex) {
+            store.background.shutdownNow();
+            throw ex;
+        }
+        return store;
+    }
+
+    private void recover() throws IOException {
+        List<List<SSTable>> levels = emptyLevels();
+        long logNumber = 0;
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+            try {
+                if (in.readLong() != MANIFEST_MAGIC) {
+                    throw new IOException("Invalid manifest in " + dir);
+                }
+                nextFileNumber = in.readLong();
+                logNumber = in.readLong();
+                int numTables = in.readInt();
+                for (int i = 0; i < numTables; i++) {
+                    int level = in.readInt();
+                    long number = in.readLong();
+                    levels.get(level).add(SSTable.open(tableFile(number), number));
+                }
+            } finally {
+                in.close();
+            }
+        }
+        Collections.sort(levels.get(0), new Comparator<SSTable>() {
+
+            @Override
+            public int compare(SSTable t1, SSTable t2) {
+                return Long.compare(t2.number, t1.number); // newest first
+            }
+        });
+        for (int i = 1; i < NUM_LEVELS; i++) {
+            Collections.sort(levels.get(i), BY_SMALLEST);
+        }
+        // replay logs that haven't been flushed yet
+        List<Long> logs = new ArrayList<Long>();
+        for (String name : dir.list()) {
+            long number = fileNumber(name);
+            nextFileNumber = Math.max(nextFileNumber, number + 1);
+            if (name.endsWith(".log") && number >= logNumber) {
+                logs.add(number);
+            }
+        }
+        Collections.sort(logs);
+        final Memtable recovered = new Memtable(0);
+        for (long number : logs) {
+            int batches = WriteAheadLog.replay(logFile(number), new WriteAheadLog.Handler() {
+
+                @Override
+                public void put(byte[] key, byte[] value) {
+                    recovered.put(key, value);
+                }
+
+                @Override
+                public void delete(byte[] key) {
+                    recovered.put(key, TOMBSTONE);
+                }
+            });
+            LOG.info("Replayed {} batches from log {} in {}", new Object[]{batches, number, dir});
+        }
+        if (!recovered.map.isEmpty()) {
+            long number = nextFileNumber++;
+            SSTable t = writeTable(new MemCursor(recovered.map, null), number);
+            levels.get(0).add(0, t);
+        }
+        long newLog = nextFileNumber++;
+        log = new WriteAheadLog(logFile(newLog), newLog);
+        synchronized (lock) {
+            state = new State(new Memtable(newLog), null, levels);
+            writeManifest(state);
+            // clean up replayed logs and leftovers from interrupted compactions
+            Set<Long> live = new HashSet<Long>();
+            for (List<SSTable> level : levels) {
+                for (SSTable t : level) {
+                    live.add(t.number);
+                }
+            }
+            for (String name : dir.list()) {
+                long number = fileNumber(name);
+                if ((name.endsWith(".log") && number < newLog)
+                        || (name.endsWith(".sst") && !live.contains(number))
+                        || name.endsWith(".tmp")) {
+                    new File(dir, name).delete();
+                }
+            }
+            scheduleWork();
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        State s = current();
+        byte[] value = s.mem.map.get(key);
+        if (value == null && s.imm != null) {
+            value = s.imm.map.get(key);
+        }
+        if (value == null) {
+            for (SSTable t : s.levels.get(0)) {
+                value = t.get(key);
+                if (value != null) {
+                    break;
+                }
+            }
+        }
+        for (int level = 1; value == null && level < NUM_LEVELS; level++) {
+            SSTable t = findTable(s.levels.get(level), key);
+            if (t != null) {
+                value = t.get(key);
+            }
+        }
+        return (value == TOMBSTONE) ? null : value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        LsmBatch b = new LsmBatch();
+        b.put(key, value);
+        write(b);
+    }
+
+    @Override
+    public void delete(byte[] key) {
+        LsmBatch b = new LsmBatch();
+        b.delete(key);
+        write(b);
+    }
+
+    @Override
+    public RawStore.Cursor cursor(byte[] startKey) {
+        State s = current();
+        List<InternalCursor> sources = new ArrayList<InternalCursor>();
+        sources.add(new MemCursor(s.mem.map, startKey));
+        if (s.imm != null) {
+            sources.add(new MemCursor(s.imm.map, startKey));
+        }
+        for (SSTable t : s.levels.get(0)) {
+            sources.add(t.cursor(startKey));
+        }
+        for (int level = 1; level < NUM_LEVELS; level++) {
+            if (!s.levels.get(level).isEmpty()) {
+                sources.add(new LevelCursor(s.levels.get(level), startKey));
+            }
+        }
+        final MergingCursor merged = new MergingCursor(sources, true);
+        return new RawStore.Cursor() {
+
+            @Override
+            public boolean valid() {
+                return merged.valid();
+            }
+
+            @Override
+            public void next() {
+                merged.next();
+            }
+
+            @Override
+            public byte[] key() {
+                return merged.key();
+            }
+
+            @Override
+            public byte[] value() {
+                return merged.value();
+            }
+
+            @Override
+            public void close() {
+                // nothing to release, tables stay mapped until collected
+            }
+        };
+    }
+
+    @Override
+    public RawStore.RawBatch createBatch() {
+        return new LsmBatch();
+    }
+
+    @Override
+    public void writeBatch(RawStore.RawBatch b) {
+        write((LsmBatch) b);
+    }
+
+    /**
+     * Forces all preceding writes in the log to disk.
+     */
+    public void sync() {
+        synchronized (lock) {
+            if (closed) {
+                throw new LsmException("Store " + dir + " is closed");
+            }
+            try {
+                log.sync();
+            } catch (IOException ex) {
+                throw new LsmException("Could not sync log in " + dir, ex);
+            }
+        }
+    }
+
+    /**
+     * Waits for background work, then closes the log. Unflushed writes stay
+     * in the log and are recovered on the next open.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        background.shutdown();
+        try {
+            if (!background.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("Background work in {} did not finish in time.", dir);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            try {
+                log.close();
+            } catch (IOException ex) {
+                LOG.error("Could not close log in " + dir, ex);
+            }
+            state = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        State s = state;
+        if (s == null) {
+            return "LsmStore(" + dir + ", closed)";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("LsmStore(").append(dir).append(", memtable: ").append(s.mem.size.get()).append("B, levels: [");
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            if (level > 0) {
+                sb.append(", ");
+            }
+            sb.append(s.levels.get(level).size()).append(" tables/").append(levelBytes(s.levels.get(level))).append("B");
+        }
+        sb.append("])");
+        return sb.toString();
+    }
+
+    /*
+     * Writes
+     */
+    private void write(LsmBatch b) {
+        if (b.size() == 0) {
+            return;
+        }
+        synchronized (lock) {
+            makeRoomForWrite();
+            try {
+                log.append(b, opts.syncWrites);
+            } catch (IOException ex) {
+                throw new LsmException("Could not write to log in " + dir, ex);
+            }
+            Memtable mem = state.mem;
+            for (int i = 0; i < b.size(); i++) {
+                mem.put(b.key(i), b.value(i));
+            }
+        }
+    }
+
+    /**
+     * Switches to a new memtable if the current one is full, waiting for the
+     * background work if it is behind. Call with the lock held.
+     */
+    private void makeRoomForWrite() {
+        while (true) {
+            if (closed) {
+                throw new LsmException("Store " + dir + " is closed");
+            }
+            if (backgroundError != null) {
+                throw new LsmException("Background work in " + dir + " failed", backgroundError);
+            }
+            State s = state;
+            if (s.mem.size.get() < opts.memtableSize) {
+                return;
+            }
+            if (s.imm != null || s.levels.get(0).size() >= opts.l0StopWrites) {
+                scheduleWork();
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new LsmException("Interrupted while waiting for compaction", ex);
+                }
+                continue;
+            }
+            long number = nextFileNumber++;
+            try {
+                WriteAheadLog newLog = new WriteAheadLog(logFile(number), number);
+                log.sync(); // a later sync() only covers the new log
+                log.close();
+                log = newLog;
+            } catch (IOException ex) {
+                throw new LsmException("Could not create log in " + dir, ex);
+            }
+            state = new State(new Memtable(number), s.mem, s.levels);
+            scheduleWork();
+        }
+    }
+
+    /*
+     * Background work
+     */
+    private void scheduleWork() {
+        if (!workScheduled && !closed && backgroundError == null) {
+            workScheduled = true;
+            background.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    backgroundWork();
+                }
+            });
+        }
+    }
+
+    private void backgroundWork() {
+        try {
+            while (!closed && doWork()) {
+                // keep going
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Background work in " + dir + " failed", ex);
+            synchronized (lock) {
+                backgroundError = ex;
+            }
+        } finally {
+            synchronized (lock) {
+                workScheduled = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private boolean doWork() throws IOException {
+        State s = state;
+        if (s.imm != null) {
+            flush(s.imm);
+            return true;
+        }
+        Compaction c = pickCompaction(s);
+        if (c == null) {
+            return false;
+        }
+        compact(c);
+        return true;
+    }
+
+    private void flush(Memtable imm) throws IOException {
+        long number;
+        synchronized (lock) {
+            number = nextFileNumber++;
+        }
+        SSTable t = writeTable(new MemCursor(imm.map, null), number);
+        synchronized (lock) {
+            State s = state;
+            List<List<SSTable>> levels = copyLevels(s.levels);
+            if (t != null) {
+                levels.get(0).add(0, t);
+            }
+            state = new State(s.mem, null, levels);
+            writeManifest(state);
+            lock.notifyAll();
+        }
+        logFile(imm.logNumber).delete();
+        LOG.debug("Flushed memtable of {} to {}", dir, t);
+    }
+
+    /**
+     * Picks the level that is furthest over its limit (like LevelDB), so
+     * level 0 flushes can't starve the deeper levels.
+     */
+    private Compaction pickCompaction(State s) {
+        int bestLevel = -1;
+        double bestScore = 1.0;
+        double l0Score = s.levels.get(0).size() / (double) opts.l0CompactionTrigger;
+        if (l0Score >= bestScore) {
+            bestLevel = 0;
+            bestScore = l0Score;
+        }
+        double maxBytes = opts.levelBase;
+        for (int level = 1; level < NUM_LEVELS - 1; level++) {
+            double score = levelBytes(s.levels.get(level)) / maxBytes;
+            if (score > bestScore) {
+                bestLevel = level;
+                bestScore = score;
+            }
+            maxBytes *= opts.levelMultiplier;
+        }
+        if (bestLevel < 0) {
+            return null;
+        }
+        if (bestLevel == 0) {
+            List<SSTable> inputs = new ArrayList<SSTable>(s.levels.get(0));
+            byte[] begin = null;
+            byte[] end = null;
+            for (SSTable t : inputs) {
+                if (begin == null || Key.COMP.compare(t.smallest, begin) < 0) {
+                    begin = t.smallest;
+                }
+                if (end == null || Key.COMP.compare(t.largest, end) > 0) {
+                    end = t.largest;
+                }
+            }
+            return new Compaction(0, inputs, overlapping(s.levels.get(1), begin, end));
+        }
+        // round robin over the key space
+        List<SSTable> tables = s.levels.get(bestLevel);
+        SSTable input = tables.get(0);
+        if (compactPointer[bestLevel] != null) {
+            for (SSTable t : tables) {
+                if (Key.COMP.compare(t.largest, compactPointer[bestLevel]) > 0) {
+                    input = t;
+                    break;
+                }
+            }
+        }
+        return new Compaction(bestLevel, Collections.singletonList(input),
+                overlapping(s.levels.get(bestLevel + 1), input.smallest, input.largest));
+    }
+
+    private void compact(Compaction c) throws IOException {
+        List<SSTable> outputs = new ArrayList<SSTable>();
+        boolean trivial = c.level > 0 && c.inputs.size() == 1 && c.next.isEmpty();
+        if (trivial) { // just move the table down
+            outputs.addAll(c.inputs);
+        } else {
+            mergeTables(c, outputs);
+        }
+        synchronized (lock) {
+            State s = state;
+            List<List<SSTable>> levels = copyLevels(s.levels);
+            levels.get(c.level).removeAll(c.inputs);
+            levels.get(c.level + 1).removeAll(c.next);
+            levels.get(c.level + 1).addAll(outputs);
+            Collections.sort(levels.get(c.level + 1), BY_SMALLEST);
+            state = new State(s.mem, s.imm, levels);
+            writeManifest(state);
+            lock.notifyAll();
+        }
+        if (c.level > 0) {
+            compactPointer[c.level] = c.inputs.get(c.inputs.size() - 1).largest;
+        }
+        if (!trivial) {
+            for (SSTable t : c.inputs) {
+                t.file.delete();
+            }
+            for (SSTable t : c.next) {
+                t.file.delete();
+            }
+        }
+        LOG.debug("Compacted {}+{} tables from level {} of {} into {} tables", new Object[]{c.inputs.size(),
+            c.next.size(), c.level, dir, outputs.size()});
+    }
+
+    private void mergeTables(Compaction c, List<SSTable> outputs) throws IOException {
+        List<InternalCursor> sources = new ArrayList<InternalCursor>();
+        byte[] begin = null;
+        byte[] end = null;
+        for (SSTable t : c.inputs) {
+            sources.add(t.cursor(null)); // level 0 is newest first, higher levels only have one input
+            begin = (begin == null || Key.COMP.compare(t.smallest, begin) < 0) ? t.smallest : begin;
+            end = (end == null || Key.COMP.compare(t.largest, end) > 0) ? t.largest : end;
+        }
+        if (!c.next.isEmpty()) {
+            sources.add(new LevelCursor(c.next, null));
+        }
+        // deletion markers are only needed while older data might be below
+        boolean dropTombstones = true;
+        State s = state;
+        for (int level = c.level + 2; level < NUM_LEVELS; level++) {
+            if (!overlapping(s.levels.get(level), begin, end).isEmpty()) {
+                dropTombstones = false;
+                break;
+            }
+        }
+        MergingCursor merged = new MergingCursor(sources, false);
+        TableBuilder builder = null;
+        long number = 0;
+        try {
+            while (merged.valid()) {
+                byte[] key = merged.key();
+                byte[] value = merged.value();
+                merged.next();
+                if (value == TOMBSTONE && dropTombstones) {
+                    continue;
+                }
+                if (builder == null) {
+                    synchronized (lock) {
+                        number = nextFileNumber++;
+                    }
+                    builder = new TableBuilder(tableFile(number), opts.blockSize, opts.bloomBitsPerKey);
+                }
+                builder.add(key, value);
+                if (compactionLimiter != null) {
+                    compactionLimiter.acquire(Math.max(1, key.length + value.length));
+                }
+                if (builder.size() >= opts.tableSize) {
+                    builder.finish();
+                    builder = null;
+                    outputs.add(SSTable.open(tableFile(number), number));
+                }
+            }
+            if (builder != null) {
+                builder.finish();
+                builder = null;
+                outputs.add(SSTable.open(tableFile(number), number));
+            }
+        } catch (IOException ex) {
+            if (builder != null) {
+                builder.abandon();
+            }
+            for (SSTable t : outputs) {
+                t.file.delete();
+            }
+            throw ex;
+        }
+    }
+
+    private SSTable writeTable(InternalCursor c, long number) throws IOException {
+        File file = tableFile(number);
+        TableBuilder builder = new TableBuilder(file, opts.blockSize, opts.bloomBitsPerKey);
+        try {
+            while (c.valid()) {
+                builder.add(c.key(), c.value());
+                c.next();
+            }
+            if (builder.entries() == 0) {
+                builder.abandon();
+                return null;
+            }
+            builder.finish();
+        } catch (IOException ex) {
+            builder.abandon();
+            throw ex;
+        }
+        return SSTable.open(file, number);
+    }
+
+    /**
+     * Call with the lock held.
+     */
+    private void writeManifest(State s) throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(fos);
+        try {
+            out.writeLong(MANIFEST_MAGIC);
+            out.writeLong(nextFileNumber);
+            // logs older than the oldest memtable's are covered by tables
+            out.writeLong((s.imm != null) ? s.imm.logNumber : s.mem.logNumber);
+            int numTables = 0;
+            for (List<SSTable> level : s.levels) {
+                numTables += level.size();
+            }
+            out.writeInt(numTables);
+            for (int level = 0; level < NUM_LEVELS; level++) {
+                for (SSTable t : s.levels.get(level)) {
+                    out.writeInt(level);
+                    out.writeLong(t.number);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Helpers
+     */
+    private State current() {
+        State s = state;
+        if (s == null) {
+            throw new LsmException("Store " + dir + " is closed");
+        }
+        return s;
+    }
+
+    private File tableFile(long number) {
+        return new File(dir, String.format("%06d.sst", number));
+    }
+
+    private File logFile(long number) {
+        return new File(dir, String.format("%06d.log", number));
+    }
+
+    private static long fileNumber(String name) {
+        int dot = name.indexOf('.');
+        if (dot <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, dot));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static List<List<SSTable>> emptyLevels() {
+        List<List<SSTable>> levels = new ArrayList<List<SSTable>>(NUM_LEVELS);
+        for (int i = 0; i < NUM_LEVELS; i++) {
+            levels.add(new ArrayList<SSTable>());
+        }
+        return levels;
+    }
+
+    private static List<List<SSTable>> copyLevels(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<List<SSTable>>(NUM_LEVELS);
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<SSTable>(level));
+        }
+        return copy;
+    }
+
+    private static long levelBytes(List<SSTable> tables) {
+        long bytes = 0;
+        for (SSTable t : tables) {
+            bytes += t.fileSize;
+        }
+        return bytes;
+    }
+
+    private static List<SSTable> overlapping(List<SSTable> tables, byte[] begin, byte[] end) {
+        List<SSTable> result = new ArrayList<SSTable>();
+        for (SSTable t : tables) {
+            if (t.overlaps(begin, end)) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param tables non-overlapping, sorted
+     * @param key
+     * @return the only table that may contain key, or null
+     */
+    private static SSTable findTable(List<SSTable> tables, byte[] key) {
+        int idx = firstNotBefore(tables, key);
+        if (idx < tables.size() && Key.COMP.compare(tables.get(idx).smallest, key) <= 0) {
+            return tables.get(idx);
+        }
+        return null;
+    }
+
+    /**
+     * @return index of the first table whose largest key is &gt;= key
+     */
+    private static int firstNotBefore(List<SSTable> tables, byte[] key) {
+        int low = 0;
+        int high = tables.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Key.COMP.compare(tables.get(mid).largest, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Internal classes
+     */
+    private static final class State {
+
+        final Memtable mem;
+        final Memtable imm; // being flushed, or null
+        final List<List<SSTable>> levels; // level 0 newest first, others sorted by key
+
+        State(Memtable mem, Memtable imm, List<List<SSTable>> levels) {
+            this.mem = mem;
+            this.imm = imm;
+            this.levels = levels;
+        }
+    }
+
+    private static final class Memtable {
+
+        final ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<byte[], byte[]>(Key.COMP);
+        final AtomicLong size = new AtomicLong(0);
+        final long logNumber;
+
+        Memtable(long logNumber) {
+            this.logNumber = logNumber;
+        }
+
+        void put(byte[] key, byte[] value) {
+            map.put(key, value);
+            size.addAndGet(key.length + value.length + ENTRY_OVERHEAD);
+        }
+    }
+
+    private static final class Compaction {
+
+        final int level;
+        final List<SSTable> inputs;
+        final List<SSTable> next; // overlapping tables from level + 1
+
+        Compaction(int level, List<SSTable> inputs, List<SSTable> next) {
+            this.level = level;
+            this.inputs = inputs;
+            this.next = next;
+        }
+    }
+
+    static final class LsmBatch implements RawStore.RawBatch {
+
+        private final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        private final ArrayList<byte[]> values = new ArrayList<byte[]>();
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            keys.add(key);
+            values.add(value);
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            keys.add(key);
+            values.add(TOMBSTONE);
+        }
+
+        int size() {
+            return keys.size();
+        }
+
+        byte[] key(int i) {
+            return keys.get(i);
+        }
+
+        byte[] value(int i) {
+            return values.get(i);
+        }
+
+        @Override
+        public void close() {
+            keys.clear();
+            values.clear();
+        }
+    }
+
+    private static final class MemCursor implements InternalCursor {
+
+        private final Iterator<Map.Entry<byte[], byte[]>> it;
+        private Map.Entry<byte[], byte[]> current;
+
+        MemCursor(ConcurrentSkipListMap<byte[], byte[]> map, byte[] startKey) {
+            it = ((startKey == null) ? map : map.tailMap(startKey, true)).entrySet().iterator();
+            next();
+        }
+
+        @Override
+        public boolean valid() {
+            return current != null;
+        }
+
+        @Override
+        public byte[] key() {
+            return current.getKey();
+        }
+
+        @Override
+        public byte[] value() {
+            return current.getValue();
+        }
+
+        @Override
+        public void next() {
+            current = it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /**
+     * Concatenates the non-overlapping tables of a level.
+     */
+    private static final class LevelCursor implements InternalCursor {
+
+        private final List<SSTable> tables;
+        private int idx;
+        private InternalCursor current;
+
+        LevelCursor(List<SSTable> tables, byte[] startKey) {
+            this.tables = tables;
+            this.idx = (startKey == null) ? 0 : firstNotBefore(tables, startKey);
+            if (idx < tables.size()) {
+                current = tables.get(idx).cursor(startKey);
+                skipExhausted();
+            }
+        }
+
+        @Override
+        public boolean valid() {
+            return current != null && current.valid();
+        }
+
+        @Override
+        public byte[] key() {
+            return current.key();
+        }
+
+        @Override
+        public byte[] value() {
+            return current.value();
+        }
+
+        @Override
+        public void next() {
+            current.next();
+            skipExhausted();
+        }
+
+        private void skipExhausted() {
+            while (!current.valid() && idx + 1 < tables.size()) {
+                idx++;
+                current = tables.get(idx).cursor(null);
+            }
+        }
+    }
+}
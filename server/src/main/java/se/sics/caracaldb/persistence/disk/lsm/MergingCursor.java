@@ -0,0 +1,122 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.lsm;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import se.sics.caracaldb.Key;
+
+/**
+ * Merges several sorted cursors into one.
+ * <p>
+ * Sources are given newest first. If several sources contain the same key,
+ * only the entry from the newest one is returned.
+ *
+ * @author lkroll
+ */
+final class MergingCursor implements InternalCursor {
+
+    private final PriorityQueue<Source> heap;
+    private final boolean skipTombstones;
+    private byte[] key;
+    private byte[] value;
+
+    /**
+     * @param sources newest first
+     * @param skipTombstones whether to hide deleted keys (for reads) or to
+     * return their deletion markers (for compactions)
+     */
+    MergingCursor(List<InternalCursor> sources, boolean skipTombstones) {
+        this.skipTombstones = skipTombstones;
+        this.heap = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+
+            @Override
+            public int compare(Source s1, Source s2) {
+                int c = Key.COMP.compare(s1.cursor.key(), s2.cursor.key());
+                if (c != 0) {
+                    return c;
+                }
+                return s1.rank - s2.rank;
+            }
+        });
+        int rank = 0;
+        for (InternalCursor c : sources) {
+            if (c.valid()) {
+                heap.add(new Source(c, rank));
+            }
+            rank++;
+        }
+        next();
+    }
+
+    @Override
+    public boolean valid() {
+        return key != null;
+    }
+
+    @Override
+    public byte[] key() {
+        return key;
+    }
+
+    @Override
+    public byte[] value() {
+        return value;
+    }
+
+    @Override
+    public void next() {
+        while (!heap.isEmpty()) {
+            Source top = heap.poll();
+            key = top.cursor.key();
+            value = top.cursor.value();
+            advance(top);
+            // drop older entries for the same key
+            while (!heap.isEmpty() && Key.COMP.compare(heap.peek().cursor.key(), key) == 0) {
+                advance(heap.poll());
+            }
+            if (!(skipTombstones && value == LsmStore.TOMBSTONE)) {
+                return;
+            }
+        }
+        key = null;
+        value = null;
+    }
+
+    private void advance(Source s) {
+        s.cursor.next();
+        if (s.cursor.valid()) {
+            heap.add(s);
+        }
+    }
+
+    private static class Source {
+
+        final InternalCursor cursor;
+        final int rank;
+
+        Source(InternalCursor cursor, int rank) {
+            this.cursor = cursor;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import se.sics.caracaldb.Key;
+
+/**
+ * An immutable sorted table file, read through a memory mapping.
+ * <p>
+ * The block index and the bloom filter are kept on the heap, data blocks are
+ * read straight from the mapping (and thus the OS page cache). The mapping
+ * stays valid after the file is deleted, so readers holding on to an obsolete
+ * table are not affected by compactions.
+ *
+ * @author lkroll
+ */
+final class SSTable {
+
+    final long number;
+    final File file;
+    final long fileSize;
+    final byte[] smallest;
+    final byte[] largest;
+    final long entries;
+    private final ByteBuffer data;
+    private final byte[][] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter bloom;
+
+    private SSTable(long number, File file, ByteBuffer data, byte[][] blockKeys, long[] blockOffsets,
+            int[] blockLengths, BloomFilter bloom, byte[] largest, long entries) {
+        this.number = number;
+        this.file = file;
+        this.fileSize = data.capacity();
+        this.data = data;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.bloom = bloom;
+        this.smallest = (blockKeys.length == 0) ? largest : blockKeys[0];
+        this.largest = largest;
+        this.entries = entries;
+    }
+
+    static SSTable open(File file, long number) throws IOException {
+        ByteBuffer data;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < TableBuilder.FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid table size " + size + " of " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer footer = data.duplicate();
+        footer.position(data.capacity() - TableBuilder.FOOTER_SIZE);
+        long bloomOffset = footer.getLong();
+        int bloomLength = footer.getInt();
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        long entries = footer.getLong();
+        if (footer.getLong() != TableBuilder.MAGIC) {
+            throw new IOException("Corrupt table " + file);
+        }
+        ByteBuffer bloomBuf = data.duplicate();
+        bloomBuf.position((int) bloomOffset).limit((int) bloomOffset + bloomLength);
+        BloomFilter bloom = BloomFilter.deserialize(bloomBuf);
+        ByteBuffer index = data.duplicate();
+        index.position((int) indexOffset).limit((int) indexOffset + indexLength);
+        int numBlocks = index.getInt();
+        byte[][] blockKeys = new byte[numBlocks][];
+        long[] blockOffsets = new long[numBlocks];
+        int[] blockLengths = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            blockKeys[i] = new byte[index.getInt()];
+            index.get(blockKeys[i]);
+            blockOffsets[i] = index.getLong();
+            blockLengths[i] = index.getInt();
+        }
+        byte[] largest = new byte[index.getInt()];
+        index.get(largest);
+        return new SSTable(number, file, data, blockKeys, blockOffsets, blockLengths, bloom, largest, entries);
+    }
+
+    /**
+     * @param key
+     * @return the value, {@link LsmStore#TOMBSTONE} or null if the table
+     * doesn't contain key
+     */
+    byte[] get(byte[] key) {
+        if (!mayContain(key) || !bloom.mightContain(key)) {
+            return null;
+        }
+        int b = findBlock(key);
+        if (b < 0) {
+            return null;
+        }
+        ByteBuffer buf = block(b);
+        while (buf.hasRemaining()) {
+            int keyLength = buf.getInt();
+            int keyPos = buf.position();
+            int c = compare(buf, keyPos, keyLength, key);
+            buf.position(keyPos + keyLength);
+            byte type = buf.get();
+            if (c == 0) {
+                if (type == WriteAheadLog.DELETE) {
+                    return LsmStore.TOMBSTONE;
+                }
+                byte[] value = new byte[buf.getInt()];
+                buf.get(value);
+                return value;
+            }
+            if (c > 0) {
+                return null;
+            }
+            if (type != WriteAheadLog.DELETE) {
+                int valueLength = buf.getInt();
+                buf.position(buf.position() + valueLength);
+            }
+        }
+        return null;
+    }
+
+    boolean mayContain(byte[] key) {
+        return entries > 0 && Key.COMP.compare(key, smallest) >= 0 && Key.COMP.compare(key, largest) <= 0;
+    }
+
+    /**
+     * @param begin inclusive, or null
+     * @param end inclusive, or null
+     * @return whether the table's key range intersects [begin, end]
+     */
+    boolean overlaps(byte[] begin, byte[] end) {
+        return entries > 0 && (end == null || Key.COMP.compare(smallest, end) <= 0)
+                && (begin == null || Key.COMP.compare(largest, begin) >= 0);
+    }
+
+    InternalCursor cursor(byte[] startKey) {
+        return new TableCursor(startKey);
+    }
+
+    @Override
+    public String toString() {
+        return "SSTable(" + file.getName() + ", " + entries + " entries, " + fileSize + "B)";
+    }
+
+    /**
+     * @return index of the last block whose first key is &lt;= key, or -1
+     */
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Key.COMP.compare(blockKeys[mid], key) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private ByteBuffer block(int b) {
+        ByteBuffer buf = data.duplicate();
+        buf.position((int) blockOffsets[b]).limit((int) blockOffsets[b] + blockLengths[b]);
+        return buf;
+    }
+
+    private static int compare(ByteBuffer buf, int pos, int length, byte[] key) {
+        int min = Math.min(length, key.length);
+        for (int i = 0; i < min; i++) {
+            int c = (buf.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private class TableCursor implements InternalCursor {
+
+        private int blockIdx;
+        private ByteBuffer buf;
+        private byte[] key;
+        private byte[] value;
+
+        TableCursor(byte[] startKey) {
+            blockIdx = (startKey == null) ? 0 : Math.max(0, findBlock(startKey));
+            if (blockIdx < blockKeys.length) {
+                buf = block(blockIdx);
+            }
+            next();
+            if (startKey != null) {
+                while (key != null && Key.COMP.compare(key, startKey) < 0) {
+                    next();
+                }
+            }
+        }
+
+        @Override
+        public boolean valid() {
+            return key != null;
+        }
+
+        @Override
+        public byte[] key() {
+            return key;
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+
+        @Override
+        public void next() {
+            while (buf != null && !buf.hasRemaining()) {
+                blockIdx++;
+                buf = (blockIdx < blockKeys.length) ? block(blockIdx) : null;
+            }
+            if (buf == null) {
+                key = null;
+                value = null;
+                return;
+            }
+            key = new byte[buf.getInt()];
+            buf.get(key);
+            if (buf.get() == WriteAheadLog.DELETE) {
+                value = LsmStore.TOMBSTONE;
+            } else {
+                value = new byte[buf.getInt()];
+                buf.get(value);
+            }
+        }
+    }
+}
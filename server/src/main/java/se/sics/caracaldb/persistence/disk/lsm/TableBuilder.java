@@ -0,0 +1,179 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.lsm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Writes an {@link SSTable} from entries added in ascending key order.
+ * <p>
+ * File layout:
+ * <pre>
+ * data blocks: ([key length][key][type]([value length][value])?)*
+ * bloom filter
+ * index: [#blocks]([first key length][first key][offset][length])* [largest key length][largest key]
+ * footer: [bloom offset][bloom length][index offset][index length][#entries][magic]
+ * </pre>
+ *
+ * @author lkroll
+ */
+final class TableBuilder {
+
+    static final long MAGIC = 0x4361726163616C53L; // "CaracalS"
+    static final int FOOTER_SIZE = 8 + 4 + 8 + 4 + 8 + 8;
+    private final File file;
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final int bloomBitsPerKey;
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    private final DataOutputStream block = new DataOutputStream(blockBytes);
+    private final ArrayList<byte[]> blockKeys = new ArrayList<byte[]>();
+    private final ArrayList<long[]> blockHandles = new ArrayList<long[]>(); // offset, length
+    private long[] hashes = new long[1024];
+    private long entries = 0;
+    private long offset = 0;
+    private byte[] firstInBlock = null;
+    private byte[] lastKey = null;
+
+    TableBuilder(File file, int blockSize, int bloomBitsPerKey) throws IOException {
+        this.file = file;
+        this.fileOut = new FileOutputStream(file);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        this.blockSize = blockSize;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+    }
+
+    /**
+     * @param key must be greater than the previously added key
+     * @param value or {@link LsmStore#TOMBSTONE}
+     * @throws IOException
+     */
+    void add(byte[] key, byte[] value) throws IOException {
+        if (firstInBlock == null) {
+            firstInBlock = key;
+        }
+        block.writeInt(key.length);
+        block.write(key);
+        if (value == LsmStore.TOMBSTONE) {
+            block.writeByte(WriteAheadLog.DELETE);
+        } else {
+            block.writeByte(WriteAheadLog.PUT);
+            block.writeInt(value.length);
+            block.write(value);
+        }
+        if (entries == hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        hashes[(int) entries] = BloomFilter.hash(key);
+        entries++;
+        lastKey = key;
+        if (blockBytes.size() >= blockSize) {
+            finishBlock();
+        }
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    /**
+     * @return approximate size of the file so far
+     */
+    long size() {
+        return offset + blockBytes.size();
+    }
+
+    /**
+     * Writes index and footer and syncs the file.
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        finishBlock();
+        BloomFilter bloom = BloomFilter.build(hashes, (int) entries, bloomBitsPerKey);
+        ByteBuffer bloomBuf = ByteBuffer.allocate(bloom.serializedSize());
+        bloom.serialize(bloomBuf);
+        long bloomOffset = offset;
+        write(bloomBuf.array());
+        long indexOffset = offset;
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        index.writeInt(blockKeys.size());
+        for (int i = 0; i < blockKeys.size(); i++) {
+            index.writeInt(blockKeys.get(i).length);
+            index.write(blockKeys.get(i));
+            index.writeLong(blockHandles.get(i)[0]);
+            index.writeInt((int) blockHandles.get(i)[1]);
+        }
+        byte[] largest = (lastKey == null) ? new byte[0] : lastKey;
+        index.writeInt(largest.length);
+        index.write(largest);
+        index.flush();
+        write(indexBytes.toByteArray());
+        out.writeLong(bloomOffset);
+        out.writeInt(bloomBuf.capacity());
+        out.writeLong(indexOffset);
+        out.writeInt(indexBytes.size());
+        out.writeLong(entries);
+        out.writeLong(MAGIC);
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+    }
+
+    /**
+     * Closes and deletes an unfinished table.
+     */
+    void abandon() {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            // ignore, we're deleting it anyway
+        }
+        file.delete();
+    }
+
+    private void finishBlock() throws IOException {
+        if (firstInBlock == null) {
+            return;
+        }
+        block.flush();
+        blockKeys.add(firstInBlock);
+        blockHandles.add(new long[]{offset, blockBytes.size()});
+        write(blockBytes.toByteArray());
+        blockBytes.reset();
+        firstInBlock = null;
+    }
+
+    private void write(byte[] data) throws IOException {
+        out.write(data);
+        offset += data.length;
+    }
+}
@@ -0,0 +1,179 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.disk.lsm;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of write batches.
+ * <p>
+ * Each record is [length][crc32][payload] with the payload holding all
+ * operations of a batch, so a batch is either replayed completely or not at
+ * all. A torn record at the end of the log (crash during append) ends the
+ * replay.
+ *
+ * @author lkroll
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+    static final byte PUT = 0;
+    static final byte DELETE = 1;
+    final long number;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private long size = 0;
+
+    WriteAheadLog(File file, long number) throws IOException {
+        this.number = number;
+        this.out = new FileOutputStream(file, true);
+        this.channel = out.getChannel();
+        this.size = channel.size();
+    }
+
+    /**
+     * @param batch
+     * @param sync whether to force the record to disk before returning
+     * @throws IOException
+     */
+    synchronized void append(LsmStore.LsmBatch batch, boolean sync) throws IOException {
+        int payloadSize = 4;
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] value = batch.value(i);
+            payloadSize += 1 + 4 + batch.key(i).length + (value == LsmStore.TOMBSTONE ? 0 : 4 + value.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8 + payloadSize);
+        buf.putInt(payloadSize);
+        buf.putInt(0); // crc placeholder
+        buf.putInt(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] key = batch.key(i);
+            byte[] value = batch.value(i);
+            buf.put(value == LsmStore.TOMBSTONE ? DELETE : PUT);
+            buf.putInt(key.length);
+            buf.put(key);
+            if (value != LsmStore.TOMBSTONE) {
+                buf.putInt(value.length);
+                buf.put(value);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 8, payloadSize);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        size += 8 + payloadSize;
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    static interface Handler {
+
+        void put(byte[] key, byte[] value);
+
+        void delete(byte[] key);
+    }
+
+    /**
+     * Replays all complete records of a log.
+     *
+     * @param file
+     * @param h
+     * @return number of batches replayed
+     * @throws IOException
+     */
+    static int replay(File file, Handler h) throws IOException {
+        int batches = 0;
+        long remaining = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int payloadSize;
+                int checksum;
+                byte[] payload;
+                try {
+                    payloadSize = in.readInt();
+                    checksum = in.readInt();
+                    if (payloadSize < 4 || payloadSize > remaining - 8) {
+                        throw new EOFException();
+                    }
+                    payload = new byte[payloadSize];
+                    in.readFully(payload);
+                } catch (EOFException ex) {
+                    break; // end of log or torn last record
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Corrupt record in {} after {} batches. Ignoring the rest of the log.", file, batches);
+                    break;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(payload);
+                int count = buf.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte type = buf.get();
+                    byte[] key = new byte[buf.getInt()];
+                    buf.get(key);
+                    if (type == DELETE) {
+                        h.delete(key);
+                    } else {
+                        byte[] value = new byte[buf.getInt()];
+                        buf.get(value);
+                        h.put(key, value);
+                    }
+                }
+                batches++;
+                remaining -= 8 + payloadSize;
+            }
+        } finally {
+            in.close();
+        }
+        return batches;
+    }
+}
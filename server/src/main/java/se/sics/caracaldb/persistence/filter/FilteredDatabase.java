@@ -0,0 +1,393 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.filter;
+
+import com.google.common.io.Closer;
+import com.larskroll.common.ByteArrayRef;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.StoreIterator;
+
+/**
+ * Answers lookups for absent keys from per-range bloom filters without
+ * touching the wrapped database.
+ * <p>
+ * A filter is built for a key range (usually a vnode's responsibility) by
+ * {@link #rebuildFilter(KeyRange, boolean)} and from then on every key
+ * written in that range is added to it. Keys in ranges without a filter are
+ * always looked up in the database.
+ * <p>
+ * Bloom filters can't forget keys, so deletions leave false positives
+ * behind. Those (and filters that have become overfull) are cleaned up by
+ * the next rebuild, which the replication layer requests after cleanups and
+ * data transfers.
+ *
+ * @author lkroll
+ */
+public class FilteredDatabase extends Database {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilteredDatabase.class);
+    private static final int MIN_CAPACITY = 1024;
+
+    private final Database db;
+    private final int bitsPerKey;
+    private final ConcurrentSkipListMap<Key, Partition> partitions = new ConcurrentSkipListMap<Key, Partition>();
+    private final CopyOnWriteArrayList<Partition> building = new CopyOnWriteArrayList<Partition>();
+    private final AtomicLong negatives = new AtomicLong(0);
+
+    public FilteredDatabase(Database db, int bitsPerKey) {
+        super(null);
+        this.db = db;
+        this.bitsPerKey = bitsPerKey;
+    }
+
+    /**
+     * @return the wrapped database
+     */
+    public Database unwrap() {
+        return db;
+    }
+
+    /**
+     * @return the number of lookups answered by a filter
+     */
+    public long negatives() {
+        return negatives.get();
+    }
+
+    @Override
+    public void rebuildFilter(KeyRange range, boolean force) throws IOException {
+        if (!force) {
+            Partition p = partitionOf(range.begin);
+            if (p != null && p.range.equals(range) && !p.filter.isOverfull()) {
+                return; // still good
+            }
+        }
+        Partition p = new Partition(range);
+        building.add(p);
+        try {
+            long[] hashes = new long[1024];
+            int count = 0;
+            Closer closer = Closer.create();
+            try {
+                byte[] begin = range.begin.getArray();
+                for (StoreIterator it = closer.register(db.iterator(begin)); it.hasNext(); it.next()) {
+                    byte[] key = it.peekKey();
+                    if (range.contains(new Key(key))) {
+                        if (count == hashes.length) {
+                            hashes = Arrays.copyOf(hashes, count * 2);
+                        }
+                        hashes[count++] = KeyFilter.hash(key);
+                    } else {
+                        //special case (a,b) and key is a
+                        if (Key.compare(begin, key) != 0) {
+                            break; // reached end of range
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                closer.rethrow(e);
+            } finally {
+                closer.close();
+            }
+            // leave room for the range to grow before the filter degrades
+            KeyFilter filter = new KeyFilter(Math.max(MIN_CAPACITY, 2 * count), bitsPerKey);
+            for (int i = 0; i < count; i++) {
+                filter.add(hashes[i]);
+            }
+            p.install(filter);
+            install(p);
+            LOG.debug("Built filter for {} with {} keys", range, count);
+        } finally {
+            building.remove(p);
+        }
+    }
+
+    /**
+     * Replaces all partitions overlapping p with p.
+     */
+    private void install(Partition p) {
+        Iterator<Entry<Key, Partition>> it = partitions.entrySet().iterator();
+        while (it.hasNext()) {
+            Partition other = it.next().getValue();
+            if (other.range.overlapsWith(p.range)) {
+                it.remove();
+            }
+        }
+        partitions.put(p.range.begin, p);
+    }
+
+    private Partition partitionOf(Key k) {
+        // contains(Key) rather than contains(byte[]), as the latter can't deal with an INF end
+        Entry<Key, Partition> e = partitions.floorEntry(k);
+        if (e != null && e.getValue().range.contains(k)) {
+            return e.getValue();
+        }
+        e = partitions.lowerEntry(k); // in case the floor has an open begin
+        if (e != null && e.getValue().range.contains(k)) {
+            return e.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the key is definitely not in the database
+     */
+    private boolean absent(byte[] key) {
+        Partition p = partitionOf(new Key(key));
+        if (p == null) {
+            return false;
+        }
+        KeyFilter f = p.filter;
+        if (f != null && !f.mightContain(KeyFilter.hash(key))) {
+            negatives.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Must be called before the key is written, so no reader can find it in
+     * the database but not in the filter, and again after the write, in case
+     * a rebuild started in between and its scan missed the key.
+     */
+    private void added(byte[] key, long hash) {
+        Key k = new Key(key);
+        for (Partition b : building) {
+            if (b.range.contains(k)) {
+                b.add(hash);
+            }
+        }
+        Partition p = partitionOf(k);
+        if (p != null) {
+            p.add(hash);
+        }
+    }
+
+    @Override
+    public void close() {
+        partitions.clear();
+        db.close();
+    }
+
+    @Override
+    public void sync() {
+        db.sync();
+    }
+
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return db.supportsConcurrentAccess();
+    }
+
+    @Override
+    public boolean supportsLiveIterators() {
+        return db.supportsLiveIterators();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        long hash = KeyFilter.hash(key);
+        added(key, hash);
+        db.put(key, value, version);
+        added(key, hash);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        long hash = KeyFilter.hash(key);
+        added(key, hash);
+        db.replace(key, value);
+        added(key, hash);
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        long hash = KeyFilter.hash(key); // creates a tombstone, which is visible to get
+        added(key, hash);
+        db.delete(key, version);
+        added(key, hash);
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        return db.deleteVersions(key, version);
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        if (absent(key)) {
+            return null;
+        }
+        return db.get(key);
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return db.getAllVersions(key);
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        if (absent(key)) {
+            return null;
+        }
+        return db.getRaw(key);
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new FilteredBatch(db.createBatch());
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        FilteredBatch fb = (FilteredBatch) b;
+        db.writeBatch(fb.batch);
+        for (int i = 0; i < fb.keys.size(); i++) {
+            added(fb.keys.get(i), fb.hashes[i]);
+        }
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return db.iterator();
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return db.iterator(startKey);
+    }
+
+    @Override
+    public String toString() {
+        return "Filtered(" + db + ")";
+    }
+
+    private static class Partition {
+
+        final KeyRange range;
+        volatile KeyFilter filter = null; // null while building
+        private long[] pending = new long[16];
+        private int numPending = 0;
+
+        Partition(KeyRange range) {
+            this.range = range;
+        }
+
+        void add(long hash) {
+            KeyFilter f = filter;
+            if (f != null) {
+                f.add(hash);
+                return;
+            }
+            synchronized (this) {
+                if (filter != null) {
+                    filter.add(hash);
+                    return;
+                }
+                if (numPending == pending.length) {
+                    pending = Arrays.copyOf(pending, numPending * 2);
+                }
+                pending[numPending++] = hash;
+            }
+        }
+
+        /**
+         * Adds the keys written during the build and makes the filter
+         * visible.
+         */
+        synchronized void install(KeyFilter f) {
+            for (int i = 0; i < numPending; i++) {
+                f.add(pending[i]);
+            }
+            pending = null;
+            filter = f;
+        }
+    }
+
+    /**
+     * Adds the written keys to the filters when they are put into the batch,
+     * i.e. before the batch is written, and remembers them for after.
+     */
+    private class FilteredBatch implements Batch {
+
+        private final Batch batch;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        private long[] hashes = new long[16];
+
+        private FilteredBatch(Batch batch) {
+            this.batch = batch;
+        }
+
+        private void written(byte[] key) {
+            long hash = KeyFilter.hash(key);
+            added(key, hash);
+            if (keys.size() == hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            hashes[keys.size()] = hash;
+            keys.add(key);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value, int version) {
+            written(key);
+            batch.put(key, value, version);
+        }
+
+        @Override
+        public void replace(byte[] key, ByteArrayRef value) {
+            written(key);
+            batch.replace(key, value);
+        }
+
+        @Override
+        public void delete(byte[] key, int version) {
+            written(key);
+            batch.delete(key, version);
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, int version) {
+            return batch.deleteVersions(key, version);
+        }
+
+        @Override
+        public void close() {
+            batch.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.filter;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size bloom filter that can be added to concurrently.
+ * <p>
+ * Uses double hashing on a single 64bit murmur3 hash per key.
+ *
+ * @author lkroll
+ */
+final class KeyFilter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * @param capacity the number of keys the filter is sized for
+     * @param bitsPerKey
+     */
+    KeyFilter(int capacity, int bitsPerKey) {
+        this.capacity = capacity;
+        this.numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69))); // ln(2)
+        long n = Math.max(64, (long) capacity * bitsPerKey);
+        int words = (int) Math.min(Integer.MAX_VALUE, (n + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.numBits = words * 64L;
+    }
+
+    static long hash(byte[] key) {
+        return HASH.hashBytes(key).asLong();
+    }
+
+    /**
+     * @param hash
+     * @return true if the filter changed, i.e. the key was new to it
+     */
+    boolean add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean changed = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            while (true) {
+                long old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+                if (bits.compareAndSet(word, old, old | mask)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (changed) {
+            count.incrementAndGet();
+        }
+        return changed;
+    }
+
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keys that collide on all bits with earlier ones are not counted.
+     *
+     * @return true if more keys were added than the filter was sized for,
+     * i.e. its false positive rate is worse than configured
+     */
+    boolean isOverfull() {
+        return count.get() > capacity;
+    }
+
+    int count() {
+        return count.get();
+    }
+}
@@ -0,0 +1,783 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An ordered byte[] -&gt; byte[] map using an adaptive radix tree with path
+ * compression.
+ * <p>
+ * Inner nodes grow from 4 over 16 and 48 to 256 children as needed (and
+ * shrink again on removal), and chains of single-child nodes are collapsed
+ * into one node with a prefix. Keys of a schema, which all start with the
+ * same schema id, thus share a single copy of that prefix. Lookups compare
+ * each key byte at most once.
+ * <p>
+ * Keys are ordered as unsigned bytes (like {@link se.sics.caracaldb.Key#COMP})
+ * and may be prefixes of each other. Not thread-safe.
+ *
+ * @author lkroll
+ */
+public class AdaptiveRadixTree {
+
+    private static final byte[] NO_PREFIX = new byte[0];
+    private Node root = null;
+    private int size = 0;
+    private int modCount = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte[] get(byte[] key) {
+        Node n = root;
+        int depth = 0;
+        while (n != null) {
+            int p = n.prefix.length;
+            if (key.length - depth < p || !rangeEquals(n.prefix, key, depth)) {
+                return null;
+            }
+            depth += p;
+            if (depth == key.length) {
+                return n.value;
+            }
+            n = n.find(key[depth] & 0xFF);
+            depth++;
+        }
+        return null;
+    }
+
+    /**
+     * @param key
+     * @param value not null
+     * @return the previous value or null
+     */
+    public byte[] put(byte[] key, byte[] value) {
+        if (value == null) {
+            throw new NullPointerException("Values can't be null");
+        }
+        modCount++;
+        if (root == null) {
+            root = new Leaf(key, 0, value);
+            size++;
+            return null;
+        }
+        Replaced r = new Replaced();
+        root = insert(root, key, 0, value, r);
+        if (r.value == null) {
+            size++;
+        }
+        return r.value;
+    }
+
+    /**
+     * @param key
+     * @return the removed value or null
+     */
+    public byte[] remove(byte[] key) {
+        if (root == null) {
+            return null;
+        }
+        Replaced r = new Replaced();
+        root = delete(root, key, 0, r);
+        if (r.value != null) {
+            size--;
+            modCount++;
+        }
+        return r.value;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * @return an iterator over all entries in key order
+     */
+    public Cursor cursor() {
+        return new Cursor(null);
+    }
+
+    /**
+     * The cursor stays usable if the tree is modified, it will continue with
+     * the smallest key greater than the current one.
+     *
+     * @param startKey
+     * @return an iterator over all entries with keys &gt;= startKey
+     */
+    public Cursor cursor(byte[] startKey) {
+        return new Cursor(startKey);
+    }
+
+    private static Node insert(Node n, byte[] key, int depth, byte[] value, Replaced r) {
+        int p = commonPrefix(n.prefix, key, depth);
+        if (p < n.prefix.length) { // split the compressed path
+            Node4 parent = new Node4(Arrays.copyOf(n.prefix, p));
+            int edge = n.prefix[p] & 0xFF;
+            n.prefix = Arrays.copyOfRange(n.prefix, p + 1, n.prefix.length);
+            parent.add(edge, n);
+            if (depth + p == key.length) {
+                parent.value = value;
+            } else {
+                parent.add(key[depth + p] & 0xFF, new Leaf(key, depth + p + 1, value));
+            }
+            return parent;
+        }
+        depth += p;
+        if (depth == key.length) {
+            r.value = n.value;
+            n.value = value;
+            return n;
+        }
+        int edge = key[depth] & 0xFF;
+        Node child = n.find(edge);
+        if (child == null) {
+            Node target = n.isFull() ? n.grow() : n;
+            target.add(edge, new Leaf(key, depth + 1, value));
+            return target;
+        }
+        Node newChild = insert(child, key, depth + 1, value, r);
+        if (newChild != child) {
+            n.set(edge, newChild);
+        }
+        return n;
+    }
+
+    private static Node delete(Node n, byte[] key, int depth, Replaced r) {
+        int p = n.prefix.length;
+        if (key.length - depth < p || !rangeEquals(n.prefix, key, depth)) {
+            return n; // not found
+        }
+        depth += p;
+        if (depth == key.length) {
+            if (n.value == null) {
+                return n;
+            }
+            r.value = n.value;
+            n.value = null;
+            return n.compact();
+        }
+        int edge = key[depth] & 0xFF;
+        Node child = n.find(edge);
+        if (child == null) {
+            return n;
+        }
+        Node newChild = delete(child, key, depth + 1, r);
+        if (newChild == child) {
+            return n;
+        }
+        if (newChild == null) {
+            n.remove(edge);
+            return n.compact();
+        }
+        n.set(edge, newChild);
+        return n;
+    }
+
+    private static int commonPrefix(byte[] prefix, byte[] key, int depth) {
+        int max = Math.min(prefix.length, key.length - depth);
+        for (int i = 0; i < max; i++) {
+            if (prefix[i] != key[depth + i]) {
+                return i;
+            }
+        }
+        return max;
+    }
+
+    private static boolean rangeEquals(byte[] prefix, byte[] key, int depth) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (prefix[i] != key[depth + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Replaced {
+
+        byte[] value = null;
+    }
+
+    /**
+     * Ordered cursor over the tree.
+     * <p>
+     * Keeps the path from the root to the current entry on a stack and
+     * assembles the current key in a shared buffer.
+     */
+    public class Cursor {
+
+        private final ArrayList<Frame> stack = new ArrayList<Frame>();
+        private byte[] keyBuf = new byte[64];
+        private byte[] currentKey;
+        private byte[] currentValue;
+        private int expectedModCount;
+
+        private Cursor(byte[] startKey) {
+            seek(startKey, true);
+        }
+
+        public boolean valid() {
+            return currentKey != null;
+        }
+
+        public byte[] key() {
+            if (currentKey == null) {
+                throw new NoSuchElementException();
+            }
+            return currentKey;
+        }
+
+        public byte[] value() {
+            if (currentKey == null) {
+                throw new NoSuchElementException();
+            }
+            return currentValue;
+        }
+
+        public void next() {
+            if (currentKey == null) {
+                throw new NoSuchElementException();
+            }
+            if (expectedModCount != modCount) {
+                seek(currentKey, false);
+            } else {
+                advance();
+            }
+        }
+
+        private void seek(byte[] startKey, boolean inclusive) {
+            stack.clear();
+            expectedModCount = modCount;
+            if (root != null) {
+                if (startKey == null) {
+                    push(root, 0, -1, true);
+                } else {
+                    descend(root, startKey, 0, -1);
+                }
+            }
+            advance();
+            if (!inclusive && currentKey != null && Arrays.equals(currentKey, startKey)) {
+                advance();
+            }
+        }
+
+        /**
+         * Positions the stack at the first entry &gt;= key within n's
+         * subtree, or pushes nothing if all of it is smaller.
+         */
+        private void descend(Node n, byte[] key, int depth, int edge) {
+            int max = Math.min(n.prefix.length, key.length - depth);
+            for (int i = 0; i < max; i++) {
+                int c = (n.prefix[i] & 0xFF) - (key[depth + i] & 0xFF);
+                if (c > 0) {
+                    push(n, depth, edge, true); // whole subtree is greater
+                    return;
+                } else if (c < 0) {
+                    return; // whole subtree is smaller
+                }
+            }
+            if (max < n.prefix.length || depth + max == key.length) {
+                push(n, depth, edge, true); // key ends here, rest is greater
+                return;
+            }
+            int next = key[depth + max] & 0xFF;
+            Frame f = push(n, depth, edge, false); // own value is a prefix of key
+            Node child = n.find(next);
+            if (child == null) {
+                f.nextEdge = next;
+            } else {
+                f.nextEdge = next + 1;
+                descend(child, key, f.end + 1, next);
+            }
+        }
+
+        private Frame push(Node n, int depth, int edge, boolean emit) {
+            int start = depth;
+            if (edge >= 0) {
+                ensureCapacity(depth);
+                keyBuf[depth - 1] = (byte) edge;
+            }
+            int end = start + n.prefix.length;
+            ensureCapacity(end);
+            System.arraycopy(n.prefix, 0, keyBuf, start, n.prefix.length);
+            Frame f = new Frame(n, end, emit);
+            stack.add(f);
+            return f;
+        }
+
+        private void advance() {
+            while (!stack.isEmpty()) {
+                Frame f = stack.get(stack.size() - 1);
+                if (f.emit) {
+                    f.emit = false;
+                    if (f.node.value != null) {
+                        currentKey = Arrays.copyOf(keyBuf, f.end);
+                        currentValue = f.node.value;
+                        return;
+                    }
+                }
+                int edge = f.nextEdge > 255 ? -1 : f.node.ceilingEdge(f.nextEdge);
+                if (edge < 0) {
+                    stack.remove(stack.size() - 1);
+                    continue;
+                }
+                f.nextEdge = edge + 1;
+                push(f.node.find(edge), f.end + 1, edge, true);
+            }
+            currentKey = null;
+            currentValue = null;
+        }
+
+        private void ensureCapacity(int length) {
+            if (keyBuf.length < length) {
+                keyBuf = Arrays.copyOf(keyBuf, Math.max(length, keyBuf.length * 2));
+            }
+        }
+    }
+
+    private static class Frame {
+
+        final Node node;
+        final int end; // end of this node's prefix in the key buffer
+        boolean emit;
+        int nextEdge = 0;
+
+        Frame(Node node, int end, boolean emit) {
+            this.node = node;
+            this.end = end;
+            this.emit = emit;
+        }
+    }
+
+    /*
+     * Nodes
+     */
+    private static abstract class Node {
+
+        byte[] prefix;
+        byte[] value; // for the key ending right after the prefix
+
+        Node(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        abstract int count();
+
+        abstract Node find(int edge);
+
+        /**
+         * @return the smallest edge &gt;= from with a child, or -1
+         */
+        abstract int ceilingEdge(int from);
+
+        /**
+         * Replace an existing child.
+         */
+        abstract void set(int edge, Node child);
+
+        /**
+         * Add a new child. Only call if !isFull().
+         */
+        abstract void add(int edge, Node child);
+
+        abstract void remove(int edge);
+
+        abstract boolean isFull();
+
+        /**
+         * @return a bigger node with the same content
+         */
+        abstract Node grow();
+
+        /**
+         * @return a smaller node with the same content or this
+         */
+        abstract Node shrink();
+
+        /**
+         * Collapses the node after a removal.
+         *
+         * @return the node to replace this with (possibly null)
+         */
+        Node compact() {
+            int count = count();
+            if (count == 0) {
+                if (value == null) {
+                    return null;
+                }
+                return (this instanceof Leaf) ? this : new Leaf(prefix, value);
+            }
+            if (count == 1 && value == null) { // merge with the only child
+                int edge = ceilingEdge(0);
+                Node child = find(edge);
+                byte[] merged = new byte[prefix.length + 1 + child.prefix.length];
+                System.arraycopy(prefix, 0, merged, 0, prefix.length);
+                merged[prefix.length] = (byte) edge;
+                System.arraycopy(child.prefix, 0, merged, prefix.length + 1, child.prefix.length);
+                child.prefix = merged;
+                return child;
+            }
+            return shrink();
+        }
+
+        void copyTo(Node target) {
+            target.value = value;
+            for (int edge = ceilingEdge(0); edge >= 0; edge = (edge < 255) ? ceilingEdge(edge + 1) : -1) {
+                target.add(edge, find(edge));
+            }
+        }
+    }
+
+    private static class Leaf extends Node {
+
+        Leaf(byte[] key, int depth, byte[] value) {
+            super(depth == key.length ? NO_PREFIX : Arrays.copyOfRange(key, depth, key.length));
+            this.value = value;
+        }
+
+        Leaf(byte[] prefix, byte[] value) {
+            super(prefix);
+            this.value = value;
+        }
+
+        @Override
+        int count() {
+            return 0;
+        }
+
+        @Override
+        Node find(int edge) {
+            return null;
+        }
+
+        @Override
+        int ceilingEdge(int from) {
+            return -1;
+        }
+
+        @Override
+        void set(int edge, Node child) {
+            throw new IllegalStateException("Leaves have no children");
+        }
+
+        @Override
+        void add(int edge, Node child) {
+            throw new IllegalStateException("Leaves have no children");
+        }
+
+        @Override
+        void remove(int edge) {
+            throw new IllegalStateException("Leaves have no children");
+        }
+
+        @Override
+        boolean isFull() {
+            return true;
+        }
+
+        @Override
+        Node grow() {
+            Node4 n = new Node4(prefix);
+            n.value = value;
+            return n;
+        }
+
+        @Override
+        Node shrink() {
+            return this;
+        }
+    }
+
+    /**
+     * Node4 and Node16: sorted edges, searched linearly resp. binary.
+     */
+    private static class SortedNode extends Node {
+
+        final byte[] edges;
+        final Node[] children;
+        int count = 0;
+
+        SortedNode(byte[] prefix, int capacity) {
+            super(prefix);
+            edges = new byte[capacity];
+            children = new Node[capacity];
+        }
+
+        private int indexOf(int edge) {
+            if (edges.length <= 4) {
+                for (int i = 0; i < count; i++) {
+                    int e = edges[i] & 0xFF;
+                    if (e >= edge) {
+                        return (e == edge) ? i : -(i + 1);
+                    }
+                }
+                return -(count + 1);
+            }
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int e = edges[mid] & 0xFF;
+                if (e < edge) {
+                    low = mid + 1;
+                } else if (e > edge) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        Node find(int edge) {
+            int i = indexOf(edge);
+            return (i >= 0) ? children[i] : null;
+        }
+
+        @Override
+        int ceilingEdge(int from) {
+            int i = indexOf(from);
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            return (i < count) ? (edges[i] & 0xFF) : -1;
+        }
+
+        @Override
+        void set(int edge, Node child) {
+            children[indexOf(edge)] = child;
+        }
+
+        @Override
+        void add(int edge, Node child) {
+            int i = -(indexOf(edge) + 1);
+            System.arraycopy(edges, i, edges, i + 1, count - i);
+            System.arraycopy(children, i, children, i + 1, count - i);
+            edges[i] = (byte) edge;
+            children[i] = child;
+            count++;
+        }
+
+        @Override
+        void remove(int edge) {
+            int i = indexOf(edge);
+            System.arraycopy(edges, i + 1, edges, i, count - i - 1);
+            System.arraycopy(children, i + 1, children, i, count - i - 1);
+            count--;
+            children[count] = null;
+        }
+
+        @Override
+        boolean isFull() {
+            return count == edges.length;
+        }
+
+        @Override
+        Node grow() {
+            Node n = (edges.length <= 4) ? new Node16(prefix) : new Node48(prefix);
+            copyTo(n);
+            return n;
+        }
+
+        @Override
+        Node shrink() {
+            if (edges.length > 4 && count <= 3) {
+                Node n = new Node4(prefix);
+                copyTo(n);
+                return n;
+            }
+            return this;
+        }
+    }
+
+    private static class Node4 extends SortedNode {
+
+        Node4(byte[] prefix) {
+            super(prefix, 4);
+        }
+    }
+
+    private static class Node16 extends SortedNode {
+
+        Node16(byte[] prefix) {
+            super(prefix, 16);
+        }
+    }
+
+    private static class Node48 extends Node {
+
+        final byte[] index = new byte[256]; // slot + 1, 0 for none
+        final Node[] children = new Node[48];
+        int count = 0;
+
+        Node48(byte[] prefix) {
+            super(prefix);
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        Node find(int edge) {
+            int slot = index[edge];
+            return (slot == 0) ? null : children[slot - 1];
+        }
+
+        @Override
+        int ceilingEdge(int from) {
+            for (int edge = from; edge < 256; edge++) {
+                if (index[edge] != 0) {
+                    return edge;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void set(int edge, Node child) {
+            children[index[edge] - 1] = child;
+        }
+
+        @Override
+        void add(int edge, Node child) {
+            int slot = 0;
+            while (children[slot] != null) {
+                slot++;
+            }
+            children[slot] = child;
+            index[edge] = (byte) (slot + 1);
+            count++;
+        }
+
+        @Override
+        void remove(int edge) {
+            children[index[edge] - 1] = null;
+            index[edge] = 0;
+            count--;
+        }
+
+        @Override
+        boolean isFull() {
+            return count == 48;
+        }
+
+        @Override
+        Node grow() {
+            Node n = new Node256(prefix);
+            copyTo(n);
+            return n;
+        }
+
+        @Override
+        Node shrink() {
+            if (count <= 12) {
+                Node n = new Node16(prefix);
+                copyTo(n);
+                return n;
+            }
+            return this;
+        }
+    }
+
+    private static class Node256 extends Node {
+
+        final Node[] children = new Node[256];
+        int count = 0;
+
+        Node256(byte[] prefix) {
+            super(prefix);
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+
+        @Override
+        Node find(int edge) {
+            return children[edge];
+        }
+
+        @Override
+        int ceilingEdge(int from) {
+            for (int edge = from; edge < 256; edge++) {
+                if (children[edge] != null) {
+                    return edge;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void set(int edge, Node child) {
+            children[edge] = child;
+        }
+
+        @Override
+        void add(int edge, Node child) {
+            children[edge] = child;
+            count++;
+        }
+
+        @Override
+        void remove(int edge) {
+            children[edge] = null;
+            count--;
+        }
+
+        @Override
+        boolean isFull() {
+            return false;
+        }
+
+        @Override
+        Node grow() {
+            return this;
+        }
+
+        @Override
+        Node shrink() {
+            if (count <= 40) {
+                Node n = new Node48(prefix);
+                copyTo(n);
+                return n;
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.memory;
+
+import com.larskroll.common.ByteArrayRef;
+import com.typesafe.config.Config;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.MultiVersionUtil;
+import se.sics.caracaldb.persistence.StoreIterator;
+import se.sics.caracaldb.persistence.VNodeLevelDB;
+import se.sics.caracaldb.persistence.VersionView;
+
+/**
+ * An in-memory Database indexed by an {@link AdaptiveRadixTree}.
+ * <p>
+ * Same semantics as the packed {@link InMemoryDB}, but keys sharing a prefix
+ * (like all keys of a schema) store it only once and lookups don't need
+ * comparator calls.
+ * <p>
+ * Note that the close() operation deletes all items!
+ *
+ * @author lkroll
+ */
+public class ArtDB extends VNodeLevelDB {
+
+    private static final byte[] EMPTY = new byte[0];
+    private AdaptiveRadixTree store;
+
+    public ArtDB(Config conf) {
+        super(conf);
+        store = new AdaptiveRadixTree();
+    }
+
+    @Override
+    public String toString() {
+        return "ArtDB(" + store.size() + " keys)";
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, int version) {
+        store(key, MultiVersionUtil.withVersion(store.get(key), version, value));
+    }
+
+    @Override
+    public void delete(byte[] key, int version) {
+        byte[] oldData = store.get(key);
+        if (oldData == null) {
+            return; // nothing to do
+        }
+        store(key, MultiVersionUtil.withVersion(oldData, version, EMPTY));
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        return MultiVersionUtil.newest(store.get(key));
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return MultiVersionUtil.unpack(store.get(key));
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new ArtBatch();
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        ArtBatch ab = (ArtBatch) b;
+        // If this cast doesn't work, someone is doing something seriously wrong
+        for (Operation op : ab.ops) {
+            op.execute(this);
+        }
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return new ArtIterator(store.cursor());
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return new ArtIterator(store.cursor(startKey));
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        store(key, (value.length == 0) ? null : value.dereference());
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, int version) {
+        byte[] newData = trimVersions(store.get(key), version);
+        if (newData == null) {
+            store.remove(key);
+            return 0;
+        }
+        store.put(key, newData);
+        return newData.length;
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void close() {
+        if (store != null) {
+            store.clear();
+            store = null;
+        }
+    }
+
+    private void store(byte[] key, byte[] data) {
+        if (data == null) {
+            store.remove(key);
+        } else {
+            store.put(key, data);
+        }
+    }
+
+    private static byte[] trimVersions(byte[] data, int version) {
+        SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(data);
+        if (versions.isEmpty()) {
+            return null;
+        }
+        SortedMap<Integer, ByteArrayRef> newVersions = new TreeMap<Integer, ByteArrayRef>(versions.headMap(version));
+        if (newVersions.isEmpty()) { // always retain the newest value
+            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        }
+        return MultiVersionUtil.pack(newVersions);
+    }
+
+    private static abstract class Operation {
+
+        final byte[] key;
+
+        Operation(byte[] key) {
+            this.key = key;
+        }
+
+        abstract void execute(ArtDB db);
+    }
+
+    /**
+     * Records the operations and applies them in order on write, so that
+     * several operations on the same key in one batch all take effect.
+     */
+    private class ArtBatch implements Batch {
+
+        List<Operation> ops = new LinkedList<Operation>();
+
+        @Override
+        public void put(byte[] key, final byte[] value, final int version) {
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(ArtDB db) {
+                    db.put(key, value, version);
+                }
+            });
+        }
+
+        @Override
+        public void delete(byte[] key, final int version) {
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(ArtDB db) {
+                    db.delete(key, version);
+                }
+            });
+        }
+
+        @Override
+        public void replace(byte[] key, final ByteArrayRef value) {
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(ArtDB db) {
+                    db.replace(key, value);
+                }
+            });
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, final int version) {
+            byte[] newData = trimVersions(store.get(key), version);
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(ArtDB db) {
+                    db.deleteVersions(key, version);
+                }
+            });
+            if (newData == null) {
+                return 0;
+            }
+            return newData.length;
+        }
+
+        @Override
+        public void close() {
+            ops.clear();
+            ops = null;
+        }
+    }
+
+    private static class ArtIterator implements StoreIterator {
+
+        private AdaptiveRadixTree.Cursor cursor;
+        private final VersionView view = new VersionView(); // reused for every key
+
+        ArtIterator(AdaptiveRadixTree.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.valid();
+        }
+
+        @Override
+        public void next() {
+            cursor.next();
+        }
+
+        @Override
+        public byte[] peekKey() {
+            return cursor.key();
+        }
+
+        @Override
+        public ByteArrayRef peekValue() {
+            return view.reset(peekRaw()).seekNewest() ? view.value() : null;
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            return view.reset(peekRaw()).seekNewest(maxVersionId) ? view.value() : null;
+        }
+
+        @Override
+        public SortedMap<Integer, ByteArrayRef> peekAllValues() {
+            return MultiVersionUtil.unpack(peekRaw());
+        }
+
+        @Override
+        public byte[] peekRaw() {
+            return cursor.value();
+        }
+
+        @Override
+        public void close() {
+            cursor = null;
+        }
+    }
+}
@@ -21,17 +21,20 @@
 package se.sics.caracaldb.persistence.memory;
 
 import com.typesafe.config.Config;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.persistence.Batch;
 import se.sics.caracaldb.persistence.MultiVersionUtil;
+import se.sics.caracaldb.persistence.RawStore;
 import se.sics.caracaldb.persistence.StoreIterator;
 import se.sics.caracaldb.persistence.VNodeLevelDB;
+import se.sics.caracaldb.persistence.VersionedLayout;
+import se.sics.caracaldb.persistence.VersionView;
 import com.larskroll.common.ByteArrayRef;
 
 /**
@@ -43,11 +46,19 @@ import com.larskroll.common.ByteArrayRef;
  */
 public class InMemoryDB extends VNodeLevelDB {
 
+    private static final byte[] EMPTY = new byte[0];
     private TreeMap<byte[], byte[]> store;
+    private VersionedLayout layout; // null for the packed layout
 
     public InMemoryDB(Config conf) {
         super(conf);
         store = new TreeMap<byte[], byte[]>(Key.COMP);
+        String layoutName = conf.getString("memorydb.layout");
+        if (layoutName.equals("versioned")) {
+            layout = new VersionedLayout(new TreeMapRaw(store));
+        } else if (!layoutName.equals("packed")) {
+            throw new IllegalArgumentException("Unknown layout: " + layoutName);
+        }
     }
 
     @Override
@@ -57,32 +68,39 @@ public class InMemoryDB extends VNodeLevelDB {
 
     @Override
     public void put(byte[] key, byte[] value, int version) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        versions.put(version, new ByteArrayRef(0, value.length, value));
-        store.put(key, MultiVersionUtil.pack(versions));
+        if (layout != null) {
+            layout.put(key, value, version);
+            return;
+        }
+        store.put(key, MultiVersionUtil.withVersion(store.get(key), version, value));
     }
 
     @Override
     public void delete(byte[] key, int version) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        if (versions.isEmpty()) {
+        if (layout != null) {
+            layout.delete(key, version);
+            return;
+        }
+        byte[] oldData = store.get(key);
+        if (oldData == null) {
             return; // nothing to do
         }
-        versions.put(version, new ByteArrayRef(0, 0, null));
-        store.put(key, MultiVersionUtil.pack(versions));
+        store.put(key, MultiVersionUtil.withVersion(oldData, version, EMPTY));
     }
 
     @Override
     public ByteArrayRef get(byte[] key) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        if (versions.isEmpty()) {
-            return null;
+        if (layout != null) {
+            return layout.get(key);
         }
-        return versions.get(versions.firstKey());
+        return MultiVersionUtil.newest(store.get(key));
     }
 
     @Override
     public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        if (layout != null) {
+            return layout.getAllVersions(key);
+        }
         byte[] data = store.get(key);
         SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(data);
         return versions;
@@ -90,11 +108,18 @@ public class InMemoryDB extends VNodeLevelDB {
 
     @Override
     public Batch createBatch() {
+        if (layout != null) {
+            return layout.createBatch();
+        }
         return new InMemBatch(this);
     }
 
     @Override
     public void writeBatch(Batch b) {
+        if (layout != null) {
+            layout.writeBatch(b);
+            return;
+        }
         InMemBatch imb = (InMemBatch) b;
         // If this cast doesn't work, someone is doing something seriously wrong
         for (Operation op : imb.ops) {
@@ -104,42 +129,83 @@ public class InMemoryDB extends VNodeLevelDB {
 
     @Override
     public StoreIterator iterator() {
-        return new NavigableMapIterator(store.entrySet().iterator());
+        if (layout != null) {
+            return layout.iterator();
+        }
+        return new NavigableMapIterator(store, store.firstEntry());
     }
 
     @Override
     public StoreIterator iterator(byte[] startKey) {
-        return new NavigableMapIterator(store.tailMap(startKey, true).entrySet().iterator());
+        if (layout != null) {
+            return layout.iterator(startKey);
+        }
+        return new NavigableMapIterator(store, store.ceilingEntry(startKey));
+    }
+
+    /**
+     * Only for the packed layout. The versioned one reads ahead to collect
+     * the versions of a key.
+     */
+    @Override
+    public boolean supportsLiveIterators() {
+        return layout == null;
     }
 
     @Override
     public void replace(byte[] key, ByteArrayRef value) {
+        if (layout != null) {
+            layout.replace(key, value);
+            return;
+        }
         store.put(key, value.getBackingArray());
     }
 
     @Override
     public int deleteVersions(byte[] key, int version) {
-        SortedMap<Integer, ByteArrayRef> versions = getAllVersions(key);
-        if (versions.isEmpty()) {
-            return 0; // nothing to do
+        if (layout != null) {
+            return layout.deleteVersions(key, version);
         }
-        SortedMap<Integer, ByteArrayRef> newVersions = versions.headMap(version);
-        if (newVersions.isEmpty()) { // always retain the newest value
-            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        byte[] oldData = store.get(key);
+        if (oldData == null) {
+            return 0; // nothing to do
         }
-        byte[] newData = MultiVersionUtil.pack(newVersions);
-        store.put(key, newData);
+        byte[] newData = trimVersions(oldData, version);
         if (newData == null) {
+            store.remove(key);
             return 0;
         }
+        store.put(key, newData);
         return newData.length;
     }
 
     @Override
     public byte[] getRaw(byte[] key) {
+        if (layout != null) {
+            return layout.getRaw(key);
+        }
         return store.get(key);
     }
 
+    /**
+     * @param data
+     * @param version
+     * @return data without versions older than version (but at least the
+     * newest one), or null if nothing but deletions are left
+     */
+    private static byte[] trimVersions(byte[] data, int version) {
+        SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(data);
+        if (versions.isEmpty()) {
+            return null;
+        }
+        // copy, so the newest version can be added outside of the head range
+        SortedMap<Integer, ByteArrayRef> newVersions = new TreeMap<Integer, ByteArrayRef>(versions.headMap(version));
+        if (newVersions.isEmpty()) { // always retain the newest value
+            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        }
+        return MultiVersionUtil.pack(newVersions);
+    }
+
     @Override
     public void close() {
         if (store != null) {
@@ -148,6 +214,114 @@ public class InMemoryDB extends VNodeLevelDB {
         }
     }
 
+    /**
+     * Direct access to the map for the versioned layout.
+     * <p>
+     * Cursors look up their successor on every step instead of holding a map
+     * iterator, so they don't break when the map is written to while they are
+     * open.
+     */
+    private static class TreeMapRaw implements RawStore {
+
+        private final TreeMap<byte[], byte[]> store;
+
+        TreeMapRaw(TreeMap<byte[], byte[]> store) {
+            this.store = store;
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            return store.get(key);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            store.put(key, value);
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            store.remove(key);
+        }
+
+        @Override
+        public RawStore.Cursor cursor(byte[] startKey) {
+            if (startKey == null) {
+                return new MapCursor(store, store.firstEntry());
+            }
+            return new MapCursor(store, store.ceilingEntry(startKey));
+        }
+
+        @Override
+        public RawStore.RawBatch createBatch() {
+            return new RawInMemBatch();
+        }
+
+        @Override
+        public void writeBatch(RawStore.RawBatch b) {
+            RawInMemBatch imb = (RawInMemBatch) b;
+            for (Operation op : imb.ops) {
+                op.execute(store);
+            }
+        }
+    }
+
+    private static class RawInMemBatch implements RawStore.RawBatch {
+
+        List<Operation> ops = new LinkedList<Operation>();
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            ops.add(new InMemBatch.PutOp(key, value));
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            ops.add(new InMemBatch.DeleteOp(key));
+        }
+
+        @Override
+        public void close() {
+            ops = null;
+        }
+    }
+
+    private static class MapCursor implements RawStore.Cursor {
+
+        private final NavigableMap<byte[], byte[]> store;
+        private Entry<byte[], byte[]> current;
+
+        MapCursor(NavigableMap<byte[], byte[]> store, Entry<byte[], byte[]> first) {
+            this.store = store;
+            this.current = first;
+        }
+
+        @Override
+        public boolean valid() {
+            return current != null;
+        }
+
+        @Override
+        public void next() {
+            current = store.higherEntry(current.getKey());
+        }
+
+        @Override
+        public byte[] key() {
+            return current.getKey();
+        }
+
+        @Override
+        public byte[] value() {
+            return current.getValue();
+        }
+
+        @Override
+        public void close() {
+            current = null;
+        }
+    }
+
     private static abstract class Operation {
 
         final byte[] key;
@@ -170,19 +344,16 @@ public class InMemoryDB extends VNodeLevelDB {
 
         @Override
         public void put(byte[] key, byte[] value, int version) {
-            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
-            versions.put(version, new ByteArrayRef(0, value.length, value));
-            ops.add(new PutOp(key, MultiVersionUtil.pack(versions)));
+            ops.add(new PutOp(key, MultiVersionUtil.withVersion(db.getRaw(key), version, value)));
         }
 
         @Override
         public void delete(byte[] key, int version) {
-            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
-            if (versions.isEmpty()) {
+            byte[] oldData = db.getRaw(key);
+            if (oldData == null) {
                 return; // nothing to do
             }
-            versions.put(version, new ByteArrayRef(0, 0, null));
-            ops.add(new PutOp(key, MultiVersionUtil.pack(versions)));
+            ops.add(new PutOp(key, MultiVersionUtil.withVersion(oldData, version, EMPTY)));
         }
 
         @Override
@@ -196,19 +367,16 @@ public class InMemoryDB extends VNodeLevelDB {
 
         @Override
         public int deleteVersions(byte[] key, int version) {
-            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
-            if (versions.isEmpty()) {
+            byte[] oldData = db.getRaw(key);
+            if (oldData == null) {
                 return 0; // nothing to do
             }
-            SortedMap<Integer, ByteArrayRef> newVersions = versions.headMap(version);
-            if (newVersions.isEmpty()) { // always retain the newest value
-                newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
-            }
-            byte[] newData = MultiVersionUtil.pack(newVersions);
-            ops.add(new PutOp(key, newData));
+            byte[] newData = trimVersions(oldData, version);
             if (newData == null) {
+                ops.add(new DeleteOp(key));
                 return 0;
             }
+            ops.add(new PutOp(key, newData));
             return newData.length;
         }
 
@@ -246,16 +414,20 @@ public class InMemoryDB extends VNodeLevelDB {
         }
     }
 
+    /**
+     * Looks up the successor on every step, like MapCursor, so it sees every
+     * write after its current key and never fails when the map is written to
+     * while it is open (e.g. parked in a RangeCursor between pages).
+     */
     private static class NavigableMapIterator implements StoreIterator {
 
-        private Iterator<Entry<byte[], byte[]>> it;
+        private NavigableMap<byte[], byte[]> store;
         private Entry<byte[], byte[]> currentEntry;
+        private final VersionView view = new VersionView(); // reused for every key
 
-        NavigableMapIterator(Iterator<Entry<byte[], byte[]>> it) {
-            this.it = it;
-            if (it.hasNext()) {
-                currentEntry = it.next();
-            }
+        NavigableMapIterator(NavigableMap<byte[], byte[]> store, Entry<byte[], byte[]> first) {
+            this.store = store;
+            this.currentEntry = first;
         }
 
         @Override
@@ -265,11 +437,7 @@ public class InMemoryDB extends VNodeLevelDB {
 
         @Override
         public void next() {
-            if (it.hasNext()) {
-                currentEntry = it.next();
-            } else {
-                currentEntry = null;
-            }
+            currentEntry = store.higherEntry(currentEntry.getKey());
         }
 
         @Override
@@ -279,11 +447,12 @@ public class InMemoryDB extends VNodeLevelDB {
 
         @Override
         public ByteArrayRef peekValue() {
-            SortedMap<Integer, ByteArrayRef> versions = peekAllValues();
-            if (versions.isEmpty()) {
-                return null;
-            }
-            return versions.get(versions.firstKey());
+            return view.reset(peekRaw()).seekNewest() ? view.value() : null;
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            return view.reset(peekRaw()).seekNewest(maxVersionId) ? view.value() : null;
         }
 
         @Override
@@ -298,7 +467,7 @@ public class InMemoryDB extends VNodeLevelDB {
 
         @Override
         public void close() {
-            it = null;
+            store = null;
             currentEntry = null;
         }
     }
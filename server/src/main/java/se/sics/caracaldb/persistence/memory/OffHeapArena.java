@@ -0,0 +1,353 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.memory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Slab allocator for off-heap (direct) memory.
+ * <p>
+ * Memory is reserved from the OS in slabs of a fixed size and handed out in
+ * power of two sized blocks, each starting with a 4 byte length header.
+ * Freed blocks go to a free list per size class and are reused. Addresses are
+ * (slab + 1) << 32 | offset, so 0 is never a valid address.
+ * <p>
+ * Blocks that might still be read by concurrent threads must be
+ * {@link #retire(long) retired} instead of freed. Readers bracket their
+ * accesses with {@link #enter()} and {@link #exit(int)} and retired blocks are
+ * only reused once every reader that could have seen them has left (epoch
+ * based reclamation).
+ *
+ * @author lkroll
+ */
+public class OffHeapArena {
+
+    public static final long NULL = 0;
+    private static final int HEADER_SIZE = 4;
+    private static final int MIN_BLOCK_BITS = 4; // 16 bytes (header + free list link)
+    private static final int ADVANCE_EVERY = 64; // retirements
+    private final int slabSize;
+    private final long capacity;
+    private final AtomicReferenceArray<ByteBuffer> slabs;
+    private int numSlabs = 0;
+    private int slabOffset = 0;
+    private final long[] freeLists;
+    private final Object[] freeLocks;
+    // accounting
+    private final AtomicLong reserved = new AtomicLong(0);
+    private final AtomicLong allocated = new AtomicLong(0);
+    private final AtomicLong payload = new AtomicLong(0);
+    private final AtomicLong blocks = new AtomicLong(0);
+    // reclamation
+    private final AtomicLong epoch = new AtomicLong(0);
+    private final AtomicIntegerArray active = new AtomicIntegerArray(3);
+    private final ConcurrentLinkedQueue<Long>[] limbo;
+    private final Object limboLock = new Object();
+    private int retiredSinceAdvance = 0;
+
+    /**
+     * @param slabSize bytes per slab, must be a power of two
+     * @param capacity maximum number of bytes to reserve
+     */
+    public OffHeapArena(int slabSize, long capacity) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < (1 << MIN_BLOCK_BITS)) {
+            throw new IllegalArgumentException("Slab size must be a power of two (was " + slabSize + ")");
+        }
+        this.slabSize = slabSize;
+        this.capacity = capacity;
+        this.slabs = new AtomicReferenceArray<ByteBuffer>((int) Math.max(1, capacity / slabSize));
+        int classes = Integer.numberOfTrailingZeros(slabSize) - MIN_BLOCK_BITS + 1;
+        this.freeLists = new long[classes];
+        this.freeLocks = new Object[classes];
+        for (int i = 0; i < classes; i++) {
+            freeLocks[i] = new Object();
+        }
+        this.limbo = new ConcurrentLinkedQueue[3];
+        for (int i = 0; i < 3; i++) {
+            limbo[i] = new ConcurrentLinkedQueue<Long>();
+        }
+    }
+
+    /**
+     * Copies data into a new block.
+     *
+     * @param data
+     * @return the address of the block
+     * @throws IllegalStateException if the capacity is exhausted
+     */
+    public long allocate(byte[] data) {
+        int blockSize = blockSize(data.length);
+        int sizeClass = Integer.numberOfTrailingZeros(blockSize) - MIN_BLOCK_BITS;
+        if (sizeClass >= freeLists.length) {
+            throw new IllegalArgumentException("Can't allocate " + data.length + "B in slabs of " + slabSize + "B");
+        }
+        long addr = popFree(sizeClass);
+        if (addr == NULL) {
+            addr = bump(blockSize);
+        }
+        ByteBuffer buf = slab(addr).duplicate();
+        buf.position(offset(addr));
+        buf.putInt(data.length);
+        buf.put(data);
+        allocated.addAndGet(blockSize);
+        payload.addAndGet(data.length);
+        blocks.incrementAndGet();
+        return addr;
+    }
+
+    /**
+     * Frees a block immediately.
+     * <p>
+     * Only use this for blocks that have never been visible to other threads.
+     *
+     * @param addr
+     */
+    public void free(long addr) {
+        int length = length(addr);
+        int blockSize = blockSize(length);
+        int sizeClass = Integer.numberOfTrailingZeros(blockSize) - MIN_BLOCK_BITS;
+        allocated.addAndGet(-blockSize);
+        payload.addAndGet(-length);
+        blocks.decrementAndGet();
+        synchronized (freeLocks[sizeClass]) {
+            slab(addr).putLong(offset(addr) + HEADER_SIZE, freeLists[sizeClass]);
+            freeLists[sizeClass] = addr;
+        }
+    }
+
+    /**
+     * Frees a block once no reader can access it anymore.
+     *
+     * @param addr
+     */
+    public void retire(long addr) {
+        boolean advance;
+        synchronized (limboLock) {
+            limbo[(int) (epoch.get() % 3)].add(addr);
+            retiredSinceAdvance++;
+            advance = retiredSinceAdvance >= ADVANCE_EVERY;
+        }
+        if (advance) {
+            tryAdvance();
+        }
+    }
+
+    /**
+     * Starts a read section. Blocks retired after this call stay valid until
+     * the matching {@link #exit(int)}.
+     *
+     * @return a token for {@link #exit(int)}
+     */
+    public int enter() {
+        while (true) {
+            long e = epoch.get();
+            int slot = (int) (e % 3);
+            active.incrementAndGet(slot);
+            if (epoch.get() == e) {
+                return slot;
+            }
+            active.decrementAndGet(slot); // raced with an advance, try again
+        }
+    }
+
+    public void exit(int token) {
+        active.decrementAndGet(token);
+    }
+
+    /**
+     * Moves to the next epoch if no reader is left in the previous one and
+     * frees all blocks retired during it.
+     *
+     * @return true if the epoch was advanced
+     */
+    public boolean tryAdvance() {
+        synchronized (limboLock) {
+            long e = epoch.get();
+            int previous = (int) ((e + 2) % 3);
+            if (active.get(previous) != 0) {
+                return false;
+            }
+            Long addr;
+            while ((addr = limbo[previous].poll()) != null) {
+                free(addr);
+            }
+            epoch.incrementAndGet();
+            retiredSinceAdvance = 0;
+            return true;
+        }
+    }
+
+    public int length(long addr) {
+        return slab(addr).getInt(offset(addr));
+    }
+
+    /**
+     * @param addr
+     * @return a copy of the block's content
+     */
+    public byte[] read(long addr) {
+        ByteBuffer buf = slab(addr).duplicate();
+        buf.position(offset(addr));
+        byte[] data = new byte[buf.getInt()];
+        buf.get(data);
+        return data;
+    }
+
+    /**
+     * Compares the content of a block to key, as unsigned bytes.
+     *
+     * @param addr
+     * @param key
+     * @return
+     */
+    public int compare(long addr, byte[] key) {
+        ByteBuffer slab = slab(addr);
+        int off = offset(addr);
+        int length = slab.getInt(off);
+        off += HEADER_SIZE;
+        int min = Math.min(length, key.length);
+        for (int i = 0; i < min; i++) {
+            int c = (slab.get(off + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Compares the contents of two blocks, as unsigned bytes.
+     *
+     * @param addr1
+     * @param addr2
+     * @return
+     */
+    public int compare(long addr1, long addr2) {
+        ByteBuffer slab1 = slab(addr1);
+        ByteBuffer slab2 = slab(addr2);
+        int off1 = offset(addr1);
+        int off2 = offset(addr2);
+        int length1 = slab1.getInt(off1);
+        int length2 = slab2.getInt(off2);
+        off1 += HEADER_SIZE;
+        off2 += HEADER_SIZE;
+        int min = Math.min(length1, length2);
+        for (int i = 0; i < min; i++) {
+            int c = (slab1.get(off1 + i) & 0xFF) - (slab2.get(off2 + i) & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length1 - length2;
+    }
+
+    /**
+     * Drops all slabs. The arena must not be used afterwards.
+     */
+    public synchronized void release() {
+        for (int i = 0; i < numSlabs; i++) {
+            slabs.set(i, null);
+        }
+        numSlabs = 0;
+        reserved.set(0);
+        allocated.set(0);
+        payload.set(0);
+        blocks.set(0);
+    }
+
+    /**
+     * @return bytes reserved from the OS
+     */
+    public long reservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * @return bytes in live (or retired but not yet freed) blocks
+     */
+    public long allocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * @return bytes actually stored in live blocks (without headers and
+     * rounding)
+     */
+    public long payloadBytes() {
+        return payload.get();
+    }
+
+    public long blocks() {
+        return blocks.get();
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapArena(reserved: " + reservedBytes() + "B, allocated: " + allocatedBytes()
+                + "B, payload: " + payloadBytes() + "B, blocks: " + blocks() + ")";
+    }
+
+    private long popFree(int sizeClass) {
+        synchronized (freeLocks[sizeClass]) {
+            long addr = freeLists[sizeClass];
+            if (addr != NULL) {
+                freeLists[sizeClass] = slab(addr).getLong(offset(addr) + HEADER_SIZE);
+            }
+            return addr;
+        }
+    }
+
+    private synchronized long bump(int blockSize) {
+        if (numSlabs == 0 || slabOffset + blockSize > slabSize) {
+            if ((numSlabs >= slabs.length()) || (reserved.get() + slabSize > capacity)) {
+                throw new IllegalStateException("Off-heap capacity of " + capacity + "B exhausted! " + this);
+            }
+            slabs.set(numSlabs, ByteBuffer.allocateDirect(slabSize));
+            numSlabs++;
+            slabOffset = 0;
+            reserved.addAndGet(slabSize);
+        }
+        long addr = (((long) numSlabs) << 32) | slabOffset;
+        slabOffset += blockSize;
+        return addr;
+    }
+
+    private ByteBuffer slab(long addr) {
+        return slabs.get((int) (addr >>> 32) - 1);
+    }
+
+    private static int offset(long addr) {
+        return (int) addr;
+    }
+
+    private static int blockSize(int length) {
+        int size = Math.max(length + HEADER_SIZE, 1 << MIN_BLOCK_BITS);
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+}
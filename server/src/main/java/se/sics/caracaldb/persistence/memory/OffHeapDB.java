@@ -0,0 +1,506 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence.memory;
+
+import com.larskroll.common.ByteArrayRef;
+import com.typesafe.config.Config;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.Batch;
+import se.sics.caracaldb.persistence.MultiVersionUtil;
+import se.sics.caracaldb.persistence.StoreIterator;
+import se.sics.caracaldb.persistence.VNodeLevelDB;
+import se.sics.caracaldb.persistence.VersionView;
+
+/**
+ * A concurrent in-memory Database that keeps keys and values off the heap.
+ * <p>
+ * The index is a lock-free skip list whose entries only hold the addresses of
+ * the key and of the packed version blob in an {@link OffHeapArena}. Writes
+ * build a new blob and swap it in with a CAS, so readers never block and
+ * never see a half written value. Replaced blobs and the keys of removed
+ * entries are retired to the arena and only reused once no reader can still
+ * see them.
+ * <p>
+ * Iterators are weakly consistent: they never fail because of concurrent
+ * writes, and they reflect some state of every key at or after the time they
+ * reach it. Batches are applied one operation at a time.
+ * <p>
+ * Note that the close() operation deletes all items!
+ *
+ * @author lkroll
+ */
+public class OffHeapDB extends VNodeLevelDB {
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] UNCHANGED = new byte[0]; // compared by identity
+    private static final long DEAD = -1;
+    private static final AtomicLongFieldUpdater<IndexEntry> BLOB
+            = AtomicLongFieldUpdater.newUpdater(IndexEntry.class, "blob");
+    private final OffHeapArena arena;
+    private ConcurrentSkipListMap<IndexKey, IndexEntry> index;
+
+    public OffHeapDB(Config conf) {
+        super(conf);
+        int slabSize = (int) conf.getBytes("offheap.slabSize").longValue();
+        long capacity = conf.getBytes("offheap.capacity");
+        arena = new OffHeapArena(slabSize, capacity);
+        index = new ConcurrentSkipListMap<IndexKey, IndexEntry>(new KeyComparator());
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapDB(" + index.size() + " keys, " + arena + ")";
+    }
+
+    /**
+     * @return the arena holding the data, for memory accounting
+     */
+    public OffHeapArena arena() {
+        return arena;
+    }
+
+    @Override
+    public void put(byte[] key, final byte[] value, final int version) {
+        update(key, new Update() {
+
+            @Override
+            public byte[] apply(byte[] oldData) {
+                return MultiVersionUtil.withVersion(oldData, version, value);
+            }
+        });
+    }
+
+    @Override
+    public void delete(byte[] key, final int version) {
+        update(key, new Update() {
+
+            @Override
+            public byte[] apply(byte[] oldData) {
+                if (oldData == null) {
+                    return UNCHANGED; // nothing to do
+                }
+                return MultiVersionUtil.withVersion(oldData, version, EMPTY);
+            }
+        });
+    }
+
+    @Override
+    public ByteArrayRef get(byte[] key) {
+        return MultiVersionUtil.newest(getRaw(key));
+    }
+
+    @Override
+    public SortedMap<Integer, ByteArrayRef> getAllVersions(byte[] key) {
+        return MultiVersionUtil.unpack(getRaw(key));
+    }
+
+    @Override
+    public Batch createBatch() {
+        return new OffHeapBatch(this);
+    }
+
+    @Override
+    public void writeBatch(Batch b) {
+        OffHeapBatch ohb = (OffHeapBatch) b;
+        // If this cast doesn't work, someone is doing something seriously wrong
+        for (Operation op : ohb.ops) {
+            op.execute(this);
+        }
+    }
+
+    @Override
+    public StoreIterator iterator() {
+        return new OffHeapIterator(null);
+    }
+
+    @Override
+    public StoreIterator iterator(byte[] startKey) {
+        return new OffHeapIterator(startKey);
+    }
+
+    @Override
+    public void replace(byte[] key, ByteArrayRef value) {
+        final byte[] data = (value.length == 0) ? null : value.dereference();
+        update(key, new Update() {
+
+            @Override
+            public byte[] apply(byte[] oldData) {
+                if (oldData == null && data == null) {
+                    return UNCHANGED;
+                }
+                return data;
+            }
+        });
+    }
+
+    @Override
+    public int deleteVersions(byte[] key, final int version) {
+        byte[] newData = update(key, new Update() {
+
+            @Override
+            public byte[] apply(byte[] oldData) {
+                return trimVersions(oldData, version);
+            }
+        });
+        if (newData == null || newData == UNCHANGED) {
+            return 0;
+        }
+        return newData.length;
+    }
+
+    @Override
+    public byte[] getRaw(byte[] key) {
+        int token = arena.enter();
+        try {
+            IndexEntry e = index.get(new Probe(key));
+            if (e == null) {
+                return null;
+            }
+            long blob = e.blob;
+            if (blob == DEAD) {
+                return null;
+            }
+            return arena.read(blob);
+        } finally {
+            arena.exit(token);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (index != null) {
+            index.clear();
+            arena.release();
+            index = null;
+        }
+    }
+
+    @Override
+    public boolean supportsConcurrentAccess() {
+        return true;
+    }
+
+    private static byte[] trimVersions(byte[] oldData, int version) {
+        SortedMap<Integer, ByteArrayRef> versions = MultiVersionUtil.unpack(oldData);
+        if (versions.isEmpty()) {
+            return UNCHANGED; // nothing to do
+        }
+        // copy, so the newest version can be added outside of the head range
+        SortedMap<Integer, ByteArrayRef> newVersions = new TreeMap<Integer, ByteArrayRef>(versions.headMap(version));
+        if (newVersions.isEmpty()) { // always retain the newest value
+            newVersions.put(versions.firstKey(), versions.get(versions.firstKey()));
+        }
+        return MultiVersionUtil.pack(newVersions);
+    }
+
+    /**
+     * Atomically replaces the blob for key with the result of u.
+     * <p>
+     * u may be called several times if other writers interfere and must not
+     * have side effects.
+     *
+     * @param key
+     * @param u
+     * @return the blob that was written, null if the key was removed or
+     * UNCHANGED
+     */
+    private byte[] update(byte[] key, Update u) {
+        Probe probe = new Probe(key);
+        int token = arena.enter();
+        try {
+            while (true) {
+                IndexEntry e = index.get(probe);
+                if (e == null) {
+                    byte[] newData = u.apply(null);
+                    if (newData == UNCHANGED || newData == null) {
+                        return newData;
+                    }
+                    IndexEntry newEntry = new IndexEntry(arena.allocate(key), arena.allocate(newData));
+                    if (index.putIfAbsent(newEntry, newEntry) == null) {
+                        return newData;
+                    }
+                    // lost the race for a new key
+                    arena.free(newEntry.blob);
+                    arena.free(newEntry.key);
+                    continue;
+                }
+                long oldBlob = e.blob;
+                if (oldBlob == DEAD) { // help the remover and try again
+                    index.remove(e, e);
+                    continue;
+                }
+                byte[] newData = u.apply(arena.read(oldBlob));
+                if (newData == UNCHANGED) {
+                    return newData;
+                }
+                if (newData == null) {
+                    if (BLOB.compareAndSet(e, oldBlob, DEAD)) {
+                        index.remove(e, e);
+                        // Lookups and seeks that are still comparing against
+                        // the node all run in a read section, so the key can
+                        // go once current readers are done.
+                        arena.retire(oldBlob);
+                        arena.retire(e.key);
+                        return null;
+                    }
+                    continue;
+                }
+                long newBlob = arena.allocate(newData);
+                if (BLOB.compareAndSet(e, oldBlob, newBlob)) {
+                    arena.retire(oldBlob);
+                    return newData;
+                }
+                arena.free(newBlob);
+            }
+        } finally {
+            arena.exit(token);
+        }
+    }
+
+    private static interface Update {
+
+        public byte[] apply(byte[] oldData);
+    }
+
+    private static abstract class IndexKey {
+    }
+
+    /**
+     * On-heap lookup key.
+     */
+    private static class Probe extends IndexKey {
+
+        final byte[] key;
+
+        Probe(byte[] key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Index entry, doubling as its own skip list key.
+     */
+    private static class IndexEntry extends IndexKey {
+
+        final long key;
+        volatile long blob;
+
+        IndexEntry(long key, long blob) {
+            this.key = key;
+            this.blob = blob;
+        }
+    }
+
+    private class KeyComparator implements Comparator<IndexKey> {
+
+        @Override
+        public int compare(IndexKey k1, IndexKey k2) {
+            if (k1 instanceof IndexEntry) {
+                long addr1 = ((IndexEntry) k1).key;
+                if (k2 instanceof IndexEntry) {
+                    return arena.compare(addr1, ((IndexEntry) k2).key);
+                }
+                return arena.compare(addr1, ((Probe) k2).key);
+            }
+            if (k2 instanceof IndexEntry) {
+                return -arena.compare(((IndexEntry) k2).key, ((Probe) k1).key);
+            }
+            return Key.COMP.compare(((Probe) k1).key, ((Probe) k2).key);
+        }
+    }
+
+    private static abstract class Operation {
+
+        final byte[] key;
+
+        Operation(byte[] key) {
+            this.key = key;
+        }
+
+        abstract void execute(OffHeapDB db);
+    }
+
+    private static class OffHeapBatch implements Batch {
+
+        List<Operation> ops = new LinkedList<Operation>();
+        OffHeapDB db;
+
+        OffHeapBatch(OffHeapDB db) {
+            this.db = db;
+        }
+
+        @Override
+        public void put(byte[] key, final byte[] value, final int version) {
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(OffHeapDB db) {
+                    db.put(key, value, version);
+                }
+            });
+        }
+
+        @Override
+        public void delete(byte[] key, final int version) {
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(OffHeapDB db) {
+                    db.delete(key, version);
+                }
+            });
+        }
+
+        @Override
+        public void replace(byte[] key, final ByteArrayRef value) {
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(OffHeapDB db) {
+                    db.replace(key, value);
+                }
+            });
+        }
+
+        @Override
+        public int deleteVersions(byte[] key, final int version) {
+            byte[] newData = trimVersions(db.getRaw(key), version);
+            ops.add(new Operation(key) {
+
+                @Override
+                void execute(OffHeapDB db) {
+                    db.deleteVersions(key, version);
+                }
+            });
+            if (newData == null || newData == UNCHANGED) {
+                return 0;
+            }
+            return newData.length;
+        }
+
+        @Override
+        public void close() {
+            ops.clear();
+            ops = null;
+        }
+    }
+
+    /**
+     * Copies each entry on the heap as it reaches it, so it never holds on to
+     * arena memory between calls.
+     * <p>
+     * The initial seek compares against keys in the arena, so it runs in a
+     * read section just like every step.
+     */
+    private class OffHeapIterator implements StoreIterator {
+
+        private Iterator<IndexEntry> it;
+        private byte[] currentKey;
+        private byte[] currentData;
+        private final VersionView view = new VersionView(); // reused for every key
+
+        OffHeapIterator(byte[] startKey) {
+            int token = arena.enter();
+            try {
+                if (startKey == null) {
+                    it = index.values().iterator();
+                } else {
+                    it = index.tailMap(new Probe(startKey), true).values().iterator();
+                }
+                advance();
+            } finally {
+                arena.exit(token);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return currentKey != null;
+        }
+
+        @Override
+        public void next() {
+            int token = arena.enter();
+            try {
+                advance();
+            } finally {
+                arena.exit(token);
+            }
+        }
+
+        private void advance() {
+            currentKey = null;
+            currentData = null;
+            while (it.hasNext()) {
+                IndexEntry e = it.next();
+                long blob = e.blob;
+                if (blob == DEAD) {
+                    // removed since the skip list handed it out, its key
+                    // may already be gone
+                    continue;
+                }
+                currentKey = arena.read(e.key);
+                currentData = arena.read(blob);
+                return;
+            }
+        }
+
+        @Override
+        public byte[] peekKey() {
+            return currentKey;
+        }
+
+        @Override
+        public ByteArrayRef peekValue() {
+            return view.reset(currentData).seekNewest() ? view.value() : null;
+        }
+
+        @Override
+        public ByteArrayRef peekValue(int maxVersionId) {
+            return view.reset(currentData).seekNewest(maxVersionId) ? view.value() : null;
+        }
+
+        @Override
+        public SortedMap<Integer, ByteArrayRef> peekAllValues() {
+            return MultiVersionUtil.unpack(currentData);
+        }
+
+        @Override
+        public byte[] peekRaw() {
+            return currentData;
+        }
+
+        @Override
+        public void close() {
+            it = null;
+            currentKey = null;
+            currentData = null;
+        }
+    }
+}
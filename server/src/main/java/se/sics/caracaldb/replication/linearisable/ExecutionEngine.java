@@ -20,6 +20,7 @@
  */
 package se.sics.caracaldb.replication.linearisable;
 
+import com.google.common.collect.ImmutableSortedSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +31,7 @@ import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.caracaldb.Address;
+import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.View;
 import se.sics.caracaldb.datatransfer.Completed;
@@ -42,7 +44,11 @@ import se.sics.caracaldb.datatransfer.InitiateTransfer;
 import se.sics.caracaldb.datatransfer.TransferFilter;
 import se.sics.caracaldb.operations.CaracalOp;
 import se.sics.caracaldb.operations.CaracalResponse;
+import se.sics.caracaldb.operations.BatchPutRequest;
+import se.sics.caracaldb.operations.BatchPutResponse;
 import se.sics.caracaldb.operations.GetRequest;
+import se.sics.caracaldb.operations.MultiGetRequest;
+import se.sics.caracaldb.operations.MultiGetResponse;
 import se.sics.caracaldb.operations.GetResponse;
 import se.sics.caracaldb.operations.MultiOpRequest;
 import se.sics.caracaldb.operations.MultiOpResponse;
@@ -50,24 +56,38 @@ import se.sics.caracaldb.operations.PutRequest;
 import se.sics.caracaldb.operations.PutResponse;
 import se.sics.caracaldb.operations.RangeQuery;
 import se.sics.caracaldb.operations.ResponseCode;
+import se.sics.caracaldb.operations.Staleness;
+import se.sics.caracaldb.replication.log.Backpressure;
 import se.sics.caracaldb.replication.log.Decide;
+import se.sics.caracaldb.replication.log.LocalRead;
 import se.sics.caracaldb.replication.log.Noop;
+import se.sics.caracaldb.replication.log.ProposalBatch;
 import se.sics.caracaldb.replication.log.Propose;
 import se.sics.caracaldb.replication.log.Prune;
 import se.sics.caracaldb.replication.log.Reconfigure;
 import se.sics.caracaldb.replication.log.ReplicatedLog;
 import se.sics.caracaldb.replication.log.Value;
-import se.sics.caracaldb.store.CleanupReq;
+import se.sics.caracaldb.store.Durability;
 import se.sics.caracaldb.store.GetReq;
 import se.sics.caracaldb.store.GetResp;
+import se.sics.caracaldb.store.BatchPut;
+import se.sics.caracaldb.store.BatchPutResp;
+import se.sics.caracaldb.store.MultiGetReq;
+import se.sics.caracaldb.store.MultiGetResp;
 import se.sics.caracaldb.store.MultiOp;
 import se.sics.caracaldb.store.Put;
+import se.sics.caracaldb.store.PutResp;
+import se.sics.caracaldb.store.RangeCursor;
+import se.sics.caracaldb.store.RangeCursors;
 import se.sics.caracaldb.store.RangeReq;
+import se.sics.caracaldb.store.RebuildFilter;
 import se.sics.caracaldb.store.RangeResp;
+import se.sics.caracaldb.store.RangeStats;
 import se.sics.caracaldb.store.SizeScan;
 import se.sics.caracaldb.store.StorageRequest;
 import se.sics.caracaldb.store.StorageResponse;
 import se.sics.caracaldb.store.Store;
+import se.sics.caracaldb.store.VersionGC;
 import se.sics.kompics.Component;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
@@ -77,6 +97,8 @@ import se.sics.kompics.Start;
 import se.sics.kompics.Stop;
 import se.sics.kompics.Stopped;
 import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timeout;
 import se.sics.kompics.timer.Timer;
 
 /**
@@ -107,7 +129,16 @@ public class ExecutionEngine extends ComponentDefinition {
     private final Actions actions = new Actions();
     private OperationsLog opLog = new InMemoryLog();
     private long lastSnapshotId = -1;
+    private long lastApplied = -1;
+    // reads waiting for the log to decide whether they may skip it
+    private final Map<UUID, CaracalOp> localReads = new HashMap<UUID, CaracalOp>();
+    private final PendingReads pendingReads = new PendingReads();
+    // positions of executed ops until they are answered, for the clients' session tokens
+    private final Map<UUID, Long> positions = new HashMap<UUID, Long>();
     private int versionId = -1;
+    private VersionGC gc = null;
+    private final RangeStats stats = new RangeStats();
+    private final RangeCursors cursors;
 
     public ExecutionEngine(ExecutionEngineInit event) {
         this.init = event;
@@ -115,9 +146,12 @@ public class ExecutionEngine extends ComponentDefinition {
         this.view = init.view;
         this.self = init.self;
         this.range = init.range;
+        this.cursors = new RangeCursors(init.cursorIdleTimeout, init.maxCursors);
 
         state = State.PASSIVE;
 
+        subscribe(stopHandler, control);
+
         if (view == null) {
             LOG.debug("{}: Starting in passive mode", self);
             subscribe(installHandler, rLog);
@@ -138,9 +172,16 @@ public class ExecutionEngine extends ComponentDefinition {
 
             subCoreHandlers();
 
+            trigger(new RebuildFilter(range, true), store);
             trigger(Synced.EVENT, rep);
         }
     };
+    Handler<Stop> stopHandler = new Handler<Stop>() {
+        @Override
+        public void handle(Stop event) {
+            cursors.closeAll();
+        }
+    };
     /*
      * Core
      */
@@ -151,13 +192,52 @@ public class ExecutionEngine extends ComponentDefinition {
                 trigger(new CaracalResponse(event.id, ResponseCode.UNSUPPORTED_OP), rep);
                 return;
             }
+            Staleness bound = Staleness.of(event);
+            if ((state == State.ACTIVE) && (bound != null)) {
+                localReads.put(event.id, event);
+                long after = bound.session.position(new Key(self.getId()));
+                trigger(new LocalRead.Request(event.id, init.readMode, bound, after), rLog);
+                return;
+            }
+            if ((state == State.ACTIVE) && init.readMode.readsLocally(event)) {
+                localReads.put(event.id, event);
+                trigger(new LocalRead.Request(event.id, init.readMode), rLog);
+                return;
+            }
             trigger(new Propose(new SMROp(event.id, event)), rLog);
         }
     };
+    Handler<LocalRead.Response> localReadHandler = new Handler<LocalRead.Response>() {
+        @Override
+        public void handle(LocalRead.Response event) {
+            CaracalOp op = localReads.remove(event.id);
+            if (op == null) {
+                return;
+            }
+            if (!event.granted) {
+                trigger(new Propose(new SMROp(op.id, op)), rLog);
+                return;
+            }
+            if (event.position <= lastApplied) {
+                readLocally(op, event.position);
+                return;
+            }
+            pendingReads.add(event.position, op);
+        }
+    };
     Handler<ReplicationSetInfo> infoHandler = new Handler<ReplicationSetInfo>() {
 
         @Override
         public void handle(ReplicationSetInfo event) {
+            switch (sizeReport(stats, state, gc != null)) {
+                case MAINTAINED:
+                    LOG.debug("{}: Reporting maintained {}", self, stats);
+                    trigger(stats.toDiff(), rep);
+                    return;
+                case DEFERRED:
+                    LOG.debug("{}: Deferring size report until the version GC is done", self);
+                    return; // the collection ends with a SizeScan anyway
+            }
             trigger(new Propose(new Scan(event.range)), rLog);
 
             LOG.info("{}: Scheduling SizeScan. State: {}, Log-size: {}, View: {}, lastSnapshot: {}",
@@ -167,20 +247,61 @@ public class ExecutionEngine extends ComponentDefinition {
     Handler<GetResp> getHandler = new Handler<GetResp>() {
         @Override
         public void handle(GetResp event) {
-            trigger(new GetResponse(event.getId(), event.key, event.value), rep);
+            reply(new GetResponse(event.getId(), event.key, event.value));
+        }
+    };
+    Handler<MultiGetResp> mgetHandler = new Handler<MultiGetResp>() {
+        @Override
+        public void handle(MultiGetResp event) {
+            reply(new MultiGetResponse(event.getId(), event.values));
         }
     };
     Handler<MultiOp.Resp> mopHandler = new Handler<MultiOp.Resp>() {
 
         @Override
         public void handle(MultiOp.Resp event) {
-            trigger(new MultiOpResponse(event.getId(), ResponseCode.SUCCESS, event.success), rep);
+            reply(new MultiOpResponse(event.getId(), ResponseCode.SUCCESS, event.success));
+        }
+    };
+    Handler<PutResp> putHandler = new Handler<PutResp>() {
+
+        @Override
+        public void handle(PutResp event) {
+            if (event.getId() != null) { // only set if the reply was held back for durability
+                reply(new PutResponse(event.getId(), event.key));
+            }
+        }
+    };
+    Handler<BatchPutResp> batchPutHandler = new Handler<BatchPutResp>() {
+
+        @Override
+        public void handle(BatchPutResp event) {
+            if (event.getId() != null) { // only set if the reply was held back for durability
+                reply(new BatchPutResponse(event.getId(), ImmutableSortedSet.copyOf(event.keys)));
+            }
         }
     };
     Handler<RangeResp> rangeHandler = new Handler<RangeResp>() {
         @Override
         public void handle(RangeResp resp) {
-            trigger(new RangeQuery.InternalResponse(resp), rep);
+            RangeCursor cursor = resp.req.getCursor();
+            if ((cursor != null) && cursor.isClosed()) {
+                cursors.release(cursor); // last page
+            }
+            reply(new RangeQuery.InternalResponse(resp));
+        }
+    };
+    Handler<ExpireCursors> cursorTimeoutHandler = new Handler<ExpireCursors>() {
+
+        @Override
+        public void handle(ExpireCursors event) {
+            int n = cursors.expire(System.currentTimeMillis());
+            if (n > 0) {
+                LOG.debug("{}: Closed {} idle cursors, {} still open", new Object[]{self, n, cursors.size()});
+            }
+            if (!cursors.isEmpty()) {
+                scheduleCursorExpiry();
+            }
         }
     };
     Handler<StorageResponse> diffHandler = new Handler<StorageResponse>() {
@@ -188,10 +309,45 @@ public class ExecutionEngine extends ComponentDefinition {
         @Override
         public void handle(StorageResponse event) {
             if (event.diff != null) {
+                stats.apply(event.diff);
                 trigger(event.diff, rep);
             }
         }
     };
+    Handler<VersionGC.Progress> gcProgressHandler = new Handler<VersionGC.Progress>() {
+
+        @Override
+        public void handle(VersionGC.Progress event) {
+            if ((gc == null) || !gc.owns(event)) {
+                return; // superseded by a newer collection
+            }
+            long delay = gc.update(event);
+            if (gc.isDone()) {
+                LOG.info("{}: Finished {}", self, gc);
+                gc = null;
+                trigger(new SizeScan(range), store);
+                // drop the keys that were cleaned up or not transferred from the filter
+                trigger(new RebuildFilter(range, true), store);
+                return;
+            }
+            if (delay <= 0) {
+                trigger(gc.nextSlice(), store);
+                return;
+            }
+            ScheduleTimeout st = new ScheduleTimeout(delay);
+            st.setTimeoutEvent(new NextGCSlice(st));
+            trigger(st, timer);
+        }
+    };
+    Handler<NextGCSlice> gcTimeoutHandler = new Handler<NextGCSlice>() {
+
+        @Override
+        public void handle(NextGCSlice event) {
+            if (gc != null) {
+                trigger(gc.nextSlice(), store);
+            }
+        }
+    };
     Handler<ViewChange> viewChangeHandler = new Handler<ViewChange>() {
         @Override
         public void handle(ViewChange event) {
@@ -209,32 +365,24 @@ public class ExecutionEngine extends ComponentDefinition {
         public void handle(Decide e) {
             List<Pair<Long, Value>> values = opLog.insert(e.position, e.value);
             for (Pair<Long, Value> t : values) {
-                Value v = t.getValue1();
-                Long pos = t.getValue0();
-                if (v instanceof Reconfigure) {
-                    doReconf((Reconfigure) v);
-                    continue;
-                }
-                if (v instanceof SMROp) {
-                    executeOp(pos, (SMROp) v);
-                    continue;
-                }
-                if (v instanceof SyncedUp) {
-                    goActive();
-                    continue;
-                }
-                if (v instanceof Scan) {
-                    Scan s = (Scan) v;
-                    trigger(new SizeScan(s.range), store);
-                    continue;
-                }
-                if (!(v instanceof Noop)) {
-                    LOG.error("Unkown decision value: {}", v);
+                apply(t.getValue0(), t.getValue1());
+                lastApplied = t.getValue0();
+            }
+            if (!pendingReads.isEmpty()) {
+                for (Pair<Long, CaracalOp> read : pendingReads.ready(lastApplied)) {
+                    readLocally(read.getValue1(), read.getValue0());
                 }
             }
             trigger(new Prune(lastSnapshotId), rLog);
         }
     };
+    Handler<Backpressure> backpressureHandler = new Handler<Backpressure>() {
+        @Override
+        public void handle(Backpressure event) {
+            LOG.debug("{}: Got {}", self, event);
+            trigger(event, rep); // MethCat decides what to do with new ops
+        }
+    };
     Handler<SnapshotResp> snapshotHandler = new Handler<SnapshotResp>() {
         @Override
         public void handle(SnapshotResp event) {
@@ -324,8 +472,41 @@ public class ExecutionEngine extends ComponentDefinition {
             trigger(req, store);
             lastSnapshotId = diff.getValue0();
         }
-        CleanupReq cr = new CleanupReq(range, versionId);
-        trigger(cr, store);
+        // the transferred snapshot and the collection write without diffs
+        stats.invalidate();
+        // reclaim old versions in the background, replaces any collection still running
+        gc = new VersionGC(range, versionId, init.gcSliceKeys, init.gcBytesPerSecond);
+        LOG.info("{}: Starting {}", self, gc);
+        trigger(gc.nextSlice(), store);
+    }
+
+    static enum SizeReport {
+
+        MAINTAINED, // answer from the counters
+        DEFERRED, // a SizeScan follows anyway
+        SCAN; // scan the range through the log
+    }
+
+    /**
+     * @param stats
+     * @param state
+     * @param collecting whether a version GC is running
+     * @return how to answer a ReplicationSetInfo
+     */
+    static SizeReport sizeReport(RangeStats stats, State state, boolean collecting) {
+        if (stats.isKnown()) {
+            return SizeReport.MAINTAINED;
+        }
+        if ((state == State.CATCHING_UP) || collecting) {
+            return SizeReport.DEFERRED;
+        }
+        return SizeReport.SCAN;
+    }
+
+    private void scheduleCursorExpiry() {
+        ScheduleTimeout st = new ScheduleTimeout(cursors.idleTimeout());
+        st.setTimeoutEvent(new ExpireCursors(st));
+        trigger(st, timer);
     }
 
     private void doReconf(Reconfigure rconf) {
@@ -347,6 +528,37 @@ public class ExecutionEngine extends ComponentDefinition {
         transferDataMaybe(oldView, view);
     }
 
+    private void apply(long pos, Value v) {
+        if (v instanceof ProposalBatch) {
+            // all values of a batch share its log position
+            for (Value bv : ((ProposalBatch) v).values) {
+                apply(pos, bv);
+            }
+            return;
+        }
+        if (v instanceof Reconfigure) {
+            doReconf((Reconfigure) v);
+            return;
+        }
+        if (v instanceof SMROp) {
+            executeOp(pos, (SMROp) v);
+            return;
+        }
+        if (v instanceof SyncedUp) {
+            goActive();
+            return;
+        }
+        if (v instanceof Scan) {
+            Scan s = (Scan) v;
+            trigger(new SizeScan(s.range), store);
+            trigger(new RebuildFilter(s.range, false), store); // only if it became overfull
+            return;
+        }
+        if (!(v instanceof Noop)) {
+            LOG.error("Unkown decision value: {}", v);
+        }
+    }
+
     private void executeOp(long pos, SMROp smrOp) {
         LOG.debug("{}: Decided {}", self, smrOp);
         Action a = actions.get(state, smrOp.op);
@@ -354,18 +566,55 @@ public class ExecutionEngine extends ComponentDefinition {
             LOG.error("No action for {}. This is weird...", smrOp.op);
             return;
         }
+        if (state != State.CATCHING_UP) { // reads are dropped then
+            positions.put(smrOp.op.id, pos);
+        }
         a.initiate(smrOp.op, pos);
     }
 
+    /**
+     * Answers with the position the op was executed at, if known.
+     */
+    private void reply(CaracalResponse resp) {
+        Long pos = positions.remove(resp.id);
+        if (pos != null) {
+            resp.setPosition(pos);
+        }
+        trigger(resp, rep);
+    }
+
+    /**
+     * Executes a read the log granted without proposing it, once everything
+     * up to pos has been applied.
+     */
+    private void readLocally(CaracalOp op, long pos) {
+        if (state != State.ACTIVE) {
+            trigger(new Propose(new SMROp(op.id, op)), rLog); // view changed meanwhile
+            return;
+        }
+        LOG.debug("{}: Reading locally at {}: {}", new Object[]{self, pos, op});
+        positions.put(op.id, lastApplied);
+        Action a = actions.get(state, op);
+        a.initiate(op, pos);
+    }
+
     private void subCoreHandlers() {
         subscribe(decideHandler, rLog);
+        subscribe(localReadHandler, rLog);
+        subscribe(backpressureHandler, rLog);
         subscribe(viewChangeHandler, rep);
         subscribe(opHandler, rep);
         subscribe(getHandler, store);
+        subscribe(mgetHandler, store);
         subscribe(rangeHandler, store);
         subscribe(mopHandler, store);
+        subscribe(putHandler, store);
+        subscribe(batchPutHandler, store);
         subscribe(snapshotHandler, store);
         subscribe(diffHandler, store);
+        subscribe(gcProgressHandler, store);
+        subscribe(gcTimeoutHandler, timer);
+        subscribe(cursorTimeoutHandler, timer);
         subscribe(infoHandler, rep);
     }
 
@@ -439,11 +688,24 @@ public class ExecutionEngine extends ComponentDefinition {
                     return null;
                 }
             });
+            catchingUp.put(MultiGetRequest.class, new Action<MultiGetRequest>() {
+                @Override
+                public void initiate(MultiGetRequest op, long pos) {
+                    // same as GetRequest
+                }
+
+                @Override
+                public StorageRequest prepareSnapshot(MultiGetRequest op) {
+                    return null;
+                }
+            });
             catchingUp.put(PutRequest.class, new Action<PutRequest>() {
                 @Override
                 public void initiate(PutRequest op, long pos) {
                     // Just reply. Will be applied when the next snapshot is taken.
-                    trigger(new PutResponse(op.id, op.key), rep);
+                    PutResponse resp = new PutResponse(op.id, op.key);
+                    resp.setPosition(pos);
+                    trigger(resp, rep);
                 }
 
                 @Override
@@ -451,6 +713,20 @@ public class ExecutionEngine extends ComponentDefinition {
                     return null;
                 }
             });
+            catchingUp.put(BatchPutRequest.class, new Action<BatchPutRequest>() {
+                @Override
+                public void initiate(BatchPutRequest op, long pos) {
+                    // Just reply. Will be applied when the next snapshot is taken.
+                    BatchPutResponse resp = new BatchPutResponse(op.id, op.puts.keySet());
+                    resp.setPosition(pos);
+                    trigger(resp, rep);
+                }
+
+                @Override
+                public StorageRequest prepareSnapshot(BatchPutRequest op) {
+                    return null;
+                }
+            });
             catchingUp.put(RangeQuery.Request.class, new Action<RangeQuery.Request>() {
                 @Override
                 public void initiate(RangeQuery.Request op, long pos) {
@@ -483,12 +759,31 @@ public class ExecutionEngine extends ComponentDefinition {
                     return null;
                 }
             });
+            active.put(MultiGetRequest.class, new Action<MultiGetRequest>() {
+                @Override
+                public void initiate(MultiGetRequest op, long pos) {
+                    MultiGetReq request = new MultiGetReq(op.keys);
+                    request.setId(op.id);
+                    trigger(request, store);
+                }
+
+                @Override
+                public StorageRequest prepareSnapshot(MultiGetRequest op) {
+                    return null;
+                }
+            });
             active.put(PutRequest.class, new Action<PutRequest>() {
                 @Override
                 public void initiate(PutRequest op, long pos) {
                     Put request = new Put(op.key, op.data, versionId);
-                    trigger(request, store);
-                    trigger(new PutResponse(op.id, op.key), rep);
+                    request.setDurability(init.durability);
+                    if (init.durability == Durability.NONE) {
+                        trigger(request, store);
+                        reply(new PutResponse(op.id, op.key));
+                    } else {
+                        request.setId(op.id); // reply in putHandler once it's durable
+                        trigger(request, store);
+                    }
                     lastSnapshotId = pos;
                 }
 
@@ -497,11 +792,40 @@ public class ExecutionEngine extends ComponentDefinition {
                     return new Put(op.key, op.data, versionId);
                 }
             });
+            active.put(BatchPutRequest.class, new Action<BatchPutRequest>() {
+                @Override
+                public void initiate(BatchPutRequest op, long pos) {
+                    BatchPut request = new BatchPut(op.puts, versionId);
+                    request.setDurability(init.durability);
+                    if (init.durability == Durability.NONE) {
+                        trigger(request, store);
+                        reply(new BatchPutResponse(op.id, op.puts.keySet()));
+                    } else {
+                        request.setId(op.id); // reply in batchPutHandler once it's durable
+                        trigger(request, store);
+                    }
+                    lastSnapshotId = pos;
+                }
+
+                @Override
+                public StorageRequest prepareSnapshot(BatchPutRequest op) {
+                    return new BatchPut(op.puts, versionId);
+                }
+            });
             active.put(RangeQuery.Request.class, new Action<RangeQuery.Request>() {
                 @Override
                 public void initiate(RangeQuery.Request op, long pos) {
                     RangeReq request = new RangeReq(op.subRange, op.limitTracker, op.transFilter, op.action, versionId);
                     request.setId(op.id);
+                    request.setAggregator(op.aggregator);
+                    // a parked iterator that misses writes would serve stale pages
+                    if ((op.cursorId != null) && request.isScan() && init.liveIterators) {
+                        boolean expiring = !cursors.isEmpty();
+                        request.setCursor(cursors.get(op.cursorId, System.currentTimeMillis()));
+                        if (!expiring) {
+                            scheduleCursorExpiry();
+                        }
+                    }
                     trigger(request, store);
                 }
 
@@ -517,6 +841,7 @@ public class ExecutionEngine extends ComponentDefinition {
                 public void initiate(MultiOpRequest op, long pos) {
                     MultiOp.Req request = new MultiOp.Req(op.conditions, op.successPuts, op.failurePuts, versionId);
                     request.setId(op.id);
+                    request.setDurability(init.durability);
                     trigger(request, store);
                 }
 
@@ -656,4 +981,18 @@ public class ExecutionEngine extends ComponentDefinition {
             return super.baseCompareTo(o);
         }
     }
+
+    public static class NextGCSlice extends Timeout {
+
+        public NextGCSlice(ScheduleTimeout st) {
+            super(st);
+        }
+    }
+
+    public static class ExpireCursors extends Timeout {
+
+        public ExpireCursors(ScheduleTimeout st) {
+            super(st);
+        }
+    }
 }
@@ -23,6 +23,8 @@ package se.sics.caracaldb.replication.linearisable;
 import se.sics.caracaldb.Address;
 import se.sics.caracaldb.KeyRange;
 import se.sics.caracaldb.View;
+import se.sics.caracaldb.replication.log.ReadMode;
+import se.sics.caracaldb.store.Durability;
 import se.sics.kompics.Init;
 
 /**
@@ -34,10 +36,26 @@ public class ExecutionEngineInit extends Init<ExecutionEngine> {
     public final Address self;
     public final KeyRange range;
     public final long keepAlivePeriod;
-    public ExecutionEngineInit(View v, Address self, KeyRange range, long keepAlivePeriod) {
+    public final Durability durability;
+    public final ReadMode readMode;
+    public final int gcSliceKeys;
+    public final long gcBytesPerSecond;
+    public final long cursorIdleTimeout;
+    public final int maxCursors;
+    public final boolean liveIterators;
+    public ExecutionEngineInit(View v, Address self, KeyRange range, long keepAlivePeriod, Durability durability,
+            ReadMode readMode, int gcSliceKeys, long gcBytesPerSecond, long cursorIdleTimeout, int maxCursors,
+            boolean liveIterators) {
         this.view = v;
         this.self = self;
         this.range = range;
         this.keepAlivePeriod = keepAlivePeriod;
+        this.durability = durability;
+        this.readMode = readMode;
+        this.gcSliceKeys = gcSliceKeys;
+        this.gcBytesPerSecond = gcBytesPerSecond;
+        this.cursorIdleTimeout = cursorIdleTimeout;
+        this.maxCursors = maxCursors;
+        this.liveIterators = liveIterators;
     }
 }
@@ -28,6 +28,7 @@ import java.util.TreeMap;
 import org.javatuples.Pair;
 import se.sics.caracaldb.operations.CaracalOp;
 import se.sics.caracaldb.replication.linearisable.ExecutionEngine.SMROp;
+import se.sics.caracaldb.replication.log.ProposalBatch;
 import se.sics.caracaldb.replication.log.Value;
 
 /**
@@ -84,14 +85,21 @@ public class InMemoryLog implements OperationsLog {
     public Pair<Long, List<CaracalOp>> getSnapshotDiff(long lastSnapshot) {
         List<CaracalOp> ops = new LinkedList<CaracalOp>();
         for (Value v : log.tailMap(lastSnapshot, false).values()) {
-            if (v instanceof SMROp) {
-                CaracalOp op = ((SMROp) v).op;
-                ops.add(op);
-            }
+            addOps(v, ops);
         }
         return Pair.with(log.lastKey(), ops);
     }
 
+    private static void addOps(Value v, List<CaracalOp> ops) {
+        if (v instanceof SMROp) {
+            ops.add(((SMROp) v).op);
+        } else if (v instanceof ProposalBatch) {
+            for (Value bv : ((ProposalBatch) v).values) {
+                addOps(bv, ops);
+            }
+        }
+    }
+
     @Override
     public Iterator<Value> iterator() {
         List<Value> ops = new LinkedList<Value>(log.values());
@@ -0,0 +1,76 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.linearisable;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.javatuples.Pair;
+import se.sics.caracaldb.operations.CaracalOp;
+
+/**
+ * Granted local reads, by the position that must be applied before them.
+ * <p>
+ * A read may be granted at a position the replica hasn't applied yet, e.g.
+ * one its client's session already saw elsewhere. It waits here until the
+ * log caught up.
+ * <p>
+ * @author lkroll
+ */
+class PendingReads {
+
+    private final TreeMap<Long, List<CaracalOp>> reads = new TreeMap<Long, List<CaracalOp>>();
+
+    void add(long position, CaracalOp op) {
+        List<CaracalOp> ops = reads.get(position);
+        if (ops == null) {
+            ops = new LinkedList<CaracalOp>();
+            reads.put(position, ops);
+        }
+        ops.add(op);
+    }
+
+    /**
+     * Removes the reads that may run once everything up to lastApplied has
+     * been applied.
+     * <p>
+     * @param lastApplied
+     * @return the reads with their positions, in position order
+     */
+    List<Pair<Long, CaracalOp>> ready(long lastApplied) {
+        List<Pair<Long, CaracalOp>> ready = new ArrayList<Pair<Long, CaracalOp>>();
+        SortedMap<Long, List<CaracalOp>> head = reads.headMap(lastApplied, true);
+        for (Map.Entry<Long, List<CaracalOp>> e : head.entrySet()) {
+            for (CaracalOp op : e.getValue()) {
+                ready.add(Pair.with(e.getKey(), op));
+            }
+        }
+        head.clear();
+        return ready;
+    }
+
+    boolean isEmpty() {
+        return reads.isEmpty();
+    }
+}
@@ -22,6 +22,7 @@ package se.sics.caracaldb.replication.linearisable;
 
 import se.sics.caracaldb.operations.CaracalOp;
 import se.sics.caracaldb.operations.CaracalResponse;
+import se.sics.caracaldb.replication.log.Backpressure;
 import se.sics.caracaldb.store.Diff;
 import se.sics.kompics.PortType;
 
@@ -38,5 +39,6 @@ public class Replication extends PortType {
         indication(CaracalResponse.class);
         indication(Synced.class);
         indication(Diff.class);
+        indication(Backpressure.class);
     }
 }
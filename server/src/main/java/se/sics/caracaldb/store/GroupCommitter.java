@@ -0,0 +1,146 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.persistence.Database;
+
+/**
+ * Holds back the responses of completed writes until a single sync of the
+ * database has made all of them durable.
+ *
+ * A group is opened by the first write after a sync and closed when either
+ * the window has passed or maxSize writes have joined it. Since writes from
+ * all vnodes sharing the database end up here, the cost of one sync is
+ * amortised over everything that arrived in the window.
+ *
+ * If the sync fails the responses of the group are dropped, so that the
+ * requesters time out instead of believing their writes to be durable.
+ *
+ * @author lkroll
+ */
+class GroupCommitter implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final Database db;
+    private final RequestScheduler.ResponseSink sink;
+    private final long windowNanos;
+    private final int maxSize;
+    private final Object lock = new Object();
+    private final Thread thread;
+    private List<StorageResponse> responses = new ArrayList<StorageResponse>();
+    private int writes = 0; // also counts writes without a response
+    private long groupStart;
+    private boolean running = true;
+
+    GroupCommitter(Database db, RequestScheduler.ResponseSink sink, long windowMillis, int maxSize) {
+        this.db = db;
+        this.sink = sink;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxSize = Math.max(1, maxSize);
+        this.thread = new Thread(this, "PersistentStore-commit(" + db + ")");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds an applied write to the current group.
+     *
+     * @param resp the response to deliver after the sync (may be null)
+     */
+    void add(StorageResponse resp) {
+        synchronized (lock) {
+            if (!running) {
+                throw new IllegalStateException("Group commit is shut down");
+            }
+            if (writes == 0) {
+                groupStart = System.nanoTime();
+                lock.notifyAll();
+            }
+            writes++;
+            if (resp != null) {
+                responses.add(resp);
+            }
+            if (writes >= maxSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Commits the last group and stops the commit thread.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<StorageResponse> group;
+            int size;
+            synchronized (lock) {
+                try {
+                    while (writes == 0 && running) {
+                        lock.wait();
+                    }
+                    if (writes == 0) {
+                        return; // shut down and nothing left to commit
+                    }
+                    long remaining = windowNanos - (System.nanoTime() - groupStart);
+                    while (running && writes < maxSize && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        remaining = windowNanos - (System.nanoTime() - groupStart);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+                group = responses;
+                size = writes;
+                responses = new ArrayList<StorageResponse>();
+                writes = 0;
+            }
+            try {
+                db.sync();
+            } catch (Throwable ex) {
+                LOG.error("Could not sync " + db + ". Dropping responses for " + size + " writes.", ex);
+                continue;
+            }
+            for (StorageResponse resp : group) {
+                sink.deliver(resp);
+            }
+        }
+    }
+}
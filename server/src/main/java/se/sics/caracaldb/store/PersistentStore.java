@@ -20,13 +20,13 @@
  */
 package se.sics.caracaldb.store;
 
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.caracaldb.persistence.Database;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
 import se.sics.kompics.Negative;
-import se.sics.kompics.Response;
 import se.sics.kompics.Stop;
 
 /**
@@ -40,9 +40,21 @@ public class PersistentStore extends ComponentDefinition {
     Negative<Store> store = provides(Store.class);
     
     private Database db;
+    private final Responder responder = new Responder();
+    private RequestScheduler scheduler = null; // null -> execute inline
+    private final long groupWindow;
+    private final int groupSize;
+    private GroupCommitter committer = null; // created with the first group commit write
     
     public PersistentStore(PersistentStoreInit init) {
         this.db = init.db;
+        this.groupWindow = init.groupWindow;
+        this.groupSize = init.groupSize;
+        if ((init.workers > 0) && db.supportsConcurrentAccess()) {
+            scheduler = new RequestScheduler(db, responder, init.workers, Math.max(1, init.scanWorkers));
+            LOG.info("Executing requests on {} with {} striped workers and {} scan workers",
+                    new Object[]{db, init.workers, Math.max(1, init.scanWorkers)});
+        }
         
         // subscriptions
         subscribe(requestHandler, store);
@@ -53,11 +65,12 @@ public class PersistentStore extends ComponentDefinition {
     Handler<StorageRequest> requestHandler = new Handler<StorageRequest>() {
         @Override
         public void handle(StorageRequest event) {
+            if (scheduler != null) {
+                scheduler.submit(event);
+                return;
+            }
             try {
-                Response resp = event.execute(db);
-                if (resp != null) {
-                    trigger(resp, store);
-                }
+                responder.completed(event, event.execute(db));
             } catch (Throwable ex) {
                 LOG.error("Exception during process", ex);
             }
@@ -66,7 +79,53 @@ public class PersistentStore extends ComponentDefinition {
     Handler<Stop> stopHandler = new Handler<Stop>() {
         @Override
         public void handle(Stop event) {
+            if (scheduler != null) {
+                scheduler.shutdown(30, TimeUnit.SECONDS);
+            }
+            synchronized (responder) {
+                if (committer != null) {
+                    committer.shutdown();
+                }
+            }
             db.close();
         }        
     };
+    
+    /**
+     * Delivers responses once the request's durability requirement is met.
+     * 
+     * Called from the workers in parallel mode. Triggering is thread-safe, the
+     * handlers of the requesters still run on their own component's thread.
+     */
+    private class Responder implements RequestScheduler.ResponseSink {
+
+        @Override
+        public void completed(StorageRequest req, StorageResponse resp) {
+            switch (req.getDurability()) {
+                case SYNC:
+                    db.sync();
+                    break;
+                case GROUP:
+                    committer().add(resp);
+                    return;
+                default:
+                    break;
+            }
+            if (resp != null) {
+                deliver(resp);
+            }
+        }
+
+        @Override
+        public void deliver(StorageResponse resp) {
+            trigger(resp, store);
+        }
+        
+        private synchronized GroupCommitter committer() {
+            if (committer == null) {
+                committer = new GroupCommitter(db, this, groupWindow, groupSize);
+            }
+            return committer;
+        }
+    }
 }
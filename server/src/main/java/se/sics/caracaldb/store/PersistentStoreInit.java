@@ -21,6 +21,7 @@
 package se.sics.caracaldb.store;
 
 import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.system.Configuration;
 import se.sics.kompics.Init;
 
 /**
@@ -29,8 +30,32 @@ import se.sics.kompics.Init;
  */
 public class PersistentStoreInit extends Init<PersistentStore> {
     public final Database db;
+    /**
+     * Number of key-striped workers for point operations (0 executes all
+     * requests sequentially in the component's handler).
+     */
+    public final int workers;
+    public final int scanWorkers;
+    /**
+     * Maximum time (in ms) and number of writes a group commit waits for
+     * before syncing.
+     */
+    public final long groupWindow;
+    public final int groupSize;
     
     public PersistentStoreInit(Database db) {
         this.db = db;
+        this.workers = 0;
+        this.scanWorkers = 0;
+        this.groupWindow = 2;
+        this.groupSize = 256;
+    }
+    
+    public PersistentStoreInit(Database db, Configuration config) {
+        this.db = db;
+        this.workers = config.getInt("caracal.store.workers");
+        this.scanWorkers = config.getInt("caracal.store.scanWorkers");
+        this.groupWindow = config.getMilliseconds("caracal.store.groupCommit.window");
+        this.groupSize = config.getInt("caracal.store.groupCommit.maxSize");
     }
 }
@@ -0,0 +1,61 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.Persistence;
+
+/**
+ * Asks the store to rebuild its key filter for a range (see
+ * {@link Database#rebuildFilter(KeyRange, boolean)}).
+ *
+ * @author lkroll
+ */
+public class RebuildFilter extends StorageRequest {
+
+    public final KeyRange range;
+    public final boolean force;
+
+    public RebuildFilter(KeyRange range, boolean force) {
+        this.range = range;
+        this.force = force;
+    }
+
+    @Override
+    public StorageResponse execute(Persistence store) throws IOException {
+        if (store instanceof Database) {
+            ((Database) store).rebuildFilter(range, force);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isScan() {
+        return true; // only reads the database, filters handle concurrent writes
+    }
+
+    @Override
+    public String toString() {
+        return "RebuildFilter(" + range + ", " + force + ")";
+    }
+}
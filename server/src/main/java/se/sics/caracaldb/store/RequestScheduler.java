@@ -0,0 +1,230 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.Persistence;
+
+/**
+ * Executes StorageRequests on a pool of key-striped worker threads.
+ *
+ * Every key is owned by exactly one single-threaded stripe, so requests on
+ * the same key are executed one after the other in submission order, while
+ * requests on different keys proceed in parallel. Requests spanning several
+ * stripes (or the whole store) pass a gate on each involved stripe and are
+ * executed once all of them have been reached. Read-only scans wait for all
+ * stripes to drain the writes that were submitted before them and are then
+ * executed on a separate pool, so long scans never block point operations.
+ *
+ * {@link #submit(StorageRequest)} must only be called from a single thread
+ * (the owning component's handler), which gives all stripes the same view of
+ * the submission order and keeps the gates free of deadlocks.
+ *
+ * @author lkroll
+ */
+class RequestScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestScheduler.class);
+
+    static interface ResponseSink {
+
+        /**
+         * Called after a request has been executed.
+         *
+         * @param req the executed request
+         * @param resp its response (may be null)
+         */
+        public void completed(StorageRequest req, StorageResponse resp);
+
+        public void deliver(StorageResponse resp);
+    }
+
+    private final Persistence db;
+    private final ResponseSink sink;
+    private final ExecutorService[] stripes;
+    private final ExecutorService scans;
+
+    RequestScheduler(Persistence db, ResponseSink sink, int workers, int scanWorkers) {
+        if (workers < 1 || scanWorkers < 1) {
+            throw new IllegalArgumentException("Need at least one worker and one scan worker!");
+        }
+        this.db = db;
+        this.sink = sink;
+        this.stripes = new ExecutorService[workers];
+        ThreadFactory stripeThreads = new NamedFactory("PersistentStore-stripe");
+        for (int i = 0; i < workers; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(stripeThreads);
+        }
+        this.scans = Executors.newFixedThreadPool(scanWorkers, new NamedFactory("PersistentStore-scan"));
+    }
+
+    void submit(final StorageRequest req) {
+        if (req.isScan()) {
+            final AtomicInteger pending = new AtomicInteger(stripes.length);
+            final Runnable scan = new Runnable() {
+
+                @Override
+                public void run() {
+                    execute(req);
+                }
+            };
+            for (ExecutorService stripe : stripes) {
+                stripe.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (pending.decrementAndGet() == 0) {
+                            scans.execute(scan);
+                        }
+                    }
+                });
+            }
+            return;
+        }
+        TreeSet<Integer> involved = stripesFor(req.affectedKeys());
+        if (involved.size() == 1) {
+            stripes[involved.first()].execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    execute(req);
+                }
+            });
+            return;
+        }
+        Gate gate = new Gate(req, involved.size());
+        for (Integer i : involved) {
+            stripes[i].execute(gate);
+        }
+    }
+
+    /**
+     * Stops accepting requests and waits for the queued ones to finish.
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+        try {
+            for (ExecutorService stripe : stripes) {
+                stripe.awaitTermination(timeout, unit);
+            }
+            // only shut down the scans after the stripes, as those hand over fenced scans
+            scans.shutdown();
+            if (!scans.awaitTermination(timeout, unit)) {
+                LOG.warn("Storage workers did not terminate within {}{}", timeout, unit);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private TreeSet<Integer> stripesFor(Collection<Key> keys) {
+        TreeSet<Integer> involved = new TreeSet<Integer>();
+        if (keys == null) {
+            for (int i = 0; i < stripes.length; i++) {
+                involved.add(i);
+            }
+            return involved;
+        }
+        for (Key k : keys) {
+            involved.add(stripeOf(k));
+        }
+        if (involved.isEmpty()) {
+            involved.add(0); // must still run somewhere
+        }
+        return involved;
+    }
+
+    private int stripeOf(Key k) {
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    private void execute(StorageRequest req) {
+        try {
+            sink.completed(req, req.execute(db));
+        } catch (Throwable ex) {
+            LOG.error("Exception during process", ex);
+        }
+    }
+
+    /**
+     * Occupies all involved stripes: the last stripe to arrive executes the
+     * request while the others wait for it to finish.
+     */
+    private class Gate implements Runnable {
+
+        private final StorageRequest req;
+        private final AtomicInteger arrivals;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Gate(StorageRequest req, int parties) {
+            this.req = req;
+            this.arrivals = new AtomicInteger(parties);
+        }
+
+        @Override
+        public void run() {
+            if (arrivals.decrementAndGet() == 0) {
+                try {
+                    execute(req);
+                } finally {
+                    done.countDown();
+                }
+                return;
+            }
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class NamedFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private NamedFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
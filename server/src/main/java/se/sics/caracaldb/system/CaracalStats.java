@@ -21,8 +21,15 @@
 package se.sics.caracaldb.system;
 
 import com.google.common.util.concurrent.AtomicDouble;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import se.sics.caracaldb.paxos.Paxos;
+import se.sics.caracaldb.persistence.cache.ValueCache;
+import se.sics.caracaldb.persistence.compress.SchemaCodecs;
+import se.sics.caracaldb.persistence.compress.ValueCodec;
 
 /**
  *
@@ -36,6 +43,8 @@ public class CaracalStats implements CaracalStatsMBean {
     final AtomicInteger numberOfVNodes = new AtomicInteger(0);
     final AtomicDouble memoryUsage = new AtomicDouble(0.0);
     final AtomicDouble cpuUsage = new AtomicDouble(0.0);
+    final List<ValueCache> caches = new CopyOnWriteArrayList<ValueCache>();
+    final List<SchemaCodecs> codecs = new CopyOnWriteArrayList<SchemaCodecs>();
 
     @Override
     public long getStoreSize() {
@@ -66,4 +75,76 @@ public class CaracalStats implements CaracalStatsMBean {
     public int getNumberOfVNodes() {
         return numberOfVNodes.get();
     }
+
+    @Override
+    public long getCacheHits() {
+        long sum = 0;
+        for (ValueCache c : caches) {
+            sum += c.hits();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long sum = 0;
+        for (ValueCache c : caches) {
+            sum += c.misses();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        long sum = 0;
+        for (ValueCache c : caches) {
+            sum += c.evictions();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getCacheSize() {
+        long sum = 0;
+        for (ValueCache c : caches) {
+            sum += c.weight();
+        }
+        return sum;
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = getCacheHits();
+        long total = hits + getCacheMisses();
+        if (total == 0) {
+            return 0.0;
+        }
+        return ((double) hits) / ((double) total);
+    }
+
+    @Override
+    public String[] getCompressionStats() {
+        List<String> stats = new ArrayList<String>();
+        for (SchemaCodecs sc : codecs) {
+            for (ValueCodec c : sc.codecs()) {
+                stats.add(c.toString());
+            }
+        }
+        return stats.toArray(new String[stats.size()]);
+    }
+
+    @Override
+    public long getPaxosInstances() {
+        return Paxos.batchStats().instances();
+    }
+
+    @Override
+    public double getAveragePaxosBatchSize() {
+        return Paxos.batchStats().average();
+    }
+
+    @Override
+    public long getLargestPaxosBatch() {
+        return Paxos.batchStats().largest();
+    }
 }
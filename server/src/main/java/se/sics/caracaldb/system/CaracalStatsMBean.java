@@ -32,4 +32,13 @@ public interface CaracalStatsMBean {
     public int getNumberOfVNodes();
     public double getMemoryUsage();
     public double getCpuUsage();
+    public long getCacheHits();
+    public long getCacheMisses();
+    public long getCacheEvictions();
+    public long getCacheSize();
+    public double getCacheHitRate();
+    public String[] getCompressionStats();
+    public long getPaxosInstances();
+    public double getAveragePaxosBatchSize();
+    public long getLargestPaxosBatch();
 }
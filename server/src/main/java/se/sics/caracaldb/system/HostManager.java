@@ -74,6 +74,7 @@ public class HostManager extends ComponentDefinition {
     private Component vfd;
     private final Class<? extends Database> masterStoreType;
     private final Map<String, Component> stores = new HashMap<String, Component>();
+    private final Map<String, Boolean> liveIterators = new HashMap<String, Boolean>();
     
     public HostManager(HostManagerInit init) throws UnknownHostException, ClassNotFoundException, InstantiationException {
         config = init.config;
@@ -88,8 +89,10 @@ public class HostManager extends ComponentDefinition {
         fd = vfd.getPositive(EventualFailureDetector.class);
         
         masterStoreType = config.getDBMan().getType("master");
-        Component masterStore = create(PersistentStore.class, new PersistentStoreInit(config.getDBMan().getInstance(masterStoreType)));
+        Database masterDB = config.getDBMan().getInstance(masterStoreType);
+        Component masterStore = create(PersistentStore.class, new PersistentStoreInit(masterDB, config));
         stores.put(masterStoreType.getName(), masterStore);
+        liveIterators.put(masterStoreType.getName(), masterDB.supportsLiveIterators());
         LOG.info("{}: Created master store: {}", netSelf, masterStoreType);
         
         sharedComponents = new HostSharedComponents();
@@ -125,6 +128,7 @@ public class HostManager extends ComponentDefinition {
             LOG.info("Starting new VNode: " + nodeAddr);
             
             VirtualSharedComponents vsc = new VirtualSharedComponents(event.nodeId, event.schema);
+            config.getDBMan().registerSchema(event.schema);
             
             vsc.setSelf(nodeAddr);
             vsc.setNetwork(sharedComponents.getNet());
@@ -136,11 +140,13 @@ public class HostManager extends ComponentDefinition {
                     if (vsc.getDbLevel(config) == Database.Level.HOST) {
                         Component store = stores.get(vsc.getDbType(config).getName());
                         if (store == null) {
-                            store = create(PersistentStore.class, new PersistentStoreInit(config.getDBMan().getInstance(vsc.getDbType(config))));
+                            Database db = config.getDBMan().getInstance(vsc.getDbType(config));
+                            store = create(PersistentStore.class, new PersistentStoreInit(db, config));
                             trigger(Start.event, store.control());
                             stores.put(vsc.getDbType(config).getName(), store);
+                            liveIterators.put(vsc.getDbType(config).getName(), db.supportsLiveIterators());
                         }
-                        vsc.setStore(store.getPositive(Store.class));
+                        vsc.setStore(store.getPositive(Store.class), liveIterators.get(vsc.getDbType(config).getName()));
                     }
                     vsc.setMaintenance(lutManager.getPositive(MaintenanceService.class));
                 } catch (ClassNotFoundException ex) {
@@ -80,8 +80,9 @@ public class NodeManager extends ComponentDefinition {
 
         // Create stores on vnode level so they get started and stopped with the vnode itself
         if (vsc.getDbLevel(config) == Database.Level.VNODE) {
-            Component store = create(PersistentStore.class, new PersistentStoreInit(config.getDBMan().getInstance(vsc.getDbType(config))));
-            vsc.setStore(store.getPositive(Store.class));
+            Database db = config.getDBMan().getInstance(vsc.getDbType(config));
+            Component store = create(PersistentStore.class, new PersistentStoreInit(db, config));
+            vsc.setStore(store.getPositive(Store.class), db.supportsLiveIterators());
         }
 
         for (VirtualComponentHook hook : config.getVirtualHooks(NodePhase.INIT)) {
@@ -114,16 +115,28 @@ public class NodeManager extends ComponentDefinition {
                 NodeJoin join = (NodeJoin) event.op;
                 Component methCat = create(MethCat.class,
                         new Meth(self, join.responsibility, join.view,
-                                config.getMilliseconds("caracal.stats.nodeInterval")));
+                                config.getMilliseconds("caracal.stats.nodeInterval"),
+                                vsc.getReadMode(), vsc.getMaxValueSize()));
                 View repView = join.dataTransfer ? null : join.view;
                 //LOG.debug("NODEJOIN {} - {}", join.dataTransfer, repView);
                 Component replication = create(ExecutionEngine.class,
                         new ExecutionEngineInit(repView, self,
                                 join.responsibility,
-                                config.getMilliseconds("caracal.network.keepAlivePeriod")));
+                                config.getMilliseconds("caracal.network.keepAlivePeriod"),
+                                vsc.getDurability(),
+                                vsc.getReadMode(),
+                                config.getInt("caracal.gc.sliceKeys"),
+                                config.getBytes("caracal.gc.bytesPerSecond"),
+                                config.getMilliseconds("caracal.cursors.idleTimeout"),
+                                config.getInt("caracal.cursors.max"),
+                                vsc.hasLiveIterators()));
                 Component paxos = create(Paxos.class,
                         new PaxosInit(repView, join.quorum,
-                                config.getMilliseconds("caracal.network.keepAlivePeriod"), self));
+                                config.getMilliseconds("caracal.network.keepAlivePeriod"), self,
+                                config.getInt("caracal.paxos.maxBatchSize"),
+                                config.getInt("caracal.paxos.window"),
+                                config.getInt("caracal.paxos.maxPending"),
+                                config.getMilliseconds("caracal.paxos.leaseDuration")));
                 // methcat
                 vsc.connectNetwork(methCat);
                 connect(methCat.getNegative(Replication.class), replication.getPositive(Replication.class));
@@ -138,6 +151,7 @@ public class NodeManager extends ComponentDefinition {
                 // paxos
                 vsc.connectNetwork(paxos);
                 connect(paxos.getNegative(EventualFailureDetector.class), vsc.getFailureDetector());
+                connect(paxos.getNegative(Timer.class), vsc.getTimer());
 
                 // Start!
                 trigger(Start.event, paxos.control());
@@ -42,6 +42,8 @@ import se.sics.caracaldb.Address;
 import se.sics.caracaldb.AddressSerializer;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.global.NodeStats;
+import se.sics.caracaldb.persistence.cache.ValueCache;
+import se.sics.caracaldb.persistence.compress.SchemaCodecs;
 import se.sics.caracaldb.utils.CustomSerialisers;
 
 /**
@@ -67,6 +69,24 @@ public class Stats {
         }
     }
 
+    /**
+     * Exposes the cache's metrics via JMX.
+     *
+     * @param cache
+     */
+    public static void register(ValueCache cache) {
+        mbean.caches.add(cache);
+    }
+
+    /**
+     * Exposes the per schema compression metrics via JMX.
+     *
+     * @param codecs
+     */
+    public static void register(SchemaCodecs codecs) {
+        mbean.codecs.add(codecs);
+    }
+
     public static Report collect(Address atHost, Map<Address, NodeStats> nodeStats) {
         Mem mem;
         try {
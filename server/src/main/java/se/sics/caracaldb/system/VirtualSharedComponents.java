@@ -27,6 +27,9 @@ import se.sics.caracaldb.global.LookupService;
 import se.sics.caracaldb.global.MaintenanceService;
 import se.sics.caracaldb.global.SchemaData.SingleSchema;
 import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.compress.ValueCodec;
+import se.sics.caracaldb.replication.log.ReadMode;
+import se.sics.caracaldb.store.Durability;
 import se.sics.caracaldb.store.Store;
 import se.sics.kompics.Component;
 import se.sics.kompics.Positive;
@@ -91,12 +94,35 @@ public class VirtualSharedComponents extends ServiceRegistry {
         }
     }
 
+    public Durability getDurability() {
+        try {
+            return Durability.fromName(schema.meta.get(Durability.META_KEY));
+        } catch (IllegalArgumentException ex) {
+            HostManager.LOG.warn("Invalid durability for schema {}. Falling back to {}. Error was: \n{}", new Object[]{schema.name, Durability.NONE, ex});
+            return Durability.NONE;
+        }
+    }
+
+    public ReadMode getReadMode() {
+        try {
+            return ReadMode.fromName(schema.meta.get(ReadMode.META_KEY));
+        } catch (IllegalArgumentException ex) {
+            HostManager.LOG.warn("Invalid read mode for schema {}. Falling back to {}. Error was: \n{}", new Object[]{schema.name, ReadMode.LOG, ex});
+            return ReadMode.LOG;
+        }
+    }
+
+    public int getMaxValueSize() {
+        return ValueCodec.maxValueSize(schema.meta);
+    }
+
     /*
      * Core Services
      */
     private VirtualNetworkChannel net;
     private Positive<LookupService> lookup;
     private Positive<Store> store;
+    private boolean liveIterators = false;
     private Positive<MaintenanceService> maintenance;
     private Positive<Timer> timer;
     private Positive<EventualFailureDetector> fd;
@@ -125,14 +151,23 @@ public class VirtualSharedComponents extends ServiceRegistry {
         return lookup;
     }
 
-    public void setStore(Positive<Store> store) {
+    public void setStore(Positive<Store> store, boolean liveIterators) {
         this.store = store;
+        this.liveIterators = liveIterators;
     }
 
     public Positive<Store> getStore() {
         return store;
     }
 
+    /**
+     * @return if the store's iterators follow writes
+     * (see Database#supportsLiveIterators())
+     */
+    public boolean hasLiveIterators() {
+        return liveIterators;
+    }
+
     /**
      * @return the maintenance
      */
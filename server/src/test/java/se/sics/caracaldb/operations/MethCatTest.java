@@ -0,0 +1,123 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.UUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.replication.log.ReadMode;
+import se.sics.caracaldb.store.ActionFactory;
+import se.sics.caracaldb.store.Limit;
+import se.sics.caracaldb.store.MultiOp;
+import se.sics.caracaldb.store.TFFactory;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class MethCatTest {
+
+    private static final Key KEY = new Key(1);
+    private static final KeyRange RANGE = KeyRange.closed(new Key(0)).open(new Key(10));
+
+    @Test
+    public void busyTest() {
+        CaracalOp[] ops = new CaracalOp[]{
+            new GetRequest(UUID.randomUUID(), KEY),
+            new PutRequest(UUID.randomUUID(), KEY, new byte[]{1}),
+            scan(),
+            new MultiGetRequest(UUID.randomUUID(), ImmutableSortedSet.of(KEY)),
+            new BatchPutRequest(UUID.randomUUID(), ImmutableSortedMap.of(KEY, new byte[]{1})),
+            new MultiOpRequest(UUID.randomUUID(), ImmutableSet.<MultiOp.Condition>of(),
+                    ImmutableMap.of(KEY, new byte[]{1}), ImmutableMap.<Key, byte[]>of())
+        };
+        Class<?>[] types = new Class<?>[]{GetResponse.class, PutResponse.class, RangeQuery.Response.class,
+            MultiGetResponse.class, BatchPutResponse.class, MultiOpResponse.class};
+        for (int i = 0; i < ops.length; i++) {
+            CaracalResponse resp = MethCat.busy(ops[i]);
+            assertEquals(types[i], resp.getClass());
+            assertEquals(ops[i].id, resp.id);
+            assertEquals(ResponseCode.BUSY, resp.code);
+        }
+    }
+
+    @Test
+    public void servedLocallyTest() {
+        GetRequest get = new GetRequest(UUID.randomUUID(), KEY);
+        PutRequest put = new PutRequest(UUID.randomUUID(), KEY, new byte[]{1});
+        MultiGetRequest multiGet = new MultiGetRequest(UUID.randomUUID(), ImmutableSortedSet.of(KEY));
+        RangeQuery.Request delete = new RangeQuery.Request(UUID.randomUUID(), RANGE, Limit.noLimit(),
+                TFFactory.noTF(), ActionFactory.delete(), RangeQuery.Type.SEQUENTIAL);
+        // everything goes into the log
+        assertFalse(MethCat.servedLocally(get, ReadMode.LOG));
+        assertFalse(MethCat.servedLocally(scan(), ReadMode.LOG));
+        for (ReadMode mode : new ReadMode[]{ReadMode.LEASE, ReadMode.READ_INDEX}) {
+            assertTrue(MethCat.servedLocally(get, mode));
+            assertTrue(MethCat.servedLocally(multiGet, mode));
+            assertTrue(MethCat.servedLocally(scan(), mode));
+            // writes never skip the log
+            assertFalse(MethCat.servedLocally(put, mode));
+            assertFalse(MethCat.servedLocally(delete, mode));
+        }
+        // stale reads go to any replica, whatever the schema's mode
+        GetRequest stale = new GetRequest(UUID.randomUUID(), KEY, Staleness.millis(1000));
+        assertTrue(MethCat.servedLocally(stale, ReadMode.LOG));
+    }
+
+    @Test
+    public void tooLargeTest() {
+        int max = 10;
+        byte[] fits = new byte[max];
+        byte[] large = new byte[max + 1];
+        assertFalse(MethCat.tooLarge(new PutRequest(UUID.randomUUID(), KEY, fits), max));
+        assertTrue(MethCat.tooLarge(new PutRequest(UUID.randomUUID(), KEY, large), max));
+        assertFalse(MethCat.tooLarge(new BatchPutRequest(UUID.randomUUID(),
+                ImmutableSortedMap.of(KEY, fits, new Key(2), fits)), max));
+        assertTrue(MethCat.tooLarge(new BatchPutRequest(UUID.randomUUID(),
+                ImmutableSortedMap.of(KEY, fits, new Key(2), large)), max));
+        assertTrue(MethCat.tooLarge(new MultiOpRequest(UUID.randomUUID(), ImmutableSet.<MultiOp.Condition>of(),
+                ImmutableMap.of(KEY, fits), ImmutableMap.of(KEY, large)), max));
+        // reads are never too large
+        assertFalse(MethCat.tooLarge(new GetRequest(UUID.randomUUID(), KEY), 0));
+        assertFalse(MethCat.tooLarge(scan(), 0));
+        PutRequest put = new PutRequest(UUID.randomUUID(), KEY, large);
+        CaracalResponse resp = MethCat.failed(put, ResponseCode.VALUE_TOO_LARGE);
+        assertEquals(PutResponse.class, resp.getClass());
+        assertEquals(put.id, resp.id);
+        assertEquals(ResponseCode.VALUE_TOO_LARGE, resp.code);
+    }
+
+    private static RangeQuery.Request scan() {
+        return new RangeQuery.Request(UUID.randomUUID(), RANGE, Limit.noLimit(),
+                TFFactory.noTF(), ActionFactory.noop(), RangeQuery.Type.SEQUENTIAL);
+    }
+}
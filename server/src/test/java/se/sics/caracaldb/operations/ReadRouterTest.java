@@ -0,0 +1,126 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.operations;
+
+import com.google.common.collect.ImmutableSortedSet;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Address;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.View;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class ReadRouterTest {
+
+    private static final Key KEY = new Key(1);
+    private Address self;
+    private Address other1;
+    private Address other2;
+    private Address client;
+    private View view;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        InetAddress ip = InetAddress.getLocalHost();
+        self = new Address(ip, 1, null);
+        other1 = new Address(ip, 2, null);
+        other2 = new Address(ip, 3, null);
+        client = new Address(ip, 4, null);
+        view = new View(ImmutableSortedSet.of(self, other1, other2), 0);
+    }
+
+    @Test
+    public void routableTest() {
+        ReadRouter router = new ReadRouter(self);
+        GetRequest stale = new GetRequest(UUID.randomUUID(), KEY, Staleness.millis(1000));
+        assertTrue(ReadRouter.routable(stale, client, view));
+        // linearisable reads stay with the node the lookup picked
+        GetRequest get = new GetRequest(UUID.randomUUID(), KEY);
+        assertFalse(ReadRouter.routable(get, client, view));
+        assertNull(router.route(get, client, view, true));
+        // a member already picked this node
+        assertFalse(ReadRouter.routable(stale, other1, view));
+        assertNull(router.route(stale, other1, view, true));
+    }
+
+    @Test
+    public void spreadTest() {
+        ReadRouter router = new ReadRouter(self);
+        Map<Address, Integer> routed = route(router, 30, true);
+        assertEquals(10, (int) routed.get(self));
+        assertEquals(10, (int) routed.get(other1));
+        assertEquals(10, (int) routed.get(other2));
+    }
+
+    @Test
+    public void backpressureTest() {
+        ReadRouter router = new ReadRouter(self);
+        Map<Address, Integer> routed = route(router, 30, false);
+        assertNull(routed.get(self));
+        assertEquals(15, (int) routed.get(other1));
+        assertEquals(15, (int) routed.get(other2));
+        // forwarding picks someone else as well
+        assertNotNull(router.leastLoaded(view, false));
+    }
+
+    @Test
+    public void resetTest() {
+        ReadRouter router = new ReadRouter(self);
+        route(router, 2, false); // other1 and other2 got one each
+        router.reset();
+        // this node is picked first again on ties
+        assertNull(router.route(stale(), client, view, true));
+        assertEquals(other1, router.route(stale(), client, view, true));
+    }
+
+    private Map<Address, Integer> route(ReadRouter router, int n, boolean includeSelf) {
+        Map<Address, Integer> routed = new HashMap<Address, Integer>();
+        for (int i = 0; i < n; i++) {
+            Address target = router.route(stale(), client, view, includeSelf);
+            if (target == null) {
+                target = self;
+            }
+            Integer c = routed.get(target);
+            routed.put(target, (c == null) ? 1 : (c + 1));
+        }
+        return routed;
+    }
+
+    private static GetRequest stale() {
+        return new GetRequest(UUID.randomUUID(), KEY, Staleness.positions(10));
+    }
+}
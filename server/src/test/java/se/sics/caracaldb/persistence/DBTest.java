@@ -20,22 +20,48 @@
  */
 package se.sics.caracaldb.persistence;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Closer;
 import com.typesafe.config.Config;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import se.sics.caracaldb.Key;
 import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.cache.CachedDatabase;
+import se.sics.caracaldb.persistence.cache.ValueCache;
+import se.sics.caracaldb.persistence.compress.CompressedDatabase;
+import se.sics.caracaldb.persistence.compress.DictionaryTrainer;
+import se.sics.caracaldb.persistence.compress.SchemaCodecs;
+import se.sics.caracaldb.persistence.compress.ValueCodec;
+import se.sics.caracaldb.persistence.disk.BitcaskDB;
+import se.sics.caracaldb.persistence.filter.FilteredDatabase;
 import se.sics.caracaldb.persistence.disk.LevelDBJNI;
+import se.sics.caracaldb.persistence.disk.LsmDB;
+import se.sics.caracaldb.persistence.disk.bitcask.BitcaskStore;
+import se.sics.caracaldb.persistence.disk.lsm.LsmStore;
+import se.sics.caracaldb.persistence.memory.AdaptiveRadixTree;
+import se.sics.caracaldb.persistence.memory.ArtDB;
 import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.persistence.memory.OffHeapDB;
 import se.sics.caracaldb.store.GetReq;
 import se.sics.caracaldb.store.GetResp;
 import se.sics.caracaldb.store.Put;
@@ -71,7 +97,663 @@ public class DBTest {
         dbTest(new LevelDBJNI(config.core()));
     }
 
-    private void dbTest(Database db) throws IOException {
+    @Test
+    public void versionedMemoryDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "versioned").finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        dbTest(new InMemoryDB(config.core()));
+        versionTest(new InMemoryDB(config.core()));
+    }
+
+    @Test
+    public void versionedLevelDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("leveldb.layout", "versioned").finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        dbTest(new LevelDBJNI(config.core()));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        versionTest(new LevelDBJNI(config.core()));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        rangeQueryTest(new LevelDBJNI(config.core()));
+    }
+
+    @Test
+    public void offHeapDBTest() throws IOException, InterruptedException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("offheap.slabSize", "64K").finalise();
+        dbTest(new OffHeapDB(config.core()));
+        versionTest(new OffHeapDB(config.core()));
+        final OffHeapDB db = new OffHeapDB(config.core());
+        try {
+            final Key[] keys = linearKeys(NUM);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 1; round <= 200; round++) {
+                            for (int i = 0; i < NUM; i++) {
+                                if ((i + round) % 3 == 0) {
+                                    db.deleteVersions(keys[i].getArray(), round);
+                                    db.delete(keys[i].getArray(), round);
+                                    db.deleteVersions(keys[i].getArray(), round);
+                                } else {
+                                    db.put(keys[i].getArray(), keys[i].getArray(), round);
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            writer.start();
+            while (writer.isAlive()) {
+                StoreIterator it = db.iterator();
+                Key last = null;
+                while (it.hasNext()) {
+                    Key k = new Key(it.peekKey());
+                    ByteArrayRef val = it.peekValue();
+                    if (val != null && val.length > 0) {
+                        assertEquals(k, new Key(val.dereference()));
+                    }
+                    assertTrue(last == null || last.compareTo(k) < 0);
+                    last = k;
+                    it.next();
+                }
+                it.close();
+            }
+            writer.join();
+            assertNull(failure.get());
+            assertTrue(db.arena().allocatedBytes() <= db.arena().reservedBytes());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void offHeapSeekTest() throws IOException, InterruptedException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("offheap.slabSize", "64K").finalise();
+        final OffHeapDB db = new OffHeapDB(config.core());
+        try {
+            final int n = 200;
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            // removes keys and writes longer or shorter ones, so retired key
+            // blocks are reused for other keys if a seek is still looking at them
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 300; round++) {
+                            for (int i = round % 2; i < n; i += 2) {
+                                byte[] key = (round % 3 == 0) ? new Key(i).getArray() : new Key(i, round).getArray();
+                                db.put(key, key, 0);
+                            }
+                            for (int i = round % 2; i < n; i += 2) {
+                                byte[] key = (round % 3 == 0) ? new Key(i).getArray() : new Key(i, round).getArray();
+                                db.replace(key, new ByteArrayRef(0, 0, new byte[0]));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            writer.start();
+            Random rand = new Random(4);
+            while (writer.isAlive()) {
+                Key start = new Key(rand.nextInt(n));
+                StoreIterator it = db.iterator(start.getArray());
+                Key last = null;
+                for (int i = 0; (i < 3) && it.hasNext(); i++) {
+                    Key k = new Key(it.peekKey());
+                    assertTrue(start.compareTo(k) <= 0);
+                    assertTrue(last == null || last.compareTo(k) < 0);
+                    assertEquals(k, new Key(it.peekValue().dereference()));
+                    last = k;
+                    it.next();
+                }
+                it.close();
+            }
+            writer.join();
+            assertNull(failure.get());
+            assertTrue(db.arena().allocatedBytes() <= db.arena().reservedBytes());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void artDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        dbTest(new ArtDB(config.core()));
+        versionTest(new ArtDB(config.core()));
+        rangeQueryTest(new ArtDB(config.core()));
+    }
+
+    @Test
+    public void artIndexTest() {
+        Random rand = new Random(1);
+        AdaptiveRadixTree tree = new AdaptiveRadixTree();
+        TreeMap<byte[], byte[]> reference = new TreeMap<byte[], byte[]>(Key.COMP);
+        for (int i = 0; i < 20000; i++) {
+            // short keys over a small alphabet to get shared prefixes and keys that are prefixes of others
+            byte[] key = new byte[rand.nextInt(6)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = (byte) (rand.nextBoolean() ? rand.nextInt(3) : rand.nextInt(256));
+            }
+            if (rand.nextInt(3) == 0) {
+                assertTrue(Arrays.equals(reference.remove(key), tree.remove(key)));
+            } else {
+                byte[] value = new byte[]{(byte) i};
+                assertTrue(Arrays.equals(reference.put(key, value), tree.put(key, value)));
+            }
+            assertEquals(reference.size(), tree.size());
+        }
+        AdaptiveRadixTree.Cursor c = tree.cursor();
+        for (Map.Entry<byte[], byte[]> e : reference.entrySet()) {
+            assertTrue(c.valid());
+            assertEquals(new Key(e.getKey()), new Key(c.key()));
+            assertTrue(Arrays.equals(e.getValue(), c.value()));
+            assertTrue(Arrays.equals(e.getValue(), tree.get(e.getKey())));
+            c.next();
+        }
+        assertTrue(!c.valid());
+        for (int i = 0; i < 1000; i++) {
+            byte[] start = new byte[rand.nextInt(4)];
+            rand.nextBytes(start);
+            c = tree.cursor(start);
+            byte[] expected = reference.ceilingKey(start);
+            if (expected == null) {
+                assertTrue(!c.valid());
+            } else {
+                assertEquals(new Key(expected), new Key(c.key()));
+                // modifications while iterating
+                tree.remove(c.key());
+                byte[] removed = reference.remove(c.key());
+                c.next();
+                expected = reference.higherKey(expected);
+                if (expected == null) {
+                    assertTrue(!c.valid());
+                } else {
+                    assertEquals(new Key(expected), new Key(c.key()));
+                }
+                tree.put(c.valid() ? c.key() : start, removed);
+                reference.put(c.valid() ? c.key() : start, removed);
+            }
+        }
+        assertEquals(reference.size(), tree.size());
+    }
+
+    @Test
+    public void lsmDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        dbTest(new LsmDB(config.core()));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        versionTest(new LsmDB(config.core()));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        rangeQueryTest(new LsmDB(config.core()));
+        Configuration vconfig = Configuration.Factory.modify(config).setValue("lsm.layout", "versioned").finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        versionTest(new LsmDB(vconfig.core()));
+    }
+
+    @Test
+    public void lsmRecoveryTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        File dir = new File(config.getString("lsm.path"));
+        LsmStore.Options opts = new LsmStore.Options();
+        opts.memtableSize = 16 * 1024; // lots of flushes and compactions
+        opts.tableSize = 8 * 1024;
+        opts.blockSize = 512;
+        opts.levelBase = 32 * 1024;
+        opts.l0CompactionTrigger = 2;
+        Random rand = new Random(2);
+        TreeMap<byte[], byte[]> reference = new TreeMap<byte[], byte[]>(Key.COMP);
+        for (int round = 0; round < 3; round++) {
+            LsmStore store = LsmStore.open(dir, opts);
+            try {
+                for (int i = 0; i < 5000; i++) {
+                    byte[] key = new Key(rand.nextInt(2000)).getArray();
+                    if (rand.nextInt(4) == 0) {
+                        store.delete(key);
+                        reference.remove(key);
+                    } else {
+                        byte[] value = new byte[rand.nextInt(40)];
+                        rand.nextBytes(value);
+                        store.put(key, value);
+                        reference.put(key, value);
+                    }
+                }
+                checkStore(store, reference);
+            } finally {
+                store.close();
+            }
+        }
+        LsmStore store = LsmStore.open(dir, opts);
+        try {
+            checkStore(store, reference);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void versionedTombstoneTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        LsmStore raw = LsmStore.open(new File(config.getString("lsm.path")), new LsmStore.Options());
+        VersionedLayout layout = new VersionedLayout(raw);
+        try {
+            byte[] key = new Key(1).getArray();
+            // deleting a key that doesn't exist must not leave a tombstone behind
+            layout.delete(key, 1);
+            assertEquals(0, countRecords(raw));
+            Batch b = layout.createBatch();
+            try {
+                b.delete(key, 2);
+                layout.writeBatch(b);
+            } finally {
+                b.close();
+            }
+            assertEquals(0, countRecords(raw));
+            // a real delete writes a tombstone that GC collects with the value
+            layout.put(key, key, 3);
+            layout.delete(key, 4);
+            assertEquals(0, layout.get(key).length);
+            assertEquals(2, countRecords(raw));
+            layout.deleteVersions(key, 5);
+            assertEquals(0, countRecords(raw));
+            layout.delete(key, 6);
+            assertEquals(0, countRecords(raw));
+        } finally {
+            raw.close();
+        }
+    }
+
+    private static int countRecords(RawStore store) {
+        int n = 0;
+        RawStore.Cursor c = store.cursor(null);
+        try {
+            while (c.valid()) {
+                n++;
+                c.next();
+            }
+        } finally {
+            c.close();
+        }
+        return n;
+    }
+
+    @Test
+    public void bitcaskDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        dbTest(new BitcaskDB(config.core()));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        versionTest(new BitcaskDB(config.core()));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        rangeQueryTest(new BitcaskDB(config.core()));
+    }
+
+    @Test
+    public void bitcaskRecoveryTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        File dir = new File(config.getString("bitcask.path"));
+        BitcaskStore.Options opts = new BitcaskStore.Options();
+        opts.segmentSize = 16 * 1024; // lots of segments
+        opts.mergeInterval = 0;
+        Random rand = new Random(3);
+        TreeMap<byte[], byte[]> reference = new TreeMap<byte[], byte[]>(Key.COMP);
+        for (int round = 0; round < 3; round++) {
+            BitcaskStore store = BitcaskStore.open(dir, opts);
+            try {
+                for (int i = 0; i < 5000; i++) {
+                    byte[] key = new Key(rand.nextInt(2000)).getArray();
+                    if (rand.nextInt(4) == 0) {
+                        store.delete(key);
+                        reference.remove(key);
+                    } else {
+                        byte[] value = new byte[rand.nextInt(40)];
+                        rand.nextBytes(value);
+                        store.put(key, value);
+                        reference.put(key, value);
+                    }
+                    if (i % 2000 == 0) {
+                        store.merge();
+                    }
+                }
+                checkStore(store, reference);
+            } finally {
+                store.close();
+            }
+        }
+        BitcaskStore store = BitcaskStore.open(dir, opts);
+        try {
+            checkStore(store, reference);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void cachedDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("leveldb.layout", "versioned").finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        ValueCache cache = new ValueCache(1 << 20);
+        dbTest(new CachedDatabase(new LevelDBJNI(config.core()), cache));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        versionTest(new CachedDatabase(new LevelDBJNI(config.core()), cache));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        rangeQueryTest(new CachedDatabase(new InMemoryDB(config.core()), cache));
+        // reads are served from the cache and writes invalidate it
+        CachedDatabase db = new CachedDatabase(new InMemoryDB(config.core()), cache);
+        byte[] key = new Key(1).getArray();
+        db.put(key, new Key(1).getArray(), 1);
+        assertEquals(new Key(1), new Key(db.get(key).dereference()));
+        long hits = cache.hits();
+        assertEquals(new Key(1), new Key(db.get(key).dereference()));
+        assertEquals(hits + 1, cache.hits());
+        db.put(key, new Key(2).getArray(), 2);
+        assertEquals(new Key(2), new Key(db.get(key).dereference()));
+        Batch b = db.createBatch();
+        b.put(key, new Key(3).getArray(), 3);
+        db.writeBatch(b);
+        b.close();
+        assertEquals(new Key(3), new Key(db.get(key).dereference()));
+        db.delete(key, 4);
+        assertEquals(0, db.get(key).length); // tombstone
+        db.put(key, new Key(5).getArray(), 5);
+        db.get(key);
+        int size = cache.size();
+        db.close();
+        assertEquals(size - 1, cache.size()); // closing drops the entries
+    }
+
+    @Test
+    public void valueCacheTest() {
+        final int capacity = 1 << 16;
+        final int keys = 10000;
+        ValueCache cache = new ValueCache(capacity);
+        int ns = cache.newNamespace();
+        Random rand = new Random(0);
+        byte[] value = new byte[32];
+        int hits = 0;
+        int reads = 50000;
+        for (int i = 0; i < reads; i++) {
+            // heavily skewed towards low keys
+            int k = (int) (keys * Math.pow(rand.nextDouble(), 4));
+            byte[] key = ByteBuffer.allocate(4).putInt(k).array();
+            if (cache.get(ns, key) != null) {
+                hits++;
+            } else {
+                cache.put(ns, key, value);
+            }
+            assertTrue(cache.weight() <= capacity);
+        }
+        // roughly 1/3 of the reads go to the ~500 keys that fit
+        assertTrue("Hit rate too low: " + hits, hits > reads / 4);
+        // a scan of one-hit wonders must not flush the hot keys
+        for (int k = keys; k < 3 * keys; k++) {
+            byte[] key = ByteBuffer.allocate(4).putInt(k).array();
+            if (cache.get(ns, key) == null) {
+                cache.put(ns, key, value);
+            }
+        }
+        byte[] hot = ByteBuffer.allocate(4).putInt(0).array();
+        assertNotNull(cache.get(ns, hot));
+        cache.invalidate(ns, hot);
+        assertNull(cache.get(ns, hot));
+        assertNull(cache.get(cache.newNamespace(), ByteBuffer.allocate(4).putInt(1).array()));
+        assertTrue(cache.evictions() > 0);
+    }
+
+    @Test
+    public void compressedDBTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("leveldb.layout", "versioned").finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        SchemaCodecs all = new SchemaCodecs();
+        all.register(new byte[0], new ValueCodec("all", ValueCodec.Type.FAST, null));
+        dbTest(new CompressedDatabase(new LevelDBJNI(config.core()), all));
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        versionTest(new CompressedDatabase(new LevelDBJNI(config.core()), all));
+        rangeQueryTest(new CompressedDatabase(new InMemoryDB(config.core()), all));
+
+        // only the schema with prefix 1 is compressed, with a trained dictionary
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            samples.add(jsonValue(i));
+        }
+        byte[] dict = DictionaryTrainer.train(samples, DictionaryTrainer.DEFAULT_SIZE);
+        assertTrue(dict.length > 0);
+        ValueCodec codec = new ValueCodec("test", ValueCodec.Type.DEFLATE, dict);
+        ValueCodec plain = new ValueCodec("test", ValueCodec.Type.DEFLATE, null);
+        SchemaCodecs codecs = new SchemaCodecs();
+        codecs.register(new Key(1).getArray(), codec);
+        CompressedDatabase db = new CompressedDatabase(new InMemoryDB(config.core()), codecs);
+        CompressedDatabase target = new CompressedDatabase(new InMemoryDB(config.core()), codecs);
+        try {
+            byte[] inSchema = new Key(1, 7).getArray();
+            byte[] otherSchema = new Key(2, 7).getArray();
+            byte[] value = jsonValue(1000);
+            db.put(inSchema, value, 1);
+            db.put(otherSchema, value, 1);
+            assertTrue(db.getRaw(inSchema).length < value.length);
+            assertTrue(db.getRaw(inSchema).length < plain.encode(value).length);
+            assertTrue(db.getRaw(otherSchema).length >= value.length);
+            assertArrayEquals(value, db.get(inSchema).dereference());
+            assertArrayEquals(value, db.get(otherSchema).dereference());
+            assertArrayEquals(value, db.getAllVersions(inSchema).values().iterator().next().dereference());
+            Closer closer = Closer.create();
+            try {
+                StoreIterator it = closer.register(db.iterator(inSchema));
+                assertArrayEquals(value, it.peekValue().dereference());
+                // the raw data moves without recompression
+                target.replace(it.peekKey(), new ByteArrayRef(0, it.peekRaw().length, it.peekRaw()));
+            } catch (Throwable e) {
+                closer.rethrow(e);
+            } finally {
+                closer.close();
+            }
+            assertArrayEquals(value, target.get(inSchema).dereference());
+            db.delete(inSchema, 2);
+            assertEquals(0, db.get(inSchema).length); // tombstone
+            // incompressible values are stored as they are
+            byte[] random = new byte[100];
+            new Random(0).nextBytes(random);
+            db.put(inSchema, random, 3);
+            assertArrayEquals(random, db.get(inSchema).dereference());
+            assertEquals(random.length + 1, codec.encode(random).length);
+            // compressed schemas accept values up to MAX_VALUE_SIZE, whether they compress or not
+            assertEquals(ValueCodec.MAX_VALUE_SIZE, ValueCodec.maxValueSize(ImmutableMap.of(ValueCodec.META_KEY, "fast")));
+            assertEquals(MultiVersionUtil.MAX_DATA_SIZE, ValueCodec.maxValueSize(ImmutableMap.<String, String>of()));
+            byte[] noise = new byte[ValueCodec.MAX_VALUE_SIZE];
+            new Random(1).nextBytes(noise);
+            db.put(inSchema, noise, 4);
+            assertArrayEquals(noise, db.get(inSchema).dereference());
+            byte[] full = new byte[MultiVersionUtil.MAX_DATA_SIZE];
+            db.put(inSchema, full, 5);
+            assertArrayEquals(full, db.get(inSchema).dereference());
+            try {
+                db.put(inSchema, Arrays.copyOf(noise, MultiVersionUtil.MAX_DATA_SIZE), 6);
+                fail("Incompressible value over the schema's limit was accepted");
+            } catch (IllegalArgumentException ex) {
+                // expected, MethCat rejects these with VALUE_TOO_LARGE
+            }
+            assertTrue(codec.ratio() < 1.0);
+        } finally {
+            db.close();
+            target.close();
+        }
+    }
+
+    private static byte[] jsonValue(int i) {
+        return ("{\"id\": " + i + ", \"name\": \"user" + i + "\", \"email\": \"user" + i
+                + "@example.com\", \"active\": " + (i % 2 == 0) + ", \"roles\": [\"reader\", \"writer\"]}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void filteredDBTest() throws IOException, InterruptedException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("leveldb.layout", "versioned").finalise();
+        final KeyRange all = KeyRange.closed(Key.NULL_KEY).open(Key.INF);
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        FilteredDatabase fdb = new FilteredDatabase(new LevelDBJNI(config.core()), 10);
+        fdb.rebuildFilter(all, true);
+        dbTest(fdb);
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        fdb = new FilteredDatabase(new LevelDBJNI(config.core()), 10);
+        fdb.rebuildFilter(all, true);
+        versionTest(fdb);
+        fdb = new FilteredDatabase(new InMemoryDB(config.core()), 10);
+        fdb.rebuildFilter(all, true);
+        rangeQueryTest(fdb);
+
+        final FilteredDatabase db = new FilteredDatabase(new OffHeapDB(config.core()), 10); // needs concurrent access
+        final int n = 2000;
+        for (int i = 0; i < n; i += 2) {
+            db.put(new Key(i).getArray(), new Key(i).getArray(), 0);
+        }
+        // keys written during the rebuild must not be lost
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i < n; i += 4) {
+                    db.put(new Key(i).getArray(), new Key(i).getArray(), 0);
+                }
+            }
+        };
+        writer.start();
+        db.rebuildFilter(KeyRange.closed(new Key(0)).open(new Key(n)), true);
+        writer.join();
+        for (int i = 0; i < n; i++) {
+            boolean present = (i % 2 == 0) || (i % 4 == 1);
+            if (present) {
+                assertEquals(new Key(i), new Key(db.get(new Key(i).getArray()).dereference()));
+            } else {
+                assertNull(db.get(new Key(i).getArray()));
+            }
+        }
+        // about 1% false positives at 10 bits per key
+        assertTrue("Too few filtered lookups: " + db.negatives(), db.negatives() > (n / 4) * 9 / 10);
+        // outside of a filtered range everything goes to the database
+        long negatives = db.negatives();
+        assertNull(db.get(new Key(n + 1).getArray()));
+        assertEquals(negatives, db.negatives());
+        db.close();
+    }
+
+    private void checkStore(RawStore store, TreeMap<byte[], byte[]> reference) {
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new Key(i).getArray();
+            byte[] expected = reference.get(key);
+            byte[] value = store.get(key);
+            assertTrue(Arrays.equals(expected, value));
+        }
+        RawStore.Cursor c = store.cursor(new Key(500).getArray());
+        for (Map.Entry<byte[], byte[]> e : reference.tailMap(new Key(500).getArray()).entrySet()) {
+            assertTrue(c.valid());
+            assertEquals(new Key(e.getKey()), new Key(c.key()));
+            assertTrue(Arrays.equals(e.getValue(), c.value()));
+            c.next();
+        }
+        assertTrue(!c.valid());
+        c.close();
+    }
+
+    @Test
+    public void layoutMigrationTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+        Key[] keys = linearKeys(NUM);
+        Database db = new LevelDBJNI(config.core());
+        try {
+            for (int i = 0; i < NUM; i++) {
+                db.put(keys[i].getArray(), keys[i].getArray(), 1);
+                db.put(keys[i].getArray(), keys[(i + 1) % NUM].getArray(), 2);
+            }
+        } finally {
+            db.close();
+        }
+        Configuration vconfig = Configuration.Factory.modify(config).setValue("leveldb.layout", "versioned").finalise();
+        db = new LevelDBJNI(vconfig.core());
+        try {
+            for (int i = 0; i < NUM; i++) {
+                SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(keys[i].getArray());
+                assertEquals(2, versions.size());
+                assertEquals(keys[i], new Key(versions.get(1).dereference()));
+                assertEquals(keys[(i + 1) % NUM], new Key(db.get(keys[i].getArray()).dereference()));
+            }
+        } finally {
+            db.close();
+        }
+        try {
+            db = new LevelDBJNI(config.core());
+            db.close();
+            fail("Opened versioned layout as packed!");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    static void versionTest(Database db) throws IOException {
+        try {
+            byte[] key = new Key(1, 0, 2).getArray();
+            byte[] prefixKey = new Key(1, 0).getArray();
+            db.put(prefixKey, prefixKey, 0);
+            db.put(key, new Key(1).getArray(), 1);
+            db.put(key, new Key(2).getArray(), 2);
+            assertEquals(new Key(2), new Key(db.get(key).dereference()));
+            assertEquals(new Key(1, 0), new Key(db.get(prefixKey).dereference()));
+
+            db.delete(key, 3);
+            ByteArrayRef val = db.get(key);
+            assertNotNull(val);
+            assertEquals(0, val.length);
+            assertEquals(3, db.getAllVersions(key).size());
+
+            assertTrue(db.deleteVersions(key, 1) > 0);
+            SortedMap<Integer, ByteArrayRef> versions = db.getAllVersions(key);
+            assertEquals(2, versions.size());
+            assertEquals(3, (int) versions.firstKey());
+            // only a tombstone left
+            assertEquals(0, db.deleteVersions(key, 3));
+            assertNull(db.get(key));
+            assertTrue(db.getAllVersions(key).isEmpty());
+
+            Closer closer = Closer.create();
+            try {
+                StoreIterator it = closer.register(db.iterator());
+                assertTrue(it.hasNext());
+                assertEquals(new Key(prefixKey), new Key(it.peekKey()));
+                it.next();
+                assertTrue(!it.hasNext());
+            } catch (Throwable e) {
+                closer.rethrow(e);
+            } finally {
+                closer.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    static void dbTest(Database db) throws IOException {
         try {
 
             Key[] keys = linearKeys(NUM);
@@ -172,7 +854,7 @@ public class DBTest {
         rangeQueryTest(new LevelDBJNI(config.core()));
     }
 
-    private void rangeQueryTest(Database db) throws IOException {
+    static void rangeQueryTest(Database db) throws IOException {
         Key[] keys = linearKeys(20);
         for (int i = 0; i < 20; i++) {
             new Put(keys[i], ByteBuffer.allocate(4).putInt(i + 10).array(), 0).execute(db);
@@ -199,7 +881,7 @@ public class DBTest {
         }
     }
 
-    private Key[] linearKeys(int NUM) {
+    static Key[] linearKeys(int NUM) {
         Key[] keys = new Key[NUM];
         for (int i = 0; i < NUM; i++) {
             keys[i] = new Key(i);
@@ -0,0 +1,139 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.persistence;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import se.sics.caracaldb.persistence.disk.LevelDBJNI;
+import se.sics.caracaldb.persistence.disk.LsmDB;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.persistence.memory.OffHeapDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ * Runs the shared Database tests of {@link DBTest} on the engines and
+ * layouts that DBTest doesn't run them on, so every engine fulfils the whole
+ * contract.
+ *
+ * @author Lars Kroll <lkroll@sics.se>
+ */
+@RunWith(Parameterized.class)
+public class EngineTest {
+
+    private static final Engine MEMORY = new Engine() {
+        @Override
+        Database open(Configuration config) {
+            return new InMemoryDB(config.core());
+        }
+    };
+    private static final Engine LEVELDB = new Engine() {
+        @Override
+        Database open(Configuration config) throws IOException {
+            return new LevelDBJNI(config.core());
+        }
+    };
+    private static final Engine OFFHEAP = new Engine() {
+        @Override
+        Database open(Configuration config) {
+            return new OffHeapDB(config.core());
+        }
+    };
+    private static final Engine LSM = new Engine() {
+        @Override
+        Database open(Configuration config) throws IOException {
+            return new LsmDB(config.core());
+        }
+    };
+    private static final String[] PACKED = new String[0];
+
+    @Parameters(name = "{0} {1}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[][]{
+            {"memory", Contract.VERSION, PACKED, MEMORY},
+            {"memory", Contract.RANGE_QUERY, PACKED, MEMORY},
+            {"memory-versioned", Contract.RANGE_QUERY, new String[]{"memorydb.layout", "versioned"}, MEMORY},
+            {"leveldb", Contract.VERSION, PACKED, LEVELDB},
+            {"leveldb", Contract.RANGE_QUERY, PACKED, LEVELDB},
+            {"offheap", Contract.RANGE_QUERY, new String[]{"offheap.slabSize", "64K"}, OFFHEAP},
+            {"lsm-versioned", Contract.DB, new String[]{"lsm.layout", "versioned"}, LSM},
+            {"lsm-versioned", Contract.RANGE_QUERY, new String[]{"lsm.layout", "versioned"}, LSM}
+        });
+    }
+
+    private final Contract contract;
+    private final String[] settings;
+    private final Engine engine;
+    private Configuration config;
+
+    public EngineTest(String name, Contract contract, String[] settings, Engine engine) {
+        this.contract = contract;
+        this.settings = settings;
+        this.engine = engine;
+    }
+
+    @Before
+    public void setUp() {
+        Launcher.reset();
+        Configuration.Builder builder = Launcher.config();
+        for (int i = 0; i < settings.length; i += 2) {
+            builder.setValue(settings[i], settings[i + 1]);
+        }
+        config = builder.finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+    }
+
+    @Test
+    public void contractTest() throws IOException {
+        Database db = engine.open(config);
+        switch (contract) {
+            case DB:
+                DBTest.dbTest(db);
+                break;
+            case VERSION:
+                DBTest.versionTest(db);
+                break;
+            case RANGE_QUERY:
+                try {
+                    DBTest.rangeQueryTest(db);
+                } finally {
+                    db.close(); // unlike the others, it leaves the database open
+                }
+                break;
+        }
+    }
+
+    static enum Contract {
+
+        DB, VERSION, RANGE_QUERY;
+    }
+
+    private static abstract class Engine {
+
+        abstract Database open(Configuration config) throws IOException;
+    }
+}
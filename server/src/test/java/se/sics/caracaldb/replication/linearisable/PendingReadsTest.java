@@ -0,0 +1,78 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.linearisable;
+
+import java.util.List;
+import java.util.UUID;
+import org.javatuples.Pair;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.operations.CaracalOp;
+import se.sics.caracaldb.operations.GetRequest;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class PendingReadsTest {
+
+    @Test
+    public void sessionPositionTest() {
+        PendingReads pending = new PendingReads();
+        // granted at positions the client's session saw, but this replica hasn't applied
+        CaracalOp at5 = get();
+        CaracalOp at3 = get();
+        CaracalOp alsoAt5 = get();
+        CaracalOp at8 = get();
+        pending.add(5, at5);
+        pending.add(3, at3);
+        pending.add(5, alsoAt5);
+        pending.add(8, at8);
+
+        assertTrue(pending.ready(2).isEmpty());
+        List<Pair<Long, CaracalOp>> ready = pending.ready(5);
+        assertEquals(3, ready.size());
+        assertEquals(3l, (long) ready.get(0).getValue0());
+        assertSame(at3, ready.get(0).getValue1());
+        assertSame(at5, ready.get(1).getValue1());
+        assertSame(alsoAt5, ready.get(2).getValue1());
+        assertEquals(5l, (long) ready.get(2).getValue0());
+        // each read runs only once
+        assertTrue(pending.ready(7).isEmpty());
+        assertFalse(pending.isEmpty());
+
+        ready = pending.ready(10);
+        assertEquals(1, ready.size());
+        assertSame(at8, ready.get(0).getValue1());
+        assertTrue(pending.isEmpty());
+    }
+
+    private static GetRequest get() {
+        return new GetRequest(UUID.randomUUID(), new Key(1));
+    }
+}
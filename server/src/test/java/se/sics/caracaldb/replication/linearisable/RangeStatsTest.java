@@ -0,0 +1,89 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.replication.linearisable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.replication.linearisable.ExecutionEngine.SizeReport;
+import se.sics.caracaldb.replication.linearisable.ExecutionEngine.State;
+import se.sics.caracaldb.store.Diff;
+import se.sics.caracaldb.store.RangeStats;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class RangeStatsTest {
+
+    @Test
+    public void seedTest() {
+        RangeStats stats = new RangeStats();
+        // relative diffs are meaningless before the first scan
+        stats.apply(new Diff(100, 1));
+        stats.apply(new Diff(-30, 0));
+        assertFalse(stats.isKnown());
+        assertEquals(0, stats.size());
+        assertEquals(0, stats.keys());
+
+        stats.apply(new Diff(1000, 10, true)); // e.g. from a SizeScan
+        assertTrue(stats.isKnown());
+        stats.apply(new Diff(100, 1));
+        stats.apply(new Diff(-50, -1));
+        assertEquals(1050, stats.size());
+        assertEquals(10, stats.keys());
+        // a new scan replaces the counters
+        stats.apply(new Diff(500, 4, true));
+        assertEquals(500, stats.size());
+        assertEquals(4, stats.keys());
+        Diff report = stats.toDiff();
+        assertTrue(report.reset);
+        assertEquals(500, report.size);
+        assertEquals(4, report.keys);
+
+        stats.invalidate();
+        assertFalse(stats.isKnown());
+        stats.apply(new Diff(100, 1));
+        assertFalse(stats.isKnown());
+    }
+
+    @Test
+    public void sizeReportTest() {
+        RangeStats stats = new RangeStats();
+        assertEquals(SizeReport.SCAN, ExecutionEngine.sizeReport(stats, State.ACTIVE, false));
+        assertEquals(SizeReport.DEFERRED, ExecutionEngine.sizeReport(stats, State.CATCHING_UP, false));
+        assertEquals(SizeReport.DEFERRED, ExecutionEngine.sizeReport(stats, State.ACTIVE, true));
+        // answered from the counters once they are seeded, without another scan
+        stats.apply(new Diff(1000, 10, true));
+        stats.apply(new Diff(100, 1));
+        assertEquals(SizeReport.MAINTAINED, ExecutionEngine.sizeReport(stats, State.ACTIVE, false));
+        assertEquals(SizeReport.MAINTAINED, ExecutionEngine.sizeReport(stats, State.ACTIVE, true));
+        // going active invalidates them until the collection's SizeScan
+        stats.invalidate();
+        assertEquals(SizeReport.DEFERRED, ExecutionEngine.sizeReport(stats, State.ACTIVE, true));
+        stats.apply(new Diff(900, 9, true));
+        assertEquals(SizeReport.MAINTAINED, ExecutionEngine.sizeReport(stats, State.ACTIVE, false));
+    }
+}
@@ -0,0 +1,121 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.google.common.primitives.Ints;
+import com.larskroll.common.ByteArrayRef;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class AggregatorTest {
+
+    private static final int NUM = 100;
+
+    @Test
+    public void builtinTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "versioned").finalise();
+        Database db = new InMemoryDB(config.core());
+        try {
+            for (int i = 0; i < NUM; i++) {
+                // 1 byte tag + 4 byte field
+                byte[] value = new byte[5];
+                value[0] = (byte) (i % 7);
+                System.arraycopy(Ints.toByteArray(i - 50), 0, value, 1, 4);
+                db.put(new Key(i).getArray(), value, 0);
+            }
+            db.put(new Key(NUM).getArray(), new byte[0], 0); // tombstone
+            KeyRange all = KeyRange.closed(new Key(0)).closed(new Key(NUM));
+            assertEquals(NUM, aggregate(db, all, AggFactory.count()).result());
+            assertEquals(-50, aggregate(db, all, AggFactory.sum(1, 4)).result());
+            assertEquals(-50, aggregate(db, all, AggFactory.min(1, 4)).result());
+            assertEquals(49, aggregate(db, all, AggFactory.max(1, 4)).result());
+            assertEquals(6, aggregate(db, all, AggFactory.max(0, 1)).result());
+
+            // partial results of two partitions
+            KeyRange left = KeyRange.closed(new Key(0)).open(new Key(40));
+            KeyRange right = KeyRange.closed(new Key(40)).closed(new Key(NUM));
+            Aggregator sum = aggregate(db, left, AggFactory.sum(1, 4));
+            sum.merge(aggregate(db, right, AggFactory.sum(1, 4)));
+            assertEquals(-50, sum.result());
+            assertEquals(NUM, sum.count());
+            Aggregator max = aggregate(db, right, AggFactory.max(1, 4));
+            max.merge(aggregate(db, left, AggFactory.max(1, 4)));
+            assertEquals(49, max.result());
+            try {
+                sum.merge(max);
+                assertTrue("Merged different aggregates", false);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void distinctTest() {
+        Aggregator a = AggFactory.distinct(12);
+        Aggregator b = a.empty();
+        for (int i = 0; i < 20000; i++) {
+            byte[] value = Ints.toByteArray(i % 10000);
+            if (i % 2 == 0) {
+                a.add(null, new ByteArrayRef(0, value.length, value));
+            } else {
+                b.add(null, new ByteArrayRef(0, value.length, value));
+            }
+        }
+        a.merge(b);
+        long estimate = a.result();
+        assertTrue("Estimate " + estimate, Math.abs(estimate - 10000) < 500); // ~1.6% standard error
+        Aggregator small = AggFactory.distinct(12);
+        for (int i = 0; i < 10; i++) {
+            byte[] value = Ints.toByteArray(i);
+            small.add(null, new ByteArrayRef(0, value.length, value));
+        }
+        assertEquals(10, small.result());
+    }
+
+    private static Aggregator aggregate(Database db, KeyRange range, Aggregator agg) throws IOException {
+        RangeReq req = new RangeReq(range, null, null, null, 0);
+        req.setAggregator(agg);
+        RangeResp resp = (RangeResp) req.execute(db);
+        assertTrue(resp.result.isEmpty());
+        assertNull(req.getCursor());
+        return resp.aggregate;
+    }
+}
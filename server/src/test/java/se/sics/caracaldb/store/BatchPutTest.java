@@ -0,0 +1,68 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.util.TreeMap;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class BatchPutTest {
+
+    private static final int NUM = 100;
+
+    @Test
+    public void diffTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "versioned").finalise();
+        Database db = new InMemoryDB(config.core());
+        try {
+            db.put(new Key(0).getArray(), new byte[10], 0);
+            TreeMap<Key, byte[]> puts = new TreeMap<Key, byte[]>();
+            for (int i = 0; i < NUM; i++) {
+                puts.put(new Key(i), new byte[]{(byte) i, 1, 2, 3});
+            }
+            BatchPutResp resp = (BatchPutResp) new BatchPut(puts, 1).execute(db);
+            assertEquals(puts.keySet(), resp.keys);
+            assertEquals(NUM - 1, resp.diff.keys);
+            assertEquals((NUM - 1) * (4 + new Key(0).getKeySize()) + (4 - 10), resp.diff.size);
+            for (int i = 0; i < NUM; i++) {
+                assertArrayEquals(puts.get(new Key(i)), db.get(new Key(i).getArray()).dereference());
+            }
+            assertEquals(2, db.getAllVersions(new Key(0).getArray()).size());
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class GroupCommitterTest {
+
+    private static final int WRITES = 1000;
+
+    @Test
+    public void groupTest() throws IOException, InterruptedException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        final AtomicInteger syncs = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        final InMemoryDB db = new InMemoryDB(config.core()) {
+
+            @Override
+            public void sync() {
+                syncs.incrementAndGet();
+            }
+        };
+        final ConcurrentLinkedQueue<StorageResponse> responses = new ConcurrentLinkedQueue<StorageResponse>();
+        RequestScheduler.ResponseSink sink = new RequestScheduler.ResponseSink() {
+
+            @Override
+            public void completed(StorageRequest req, StorageResponse resp) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void deliver(StorageResponse resp) {
+                // every delivered response must be covered by a sync
+                assertTrue(syncs.get() > 0);
+                delivered.incrementAndGet();
+                responses.add(resp);
+            }
+        };
+        GroupCommitter committer = new GroupCommitter(db, sink, 50, 100);
+        for (int i = 0; i < WRITES; i++) {
+            Put put = new Put(new Key(ByteBuffer.allocate(4).putInt(i).array()), new byte[]{1}, 0);
+            committer.add(put.execute(db));
+        }
+        committer.add(null); // writes without a response still join a group
+        committer.shutdown();
+
+        assertEquals(WRITES, delivered.get());
+        // groups close after at least 100 writes, so there must be far fewer syncs than writes
+        assertTrue("Too many syncs: " + syncs.get(), syncs.get() <= WRITES / 100 + 1);
+        db.close();
+    }
+}
@@ -0,0 +1,101 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class MultiGetReqTest {
+
+    private static final int NUM = 1000;
+
+    @Test
+    public void sweepTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "versioned").finalise();
+        Database db = new InMemoryDB(config.core());
+        try {
+            for (int i = 0; i < NUM; i += 2) {
+                db.put(new Key(i).getArray(), value(i), 0);
+            }
+            db.put(new Key(10).getArray(), value(-10), 1); // newest version wins
+
+            // dense: a single sweep
+            TreeSet<Key> keys = new TreeSet<Key>();
+            for (int i = 0; i < 100; i++) {
+                keys.add(new Key(i));
+            }
+            MultiGetReq req = new MultiGetReq(keys);
+            SortedMap<Key, byte[]> res = ((MultiGetResp) req.execute(db)).values;
+            assertEquals(keys, res.keySet());
+            assertEquals(1, req.seeks());
+            for (int i = 0; i < 100; i++) {
+                if (i == 10) {
+                    assertArrayEquals(value(-10), res.get(new Key(i)));
+                } else if (i % 2 == 0) {
+                    assertArrayEquals(value(i), res.get(new Key(i)));
+                } else {
+                    assertNull(res.get(new Key(i)));
+                }
+            }
+
+            // sparse: seek for every key
+            keys.clear();
+            for (int i = 0; i < NUM; i += 100) {
+                keys.add(new Key(i));
+            }
+            keys.add(new Key(NUM + 1)); // after the last record
+            req = new MultiGetReq(keys);
+            res = ((MultiGetResp) req.execute(db)).values;
+            assertEquals(keys, res.keySet());
+            assertEquals(NUM / 100 + 1, req.seeks());
+            for (int i = 0; i < NUM; i += 100) {
+                assertArrayEquals(value(i), res.get(new Key(i)));
+            }
+            assertNull(res.get(new Key(NUM + 1)));
+            assertTrue(res.containsKey(new Key(NUM + 1)));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static byte[] value(int i) {
+        return ("v" + i).getBytes();
+    }
+}
@@ -0,0 +1,185 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.util.UUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class RangeCursorTest {
+
+    private static final int NUM = 50;
+    private static final int PAGE = 7;
+
+    @Test
+    public void pagingTest() throws IOException {
+        Database db = fill();
+        try {
+            RangeCursors cursors = new RangeCursors(1000, 4);
+            UUID id = UUID.randomUUID();
+            KeyRange rest = KeyRange.closed(new Key(0)).open(new Key(NUM));
+            RangeCursor cursor = null;
+            int next = 0;
+            int pages = 0;
+            while (true) {
+                cursor = cursors.get(id, 0);
+                RangeResp resp = page(db, rest, cursor);
+                pages++;
+                for (Key k : resp.result.keySet()) {
+                    assertEquals(new Key(next), k);
+                    next++;
+                }
+                if (resp.result.size() < PAGE) {
+                    break;
+                }
+                assertTrue(resp.readLimit);
+                assertFalse(cursor.isClosed());
+                rest = KeyRange.open(resp.result.lastKey()).endFrom(rest);
+            }
+            assertEquals(NUM, next);
+            assertEquals((NUM + PAGE - 1) / PAGE, pages);
+            assertTrue(cursor.isClosed());
+            assertEquals(pages, cursor.pages());
+            assertEquals(1, cursor.seeks());
+            cursors.release(cursor);
+            assertTrue(cursors.isEmpty());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void reseekTest() throws IOException {
+        Database db = fill();
+        try {
+            RangeCursors cursors = new RangeCursors(10, 4);
+            UUID id = UUID.randomUUID();
+            KeyRange range = KeyRange.closed(new Key(0)).open(new Key(NUM));
+            RangeCursor cursor = cursors.get(id, 0);
+            RangeResp resp = page(db, range, cursor);
+            assertEquals(PAGE, resp.result.size());
+            // a page that doesn't continue after the last key
+            KeyRange other = KeyRange.closed(new Key(20)).open(new Key(NUM));
+            resp = page(db, other, cursors.get(id, 1));
+            assertEquals(new Key(20), resp.result.firstKey());
+            assertEquals(2, cursor.seeks());
+            // idle for too long
+            assertEquals(0, cursors.expire(5));
+            assertEquals(1, cursors.expire(11));
+            assertTrue(cursor.isClosed());
+            KeyRange rest = KeyRange.open(resp.result.lastKey()).endFrom(other);
+            RangeCursor fresh = cursors.get(id, 12);
+            assertNotSame(cursor, fresh);
+            resp = page(db, rest, fresh);
+            assertEquals(new Key(20 + PAGE), resp.result.firstKey());
+            assertEquals(1, fresh.seeks());
+            // least recently used goes first
+            for (int i = 0; i < 4; i++) {
+                cursors.get(UUID.randomUUID(), 13);
+            }
+            assertEquals(4, cursors.size());
+            assertTrue(fresh.isClosed());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void writeBetweenPagesTest() throws IOException {
+        Database db = fill();
+        try {
+            assertTrue(db.supportsLiveIterators());
+            RangeCursors cursors = new RangeCursors(1000, 4);
+            UUID id = UUID.randomUUID();
+            KeyRange range = KeyRange.closed(new Key(0)).open(new Key(NUM));
+            RangeCursor cursor = cursors.get(id, 0);
+            RangeResp resp = page(db, range, cursor, 0);
+            assertEquals(PAGE, resp.result.size());
+            assertEquals(new Key(PAGE - 1), resp.result.lastKey());
+            // writes behind, right after and further ahead of the parked position
+            db.put(new Key(0, 0).getArray(), new byte[]{0}, 1);
+            db.put(new Key(PAGE - 1, 0).getArray(), new byte[]{1}, 1);
+            db.put(new Key(PAGE + 1).getArray(), new byte[]{2}, 1);
+            db.delete(new Key(PAGE + 2).getArray(), 1);
+            KeyRange rest = KeyRange.open(resp.result.lastKey()).endFrom(range);
+            resp = page(db, rest, cursors.get(id, 1), 1);
+            assertEquals(PAGE, resp.result.size());
+            assertEquals(new Key(PAGE - 1, 0), resp.result.firstKey());
+            assertEquals(2, resp.result.get(new Key(PAGE + 1))[0]);
+            assertEquals(0, resp.result.get(new Key(PAGE + 2)).length); // tombstone
+            assertFalse(resp.result.containsKey(new Key(0, 0)));
+            assertEquals(2, cursor.pages());
+            assertEquals(1, cursor.seeks());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void readAheadTest() {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "versioned").finalise();
+        Database db = new InMemoryDB(config.core());
+        try {
+            // collects all versions of a key before returning it
+            assertFalse(db.supportsLiveIterators());
+        } finally {
+            db.close();
+        }
+    }
+
+    private static Database fill() {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "packed").finalise();
+        Database db = new InMemoryDB(config.core());
+        for (int i = 0; i < NUM; i++) {
+            db.put(new Key(i).getArray(), new byte[]{(byte) i}, 0);
+        }
+        return db;
+    }
+
+    private static RangeResp page(Database db, KeyRange range, RangeCursor cursor) throws IOException {
+        return page(db, range, cursor, 0);
+    }
+
+    private static RangeResp page(Database db, KeyRange range, RangeCursor cursor, int version) throws IOException {
+        RangeReq req = new RangeReq(range, Limit.toItems(PAGE), null, null, version);
+        req.setCursor(cursor);
+        return (RangeResp) req.execute(db);
+    }
+}
@@ -0,0 +1,135 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.memory.OffHeapDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class RequestSchedulerTest {
+
+    private static final int KEYS = 64;
+    private static final int ROUNDS = 50;
+
+    @Test
+    public void orderingTest() throws IOException {
+        Launcher.reset();
+        Configuration config = Launcher.config().finalise();
+        OffHeapDB db = new OffHeapDB(config.core());
+        final ConcurrentLinkedQueue<StorageResponse> responses = new ConcurrentLinkedQueue<StorageResponse>();
+        RequestScheduler scheduler = new RequestScheduler(db, new RequestScheduler.ResponseSink() {
+
+            @Override
+            public void completed(StorageRequest req, StorageResponse resp) {
+                if (resp != null) {
+                    deliver(resp);
+                }
+            }
+
+            @Override
+            public void deliver(StorageResponse resp) {
+                responses.add(resp);
+            }
+        }, 4, 2);
+
+        Key[] keys = new Key[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Key(ByteBuffer.allocate(4).putInt(i).array());
+        }
+        List<UUID> gets = new ArrayList<UUID>();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int i = 0; i < KEYS; i++) {
+                scheduler.submit(new Put(keys[i], value(r), 0));
+            }
+            // multi-stripe writes must be ordered with the single key ones
+            TreeMap<Key, byte[]> batch = new TreeMap<Key, byte[]>();
+            for (int i = r % 4; i < KEYS; i += 4) {
+                batch.put(keys[i], value(r + ROUNDS));
+            }
+            scheduler.submit(new BatchWrite(batch, 0));
+            // the batch of this round always covers the key read here
+            GetReq get = new GetReq(keys[r % KEYS]);
+            get.setId(UUID.randomUUID());
+            gets.add(get.getId());
+            scheduler.submit(get);
+        }
+        RangeReq scan = new RangeReq(KeyRange.closed(keys[0]).closed(keys[KEYS - 1]), null, null, null, 0);
+        scheduler.submit(scan);
+        scheduler.shutdown(30, TimeUnit.SECONDS);
+
+        RangeResp scanResp = null;
+        int getResps = 0;
+        for (StorageResponse resp : responses) {
+            if (resp instanceof RangeResp) {
+                scanResp = (RangeResp) resp;
+            } else if (resp instanceof GetResp) {
+                GetResp gr = (GetResp) resp;
+                int r = gets.indexOf(gr.getId());
+                assertTrue(r >= 0);
+                assertEquals(keys[r % KEYS], gr.key);
+                assertEquals(r + ROUNDS, ByteBuffer.wrap(gr.value).getInt());
+                getResps++;
+            }
+        }
+        assertEquals(ROUNDS, getResps);
+        assertNotNull(scanResp);
+        assertEquals(KEYS, scanResp.result.size());
+        int i = 0;
+        for (Entry<Key, byte[]> e : scanResp.result.entrySet()) {
+            int last = ROUNDS - 1;
+            int expected = batchCovers(last, i) ? last + ROUNDS : last;
+            assertEquals(keys[i], e.getKey());
+            assertEquals(expected, ByteBuffer.wrap(e.getValue()).getInt());
+            i++;
+        }
+        db.close();
+    }
+
+    private static boolean batchCovers(int round, int key) {
+        return (key % 4) == (round % 4);
+    }
+
+    private static byte[] value(int v) {
+        return ByteBuffer.allocate(4).putInt(v).array();
+    }
+}
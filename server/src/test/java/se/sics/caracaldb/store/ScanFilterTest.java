@@ -0,0 +1,142 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+import static se.sics.caracaldb.store.ScanFilter.*;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(JUnit4.class)
+public class ScanFilterTest {
+
+    private static final int NUM = 30;
+    private static final KeyRange ALL = KeyRange.closed(Key.ZERO_KEY).open(new Key(new byte[]{(byte) 0xFF}));
+
+    @Test
+    public void jsonTest() throws IOException {
+        Database db = open();
+        try {
+            for (int i = 0; i < NUM; i++) {
+                String key = ((i % 2 == 0) ? "user/" : "group/") + i;
+                String value = "{\"name\": \"n" + i + "\", \"tags\": [\"a\", {\"b\": 1}], \"age\":" + i + "}";
+                put(db, key, value);
+            }
+            put(db, "user/100", ""); // tombstone
+
+            List<String> names = scan(db, ScanFilter.where(and(keyPrefix(bytes("user/")),
+                    compare(json("age"), Op.GE, 20.0))).select(json("name")));
+            assertEquals(5, names.size()); // 20, 22, ..., 28
+            assertEquals("n20", names.get(0));
+
+            names = scan(db, ScanFilter.where(keyRegex("group/1[0-9]")).select(json("name")));
+            assertEquals(5, names.size());
+
+            names = scan(db, ScanFilter.where(or(compare(json("name"), Op.EQ, bytes("n3")),
+                    compare(json("name"), Op.PREFIX, bytes("n2")))).select(json("age")));
+            assertEquals(12, names.size()); // 2, 3, 20-29
+
+            names = scan(db, ScanFilter.where(not(exists(json("tags")))));
+            assertEquals(0, names.size());
+
+            names = scan(db, ScanFilter.where(keyPrefix(bytes("user/"))));
+            assertEquals(NUM / 2, names.size()); // no tombstone
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void binaryTest() throws IOException {
+        Database db = open();
+        try {
+            for (int i = 0; i < NUM; i++) {
+                byte[] name = bytes("n" + i);
+                byte[] value = new byte[4 + 4 + 4 + name.length];
+                System.arraycopy(Ints.toByteArray(4), 0, value, 0, 4);
+                System.arraycopy(Ints.toByteArray(i - 10), 0, value, 4, 4);
+                System.arraycopy(Ints.toByteArray(name.length), 0, value, 8, 4);
+                System.arraycopy(name, 0, value, 12, name.length);
+                db.put(new Key(i).getArray(), value, 0);
+            }
+            List<String> names = scan(db, ScanFilter.where(compare(lengthPrefixed(0), Op.LT, 0.0)).select(lengthPrefixed(1)));
+            assertEquals(10, names.size());
+            assertEquals("n0", names.get(0));
+
+            // unsigned bytewise: negative numbers sort after positive ones
+            names = scan(db, ScanFilter.where(between(slice(4, 4), Ints.toByteArray(0), Ints.toByteArray(5))).select(lengthPrefixed(1)));
+            assertEquals(5, names.size());
+            assertEquals("n10", names.get(0));
+
+            names = scan(db, ScanFilter.where(exists(lengthPrefixed(2))));
+            assertEquals(0, names.size());
+
+            // the compiled predicate only sees the projection when asked for it
+            List<String> raw = scan(db, new ScanFilter(null, slice(12, -1)));
+            assertEquals(NUM, raw.size());
+            assertArrayEquals(bytes("n0"), bytes(raw.get(0)));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static Database open() {
+        Launcher.reset();
+        Configuration config = Launcher.config().setValue("memorydb.layout", "versioned").finalise();
+        return new InMemoryDB(config.core());
+    }
+
+    private static void put(Database db, String key, String value) {
+        db.put(bytes(key), bytes(value), 0);
+    }
+
+    private static List<String> scan(Database db, ScanFilter filter) throws IOException {
+        RangeReq req = new RangeReq(ALL, null, filter, null, 0);
+        RangeResp resp = (RangeResp) req.execute(db);
+        List<String> values = new ArrayList<String>();
+        for (Entry<Key, byte[]> e : resp.result.entrySet()) {
+            values.add(new String(e.getValue(), Charsets.UTF_8));
+        }
+        return values;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,141 @@
+/* 
+ * This file is part of the CaracalDB distributed storage system.
+ *
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) 
+ * Copyright (C) 2009 Royal Institute of Technology (KTH)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.caracaldb.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import se.sics.caracaldb.Key;
+import se.sics.caracaldb.KeyRange;
+import se.sics.caracaldb.persistence.Database;
+import se.sics.caracaldb.persistence.disk.LevelDBJNI;
+import se.sics.caracaldb.persistence.memory.InMemoryDB;
+import se.sics.caracaldb.system.Configuration;
+import se.sics.caracaldb.system.Launcher;
+
+/**
+ *
+ * @author lkroll
+ */
+@RunWith(Parameterized.class)
+public class VersionGCTest {
+
+    private static final int NUM = 100;
+    private static final int SLICE = 7;
+
+    @Parameters(name = "{0}={1}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {"memorydb.layout", "packed"},
+            {"memorydb.layout", "versioned"},
+            {"leveldb.layout", "packed"},
+            {"leveldb.layout", "versioned"}
+        });
+    }
+
+    private final String setting;
+    private final String layout;
+    private Configuration config;
+
+    public VersionGCTest(String setting, String layout) {
+        this.setting = setting;
+        this.layout = layout;
+    }
+
+    @Before
+    public void setUp() {
+        Launcher.reset();
+        config = Launcher.config().setValue(setting, layout).finalise();
+        Launcher.cleanUp(config.getString("caracal.database.pathHead"));
+    }
+
+    private Database open() throws IOException {
+        if (setting.startsWith("leveldb")) {
+            return new LevelDBJNI(config.core());
+        }
+        return new InMemoryDB(config.core());
+    }
+
+    @Test
+    public void sliceTest() throws IOException {
+        Database db = open();
+        try {
+            for (int i = 0; i < NUM; i++) {
+                byte[] key = new Key(i).getArray();
+                db.put(key, new byte[]{0}, 0);
+                db.put(key, new byte[]{1}, 1);
+            }
+            // (10, 80) -> 69 keys
+            KeyRange range = KeyRange.open(new Key(10)).open(new Key(80));
+            VersionGC gc = new VersionGC(range, 1, SLICE, 100);
+            long totalDelay = 0;
+            VersionGC.Slice slice;
+            while ((slice = gc.nextSlice()) != null) {
+                VersionGC.Progress p = (VersionGC.Progress) slice.execute(db);
+                assertTrue(gc.owns(p));
+                assertTrue(p.keys <= SLICE);
+                totalDelay += gc.update(p);
+            }
+            assertTrue(gc.isDone());
+            assertEquals((69 + SLICE - 1) / SLICE, gc.slices());
+            assertTrue(totalDelay > 0);
+            for (int i = 0; i < NUM; i++) {
+                byte[] key = new Key(i).getArray();
+                int expected = ((i > 10) && (i < 80)) ? 1 : 2;
+                assertEquals("Key " + i, expected, db.getAllVersions(key).size());
+                assertEquals(1, db.get(key).dereference()[0]);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void supersededTest() throws IOException {
+        Database db = open();
+        try {
+            for (int i = 0; i < NUM; i++) {
+                db.put(new Key(i).getArray(), new byte[]{0}, 0);
+            }
+            KeyRange range = KeyRange.closed(new Key(0)).open(new Key(NUM));
+            VersionGC old = new VersionGC(range, 1, SLICE, 0);
+            VersionGC.Progress stale = (VersionGC.Progress) old.nextSlice().execute(db);
+            VersionGC gc = new VersionGC(range, 2, NUM, 0);
+            assertFalse(gc.owns(stale));
+            VersionGC.Progress p = (VersionGC.Progress) gc.nextSlice().execute(db);
+            assertEquals(0, gc.update(p));
+            assertNull(p.next);
+            assertTrue(gc.isDone());
+            assertNull(gc.nextSlice());
+        } finally {
+            db.close();
+        }
+    }
+}